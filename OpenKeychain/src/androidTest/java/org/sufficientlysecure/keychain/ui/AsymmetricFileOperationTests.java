@@ -369,8 +369,7 @@ public class AsymmetricFileOperationTests {
                     .inAdapterView(isAssignableFrom(AdapterView.class))
                     .perform(click());
 
-            onView(withId(R.id.encrypt_share)).perform(click());
-            checkSnackbar(Style.ERROR, R.string.error_detached_signature);
+            // signing only is supported for files, with a detached signature
 
             // the EncryptKeyCompletionView is tested individually
             onView(withId(R.id.recipient_list)).perform(tokenEncryptViewAddToken(0x9D604D2F310716A3L));
@@ -53,10 +53,12 @@ public final class Constants {
     // also see https://tools.ietf.org/html/draft-bray-pgp-message-00
     public static final String MIME_TYPE_ENCRYPTED_ALTERNATE = "application/pgp-message";
     public static final String MIME_TYPE_TEXT = "text/plain";
+    public static final String MIME_TYPE_SIGNATURE = "application/pgp-signature";
 
     public static final String FILE_EXTENSION_PGP_MAIN = ".pgp";
     public static final String FILE_EXTENSION_PGP_ALTERNATE = ".gpg";
     public static final String FILE_EXTENSION_ASC = ".asc";
+    public static final String FILE_EXTENSION_SIG = ".sig";
 
     public static final String FILE_BACKUP_PREFIX = "backup_";
     public static final String FILE_EXTENSION_BACKUP_SECRET = ".sec.asc";
@@ -96,6 +98,7 @@ public final class Constants {
         public static final String PASSPHRASE_CACHE_TTLS = "passphraseCacheTtls";
         public static final String PASSPHRASE_CACHE_DEFAULT = "passphraseCacheDefault";
         public static final String PASSPHRASE_CACHE_SUBS = "passphraseCacheSubs";
+        public static final String SESSION_KEY_CACHE = "sessionKeyCache";
         public static final String LANGUAGE = "language";
         public static final String KEY_SERVERS = "keyServers";
         public static final String PREF_DEFAULT_VERSION = "keyServersDefaultVersion";
@@ -123,6 +126,7 @@ public final class Constants {
         public static final String EXPERIMENTAL_ENABLE_WORD_CONFIRM = "experimentalEnableWordConfirm";
         public static final String EXPERIMENTAL_ENABLE_LINKED_IDENTITIES = "experimentalEnableLinkedIdentities";
         public static final String EXPERIMENTAL_ENABLE_KEYBASE = "experimentalEnableKeybase";
+        public static final String MAX_THIRD_PARTY_CERTIFICATIONS = "maxThirdPartyCertifications";
 
         public static final class Theme {
             public static final String LIGHT = "light";
@@ -23,6 +23,7 @@ import android.os.Parcelable;
 
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
+import org.sufficientlysecure.keychain.pgp.KeyRingScanner.ScannedKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
@@ -280,18 +281,57 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         mOrigins = new ArrayList<>();
     }
 
+    /**
+     * Constructor based on a scanned keyring, used for import from files. This does not need
+     * the fully parsed keyring, see KeyRingScanner.
+     */
+    public ImportKeysListEntry(Context context, ScannedKeyRing ring, int hashCode) {
+        // selected is default
+        this.mSelected = true;
+
+        mSecretKey = ring.mIsSecret;
+        mHashCode = hashCode;
+
+        mPrimaryUserId = ring.mPrimaryUserId;
+        mUserIds = ring.mUserIds;
+        updateMergedUserIds();
+
+        // if there was no user id at all, say so
+        if (mPrimaryUserId == null) {
+            mPrimaryUserId = context.getString(R.string.user_id_none);
+        }
+
+        mKeyId = ring.mMasterKeyId;
+        mKeyIdHex = KeyFormattingUtils.convertKeyIdToHex(mKeyId);
+
+        mRevoked = false;
+        mExpired = false;
+        mFingerprintHex = KeyFormattingUtils.convertFingerprintToHex(ring.mFingerprint);
+        mBitStrength = ring.mBitStrength;
+        mCurveOid = ring.mCurveOid;
+        mAlgorithm = KeyFormattingUtils.getAlgorithmInfo(context, ring.mAlgorithm, mBitStrength, mCurveOid);
+    }
+
     /**
      * Constructor based on key object, used for import from NFC, QR Codes, files
      */
-    @SuppressWarnings("unchecked")
     public ImportKeysListEntry(Context context, UncachedKeyRing ring) {
+        this(context, ring, ring.getPublicKey().hashCode());
+    }
+
+    /**
+     * Constructor based on key object, with a hash code which identifies the entry in a list,
+     * used for keyrings which a KeyRingScanner could not make sense of.
+     */
+    @SuppressWarnings("unchecked")
+    public ImportKeysListEntry(Context context, UncachedKeyRing ring, int hashCode) {
         // selected is default
         this.mSelected = true;
 
         mSecretKey = ring.isSecret();
         UncachedPublicKey key = ring.getPublicKey();
 
-        mHashCode = key.hashCode();
+        mHashCode = hashCode;
 
         mPrimaryUserId = key.getPrimaryUserIdWithFallback();
         mUserIds = key.getUnorderedUserIds();
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import android.content.Context;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.KeyRingScanner.ScannedKeyRing;
+import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
+
+
+/** Holds the raw data of keyrings found by a KeyRingScanner in a temporary file.
+ *
+ * Only the offset and length of each keyring are kept in memory, along with a
+ * flag for secret keyrings. Keyrings are identified by their position in the
+ * cache, everything else is read back from the file when it is needed. This way,
+ * a list of keyrings can be displayed for files of any size, see ScannedKeyRingList.
+ *
+ * For the import itself, only the name of the file and the positions of the selected
+ * keyrings are passed on in an ImportKeyringParcel. The ImportOperation then looks up
+ * their offsets in this cache, and reads them directly from the file using readKeyRings.
+ *
+ * Keyrings may be put into this cache while it is already being read from. Only
+ * keyrings written before the last flush of the output stream can be read back.
+ *
+ * The file is reference counted, since an import may still read from it after the
+ * list it was scanned for is gone. The cache holds one reference until release is
+ * called, and each ImportKeyringParcel holds one until releaseFile is called by the
+ * operation that reads it. The cache itself stays available for lookup by the file
+ * name until then. Files left behind by an earlier process are deleted when the
+ * first cache of a process is created.
+ *
+ */
+public class ScannedKeyRingCache {
+
+    private static final String FILE_PREFIX = "scanned_keys";
+    private static final String FILE_SUFFIX = ".bin";
+
+    private static final HashMap<String, ScannedKeyRingCache> sOpenCaches = new HashMap<>();
+    private static boolean sStaleFilesDeleted = false;
+
+    private final File mFile;
+    private long[] mOffsets = new long[64];
+    private int[] mLengths = new int[64];
+    private final BitSet mSecret = new BitSet();
+    private int mCount = 0;
+    private boolean mReleased = false;
+    // guarded by sOpenCaches
+    private int mReferences = 1;
+
+    public ScannedKeyRingCache(Context context) throws IOException {
+        File cacheDir = context.getCacheDir();
+        synchronized (sOpenCaches) {
+            if (!sStaleFilesDeleted) {
+                deleteStaleFiles(cacheDir);
+                sStaleFilesDeleted = true;
+            }
+            mFile = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, cacheDir);
+            sOpenCaches.put(mFile.getAbsolutePath(), this);
+        }
+    }
+
+    /** Returns a stream to pass to the KeyRingScanner. Must be closed before reading. */
+    public OutputStream openOutputStream() throws IOException {
+        return new BufferedOutputStream(new FileOutputStream(mFile));
+    }
+
+    /** Adds the range of a keyring in the file, and returns the position it is identified by. */
+    public synchronized int add(long offset, int length, boolean isSecret) {
+        if (mCount == mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+            mLengths = Arrays.copyOf(mLengths, mCount * 2);
+        }
+        mOffsets[mCount] = offset;
+        mLengths[mCount] = length;
+        mSecret.set(mCount, isSecret);
+        return mCount++;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    public synchronized boolean isSecret(int position) {
+        return mSecret.get(position);
+    }
+
+    /** Returns the raw data of a ScannedKeyRing written into this cache, or null on error. */
+    public byte[] getEncoded(ScannedKeyRing ring) {
+        byte[][] result = readEncoded(new long[] { ring.mOffset }, new int[] { ring.mLength });
+        return result[0];
+    }
+
+    /** Returns the raw data of count keyrings starting at position, with null for any that can't be read. */
+    public byte[][] getEncoded(int position, int count) {
+        long[] offsets = new long[count];
+        int[] lengths = new int[count];
+        synchronized (this) {
+            if (position + count > mCount) {
+                throw new IndexOutOfBoundsException();
+            }
+            System.arraycopy(mOffsets, position, offsets, 0, count);
+            System.arraycopy(mLengths, position, lengths, 0, count);
+        }
+        return readEncoded(offsets, lengths);
+    }
+
+    private byte[][] readEncoded(long[] offsets, int[] lengths) {
+        byte[][] result = new byte[offsets.length][];
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            for (int i = 0; i < offsets.length; i++) {
+                byte[] data = new byte[lengths[i]];
+                file.seek(offsets[i]);
+                file.readFully(data);
+                result[i] = data;
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "error reading scanned keyring", e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // nvm
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Creates an ImportKeyringParcel which refers to the keyrings at the selected positions
+     * in this cache, or returns null if the file is gone. The parcel holds a reference to
+     * the file, which must be released with releaseFile after the import.
+     */
+    public ImportKeyringParcel createImportParcel(BitSet selection) {
+        synchronized (this) {
+            if (mReleased || selection.length() > mCount) {
+                return null;
+            }
+        }
+        if (!acquireFile(mFile.getAbsolutePath())) {
+            return null;
+        }
+        return new ImportKeyringParcel(mFile.getAbsolutePath(), (BitSet) selection.clone());
+    }
+
+    /** Releases the reference of this cache, the file is deleted once it isn't used by an import. */
+    public void release() {
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+        }
+        releaseFile(mFile.getAbsolutePath());
+    }
+
+    private static boolean acquireFile(String filename) {
+        synchronized (sOpenCaches) {
+            ScannedKeyRingCache cache = sOpenCaches.get(filename);
+            if (cache == null) {
+                return false;
+            }
+            cache.mReferences += 1;
+            return true;
+        }
+    }
+
+    /** Releases a reference to a file of a ScannedKeyRingCache, deleting it if it was the last one. */
+    public static void releaseFile(String filename) {
+        synchronized (sOpenCaches) {
+            ScannedKeyRingCache cache = sOpenCaches.get(filename);
+            if (cache == null) {
+                Log.e(Constants.TAG, "scanned keys file released too often: " + filename);
+                return;
+            }
+            cache.mReferences -= 1;
+            if (cache.mReferences > 0) {
+                return;
+            }
+            sOpenCaches.remove(filename);
+        }
+        if (!new File(filename).delete()) {
+            Log.e(Constants.TAG, "could not delete scanned keys file " + filename);
+        }
+    }
+
+    private static void deleteStaleFiles(File cacheDir) {
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)
+                    && !sOpenCaches.containsKey(file.getAbsolutePath())) {
+                Log.d(Constants.TAG, "deleting stale scanned keys file " + name);
+                if (!file.delete()) {
+                    Log.e(Constants.TAG, "could not delete stale scanned keys file " + name);
+                }
+            }
+        }
+    }
+
+    /** Reads the selected keyrings from the file of a ScannedKeyRingCache, one at a time.
+     *
+     * Public keyrings are read before secret ones, see ImportOperation for specifics.
+     * The file is opened once and closed again after the last keyring was read,
+     * or on error. A keyring which cannot be read ends the iteration early.
+     */
+    public static IteratorWithSize<ParcelableKeyRing> readKeyRings(String filename, BitSet selection)
+            throws IOException {
+        ScannedKeyRingCache cache;
+        synchronized (sOpenCaches) {
+            cache = sOpenCaches.get(filename);
+        }
+        if (cache == null) {
+            throw new IOException("scanned keys file is not available: " + filename);
+        }
+
+        long[] offsets = new long[selection.cardinality()];
+        int[] lengths = new int[offsets.length];
+        int i = 0;
+        synchronized (cache) {
+            for (int pass = 0; pass < 2; pass++) {
+                boolean secret = pass == 1;
+                for (int position = selection.nextSetBit(0); position >= 0;
+                        position = selection.nextSetBit(position + 1)) {
+                    if (position >= cache.mCount) {
+                        throw new IOException("selected keyring was not scanned: " + position);
+                    }
+                    if (cache.mSecret.get(position) == secret) {
+                        offsets[i] = cache.mOffsets[position];
+                        lengths[i] = cache.mLengths[position];
+                        i += 1;
+                    }
+                }
+            }
+        }
+
+        return readKeyRings(filename, offsets, lengths);
+    }
+
+    private static IteratorWithSize<ParcelableKeyRing> readKeyRings(String filename,
+            final long[] offsets, final int[] lengths) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(filename, "r");
+
+        return new IteratorWithSize<ParcelableKeyRing>() {
+
+            int mPosition = 0;
+            ParcelableKeyRing mRing = null;
+            boolean closed = false;
+
+            @Override
+            public int getSize() {
+                return offsets.length;
+            }
+
+            private void readNext() {
+                if (mRing != null || closed) {
+                    return;
+                }
+
+                if (mPosition >= offsets.length) {
+                    close();
+                    return;
+                }
+
+                try {
+                    byte[] data = new byte[lengths[mPosition]];
+                    file.seek(offsets[mPosition]);
+                    file.readFully(data);
+                    mRing = new ParcelableKeyRing(data);
+                    mPosition += 1;
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "error reading scanned keyring during import", e);
+                    close();
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                readNext();
+                return mRing != null;
+            }
+
+            @Override
+            public ParcelableKeyRing next() {
+                readNext();
+                try {
+                    return mRing;
+                } finally {
+                    mRing = null;
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void finalize() throws Throwable {
+                close();
+                super.finalize();
+            }
+
+            private void close() {
+                if (!closed) {
+                    try {
+                        file.close();
+                    } catch (IOException e) {
+                        // nvm
+                    }
+                }
+                closed = true;
+            }
+
+        };
+    }
+
+}
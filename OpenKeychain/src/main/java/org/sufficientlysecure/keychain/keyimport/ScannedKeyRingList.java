@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.pgp.KeyRingScanner;
+import org.sufficientlysecure.keychain.pgp.KeyRingScanner.ScannedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/** A list of the keyrings in a ScannedKeyRingCache, which creates its entries on demand.
+ *
+ * Entries are created in pages of PAGE_SIZE keyrings, by scanning their data again.
+ * Only the last MAX_PAGES pages are kept, so the memory used by the list does not grow
+ * with the number of keyrings. Since entries may be created more than once, whether an
+ * entry is selected is tracked separately, by its position.
+ *
+ * Since get is called while binding the list to its view, it doesn't read any data
+ * itself. Entries which are not created yet are returned as placeholders, while their
+ * page is loaded in the background. The OnEntriesLoadedListener is notified on the
+ * main thread once it is done. Use load to create entries synchronously instead.
+ *
+ * While the cache is still being filled, snapshots of the list with a fixed size can be
+ * obtained with withSize. All snapshots share their pages and selection.
+ *
+ */
+public class ScannedKeyRingList extends AbstractList<ImportKeysListEntry> {
+
+    static final int PAGE_SIZE = 50;
+    static final int MAX_PAGES = 8;
+
+    private static final ExecutorService sPageLoader = Executors.newSingleThreadExecutor();
+
+    private final Shared mShared;
+    private final int mSize;
+
+    public interface OnEntriesLoadedListener {
+        void onEntriesLoaded();
+    }
+
+    private static class Shared {
+        final Context mContext;
+        final ScannedKeyRingCache mCache;
+        final Handler mHandler = new Handler(Looper.getMainLooper());
+        final BitSet mDeselected = new BitSet();
+        final HashSet<Integer> mLoadingPages = new HashSet<>();
+        final LruCache<Integer, ImportKeysListEntry[]> mPages;
+        OnEntriesLoadedListener mListener;
+
+        Shared(Context context, ScannedKeyRingCache cache) {
+            mContext = context;
+            mCache = cache;
+            mPages = new LruCache<Integer, ImportKeysListEntry[]>(MAX_PAGES) {
+                @Override
+                protected void entryRemoved(boolean evicted, Integer page,
+                        ImportKeysListEntry[] oldEntries, ImportKeysListEntry[] newEntries) {
+                    rememberSelection(page, oldEntries);
+                }
+            };
+        }
+
+        synchronized void rememberSelection(int page, ImportKeysListEntry[] entries) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i] != null) {
+                    mDeselected.set(page * PAGE_SIZE + i, !entries[i].isSelected());
+                }
+            }
+        }
+
+        synchronized void rememberSelection() {
+            for (Map.Entry<Integer, ImportKeysListEntry[]> page : mPages.snapshot().entrySet()) {
+                rememberSelection(page.getKey(), page.getValue());
+            }
+        }
+    }
+
+    public ScannedKeyRingList(Context context, ScannedKeyRingCache cache) {
+        this(new Shared(context.getApplicationContext(), cache), cache.size());
+    }
+
+    private ScannedKeyRingList(Shared shared, int size) {
+        mShared = shared;
+        mSize = size;
+    }
+
+    /** Returns a list of the first size keyrings in the cache, which shares its state with this one. */
+    public ScannedKeyRingList withSize(int size) {
+        return new ScannedKeyRingList(mShared, size);
+    }
+
+    public ScannedKeyRingCache getCache() {
+        return mShared.mCache;
+    }
+
+    /** Sets a listener which is called on the main thread after entries were loaded in the background. */
+    public void setOnEntriesLoadedListener(OnEntriesLoadedListener listener) {
+        synchronized (mShared) {
+            mShared.mListener = listener;
+        }
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns the entry at this position, or a placeholder if it is still being loaded. */
+    @Override
+    public ImportKeysListEntry get(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException();
+        }
+        final int page = position / PAGE_SIZE;
+        synchronized (mShared) {
+            ImportKeysListEntry[] entries = getPage(page);
+            int index = position % PAGE_SIZE;
+            if (entries[index] != null) {
+                return entries[index];
+            }
+            // a page may be filled only up to the size of an earlier snapshot
+            if (mShared.mLoadingPages.add(page)) {
+                final int count = Math.min(PAGE_SIZE, mSize - page * PAGE_SIZE);
+                sPageLoader.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadPage(page, count);
+                        synchronized (mShared) {
+                            mShared.mLoadingPages.remove(page);
+                        }
+                        mShared.mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                OnEntriesLoadedListener listener;
+                                synchronized (mShared) {
+                                    listener = mShared.mListener;
+                                }
+                                if (listener != null) {
+                                    listener.onEntriesLoaded();
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+            return createLoadingEntry(position);
+        }
+    }
+
+    /** Returns the entry at this position, reading its page first if necessary.
+     * This must not be called on the main thread.
+     */
+    public ImportKeysListEntry load(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException();
+        }
+        int page = position / PAGE_SIZE;
+        ImportKeysListEntry[] entries = loadPage(page, Math.min(PAGE_SIZE, mSize - page * PAGE_SIZE));
+        synchronized (mShared) {
+            return entries[position % PAGE_SIZE];
+        }
+    }
+
+    private ImportKeysListEntry[] getPage(int page) {
+        ImportKeysListEntry[] entries = mShared.mPages.get(page);
+        if (entries == null) {
+            entries = new ImportKeysListEntry[PAGE_SIZE];
+            mShared.mPages.put(page, entries);
+        }
+        return entries;
+    }
+
+    /** Creates the first count entries of a page which are still missing, and returns the page. */
+    private ImportKeysListEntry[] loadPage(int page, int count) {
+        int first = page * PAGE_SIZE;
+        synchronized (mShared) {
+            ImportKeysListEntry[] entries = getPage(page);
+            boolean complete = true;
+            for (int i = 0; i < count; i++) {
+                complete &= entries[i] != null;
+            }
+            if (complete) {
+                return entries;
+            }
+        }
+
+        byte[][] encoded = mShared.mCache.getEncoded(first, count);
+        ImportKeysListEntry[] created = new ImportKeysListEntry[count];
+        for (int i = 0; i < count; i++) {
+            created[i] = createEntry(first + i, encoded[i]);
+        }
+
+        synchronized (mShared) {
+            // the page may have been evicted in the meantime
+            ImportKeysListEntry[] entries = getPage(page);
+            for (int i = 0; i < count; i++) {
+                if (entries[i] == null) {
+                    entries[i] = created[i];
+                    entries[i].setSelected(!mShared.mDeselected.get(first + i));
+                }
+            }
+            return entries;
+        }
+    }
+
+    private ImportKeysListEntry createEntry(int position, byte[] encoded) {
+        Context context = mShared.mContext;
+        if (encoded != null) {
+            try {
+                ScannedKeyRing ring = new KeyRingScanner(new ByteArrayInputStream(encoded), null).next();
+                if (ring != null && ring.isComplete()) {
+                    return new ImportKeysListEntry(context, ring, position);
+                }
+                // same fallback as in ImportKeysListLoader
+                UncachedKeyRing uncachedRing = UncachedKeyRing.decodeFromData(encoded);
+                return new ImportKeysListEntry(context, uncachedRing, position);
+            } catch (PgpGeneralException | IOException | RuntimeException e) {
+                Log.e(Constants.TAG, "error reading scanned keyring for list", e);
+            }
+        }
+
+        // this keyring was readable when it was scanned, show a placeholder which isn't imported
+        ImportKeysListEntry entry = createPlaceholder(position, context.getString(R.string.user_id_none));
+        synchronized (mShared) {
+            mShared.mDeselected.set(position);
+        }
+        return entry;
+    }
+
+    /** Creates a placeholder for an entry which isn't loaded yet. It is not kept in the list,
+     * but changes of its selection are passed on to the entry which replaces it.
+     */
+    private ImportKeysListEntry createLoadingEntry(final int position) {
+        ImportKeysListEntry entry = new ImportKeysListEntry() {
+            @Override
+            public void setSelected(boolean selected) {
+                super.setSelected(selected);
+                synchronized (mShared) {
+                    mShared.mDeselected.set(position, !selected);
+                    // the entry may have been loaded already
+                    ImportKeysListEntry[] entries = mShared.mPages.get(position / PAGE_SIZE);
+                    if (entries != null && entries[position % PAGE_SIZE] != null) {
+                        entries[position % PAGE_SIZE].setSelected(selected);
+                    }
+                }
+            }
+        };
+        initPlaceholder(entry, position, mShared.mContext.getString(R.string.import_loading_entry));
+        entry.setSelected(!mShared.mDeselected.get(position));
+        return entry;
+    }
+
+    private ImportKeysListEntry createPlaceholder(int position, String userId) {
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        initPlaceholder(entry, position, userId);
+        return entry;
+    }
+
+    private void initPlaceholder(ImportKeysListEntry entry, int position, String userId) {
+        ArrayList<String> userIds = new ArrayList<>();
+        userIds.add(userId);
+        entry.setUserIds(userIds);
+        entry.setPrimaryUserId(userId);
+        entry.setKeyIdHex("");
+        entry.setSecretKey(mShared.mCache.isSecret(position));
+    }
+
+    /** Returns the positions of all selected keyrings. */
+    public BitSet getSelection() {
+        mShared.rememberSelection();
+        BitSet result = new BitSet(mSize);
+        synchronized (mShared) {
+            for (int i = mShared.mDeselected.nextClearBit(0); i < mSize;
+                    i = mShared.mDeselected.nextClearBit(i + 1)) {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the positions of all selected keyrings, with public keys sorted before secret keys,
+     * see ImportOperation for specifics.
+     */
+    public ArrayList<Integer> getSelectedPositions() {
+        BitSet selection = getSelection();
+        ArrayList<Integer> result = new ArrayList<>();
+        ArrayList<Integer> secrets = new ArrayList<>();
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            (mShared.mCache.isSecret(i) ? secrets : result).add(i);
+        }
+        result.addAll(secrets);
+        return result;
+    }
+
+}
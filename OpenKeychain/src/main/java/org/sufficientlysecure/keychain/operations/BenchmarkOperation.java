@@ -20,18 +20,36 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.SignatureException;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Date;
 import java.util.Random;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
 
+import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
 import org.bouncycastle.bcpg.S2K;
 import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
 import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
 import org.bouncycastle.openpgp.operator.PBEDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.PGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.results.BenchmarkResult;
@@ -43,11 +61,13 @@ import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
 import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.BenchmarkInputParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
@@ -55,6 +75,8 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
 
+    private static final byte[] NEW_LINE = { '\r', '\n' };
+
     public BenchmarkOperation(Context context, ProviderHelper providerHelper, Progressable
             progressable) {
         super(context, providerHelper, progressable);
@@ -146,12 +168,141 @@ public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
             return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
         }
 
+        // cleartext signing, compared to the former line by line implementation
+        long cleartextTime = 0, cleartextPerLineTime = 0;
+        try {
+            byte[] text = generateCleartext(new Random(), buf.length / 2);
+            PGPPrivateKey signingKey = generateSigningKey();
+
+            i = 0;
+            do {
+                long time = System.currentTimeMillis();
+                signCleartextBenchmark(text, signingKey, false);
+                long blockTime = System.currentTimeMillis() - time;
+
+                time = System.currentTimeMillis();
+                signCleartextBenchmark(text, signingKey, true);
+                long perLineTime = System.currentTimeMillis() - time;
+
+                log.add(LogType.MSG_BENCH_CLEARTEXT_TIME, 1, String.format("%.2f", blockTime / 1000.0),
+                        String.format("%.2f", perLineTime / 1000.0));
+                cleartextTime += blockTime;
+                cleartextPerLineTime += perLineTime;
+            } while (++i < numRepeats);
+
+        } catch (PGPException | GeneralSecurityException | IOException e) {
+            Log.e(Constants.TAG, "internal error during benchmark", e);
+            log.add(LogType.MSG_INTERNAL_ERROR, 0);
+            return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+        }
+
         log.add(LogType.MSG_BENCH_S2K_100MS_ITS, 1, Integer.toString(iterationsFor100ms));
         log.add(LogType.MSG_BENCH_ENC_TIME_AVG, 1, String.format("%.2f", encryptionTime/1000.0));
         log.add(LogType.MSG_BENCH_DEC_TIME_AVG, 1, String.format("%.2f", decryptionTime/1000.0));
+        log.add(LogType.MSG_BENCH_CLEARTEXT_TIME_AVG, 1,
+                String.format("%.2f", cleartextTime / numRepeats / 1000.0),
+                String.format("%.2f", cleartextPerLineTime / numRepeats / 1000.0));
 
         log.add(LogType.MSG_BENCH_SUCCESS, 0);
         return new BenchmarkResult(BenchmarkResult.RESULT_OK, log);
     }
 
+    /** Generates printable text of the given size, in lines of varying length with some trailing whitespace. */
+    private static byte[] generateCleartext(Random random, int size) {
+        byte[] text = new byte[size];
+        int lineLength = 0;
+        for (int i = 0; i < size; i++) {
+            if (lineLength > 20 && random.nextInt(60) == 0) {
+                text[i] = '\n';
+                lineLength = 0;
+            } else if (random.nextInt(8) == 0) {
+                text[i] = ' ';
+                lineLength += 1;
+            } else {
+                text[i] = (byte) ('a' + random.nextInt(26));
+                lineLength += 1;
+            }
+        }
+        return text;
+    }
+
+    /** Generates a throwaway signing key, which is never stored. */
+    private static PGPPrivateKey generateSigningKey() throws GeneralSecurityException, PGPException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("ECDSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        keyGen.initialize(new ECGenParameterSpec("P-256"));
+        return new JcaPGPKeyPair(PublicKeyAlgorithmTags.ECDSA, keyGen.generateKeyPair(), new Date())
+                .getPrivateKey();
+    }
+
+    private static void signCleartextBenchmark(byte[] text, PGPPrivateKey signingKey, boolean perLine)
+            throws PGPException, IOException, SignatureException {
+        PGPSignatureGenerator signatureGenerator = new PGPSignatureGenerator(
+                new JcaPGPContentSignerBuilder(PublicKeyAlgorithmTags.ECDSA, HashAlgorithmTags.SHA256)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+        signatureGenerator.init(PGPSignature.CANONICAL_TEXT_DOCUMENT, signingKey);
+
+        // only the time taken matters, the output is discarded
+        ArmoredOutputStream armorOut = new ArmoredOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        armorOut.beginClearText(HashAlgorithmTags.SHA256);
+
+        InputStream in = new ByteArrayInputStream(text);
+        if (perLine) {
+            signCleartextPerLine(in, armorOut, signatureGenerator);
+        } else {
+            byte[] buffer = BufferPool.getInstance().acquire();
+            try {
+                PgpSignEncryptOperation.signCleartext(in, armorOut, signatureGenerator, buffer);
+            } finally {
+                BufferPool.getInstance().release(buffer);
+            }
+        }
+
+        armorOut.endClearText();
+        signatureGenerator.generate().encode(armorOut);
+        armorOut.close();
+    }
+
+    /** The line by line cleartext signing which PgpSignEncryptOperation used before, for comparison. */
+    private static void signCleartextPerLine(InputStream in, ArmoredOutputStream armorOut,
+            PGPSignatureGenerator signatureGenerator) throws IOException, SignatureException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+
+        processLine(reader.readLine(), armorOut, signatureGenerator);
+        while (true) {
+            String line = reader.readLine();
+            if (line == null) {
+                armorOut.write(NEW_LINE);
+                break;
+            }
+            armorOut.write(NEW_LINE);
+            signatureGenerator.update(NEW_LINE);
+            processLine(line, armorOut, signatureGenerator);
+        }
+    }
+
+    private static void processLine(String line, ArmoredOutputStream armorOut,
+            PGPSignatureGenerator signatureGenerator) throws IOException, SignatureException {
+        if (line == null) {
+            return;
+        }
+
+        char[] chars = line.toCharArray();
+        int len = chars.length;
+        while (len > 0 && Character.isWhitespace(chars[len - 1])) {
+            len--;
+        }
+
+        byte[] data = line.substring(0, len).getBytes("UTF-8");
+        armorOut.write(data);
+        signatureGenerator.update(data);
+    }
+
 }
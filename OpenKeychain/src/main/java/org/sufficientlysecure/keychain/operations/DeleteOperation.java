@@ -93,6 +93,11 @@ public class DeleteOperation extends BaseOperation<DeleteKeyringParcel> {
             }
         }
 
+        if (success > 0) {
+            // deleting a public keyring also deletes its secret keyring, if any
+            ProviderHelper.invalidateSecretKeyCaches();
+        }
+
         if (isSecret && success > 0) {
             log.add(LogType.MSG_DEL_CONSOLIDATE, 1);
             ConsolidateResult sub = mProviderHelper.consolidateDatabaseStep1(mProgressable);
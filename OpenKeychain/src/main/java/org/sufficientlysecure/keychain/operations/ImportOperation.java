@@ -22,6 +22,7 @@ package org.sufficientlysecure.keychain.operations;
 import java.io.IOException;
 import java.net.Proxy;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.GregorianCalendar;
 import java.util.Iterator;
 import java.util.concurrent.Callable;
@@ -43,6 +44,7 @@ import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
 import org.sufficientlysecure.keychain.keyimport.KeybaseKeyserver;
 import org.sufficientlysecure.keychain.keyimport.Keyserver;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.keyimport.ScannedKeyRingCache;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
@@ -123,6 +125,30 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
     }
 
+    @NonNull
+    private ImportKeyResult serialKeyRingImport(String keyRingFile, BitSet selection) {
+
+        // read entries straight from the file the list was scanned into
+        try {
+            IteratorWithSize<ParcelableKeyRing> it =
+                    ScannedKeyRingCache.readKeyRings(keyRingFile, selection);
+            int numEntries = it.getSize();
+
+            return serialKeyRingImport(it, numEntries, null, mProgressable, null);
+        } catch (IOException e) {
+
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_IMPORT, 0, 0);
+            log.add(LogType.MSG_IMPORT_ERROR_IO, 0, 0);
+
+            return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log);
+        } finally {
+            // the parcel holds a reference to the file, see ScannedKeyRingCache
+            ScannedKeyRingCache.releaseFile(keyRingFile);
+        }
+
+    }
+
     /**
      * Since the introduction of multithreaded import, we expect calling functions to handle the
      * contact-to-key sync i.e ContactSyncAdapterService.requestContactsSync()
@@ -151,6 +177,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
         int newKeys = 0, updatedKeys = 0, badKeys = 0, secret = 0;
         ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
+        ArrayList<Long> newSecretMasterKeyIds = new ArrayList<>();
 
         boolean cancelled = false;
         int position = 0;
@@ -333,6 +360,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                         newKeys += 1;
                         if (key.isSecret()) {
                             secret += 1;
+                            newSecretMasterKeyIds.add(key.getMasterKeyId());
                         }
                         importedMasterKeyIds.add(key.getMasterKeyId());
                     }
@@ -356,14 +384,20 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         }
 
         // Special: consolidate on secret key import (cannot be cancelled!)
+        // Only keys certified by the new secret keys are affected, so we do this incrementally.
         // synchronized on mProviderHelper to prevent
         // https://github.com/open-keychain/open-keychain/issues/1221 since a consolidate deletes
         // and re-inserts keys, which could conflict with a parallel db key update
         if (secret > 0) {
             setPreventCancel();
+            long[] newSecretMasterKeyIdsArray = new long[newSecretMasterKeyIds.size()];
+            for (int i = 0; i < newSecretMasterKeyIds.size(); ++i) {
+                newSecretMasterKeyIdsArray[i] = newSecretMasterKeyIds.get(i);
+            }
             ConsolidateResult result;
             synchronized (mProviderHelper) {
-                result = mProviderHelper.consolidateDatabaseStep1(progressable);
+                result = mProviderHelper.consolidateDatabaseIncremental(
+                        newSecretMasterKeyIdsArray, progressable);
             }
             log.add(result, 1);
         }
@@ -429,7 +463,9 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
         ImportKeyResult result;
 
-        if (keyList == null) {// import from file, do serially
+        if (importInput.mKeyRingFile != null) {// import from a scanned file, do serially
+            result = serialKeyRingImport(importInput.mKeyRingFile, importInput.mKeyRingSelection);
+        } else if (keyList == null) {// import from file, do serially
             ParcelableFileCache<ParcelableKeyRing> cache = new ParcelableFileCache<>(mContext,
                     "key_import.pcl");
 
@@ -20,14 +20,30 @@ package org.sufficientlysecure.keychain.operations;
 
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.ClipDescription;
 import android.content.Context;
 import android.net.Uri;
+import android.os.Parcel;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.webkit.MimeTypeMap;
@@ -42,10 +58,13 @@ import org.apache.james.mime4j.stream.BodyDescriptor;
 import org.apache.james.mime4j.stream.Field;
 import org.apache.james.mime4j.stream.MimeConfig;
 import org.openintents.openpgp.OpenPgpMetadata;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.InputDataResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
@@ -53,7 +72,12 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.InputDataParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.CharsetVerifier;
+import org.sufficientlysecure.keychain.util.FileHelper;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 
 /** This operation deals with input data, trying to determine its type as it goes.
@@ -65,22 +89,46 @@ import org.sufficientlysecure.keychain.util.CharsetVerifier;
  * - encrypted multipart/signed mime data
  * - multipart/signed mime data (WIP)
  *
+ * Decrypted data which is to be mime decoded is not written to storage as a
+ * whole, but piped into the mime parser on a second thread while decrypting.
+ * Only if the data turns out not to be mime after all, it is decrypted again.
+ *
  */
 public class InputDataOperation extends BaseOperation<InputDataParcel> {
 
+    private static final int MAX_THREADS = Runtime.getRuntime().availableProcessors();
+    /** Suggested number of inputs per batch, enough to keep all threads busy for a while. */
+    public static final int BATCH_SIZE = 2 * MAX_THREADS;
+    /** Size of the pipe between decryption and mime parsing, decryption waits while it is full. */
+    private static final int STREAMING_PIPE_SIZE = 1 << 18;
+
     private final byte[] buf = new byte[256];
 
     public InputDataOperation(Context context, ProviderHelper providerHelper, Progressable progressable) {
         super(context, providerHelper, progressable);
     }
 
+    public InputDataOperation(Context context, ProviderHelper providerHelper,
+            Progressable progressable, AtomicBoolean cancelled) {
+        super(context, providerHelper, progressable, cancelled);
+    }
+
     Uri mSignedDataUri;
     DecryptVerifyResult mSignedDataResult;
+    // decrypted data read by the mime parser while decrypting, recorded until it looks like mime data
+    RecordingInputStream mRecordedInput;
+
+    // secret keys unlocked while processing a batch, shared between all of its inputs
+    ConcurrentHashMap<Long, CanonicalizedSecretKey> mUnlockedKeys;
 
     @NonNull
     @Override
     public InputDataResult execute(InputDataParcel input, final CryptoInputParcel cryptoInput) {
 
+        if (input.isBatch()) {
+            return executeBatch(input, cryptoInput);
+        }
+
         final OperationLog log = new OperationLog();
 
         log.add(LogType.MSG_DATA, 0);
@@ -95,71 +143,12 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
             throw new AssertionError("no decryption or mime decoding, this is probably a bug");
         }
 
-        if (decryptInput != null) {
-
-            log.add(LogType.MSG_DATA_OPENPGP, 1);
-
-            PgpDecryptVerifyOperation op =
-                    new PgpDecryptVerifyOperation(mContext, mProviderHelper, mProgressable);
-
-            decryptInput.setInputUri(input.getInputUri());
-
-            currentInputUri = TemporaryFileProvider.createFile(mContext);
-            decryptInput.setOutputUri(currentInputUri);
-
-            decryptResult = op.execute(decryptInput, cryptoInput);
-            if (decryptResult.isPending()) {
-                return new InputDataResult(log, decryptResult);
-            }
-            log.addByMerge(decryptResult, 1);
-
-            if ( ! decryptResult.success()) {
-                return new InputDataResult(InputDataResult.RESULT_ERROR, log);
-            }
-
-            // inform the storage provider about the mime type for this uri
-            if (decryptResult.getDecryptionMetadata() != null) {
-                OpenPgpMetadata meta = decryptResult.getDecryptionMetadata();
-                TemporaryFileProvider.setName(mContext, currentInputUri, meta.getFilename());
-                TemporaryFileProvider.setMimeType(mContext, currentInputUri, meta.getMimeType());
-            }
-
-        } else {
-            currentInputUri = input.getInputUri();
-        }
-
-        // don't even attempt if we know the data isn't suitable for mime content, or if we have a filename
-        boolean skipMimeParsing = false;
-        if (decryptResult != null && decryptResult.getDecryptionMetadata() != null) {
-            OpenPgpMetadata metadata = decryptResult.getDecryptionMetadata();
-            String fileName = metadata.getFilename();
-            String contentType = metadata.getMimeType();
-            if (!TextUtils.isEmpty(fileName)
-                    || contentType != null
-                        && !contentType.startsWith("multipart/")
-                        && !contentType.startsWith("text/")
-                        && !"application/octet-stream".equals(contentType)) {
-                skipMimeParsing = true;
-            }
-        }
-
-        // If we aren't supposed to attempt mime decode after decryption, we are done here
-        if (skipMimeParsing || !input.getMimeDecode()) {
-
-            log.add(LogType.MSG_DATA_SKIP_MIME, 1);
-
-            ArrayList<Uri> uris = new ArrayList<>();
-            uris.add(currentInputUri);
-            ArrayList<OpenPgpMetadata> metadatas = new ArrayList<>();
-            metadatas.add(decryptResult.getDecryptionMetadata());
-
-            log.add(LogType.MSG_DATA_OK, 1);
-            return new InputDataResult(InputDataResult.RESULT_OK, log, decryptResult, uris, metadatas);
-
-        }
-
         final MimeStreamParser parser = new MimeStreamParser((MimeConfig) null);
+        // the parser may run on a thread of its own, which must not report progress
+        final Thread operationThread = Thread.currentThread();
 
+        // mime parsing may run alongside decryption, so its log is kept apart until it is done
+        final OperationLog mimeLog = new OperationLog();
         final ArrayList<Uri> outputUris = new ArrayList<>();
         final ArrayList<OpenPgpMetadata> metadatas = new ArrayList<>();
 
@@ -175,13 +164,13 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
                 if ("signed".equals(bd.getSubType())) {
                     if (mSignedDataUri != null) {
                         // recursive signed data is not supported, and will just be parsed as-is
-                        log.add(LogType.MSG_DATA_DETACHED_NESTED, 2);
+                        mimeLog.add(LogType.MSG_DATA_DETACHED_NESTED, 2);
                         return;
                     }
-                    log.add(LogType.MSG_DATA_DETACHED, 2);
+                    mimeLog.add(LogType.MSG_DATA_DETACHED, 2);
                     if (!outputUris.isEmpty()) {
                         // we can't have previous data if we parse a detached signature!
-                        log.add(LogType.MSG_DATA_DETACHED_CLEAR, 3);
+                        mimeLog.add(LogType.MSG_DATA_DETACHED_CLEAR, 3);
                         outputUris.clear();
                         metadatas.clear();
                     }
@@ -197,7 +186,7 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
                     throw new AssertionError("raw parts must only be received as first part of multipart/signed!");
                 }
 
-                log.add(LogType.MSG_DATA_DETACHED_RAW, 3);
+                mimeLog.add(LogType.MSG_DATA_DETACHED_RAW, 3);
 
                 uncheckedSignedDataUri = TemporaryFileProvider.createFile(mContext, mFilename, "text/plain");
                 OutputStream out = mContext.getContentResolver().openOutputStream(uncheckedSignedDataUri, "w");
@@ -235,19 +224,23 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
                 if (field instanceof ContentDispositionField) {
                     mFilename = ((ContentDispositionField) field).getFilename();
                 }
+                if (!mFoundHeaderWithFields && mRecordedInput != null) {
+                    // this looks like mime data, the raw data is only needed again if parsing fails
+                    mRecordedInput.stopRecording();
+                }
                 mFoundHeaderWithFields = true;
             }
 
             private void bodySignature(BodyDescriptor bd, InputStream is) throws MimeException, IOException {
 
                 if (!"application/pgp-signature".equals(bd.getMimeType())) {
-                    log.add(LogType.MSG_DATA_DETACHED_UNSUPPORTED, 3);
+                    mimeLog.add(LogType.MSG_DATA_DETACHED_UNSUPPORTED, 3);
                     uncheckedSignedDataUri = null;
                     parser.setRecurse();
                     return;
                 }
 
-                log.add(LogType.MSG_DATA_DETACHED_SIG, 3);
+                mimeLog.add(LogType.MSG_DATA_DETACHED_SIG, 3);
 
                 ByteArrayOutputStream detachedSig = new ByteArrayOutputStream();
 
@@ -265,11 +258,13 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
                 decryptInput.setInputUri(uncheckedSignedDataUri);
                 decryptInput.setDetachedSignature(detachedSig.toByteArray());
 
+                Progressable progressable = Thread.currentThread() == operationThread ? mProgressable : null;
                 PgpDecryptVerifyOperation op =
-                        new PgpDecryptVerifyOperation(mContext, mProviderHelper, mProgressable);
+                        new PgpDecryptVerifyOperation(mContext, mProviderHelper, progressable);
+                op.setUnlockedKeys(mUnlockedKeys);
                 DecryptVerifyResult verifyResult = op.execute(decryptInput, cryptoInput);
 
-                log.addByMerge(verifyResult, 4);
+                mimeLog.addByMerge(verifyResult, 4);
 
                 mSignedDataUri = uncheckedSignedDataUri;
                 mSignedDataResult = verifyResult;
@@ -298,16 +293,16 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
                 // If mSignedDataUri is non-null, we already parsed a signature. If mSignedDataResult is non-null
                 // too, we are still in the same parsing stage, so this is trailing data - skip it!
                 if (mSignedDataUri != null && mSignedDataResult != null) {
-                    log.add(LogType.MSG_DATA_DETACHED_TRAILING, 2);
+                    mimeLog.add(LogType.MSG_DATA_DETACHED_TRAILING, 2);
                     return;
                 }
 
-                log.add(LogType.MSG_DATA_MIME_PART, 2);
+                mimeLog.add(LogType.MSG_DATA_MIME_PART, 2);
 
                 String mimeType = bd.getMimeType();
 
                 if (mFilename != null) {
-                    log.add(LogType.MSG_DATA_MIME_FILENAME, 3, mFilename);
+                    mimeLog.add(LogType.MSG_DATA_MIME_FILENAME, 3, mFilename);
                     boolean isGenericMimeType = ClipDescription.compareMimeTypes(mimeType, "application/octet-stream")
                             || ClipDescription.compareMimeTypes(mimeType, "application/x-download");
                     if (isGenericMimeType) {
@@ -315,11 +310,11 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
                         String extMimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
                         if (extMimeType != null) {
                             mimeType = extMimeType;
-                            log.add(LogType.MSG_DATA_MIME_FROM_EXTENSION, 3);
+                            mimeLog.add(LogType.MSG_DATA_MIME_FROM_EXTENSION, 3);
                         }
                     }
                 }
-                log.add(LogType.MSG_DATA_MIME_TYPE, 3, mimeType);
+                mimeLog.add(LogType.MSG_DATA_MIME_TYPE, 3, mimeType);
 
                 Uri uri = TemporaryFileProvider.createFile(mContext, mFilename, mimeType);
                 OutputStream out = mContext.getContentResolver().openOutputStream(uri, "w");
@@ -340,20 +335,20 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
                     charsetVerifier.readBytesFromBuffer(0, len);
                 } while ((len = is.read(buf)) > 0);
 
-                log.add(LogType.MSG_DATA_MIME_LENGTH, 3, Long.toString(totalLength));
+                mimeLog.add(LogType.MSG_DATA_MIME_LENGTH, 3, Long.toString(totalLength));
 
                 OpenPgpMetadata metadata;
                 if (charsetVerifier.isDefinitelyBinary()) {
                     metadata = new OpenPgpMetadata(mFilename, mimeType, 0L, totalLength);
                 } else {
                     if (charsetVerifier.isCharsetFaulty() && charsetVerifier.isCharsetGuessed()) {
-                        log.add(LogType.MSG_DATA_MIME_CHARSET_UNKNOWN, 3, charsetVerifier.getMaybeFaultyCharset());
+                        mimeLog.add(LogType.MSG_DATA_MIME_CHARSET_UNKNOWN, 3, charsetVerifier.getMaybeFaultyCharset());
                     } else if (charsetVerifier.isCharsetFaulty()) {
-                        log.add(LogType.MSG_DATA_MIME_CHARSET_FAULTY, 3, charsetVerifier.getCharset());
+                        mimeLog.add(LogType.MSG_DATA_MIME_CHARSET_FAULTY, 3, charsetVerifier.getCharset());
                     } else if (charsetVerifier.isCharsetGuessed()) {
-                        log.add(LogType.MSG_DATA_MIME_CHARSET_GUESS, 3, charsetVerifier.getCharset());
+                        mimeLog.add(LogType.MSG_DATA_MIME_CHARSET_GUESS, 3, charsetVerifier.getCharset());
                     } else {
-                        log.add(LogType.MSG_DATA_MIME_CHARSET, 3, charsetVerifier.getCharset());
+                        mimeLog.add(LogType.MSG_DATA_MIME_CHARSET, 3, charsetVerifier.getCharset());
                     }
 
                     metadata = new OpenPgpMetadata(mFilename, charsetVerifier.getGuessedMimeType(), 0L, totalLength,
@@ -368,15 +363,175 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
 
         });
 
-        try {
+        // with mime decoding, the decrypted data is parsed on another thread while it is decrypted
+        FutureTask<MimeException> streamedParse = null;
+
+        if (decryptInput != null) {
+
+            log.add(LogType.MSG_DATA_OPENPGP, 1);
+
+            decryptInput.setInputUri(input.getInputUri());
+
+            currentInputUri = TemporaryFileProvider.createFile(mContext);
+
+            if (input.getMimeDecode() && decryptInput.getDetachedSignature() == null) {
+                log.add(LogType.MSG_DATA_STREAMING, 1);
+                mimeLog.add(LogType.MSG_DATA_MIME, 1);
+
+                PipedOutputStream pipeOut = new PipedOutputStream();
+                try {
+                    streamedParse = startStreamingParser(parser, pipeOut, currentInputUri);
+                    decryptResult = decryptToStream(decryptInput, cryptoInput, pipeOut);
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "error setting up mime parser", e);
+                    mContext.getContentResolver().delete(currentInputUri, null, null);
+                    mRecordedInput = null;
+                    log.add(LogType.MSG_DATA_ERROR_IO, 2);
+                    return new InputDataResult(InputDataResult.RESULT_ERROR, log);
+                } finally {
+                    // lets the parser run to its end, whether decryption succeeded or not
+                    try {
+                        pipeOut.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            } else {
+                PgpDecryptVerifyOperation op =
+                        new PgpDecryptVerifyOperation(mContext, mProviderHelper, mProgressable);
+                op.setUnlockedKeys(mUnlockedKeys);
+
+                decryptInput.setOutputUri(currentInputUri);
+                decryptResult = op.execute(decryptInput, cryptoInput);
+            }
+
+            if (decryptResult.isPending() || ! decryptResult.success()) {
+                // anything parsed or recorded so far is unauthenticated, and must not be passed on
+                try {
+                    discardStreamedParse(streamedParse, outputUris, metadatas);
+                } finally {
+                    mContext.getContentResolver().delete(currentInputUri, null, null);
+                    mRecordedInput = null;
+                }
+                if (decryptResult.isPending()) {
+                    return new InputDataResult(log, decryptResult);
+                }
+                log.addByMerge(decryptResult, 1);
+                return new InputDataResult(InputDataResult.RESULT_ERROR, log);
+            }
+            log.addByMerge(decryptResult, 1);
+
+        } else {
+            currentInputUri = input.getInputUri();
+        }
+
+        // don't even attempt if we know the data isn't suitable for mime content, or if we have a filename
+        boolean skipMimeParsing = false;
+        if (decryptResult != null && decryptResult.getDecryptionMetadata() != null) {
+            OpenPgpMetadata metadata = decryptResult.getDecryptionMetadata();
+            String fileName = metadata.getFilename();
+            String contentType = metadata.getMimeType();
+            if (!TextUtils.isEmpty(fileName)
+                    || contentType != null
+                        && !contentType.startsWith("multipart/")
+                        && !contentType.startsWith("text/")
+                        && !"application/octet-stream".equals(contentType)) {
+                skipMimeParsing = true;
+            }
+        }
+
+        MimeException streamedParseException = null;
+        if (streamedParse != null) {
+            try {
+                streamedParseException = waitForParser(streamedParse);
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "error parsing mime data", e);
+                discardStreamedParse(streamedParse, outputUris, metadatas);
+                mContext.getContentResolver().delete(currentInputUri, null, null);
+                mRecordedInput = null;
+                log.addAll(mimeLog.toList());
+                log.add(LogType.MSG_DATA_ERROR_IO, 2);
+                return new InputDataResult(InputDataResult.RESULT_ERROR, log);
+            }
+
+            // signed data replaces the raw data as fallback, unless parsing failed before it is used
+            boolean needRawData = skipMimeParsing || outputUris.isEmpty()
+                    && (mSignedDataUri == null || streamedParseException != null);
+            if (skipMimeParsing) {
+                discardStreamedParse(streamedParse, outputUris, metadatas);
+                mimeLog.clear();
+            }
+
+            // the raw data is only recorded until the parser finds mime headers
+            if (mRecordedInput.isRecordingStopped()) {
+                mContext.getContentResolver().delete(currentInputUri, null, null);
+                currentInputUri = null;
+
+                if (needRawData) {
+                    log.add(LogType.MSG_DATA_STREAMING_FALLBACK, 1);
+
+                    currentInputUri = TemporaryFileProvider.createFile(mContext);
+                    decryptInput.setOutputUri(currentInputUri);
+
+                    PgpDecryptVerifyOperation op =
+                            new PgpDecryptVerifyOperation(mContext, mProviderHelper, mProgressable);
+                    op.setUnlockedKeys(mUnlockedKeys);
+                    DecryptVerifyResult rawResult = op.execute(decryptInput, cryptoInput);
+                    if (rawResult.isPending()) {
+                        // e.g. the passphrase was dropped from the cache in the meantime, ask again
+                        mContext.getContentResolver().delete(currentInputUri, null, null);
+                        mRecordedInput = null;
+                        return new InputDataResult(log, rawResult);
+                    }
+                    if ( ! rawResult.success()) {
+                        mContext.getContentResolver().delete(currentInputUri, null, null);
+                        mRecordedInput = null;
+                        log.addByMerge(rawResult, 2);
+                        return new InputDataResult(InputDataResult.RESULT_ERROR, log);
+                    }
+                }
+            }
+            mRecordedInput = null;
+        }
 
-            log.add(LogType.MSG_DATA_MIME, 1);
+        // inform the storage provider about the mime type for this uri
+        if (currentInputUri != null && decryptResult != null && decryptResult.getDecryptionMetadata() != null) {
+            OpenPgpMetadata meta = decryptResult.getDecryptionMetadata();
+            TemporaryFileProvider.setName(mContext, currentInputUri, meta.getFilename());
+            TemporaryFileProvider.setMimeType(mContext, currentInputUri, meta.getMimeType());
+        }
+
+        // If we aren't supposed to attempt mime decode after decryption, we are done here
+        if (skipMimeParsing || !input.getMimeDecode()) {
+
+            log.add(LogType.MSG_DATA_SKIP_MIME, 1);
+
+            ArrayList<Uri> uris = new ArrayList<>();
+            uris.add(currentInputUri);
+            ArrayList<OpenPgpMetadata> uriMetadatas = new ArrayList<>();
+            uriMetadatas.add(decryptResult.getDecryptionMetadata());
+
+            log.add(LogType.MSG_DATA_OK, 1);
+            return new InputDataResult(InputDataResult.RESULT_OK, log, decryptResult, uris, uriMetadatas);
+
+        }
+
+        try {
 
             try {
 
-                // open current uri for input
-                InputStream in = mContext.getContentResolver().openInputStream(currentInputUri);
-                parser.parse(in);
+                if (streamedParse != null) {
+                    // the data was already parsed during decryption
+                    if (streamedParseException != null) {
+                        throw streamedParseException;
+                    }
+                } else {
+                    mimeLog.add(LogType.MSG_DATA_MIME, 1);
+
+                    // open current uri for input
+                    InputStream in = mContext.getContentResolver().openInputStream(currentInputUri);
+                    parser.parse(in);
+                }
 
                 if (mSignedDataUri != null) {
 
@@ -388,7 +543,7 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
 
                     // the actual content is the signed data now (and will be passed verbatim, if parsing fails)
                     currentInputUri = mSignedDataUri;
-                    in = mContext.getContentResolver().openInputStream(currentInputUri);
+                    InputStream in = mContext.getContentResolver().openInputStream(currentInputUri);
                     // reset signed data result, to indicate to the parser that it is in the inner part
                     mSignedDataResult = null;
                     parser.parse(in);
@@ -397,7 +552,9 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
             } catch (MimeException e) {
                 // a mime error likely means that this wasn't mime data, after all
                 e.printStackTrace();
-                log.add(LogType.MSG_DATA_MIME_BAD, 2);
+                mimeLog.add(LogType.MSG_DATA_MIME_BAD, 2);
+            } finally {
+                log.addAll(mimeLog.toList());
             }
 
             // if we found data, return success
@@ -437,4 +594,307 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
 
     }
 
+    /** Starts parsing the data written to pipeOut on a thread of its own.
+     *
+     * Until the parser finds the first mime header, the data is also recorded into
+     * rawDataUri, since it is passed on as is if it turns out not to be mime data.
+     * The returned task yields the MimeException which stopped the parser, if any.
+     */
+    private FutureTask<MimeException> startStreamingParser(final MimeStreamParser parser,
+            PipedOutputStream pipeOut, Uri rawDataUri) throws IOException {
+
+        OutputStream rawOut = mContext.getContentResolver().openOutputStream(rawDataUri, "w");
+        if (rawOut == null) {
+            throw new IOException("Error getting file for writing!");
+        }
+        final RecordingInputStream in =
+                new RecordingInputStream(new PipedInputStream(pipeOut, STREAMING_PIPE_SIZE), rawOut);
+        mRecordedInput = in;
+
+        FutureTask<MimeException> parseTask = new FutureTask<>(new Callable<MimeException>() {
+            @Override
+            public MimeException call() throws IOException {
+                try {
+                    parser.parse(in);
+                    return null;
+                } catch (MimeException e) {
+                    return e;
+                } finally {
+                    // decryption blocks on a full pipe, so read whatever the parser left over
+                    byte[] buffer = BufferPool.getInstance().acquire();
+                    try {
+                        while (in.read(buffer) != -1) {
+                            // the data is recorded, if necessary
+                        }
+                    } finally {
+                        BufferPool.getInstance().release(buffer);
+                        in.close();
+                    }
+                }
+            }
+        });
+        new Thread(parseTask, "mime-parser").start();
+
+        return parseTask;
+    }
+
+    private static MimeException waitForParser(FutureTask<MimeException> parseTask) throws IOException {
+        try {
+            return parseTask.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for mime parser", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("error in mime parser", e.getCause());
+        }
+    }
+
+    /** Waits for the parser to finish, and deletes all data it produced. */
+    private void discardStreamedParse(FutureTask<MimeException> parseTask,
+            ArrayList<Uri> outputUris, ArrayList<OpenPgpMetadata> metadatas) {
+        if (parseTask == null) {
+            return;
+        }
+        try {
+            waitForParser(parseTask);
+        } catch (IOException e) {
+            // ignore, the output is thrown away anyways
+        }
+
+        for (Uri uri : outputUris) {
+            mContext.getContentResolver().delete(uri, null, null);
+        }
+        outputUris.clear();
+        metadatas.clear();
+
+        if (mSignedDataUri != null) {
+            mContext.getContentResolver().delete(mSignedDataUri, null, null);
+            mSignedDataUri = null;
+            mSignedDataResult = null;
+        }
+    }
+
+    /** Decrypts to a stream, like PgpDecryptVerifyOperation does for uris. */
+    private DecryptVerifyResult decryptToStream(PgpDecryptVerifyInputParcel decryptInput,
+            CryptoInputParcel cryptoInput, OutputStream out) {
+        InputData inputData;
+        try {
+            InputStream inputStream = mContext.getContentResolver().openInputStream(decryptInput.getInputUri());
+            long inputSize = FileHelper.getFileSize(mContext, decryptInput.getInputUri(), 0);
+            inputData = new InputData(inputStream, inputSize);
+        } catch (FileNotFoundException e) {
+            Log.e(Constants.TAG, "Input URI could not be opened: " + decryptInput.getInputUri(), e);
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_DC_ERROR_INPUT, 1);
+            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+        }
+
+        // the parser thread may verify signatures meanwhile, so this needs its own ProviderHelper
+        PgpDecryptVerifyOperation op =
+                new PgpDecryptVerifyOperation(mContext, new ProviderHelper(mContext), mProgressable);
+        op.setUnlockedKeys(mUnlockedKeys);
+        return op.execute(decryptInput, cryptoInput, inputData, out);
+    }
+
+    /** Passes on data read from a stream, and records it into another until stopRecording is called. */
+    private static class RecordingInputStream extends FilterInputStream {
+        private OutputStream mRecordOut;
+
+        RecordingInputStream(InputStream in, OutputStream recordOut) {
+            super(in);
+            mRecordOut = recordOut;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1 && mRecordOut != null) {
+                mRecordOut.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int count) throws IOException {
+            int length = super.read(buffer, offset, count);
+            if (length > 0 && mRecordOut != null) {
+                mRecordOut.write(buffer, offset, length);
+            }
+            return length;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // skipped data must be recorded as well
+            if (count <= 0) {
+                return 0;
+            }
+            byte[] skipped = new byte[(int) Math.min(count, 4096)];
+            int length = read(skipped, 0, skipped.length);
+            return length > 0 ? length : 0;
+        }
+
+        void stopRecording() {
+            if (mRecordOut == null) {
+                return;
+            }
+            try {
+                mRecordOut.close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "error closing recorded data", e);
+            }
+            mRecordOut = null;
+        }
+
+        boolean isRecordingStopped() {
+            return mRecordOut == null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // closing the recording must not count as stopping it
+            if (mRecordOut != null) {
+                mRecordOut.close();
+            }
+            super.close();
+        }
+    }
+
+    /** Processes a batch of inputs which share the same decryption parameters.
+     *
+     * The first input is processed on its own, so any required user interaction
+     * happens before the rest of the batch is started. Secret keys unlocked for
+     * it are shared with the remaining inputs, which are then processed in
+     * parallel without further interaction. Inputs which still require user
+     * input, e.g. because they are encrypted to another key, are left out of
+     * the result, and should be retried by the caller.
+     *
+     * Inputs are not grouped by their key up front, which would mean parsing each
+     * of them twice. Instead, each key is unlocked once, on first use, and shared
+     * through mUnlockedKeys. The result holds one result per processed input, but
+     * is delivered once for the whole batch, since an operation has exactly one
+     * result. Callers which want to show results as they come in should keep
+     * batches small, see BATCH_SIZE.
+     *
+     */
+    @NonNull
+    private InputDataResult executeBatch(InputDataParcel input, CryptoInputParcel cryptoInput) {
+
+        OperationLog log = new OperationLog();
+
+        ArrayList<Uri> inputUris = input.getBatchInputUris();
+        int numInputs = inputUris.size();
+        log.add(LogType.MSG_DATA_BATCH, 0, numInputs);
+
+        ConcurrentHashMap<Long, CanonicalizedSecretKey> unlockedKeys = new ConcurrentHashMap<>();
+
+        ArrayList<Uri> processedUris = new ArrayList<>(numInputs);
+        ArrayList<InputDataResult> results = new ArrayList<>(numInputs);
+
+        updateProgress(R.string.progress_decrypting, 0, numInputs);
+
+        InputDataResult firstResult = createBatchItemOperation(unlockedKeys)
+                .execute(createBatchItemInput(input, inputUris.get(0)), cryptoInput);
+        if (firstResult.isPending()) {
+            return new InputDataResult(log, firstResult);
+        }
+        processedUris.add(inputUris.get(0));
+        results.add(firstResult);
+
+        updateProgress(R.string.progress_decrypting, 1, numInputs);
+
+        ExecutorService batchExecutor = new ThreadPoolExecutor(0, MAX_THREADS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        ExecutorCompletionService<InputDataResult> batchCompletionService =
+                new ExecutorCompletionService<>(batchExecutor);
+        HashMap<Future<InputDataResult>, Uri> futureUris = new HashMap<>(numInputs);
+
+        for (int i = 1; i < numInputs; i++) {
+            final InputDataOperation op = createBatchItemOperation(unlockedKeys);
+            final InputDataParcel itemInput = createBatchItemInput(input, inputUris.get(i));
+            // no passphrase here, the remaining inputs must make do with the keys unlocked so far
+            final CryptoInputParcel itemCryptoInput =
+                    new CryptoInputParcel(cryptoInput.getSignatureTime(), cryptoInput.mCachePassphrase);
+
+            Future<InputDataResult> future = batchCompletionService.submit(new Callable<InputDataResult>() {
+                @Override
+                public InputDataResult call() {
+                    if (checkCancelled()) {
+                        return null;
+                    }
+                    return op.execute(itemInput, itemCryptoInput);
+                }
+            });
+            futureUris.put(future, inputUris.get(i));
+        }
+
+        boolean cancelled = false;
+        for (int i = 1; i < numInputs; i++) {
+            try {
+                Future<InputDataResult> future = batchCompletionService.take();
+                InputDataResult result = future.get();
+                if (result != null && !result.isPending()) {
+                    processedUris.add(futureUris.get(future));
+                    results.add(result);
+                }
+            } catch (InterruptedException e) {
+                Log.e(Constants.TAG, "interrupted during batch operation", e);
+                Thread.currentThread().interrupt();
+                cancelled = true;
+                break;
+            } catch (ExecutionException e) {
+                // the input is left out of the result, and will be retried on its own
+                Log.e(Constants.TAG, "error processing input during batch operation", e);
+            }
+
+            updateProgress(R.string.progress_decrypting, i + 1, numInputs);
+
+            if (checkCancelled()) {
+                cancelled = true;
+                break;
+            }
+        }
+        batchExecutor.shutdownNow();
+
+        if (processedUris.size() < numInputs) {
+            log.add(LogType.MSG_DATA_BATCH_POSTPONED, 1, numInputs - processedUris.size());
+        }
+
+        if (cancelled) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new InputDataResult(InputDataResult.RESULT_CANCELLED, log, processedUris, results);
+        }
+
+        log.add(LogType.MSG_DATA_BATCH_OK, 0, processedUris.size());
+        return new InputDataResult(InputDataResult.RESULT_OK, log, processedUris, results);
+
+    }
+
+    private InputDataOperation createBatchItemOperation(
+            ConcurrentHashMap<Long, CanonicalizedSecretKey> unlockedKeys) {
+        // each input gets its own operation, since they are stateful and may run in parallel
+        InputDataOperation op = new InputDataOperation(mContext, new ProviderHelper(mContext),
+                new ProgressScaler(), mCancelled);
+        op.mUnlockedKeys = unlockedKeys;
+        return op;
+    }
+
+    private static InputDataParcel createBatchItemInput(InputDataParcel batchInput, Uri inputUri) {
+        PgpDecryptVerifyInputParcel decryptInput = batchInput.getDecryptInput();
+        if (decryptInput != null) {
+            // the decrypt input is modified during the operation, so every input needs a copy
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.writeParcelable(decryptInput, 0);
+                parcel.setDataPosition(0);
+                decryptInput = parcel.readParcelable(PgpDecryptVerifyInputParcel.class.getClassLoader());
+            } finally {
+                parcel.recycle();
+            }
+        }
+        return new InputDataParcel(inputUri, decryptInput);
+    }
+
 }
@@ -19,23 +19,37 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
+import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
+import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants.OpenKeychainHashAlgorithmTags;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
@@ -48,6 +62,7 @@ import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.Require
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.PresizedByteArrayOutputStream;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 
@@ -60,6 +75,8 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
  */
 public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
+    private static final int MAX_THREADS = Runtime.getRuntime().availableProcessors();
+
     public SignEncryptOperation(Context context, ProviderHelper providerHelper,
                                 Progressable progressable, AtomicBoolean cancelled) {
         super(context, providerHelper, progressable, cancelled);
@@ -75,7 +92,9 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
         ArrayDeque<Uri> inputUris = new ArrayDeque<>(input.getInputUris());
         ArrayDeque<Uri> outputUris = new ArrayDeque<>(input.getOutputUris());
         byte[] inputBytes = input.getBytes();
-        byte[] outputBytes = null;
+        // output to memory is collected in a presized buffer, which is passed on without copying
+        byte[] outputBuffer = null;
+        int outputLength = 0;
 
         int total = inputBytes != null ? 1 : inputUris.size(), count = 0;
         ArrayList<PgpSignEncryptResult> results = new ArrayList<>();
@@ -95,6 +114,10 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
             }
         }
 
+        if (isParallelDetachedSignature(input, inputUris, outputUris)) {
+            return executeParallelDetached(input, cryptoInput, log, inputUris, outputUris);
+        }
+
         do {
 
             if (checkCancelled()) {
@@ -140,11 +163,12 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
                         return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
                     }
                 } else {
-                    if (outputBytes != null) {
+                    if (outputBuffer != null) {
                         log.add(LogType.MSG_SE_ERROR_TOO_MANY_INPUTS, 1);
                         return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
                     }
-                    outStream = new ByteArrayOutputStream();
+                    outStream = new PresizedByteArrayOutputStream(
+                            PgpSignEncryptOperation.estimateOutputSize(input, inputData.getSize()));
                 }
             }
 
@@ -169,8 +193,9 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
                 return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
             }
 
-            if (outStream instanceof ByteArrayOutputStream) {
-                outputBytes = ((ByteArrayOutputStream) outStream).toByteArray();
+            if (outStream instanceof PresizedByteArrayOutputStream) {
+                outputBuffer = ((PresizedByteArrayOutputStream) outStream).getBuffer();
+                outputLength = ((PresizedByteArrayOutputStream) outStream).size();
             }
 
         } while (!inputUris.isEmpty());
@@ -184,8 +209,236 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
         }
 
         log.add(LogType.MSG_SE_SUCCESS, 1);
-        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results, outputBytes);
+        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results, outputBuffer, outputLength);
+
+    }
+
+    /** Returns true if this input is signed with detached signatures into several output uris. */
+    private boolean isParallelDetachedSignature(SignEncryptParcel input,
+            ArrayDeque<Uri> inputUris, ArrayDeque<Uri> outputUris) {
+        boolean enableEncryption = (input.getEncryptionMasterKeyIds() != null
+                && input.getEncryptionMasterKeyIds().length > 0) || input.getSymmetricPassphrase() != null;
+        if (!input.isDetachedSignature() || !input.isDetachedSignatureToOutput() || enableEncryption
+                || input.getBytes() != null || inputUris.size() < 2 || outputUris.size() != inputUris.size()
+                || input.getSignatureMasterKeyId() == Constants.key.none) {
+            return false;
+        }
+
+        // security tokens sign one hash at a time, which is done in the sequential loop
+        try {
+            return mProviderHelper.getCachedPublicKeyRing(input.getSignatureMasterKeyId())
+                    .getSecretKeyType(input.getSignatureSubKeyId()) != SecretKeyType.DIVERT_TO_CARD;
+        } catch (ProviderHelper.NotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Signs each input uri with a detached signature written to its output uri, hashing
+     * several inputs in parallel.
+     *
+     * The first input is signed on its own, which unlocks the signing key or returns
+     * a pending result asking for its passphrase. The remaining inputs are then signed
+     * in parallel, all sharing that unlocked key.
+     */
+    private SignEncryptResult executeParallelDetached(final SignEncryptParcel input,
+            final CryptoInputParcel cryptoInput, OperationLog log,
+            ArrayDeque<Uri> inputUris, ArrayDeque<Uri> outputUris) {
+
+        int total = inputUris.size();
+        log.add(LogType.MSG_SE_DETACHED_PARALLEL, 1, total);
+        ArrayList<PgpSignEncryptResult> results = new ArrayList<>(total);
+
+        // resolved here, since the operations would all set it on the shared input otherwise
+        if (input.getSignatureHashAlgorithm() == OpenKeychainHashAlgorithmTags.USE_DEFAULT) {
+            input.setSignatureHashAlgorithm(PgpSecurityConstants.DEFAULT_HASH_ALGORITHM);
+        }
+
+        updateProgress(R.string.progress_signing, 0, total);
+
+        PgpSignEncryptOperation firstOp = new PgpSignEncryptOperation(mContext, mProviderHelper,
+                new ProgressScaler(), mCancelled);
+        PgpSignEncryptResult firstResult = signDetachedToUri(firstOp, input, cryptoInput,
+                inputUris.removeFirst(), outputUris.removeFirst());
+        results.add(firstResult);
+        log.add(firstResult, 2);
+
+        if (firstResult.isPending()) {
+            return new SignEncryptResult(log, firstResult.getRequiredInputParcel(), results, cryptoInput);
+        } else if (!firstResult.success()) {
+            return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+        }
+
+        updateProgress(R.string.progress_signing, 1, total);
+
+        final CanonicalizedSecretKey unlockedKey = firstOp.getUnlockedSigningKey();
+        ExecutorService executor = new ThreadPoolExecutor(0, MAX_THREADS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        ArrayList<Future<PgpSignEncryptResult>> futures = new ArrayList<>(total - 1);
+        ArrayList<Uri> parallelOutputUris = new ArrayList<>(outputUris);
+        while (!inputUris.isEmpty()) {
+            final Uri inputUri = inputUris.removeFirst();
+            final Uri outputUri = outputUris.removeFirst();
+            futures.add(executor.submit(new Callable<PgpSignEncryptResult>() {
+                @Override
+                public PgpSignEncryptResult call() {
+                    // each input gets its own operation, since they are stateful
+                    PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext,
+                            new ProviderHelper(mContext), new ProgressScaler(), mCancelled);
+                    op.setUnlockedSigningKey(unlockedKey);
+                    return signDetachedToUri(op, input, cryptoInput, inputUri, outputUri);
+                }
+            }));
+        }
+
+        boolean completed = false;
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                PgpSignEncryptResult result;
+                try {
+                    result = futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Log.e(Constants.TAG, "interrupted while signing in parallel", e);
+                    Thread.currentThread().interrupt();
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+                } catch (ExecutionException e) {
+                    Log.e(Constants.TAG, "error signing input in parallel", e);
+                    log.add(LogType.MSG_INTERNAL_ERROR, 1);
+                    return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+                }
+                results.add(result);
+                log.add(result, 2);
+
+                // without the passphrase, nothing is pending for the remaining inputs
+                if (!result.success()) {
+                    return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+                }
+
+                updateProgress(R.string.progress_signing, i + 2, total);
+
+                if (checkCancelled()) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+                }
+            }
+            completed = true;
+        } finally {
+            // let no worker write to an output after we return
+            executor.shutdownNow();
+            awaitWorkers(executor);
+            if (!completed) {
+                deleteUnfinishedOutputs(futures, parallelOutputUris, log);
+            }
+        }
+
+        log.add(LogType.MSG_SE_SUCCESS, 1);
+        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results);
+
+    }
 
+    /** Waits for the workers of a shut down executor, which may still be finishing their output. */
+    private static void awaitWorkers(ExecutorService executor) {
+        // an interrupt we are returning for is restored after waiting
+        boolean interrupted = Thread.interrupted();
+        while (true) {
+            try {
+                if (executor.awaitTermination(30L, TimeUnit.SECONDS)) {
+                    break;
+                }
+                Log.w(Constants.TAG, "still waiting for parallel signing to terminate");
+            } catch (InterruptedException e) {
+                // we must not return while workers still write
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Deletes the outputs of all parallel inputs which were not signed successfully. */
+    private void deleteUnfinishedOutputs(ArrayList<Future<PgpSignEncryptResult>> futures,
+            ArrayList<Uri> outputUris, OperationLog log) {
+        for (int i = 0; i < futures.size(); i++) {
+            Future<PgpSignEncryptResult> future = futures.get(i);
+            try {
+                // all workers are terminated, this does not block
+                if (!future.isCancelled() && future.get().success()) {
+                    continue;
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                // not signed, delete below
+            }
+            deleteOutput(outputUris.get(i), log);
+        }
+    }
+
+    private void deleteOutput(Uri outputUri, OperationLog log) {
+        try {
+            if (ContentResolver.SCHEME_FILE.equals(outputUri.getScheme())) {
+                if (new File(outputUri.getPath()).delete()) {
+                    return;
+                }
+            } else if (mContext.getContentResolver().delete(outputUri, null, null) > 0) {
+                return;
+            }
+        } catch (RuntimeException e) {
+            // e.g. providers which don't support deletion
+            Log.e(Constants.TAG, "error deleting output", e);
+        }
+        log.add(LogType.MSG_SE_WARN_OUTPUT_NOT_DELETED, 2, outputUri.toString());
+    }
+
+    /** Signs one input into its output uri. If this fails, the partial output is deleted. */
+    private PgpSignEncryptResult signDetachedToUri(PgpSignEncryptOperation op, SignEncryptParcel input,
+            CryptoInputParcel cryptoInput, Uri inputUri, Uri outputUri) {
+        OperationLog log = new OperationLog();
+
+        InputStream is;
+        try {
+            is = FileHelper.openInputStreamSafe(mContext.getContentResolver(), inputUri);
+        } catch (FileNotFoundException e) {
+            log.add(LogType.MSG_SE_ERROR_INPUT_URI_NOT_FOUND, 1);
+            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        }
+
+        PgpSignEncryptResult result;
+        try {
+            long fileSize = FileHelper.getFileSize(mContext, inputUri, 0);
+            String filename = FileHelper.getFilename(mContext, inputUri);
+            InputData inputData = new InputData(is, fileSize, filename);
+
+            OutputStream outStream;
+            try {
+                outStream = mContext.getContentResolver().openOutputStream(outputUri);
+            } catch (FileNotFoundException e) {
+                log.add(LogType.MSG_SE_ERROR_OUTPUT_URI_NOT_FOUND, 1);
+                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+            }
+
+            try {
+                result = op.execute(input, cryptoInput, inputData, outStream);
+            } finally {
+                try {
+                    outStream.close();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "error closing output", e);
+                }
+            }
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        // a pending result has not written anything yet
+        if (!result.success() && !result.isPending()) {
+            deleteOutput(outputUri, result.getLog());
+        }
+        return result;
     }
 
 }
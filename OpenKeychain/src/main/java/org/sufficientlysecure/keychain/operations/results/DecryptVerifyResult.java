@@ -25,6 +25,9 @@ import org.openintents.openpgp.OpenPgpMetadata;
 import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.util.SharedMemoryCache;
+
+import java.util.Arrays;
 
 public class DecryptVerifyResult extends InputPendingResult {
 
@@ -38,6 +41,8 @@ public class DecryptVerifyResult extends InputPendingResult {
     CryptoInputParcel mCachedCryptoInputParcel;
 
     byte[] mOutputBytes;
+    // number of valid bytes in mOutputBytes, which may be a larger buffer
+    int mOutputLength;
 
     public long mOperationTime;
 
@@ -56,6 +61,8 @@ public class DecryptVerifyResult extends InputPendingResult {
         mDecryptionResult = source.readParcelable(OpenPgpDecryptionResult.class.getClassLoader());
         mDecryptionMetadata = source.readParcelable(OpenPgpMetadata.class.getClassLoader());
         mCachedCryptoInputParcel = source.readParcelable(CryptoInputParcel.class.getClassLoader());
+        mOutputBytes = SharedMemoryCache.readBytesFromParcel(source);
+        mOutputLength = mOutputBytes != null ? mOutputBytes.length : 0;
     }
 
 
@@ -97,9 +104,19 @@ public class DecryptVerifyResult extends InputPendingResult {
 
     public void setOutputBytes(byte[] outputBytes) {
         mOutputBytes = outputBytes;
+        mOutputLength = outputBytes != null ? outputBytes.length : 0;
+    }
+
+    /** Takes the first length bytes of the buffer as output, without copying them until needed. */
+    public void setOutputBytes(byte[] outputBuffer, int length) {
+        mOutputBytes = outputBuffer;
+        mOutputLength = length;
     }
 
     public byte[] getOutputBytes() {
+        if (mOutputBytes != null && mOutputBytes.length != mOutputLength) {
+            mOutputBytes = Arrays.copyOf(mOutputBytes, mOutputLength);
+        }
         return mOutputBytes;
     }
 
@@ -113,6 +130,7 @@ public class DecryptVerifyResult extends InputPendingResult {
         dest.writeParcelable(mDecryptionResult, flags);
         dest.writeParcelable(mDecryptionMetadata, flags);
         dest.writeParcelable(mCachedCryptoInputParcel, flags);
+        SharedMemoryCache.writeHandoffBytesToParcel(mOutputBytes, mOutputLength, dest);
     }
 
     public static final Creator<DecryptVerifyResult> CREATOR = new Creator<DecryptVerifyResult>() {
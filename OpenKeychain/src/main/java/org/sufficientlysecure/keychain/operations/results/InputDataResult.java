@@ -32,12 +32,17 @@ public class InputDataResult extends InputPendingResult {
     public final ArrayList<Uri> mOutputUris;
     final public DecryptVerifyResult mDecryptVerifyResult;
     public final ArrayList<OpenPgpMetadata> mMetadata;
+    // for batch operations, the inputs that were processed and their individual results
+    public final ArrayList<Uri> mBatchInputUris;
+    public final ArrayList<InputDataResult> mBatchResults;
 
     public InputDataResult(OperationLog log, @NonNull InputPendingResult result) {
         super(log, result);
         mOutputUris = null;
         mDecryptVerifyResult = null;
         mMetadata = null;
+        mBatchInputUris = null;
+        mBatchResults = null;
     }
 
     public InputDataResult(int result, OperationLog log) {
@@ -45,6 +50,8 @@ public class InputDataResult extends InputPendingResult {
         mOutputUris = null;
         mDecryptVerifyResult = null;
         mMetadata = null;
+        mBatchInputUris = null;
+        mBatchResults = null;
     }
 
     public InputDataResult(int result, OperationLog log, DecryptVerifyResult decryptResult,
@@ -56,6 +63,25 @@ public class InputDataResult extends InputPendingResult {
         }
         mOutputUris = outputUris;
         mMetadata = metadata;
+        mBatchInputUris = null;
+        mBatchResults = null;
+    }
+
+    /**
+     * Result of a batch operation. Inputs of the batch which are not in batchInputUris were
+     * not processed, usually because they require user input, and should be retried.
+     */
+    public InputDataResult(int result, OperationLog log,
+            @NonNull ArrayList<Uri> batchInputUris, @NonNull ArrayList<InputDataResult> batchResults) {
+        super(result, log);
+        if (batchInputUris.size() != batchResults.size()) {
+            throw new AssertionError("number of batch input URIs must match results!");
+        }
+        mOutputUris = null;
+        mDecryptVerifyResult = null;
+        mMetadata = null;
+        mBatchInputUris = batchInputUris;
+        mBatchResults = batchResults;
     }
 
     protected InputDataResult(Parcel in) {
@@ -63,6 +89,12 @@ public class InputDataResult extends InputPendingResult {
         mOutputUris = in.createTypedArrayList(Uri.CREATOR);
         mDecryptVerifyResult = in.readParcelable(DecryptVerifyResult.class.getClassLoader());
         mMetadata = in.createTypedArrayList(OpenPgpMetadata.CREATOR);
+        mBatchInputUris = in.createTypedArrayList(Uri.CREATOR);
+        mBatchResults = in.createTypedArrayList(InputDataResult.CREATOR);
+    }
+
+    public boolean isBatch() {
+        return mBatchResults != null;
     }
 
     public ArrayList<Uri> getOutputUris() {
@@ -80,6 +112,8 @@ public class InputDataResult extends InputPendingResult {
         dest.writeTypedList(mOutputUris);
         dest.writeParcelable(mDecryptVerifyResult, 0);
         dest.writeTypedList(mMetadata);
+        dest.writeTypedList(mBatchInputUris);
+        dest.writeTypedList(mBatchResults);
     }
 
     public static final Creator<InputDataResult> CREATOR = new Creator<InputDataResult>() {
@@ -487,6 +487,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_KC_UID_CERT_DUP (LogLevel.DEBUG, R.string.msg_kc_uid_cert_dup),
         MSG_KC_UID_DUP (LogLevel.DEBUG, R.string.msg_kc_uid_dup),
         MSG_KC_UID_TOO_MANY (LogLevel.DEBUG, R.string.msg_kc_uid_too_many),
+        MSG_KC_UID_FLOOD (LogLevel.WARN, R.plurals.msg_kc_uid_flood),
         MSG_KC_UID_FOREIGN (LogLevel.DEBUG, R.string.msg_kc_uid_foreign),
         MSG_KC_UID_NO_CERT (LogLevel.DEBUG, R.string.msg_kc_uid_no_cert),
         MSG_KC_UID_REVOKE_DUP (LogLevel.DEBUG, R.string.msg_kc_uid_revoke_dup),
@@ -502,6 +503,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_KC_UAT_BAD (LogLevel.WARN, R.string.msg_kc_uat_bad),
         MSG_KC_UAT_CERT_DUP (LogLevel.DEBUG, R.string.msg_kc_uat_cert_dup),
         MSG_KC_UAT_DUP (LogLevel.DEBUG, R.string.msg_kc_uat_dup),
+        MSG_KC_UAT_FLOOD (LogLevel.WARN, R.plurals.msg_kc_uat_flood),
         MSG_KC_UAT_FOREIGN (LogLevel.DEBUG, R.string.msg_kc_uat_foreign),
         MSG_KC_UAT_NO_CERT (LogLevel.DEBUG, R.string.msg_kc_uat_no_cert),
         MSG_KC_UAT_REVOKE_DUP (LogLevel.DEBUG, R.string.msg_kc_uat_revoke_dup),
@@ -620,6 +622,14 @@ public abstract class OperationResult implements Parcelable {
         MSG_CON_SUCCESS (LogLevel.OK, R.string.msg_con_success),
         MSG_CON_WARN_DELETE_PUBLIC (LogLevel.WARN, R.string.msg_con_warn_delete_public),
         MSG_CON_WARN_DELETE_SECRET (LogLevel.WARN, R.string.msg_con_warn_delete_secret),
+        MSG_CON_INC (LogLevel.START, R.string.msg_con_inc),
+        MSG_CON_INC_ERROR_DB (LogLevel.ERROR, R.string.msg_con_inc_error_db),
+        MSG_CON_INC_REINSERT (LogLevel.DEBUG, R.string.msg_con_inc_reinsert),
+        MSG_CON_INC_SCAN (LogLevel.DEBUG, R.plurals.msg_con_inc_scan),
+        MSG_CON_INC_SKIP (LogLevel.DEBUG, R.string.msg_con_inc_skip),
+        MSG_CON_INC_SUCCESS (LogLevel.OK, R.plurals.msg_con_inc_success),
+        MSG_CON_INC_WARN_BAD_KEY (LogLevel.WARN, R.string.msg_con_inc_warn_bad_key),
+        MSG_CON_INC_WARN_REINSERT (LogLevel.WARN, R.string.msg_con_inc_warn_reinsert),
 
         // edit key (higher level operation than modify)
         MSG_ED (LogLevel.START, R.string.msg_ed),
@@ -664,6 +674,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_CLEAR_SIGNATURE_CHECK (LogLevel.DEBUG, R.string.msg_dc_clear_signature_check),
         MSG_DC_CLEAR_SIGNATURE_OK (LogLevel.OK, R.string.msg_dc_clear_signature_ok),
         MSG_DC_CLEAR_SIGNATURE (LogLevel.DEBUG, R.string.msg_dc_clear_signature),
+        MSG_DC_DETACHED_FILE (LogLevel.DEBUG, R.string.msg_dc_detached_file),
         MSG_DC_ERROR_BAD_PASSPHRASE (LogLevel.ERROR, R.string.msg_dc_error_bad_passphrase),
         MSG_DC_ERROR_SYM_PASSPHRASE (LogLevel.ERROR, R.string.msg_dc_error_sym_passphrase),
         MSG_DC_ERROR_CORRUPT_DATA (LogLevel.ERROR, R.string.msg_dc_error_corrupt_data),
@@ -683,6 +694,8 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_PENDING_NFC (LogLevel.INFO, R.string.msg_dc_pending_nfc),
         MSG_DC_PENDING_PASSPHRASE (LogLevel.INFO, R.string.msg_dc_pending_passphrase),
         MSG_DC_PREP_STREAMS (LogLevel.DEBUG, R.string.msg_dc_prep_streams),
+        MSG_DC_SESSION_KEY_CACHED (LogLevel.DEBUG, R.string.msg_dc_session_key_cached),
+        MSG_DC_KEY_UNLOCKED_BATCH (LogLevel.DEBUG, R.string.msg_dc_key_unlocked_batch),
         MSG_DC (LogLevel.DEBUG, R.string.msg_dc),
         MSG_DC_SYM (LogLevel.DEBUG, R.string.msg_dc_sym),
         MSG_DC_SYM_SKIP (LogLevel.DEBUG, R.string.msg_dc_sym_skip),
@@ -714,11 +727,18 @@ public abstract class OperationResult implements Parcelable {
         MSG_SE_ERROR_INPUT_URI_NOT_FOUND (LogLevel.ERROR, R.string.msg_se_error_input_uri_not_found),
         MSG_SE_ERROR_OUTPUT_URI_NOT_FOUND (LogLevel.ERROR, R.string.msg_se_error_output_uri_not_found),
         MSG_SE_ERROR_TOO_MANY_INPUTS (LogLevel.ERROR, R.string.msg_se_error_too_many_inputs),
+        MSG_SE_WARN_OUTPUT_NOT_DELETED (LogLevel.WARN, R.string.msg_se_warn_output_not_deleted),
         MSG_SE_SUCCESS (LogLevel.OK, R.string.msg_se_success),
+        MSG_SE_DETACHED_PARALLEL (LogLevel.INFO, R.plurals.msg_se_detached_parallel),
 
         // pgpsignencrypt
         MSG_PSE_ASYMMETRIC (LogLevel.INFO, R.string.msg_pse_asymmetric),
         MSG_PSE_COMPRESSING (LogLevel.DEBUG, R.string.msg_pse_compressing),
+        MSG_PSE_COMPRESSING_PARALLEL (LogLevel.DEBUG, R.string.msg_pse_compressing_parallel),
+        MSG_PSE_COMPRESSION_AUTO_ENTROPY (LogLevel.INFO, R.string.msg_pse_compression_auto_entropy),
+        MSG_PSE_COMPRESSION_AUTO_OFF (LogLevel.INFO, R.string.msg_pse_compression_auto_off),
+        MSG_PSE_COMPRESSION_AUTO_ON (LogLevel.INFO, R.string.msg_pse_compression_auto_on),
+        MSG_PSE_PIPELINED (LogLevel.DEBUG, R.string.msg_pse_pipelined),
         MSG_PSE_ENCRYPTING (LogLevel.DEBUG, R.string.msg_pse_encrypting),
         MSG_PSE_ERROR_BAD_PASSPHRASE (LogLevel.ERROR, R.string.msg_pse_error_bad_passphrase),
         MSG_PSE_ERROR_IO (LogLevel.ERROR, R.string.msg_pse_error_io),
@@ -869,6 +889,11 @@ public abstract class OperationResult implements Parcelable {
         MSG_DATA_MIME_TYPE (LogLevel.DEBUG, R.string.msg_data_mime_type),
         MSG_DATA_OK (LogLevel.OK, R.string.msg_data_ok),
         MSG_DATA_SKIP_MIME (LogLevel.DEBUG, R.string.msg_data_skip_mime),
+        MSG_DATA_STREAMING (LogLevel.DEBUG, R.string.msg_data_streaming),
+        MSG_DATA_STREAMING_FALLBACK (LogLevel.DEBUG, R.string.msg_data_streaming_fallback),
+        MSG_DATA_BATCH (LogLevel.START, R.plurals.msg_data_batch),
+        MSG_DATA_BATCH_POSTPONED (LogLevel.INFO, R.plurals.msg_data_batch_postponed),
+        MSG_DATA_BATCH_OK (LogLevel.OK, R.plurals.msg_data_batch_ok),
 
         MSG_LV (LogLevel.START, R.string.msg_lv),
         MSG_LV_MATCH (LogLevel.DEBUG, R.string.msg_lv_match),
@@ -896,6 +921,8 @@ public abstract class OperationResult implements Parcelable {
         MSG_BENCH_ENC_TIME_AVG (LogLevel.INFO, R.string.msg_bench_enc_time_avg),
         MSG_BENCH_DEC_TIME (LogLevel.DEBUG, R.string.msg_bench_dec_time),
         MSG_BENCH_DEC_TIME_AVG (LogLevel.INFO, R.string.msg_bench_enc_time_avg),
+        MSG_BENCH_CLEARTEXT_TIME (LogLevel.DEBUG, R.string.msg_bench_cleartext_time),
+        MSG_BENCH_CLEARTEXT_TIME_AVG (LogLevel.INFO, R.string.msg_bench_cleartext_time_avg),
         MSG_BENCH_S2K_FOR_IT (LogLevel.DEBUG, R.string.msg_bench_s2k_for_it),
         MSG_BENCH_S2K_100MS_ITS (LogLevel.INFO, R.string.msg_bench_s2k_100ms_its),
         MSG_BENCH_SUCCESS (LogLevel.OK, R.string.msg_bench_success),
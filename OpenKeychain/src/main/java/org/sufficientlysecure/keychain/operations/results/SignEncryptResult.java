@@ -21,13 +21,17 @@ import android.os.Parcel;
 
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.util.SharedMemoryCache;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class SignEncryptResult extends InputPendingResult {
 
     ArrayList<PgpSignEncryptResult> mResults;
     byte[] mResultBytes;
+    // number of valid bytes in mResultBytes, which may be a larger buffer
+    int mResultLength;
 
     public SignEncryptResult(OperationLog log, RequiredInputParcel requiredInput,
                              ArrayList<PgpSignEncryptResult> results,
@@ -45,14 +49,29 @@ public class SignEncryptResult extends InputPendingResult {
         super(result, log);
         mResults = results;
         mResultBytes = resultBytes;
+        mResultLength = resultBytes != null ? resultBytes.length : 0;
+    }
+
+    /** Takes the first length bytes of the buffer as result, without copying them until needed. */
+    public SignEncryptResult(int result, OperationLog log, ArrayList<PgpSignEncryptResult> results,
+            byte[] resultBuffer, int resultLength) {
+        super(result, log);
+        mResults = results;
+        mResultBytes = resultBuffer;
+        mResultLength = resultLength;
     }
 
     public SignEncryptResult(Parcel source) {
         super(source);
         mResults = source.createTypedArrayList(PgpSignEncryptResult.CREATOR);
+        mResultBytes = SharedMemoryCache.readBytesFromParcel(source);
+        mResultLength = mResultBytes != null ? mResultBytes.length : 0;
     }
 
     public byte[] getResultBytes() {
+        if (mResultBytes != null && mResultBytes.length != mResultLength) {
+            mResultBytes = Arrays.copyOf(mResultBytes, mResultLength);
+        }
         return mResultBytes;
     }
 
@@ -67,6 +86,7 @@ public class SignEncryptResult extends InputPendingResult {
     public void writeToParcel(Parcel dest, int flags) {
         super.writeToParcel(dest, flags);
         dest.writeTypedList(mResults);
+        SharedMemoryCache.writeHandoffBytesToParcel(mResultBytes, mResultLength, dest);
     }
 
     public static final Creator<SignEncryptResult> CREATOR = new Creator<SignEncryptResult>() {
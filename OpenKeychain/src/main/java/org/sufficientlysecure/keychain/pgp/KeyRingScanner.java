@@ -0,0 +1,619 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.bcpg.SignatureSubpacketTags;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Utf8Util;
+
+
+/** Scans a stream of OpenPGP packets for keyrings, without building BouncyCastle objects.
+ *
+ * UncachedKeyRing.fromStream parses each keyring into a full PGPKeyRing, which is
+ * too expensive for large keyring dumps if all we need is an overview. This class
+ * only looks at packet headers to find the boundaries of keyrings, and parses just
+ * enough of the master key, user id and self-signature packets to provide the data
+ * for a list entry: master key id, fingerprint, algorithm and user ids. All other
+ * packet bodies are skipped, so memory use is bounded by the size of a single
+ * packet we are interested in, regardless of the size of the input.
+ *
+ * The packets of all found keyrings can optionally be copied (de-armored) into an
+ * OutputStream, with each ScannedKeyRing pointing to its range in that stream. This
+ * allows decoding the full keyring later on, but only for the entries that need it.
+ *
+ */
+public class KeyRingScanner {
+
+    /** Packets we buffer are limited to this size, larger ones are skipped. */
+    private static final int MAX_BUFFERED_PACKET = 64 * 1024;
+    /** Maximum number of user ids recorded per keyring, see CANONICALIZE_MAX_USER_IDS. */
+    private static final int MAX_USER_IDS = 100;
+
+    /** Summary of a keyring found in the stream. */
+    public static class ScannedKeyRing {
+        /** Range of the keyring in the output stream given to the scanner. */
+        public long mOffset;
+        public int mLength;
+
+        public boolean mIsSecret;
+        public int mVersion;
+        public long mMasterKeyId;
+        /** Fingerprint of the master key, or null if it could not be determined. */
+        public byte[] mFingerprint;
+        public Date mCreationTime;
+        public int mAlgorithm;
+        /** Bit strength of the master key, null for EC keys (see UncachedPublicKey). */
+        public Integer mBitStrength;
+        /** Curve oid of the master key, null if it isn't an EC key. */
+        public String mCurveOid;
+
+        /** Primary user id as indicated by self-signatures, or the first one. May be null. */
+        public String mPrimaryUserId;
+        public ArrayList<String> mUserIds = new ArrayList<>();
+
+        /** Returns true if the master key could be parsed, ie. we have a valid summary. */
+        public boolean isComplete() {
+            return mFingerprint != null;
+        }
+
+        // state for primary user id selection
+        private byte[] mCurrentUserId;
+        private byte[] mPrimaryUserIdRaw;
+        private Date mPrimaryUserIdTime;
+    }
+
+    private final InputStream mStream;
+    private final CountingOutputStream mRingOut;
+
+    private InputStream mIn;
+    /** First byte of a packet header which was read, but not yet processed. */
+    private int mPendingHeader = -1;
+
+    /** @param stream the (possibly armored) input stream. Must support mark/reset if it
+     *                contains more than one armored block, like in UncachedKeyRing.fromStream.
+     * @param ringOut if not null, the raw packets of all keyrings are copied here.
+     */
+    public KeyRingScanner(InputStream stream, OutputStream ringOut) {
+        mStream = stream;
+        mRingOut = ringOut != null ? new CountingOutputStream(ringOut) : null;
+    }
+
+    /** Returns the next keyring found in the stream, or null if there are no more. */
+    public ScannedKeyRing next() throws IOException {
+
+        // find the next master key packet
+        int tag;
+        while (true) {
+            int header = readHeaderByte();
+            if (header < 0) {
+                return null;
+            }
+            tag = getTag(header);
+            if (tag == PacketTags.PUBLIC_KEY || tag == PacketTags.SECRET_KEY) {
+                mPendingHeader = header;
+                break;
+            }
+            Log.d(Constants.TAG, "Skipping packet outside of keyring, tag " + tag);
+            skipPacket(header, false);
+        }
+
+        ScannedKeyRing ring = new ScannedKeyRing();
+        ring.mOffset = mRingOut != null ? mRingOut.mCount : 0;
+        ring.mIsSecret = tag == PacketTags.SECRET_KEY;
+
+        {
+            int header = mPendingHeader;
+            mPendingHeader = -1;
+            byte[] body = readPacket(header, true);
+            if (body != null) {
+                parseMasterKey(ring, body);
+            }
+        }
+
+        // go through packets until the next keyring starts, or we hit the end
+        while (true) {
+            int header = readHeaderByte();
+            if (header < 0) {
+                break;
+            }
+            tag = getTag(header);
+            if (!isKeyRingPacket(tag)) {
+                // start of a new keyring, or something unrelated. either way, this one is done
+                mPendingHeader = header;
+                break;
+            }
+
+            switch (tag) {
+                case PacketTags.USER_ID: {
+                    byte[] body = readPacket(header, true);
+                    if (body != null && ring.mUserIds.size() < MAX_USER_IDS) {
+                        ring.mUserIds.add(Utf8Util.fromUTF8ByteArrayReplaceBadEncoding(body));
+                        ring.mCurrentUserId = body;
+                    } else {
+                        ring.mCurrentUserId = null;
+                    }
+                    break;
+                }
+                case PacketTags.SIGNATURE: {
+                    // we are only interested in certificates on user ids
+                    if (ring.mCurrentUserId == null) {
+                        skipPacket(header, true);
+                        break;
+                    }
+                    byte[] body = readPacket(header, true);
+                    if (body != null) {
+                        parseUserIdSignature(ring, body);
+                    }
+                    break;
+                }
+                case PacketTags.TRUST:
+                    skipPacket(header, true);
+                    break;
+                default:
+                    // user attributes and subkeys, signatures after those aren't user id certs
+                    ring.mCurrentUserId = null;
+                    skipPacket(header, true);
+                    break;
+            }
+        }
+
+        if (ring.mPrimaryUserId == null && !ring.mUserIds.isEmpty()) {
+            ring.mPrimaryUserId = ring.mUserIds.get(0);
+        }
+        ring.mCurrentUserId = null;
+        ring.mPrimaryUserIdRaw = null;
+
+        if (mRingOut != null) {
+            ring.mLength = (int) (mRingOut.mCount - ring.mOffset);
+        }
+
+        return ring;
+    }
+
+    private static boolean isKeyRingPacket(int tag) {
+        switch (tag) {
+            case PacketTags.SIGNATURE:
+            case PacketTags.TRUST:
+            case PacketTags.USER_ID:
+            case PacketTags.USER_ATTRIBUTE:
+            case PacketTags.PUBLIC_SUBKEY:
+            case PacketTags.SECRET_SUBKEY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int getTag(int header) throws IOException {
+        if ((header & 0x80) == 0) {
+            throw new IOException("invalid packet header: 0x" + Integer.toHexString(header));
+        }
+        if ((header & 0x40) != 0) {
+            return header & 0x3f;
+        }
+        return (header & 0x3c) >> 2;
+    }
+
+    /** Reads the first byte of the next packet header, from the current armored or binary
+     * block. Returns -1 if there is no more data at all.
+     */
+    private int readHeaderByte() throws IOException {
+        if (mPendingHeader >= 0) {
+            int header = mPendingHeader;
+            mPendingHeader = -1;
+            return header;
+        }
+        while (true) {
+            if (mIn == null) {
+                if (mStream.available() <= 0) {
+                    return -1;
+                }
+                mIn = PGPUtil.getDecoderStream(mStream);
+            }
+            int header = mIn.read();
+            if (header >= 0) {
+                return header;
+            }
+            // this block is done, there might be another one after it
+            mIn = null;
+        }
+    }
+
+    /** Reads the body of a packet, or skips it if it is too large to buffer.
+     * @return the body of the packet, or null if it was skipped.
+     */
+    private byte[] readPacket(int header, boolean copy) throws IOException {
+        if (copy && mRingOut != null) {
+            mRingOut.write(header);
+        }
+
+        ByteArrayOutputStream body = null;
+        boolean partial;
+        do {
+            long length;
+            {
+                long[] lengthAndPartial = readLength(header, copy);
+                length = lengthAndPartial[0];
+                partial = lengthAndPartial[1] != 0;
+            }
+
+            if (body == null && !partial && length <= MAX_BUFFERED_PACKET) {
+                // common case: one chunk, small enough to buffer
+                byte[] result = new byte[(int) length];
+                readFully(result, copy);
+                return result;
+            }
+
+            if (body == null) {
+                body = new ByteArrayOutputStream();
+            }
+            if (body.size() + length > MAX_BUFFERED_PACKET) {
+                Log.d(Constants.TAG, "Skipping oversized packet");
+                skipBytes(length, copy);
+                // skip everything else of this packet, too
+                while (partial) {
+                    long[] lengthAndPartial = readLength(header, copy);
+                    skipBytes(lengthAndPartial[0], copy);
+                    partial = lengthAndPartial[1] != 0;
+                }
+                return null;
+            }
+            byte[] chunk = new byte[(int) length];
+            readFully(chunk, copy);
+            body.write(chunk);
+        } while (partial);
+
+        return body.toByteArray();
+    }
+
+    private void skipPacket(int header, boolean copy) throws IOException {
+        if (copy && mRingOut != null) {
+            mRingOut.write(header);
+        }
+        boolean partial;
+        do {
+            long[] lengthAndPartial = readLength(header, copy);
+            skipBytes(lengthAndPartial[0], copy);
+            partial = lengthAndPartial[1] != 0;
+        } while (partial);
+    }
+
+    /** Reads the length of a packet (chunk), see RFC 4880, Section 4.2.
+     * @return an array of the length, and 1 if this is a partial length or 0 otherwise.
+     */
+    private long[] readLength(int header, boolean copy) throws IOException {
+        if ((header & 0x40) == 0) {
+            // old format packet
+            switch (header & 0x03) {
+                case 0:
+                    return new long[] { readByte(copy), 0 };
+                case 1:
+                    return new long[] { (readByte(copy) << 8) | readByte(copy), 0 };
+                case 2:
+                    return new long[] { readUInt32(copy), 0 };
+                default:
+                    throw new IOException("indeterminate length packets are not supported");
+            }
+        }
+
+        int l1 = readByte(copy);
+        if (l1 < 192) {
+            return new long[] { l1, 0 };
+        }
+        if (l1 <= 223) {
+            return new long[] { ((l1 - 192) << 8) + readByte(copy) + 192, 0 };
+        }
+        if (l1 == 255) {
+            return new long[] { readUInt32(copy), 0 };
+        }
+        return new long[] { 1L << (l1 & 0x1f), 1 };
+    }
+
+    private long readUInt32(boolean copy) throws IOException {
+        return ((long) readByte(copy) << 24) | (readByte(copy) << 16)
+                | (readByte(copy) << 8) | readByte(copy);
+    }
+
+    private int readByte(boolean copy) throws IOException {
+        int b = mIn.read();
+        if (b < 0) {
+            throw new EOFException("unexpected end of packet");
+        }
+        if (copy && mRingOut != null) {
+            mRingOut.write(b);
+        }
+        return b;
+    }
+
+    private void readFully(byte[] buf, boolean copy) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int read = mIn.read(buf, off, buf.length - off);
+            if (read < 0) {
+                throw new EOFException("unexpected end of packet");
+            }
+            off += read;
+        }
+        if (copy && mRingOut != null) {
+            mRingOut.write(buf);
+        }
+    }
+
+    private void skipBytes(long length, boolean copy) throws IOException {
+        byte[] buf = new byte[(int) Math.min(length, 8192)];
+        while (length > 0) {
+            int read = mIn.read(buf, 0, (int) Math.min(length, buf.length));
+            if (read < 0) {
+                throw new EOFException("unexpected end of packet");
+            }
+            if (copy && mRingOut != null) {
+                mRingOut.write(buf, 0, read);
+            }
+            length -= read;
+        }
+    }
+
+    /** Parses the public part of a master key packet, see RFC 4880, Section 5.5.2. If the
+     * packet cannot be parsed, the ring is left incomplete.
+     */
+    private static void parseMasterKey(ScannedKeyRing ring, byte[] body) {
+        try {
+            int pos = 0;
+            ring.mVersion = body[pos++] & 0xff;
+            ring.mCreationTime = new Date(readUInt32(body, pos) * 1000);
+            pos += 4;
+            if (ring.mVersion <= 3) {
+                // skip validity period
+                pos += 2;
+            }
+            ring.mAlgorithm = body[pos++] & 0xff;
+
+            int mpiStart = pos;
+            switch (ring.mAlgorithm) {
+                case PublicKeyAlgorithmTags.RSA_GENERAL:
+                case PublicKeyAlgorithmTags.RSA_ENCRYPT:
+                case PublicKeyAlgorithmTags.RSA_SIGN:
+                    ring.mBitStrength = readUInt16(body, pos);
+                    pos = skipMpis(body, pos, 2);
+                    break;
+                case PublicKeyAlgorithmTags.DSA:
+                    ring.mBitStrength = readUInt16(body, pos);
+                    pos = skipMpis(body, pos, 4);
+                    break;
+                case PublicKeyAlgorithmTags.ELGAMAL_ENCRYPT:
+                case PublicKeyAlgorithmTags.ELGAMAL_GENERAL:
+                    ring.mBitStrength = readUInt16(body, pos);
+                    pos = skipMpis(body, pos, 3);
+                    break;
+                case PublicKeyAlgorithmTags.ECDSA:
+                case PublicKeyAlgorithmTags.ECDH: {
+                    int oidLength = body[pos] & 0xff;
+                    byte[] encodedOid = new byte[oidLength + 2];
+                    encodedOid[0] = 0x06;
+                    encodedOid[1] = (byte) oidLength;
+                    System.arraycopy(body, pos + 1, encodedOid, 2, oidLength);
+                    ring.mCurveOid = ASN1ObjectIdentifier.getInstance(encodedOid).getId();
+                    pos = skipMpis(body, pos + 1 + oidLength, 1);
+                    if (ring.mAlgorithm == PublicKeyAlgorithmTags.ECDH) {
+                        // kdf parameters
+                        pos += 1 + (body[pos] & 0xff);
+                    }
+                    break;
+                }
+                default:
+                    // without knowing the key material, we can't tell where the public part ends
+                    if (ring.mIsSecret) {
+                        return;
+                    }
+                    pos = body.length;
+                    break;
+            }
+
+            if (pos > body.length) {
+                return;
+            }
+
+            if (ring.mVersion == 4) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                digest.update((byte) 0x99);
+                digest.update((byte) (pos >> 8));
+                digest.update((byte) pos);
+                digest.update(body, 0, pos);
+                ring.mFingerprint = digest.digest();
+                ring.mMasterKeyId = readLong(ring.mFingerprint, ring.mFingerprint.length - 8);
+            } else if (ring.mAlgorithm <= PublicKeyAlgorithmTags.RSA_SIGN) {
+                // v3 keys are always RSA, fingerprint is MD5 over the MPI values of n and e
+                int nBytes = (readUInt16(body, mpiStart) + 7) / 8;
+                int eStart = mpiStart + 2 + nBytes;
+                int eBytes = (readUInt16(body, eStart) + 7) / 8;
+                MessageDigest digest = MessageDigest.getInstance("MD5");
+                digest.update(body, mpiStart + 2, nBytes);
+                digest.update(body, eStart + 2, eBytes);
+                ring.mFingerprint = digest.digest();
+                ring.mMasterKeyId = readLong(body, mpiStart + 2 + nBytes - 8);
+            }
+
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            Log.e(Constants.TAG, "Malformed key packet, ignoring", e);
+            ring.mFingerprint = null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-1 and MD5 must be available!");
+        }
+    }
+
+    /** Checks a signature on the current user id for a primary user id flag, see RFC 4880,
+     * Section 5.2.3. The newest self-certification with the flag set wins, like in
+     * UncachedPublicKey.getPrimaryUserId. Unlike there, signatures are not verified, which is
+     * good enough for display purposes.
+     */
+    private static void parseUserIdSignature(ScannedKeyRing ring, byte[] body) {
+        try {
+            // v3 signatures have no subpackets, so no primary user id flag either
+            if (body[0] != 4) {
+                return;
+            }
+            int type = body[1] & 0xff;
+            boolean isRevocation = type == PGPSignature.CERTIFICATION_REVOCATION;
+            if (!isRevocation && type != PGPSignature.DEFAULT_CERTIFICATION
+                    && type != PGPSignature.NO_CERTIFICATION
+                    && type != PGPSignature.CASUAL_CERTIFICATION
+                    && type != PGPSignature.POSITIVE_CERTIFICATION) {
+                return;
+            }
+
+            int hashedLength = readUInt16(body, 4);
+            int unhashedStart = 6 + hashedLength;
+            int unhashedLength = readUInt16(body, unhashedStart);
+
+            SubpacketInfo info = new SubpacketInfo();
+            parseSubpackets(body, 6, hashedLength, info, true);
+            parseSubpackets(body, unhashedStart + 2, unhashedLength, info, false);
+
+            if (info.mIssuer == null || info.mIssuer != ring.mMasterKeyId) {
+                return;
+            }
+
+            // a revoked user id is not the primary one
+            if (isRevocation) {
+                if (ring.mPrimaryUserIdRaw == ring.mCurrentUserId) {
+                    ring.mPrimaryUserId = null;
+                    ring.mPrimaryUserIdRaw = null;
+                }
+                return;
+            }
+
+            if (!info.mPrimary || info.mCreationTime == null) {
+                return;
+            }
+            if (ring.mPrimaryUserIdTime == null || !info.mCreationTime.before(ring.mPrimaryUserIdTime)) {
+                ring.mPrimaryUserIdRaw = ring.mCurrentUserId;
+                ring.mPrimaryUserId = Utf8Util.fromUTF8ByteArrayReplaceBadEncoding(ring.mCurrentUserId);
+                ring.mPrimaryUserIdTime = info.mCreationTime;
+            }
+
+        } catch (ArrayIndexOutOfBoundsException e) {
+            Log.e(Constants.TAG, "Malformed signature packet, ignoring", e);
+        }
+    }
+
+    private static class SubpacketInfo {
+        Long mIssuer;
+        Date mCreationTime;
+        boolean mPrimary;
+    }
+
+    private static void parseSubpackets(byte[] body, int pos, int length, SubpacketInfo info,
+            boolean hashed) {
+        int end = pos + length;
+        while (pos < end) {
+            int subLength = body[pos++] & 0xff;
+            if (subLength >= 192 && subLength < 255) {
+                subLength = ((subLength - 192) << 8) + (body[pos++] & 0xff) + 192;
+            } else if (subLength == 255) {
+                subLength = (int) readUInt32(body, pos);
+                pos += 4;
+            }
+            if (subLength == 0) {
+                continue;
+            }
+            int subType = body[pos] & 0x7f;
+            int dataStart = pos + 1;
+            switch (subType) {
+                case SignatureSubpacketTags.ISSUER_KEY_ID:
+                    info.mIssuer = readLong(body, dataStart);
+                    break;
+                case SignatureSubpacketTags.CREATION_TIME:
+                    if (hashed) {
+                        info.mCreationTime = new Date(readUInt32(body, dataStart) * 1000);
+                    }
+                    break;
+                case SignatureSubpacketTags.PRIMARY_USER_ID:
+                    // only trust this flag if it is covered by the signature
+                    if (hashed) {
+                        info.mPrimary = body[dataStart] != 0;
+                    }
+                    break;
+            }
+            pos += subLength;
+        }
+    }
+
+    private static int skipMpis(byte[] body, int pos, int count) {
+        for (int i = 0; i < count; i++) {
+            int bits = readUInt16(body, pos);
+            pos += 2 + (bits + 7) / 8;
+        }
+        return pos;
+    }
+
+    private static int readUInt16(byte[] body, int pos) {
+        return ((body[pos] & 0xff) << 8) | (body[pos + 1] & 0xff);
+    }
+
+    private static long readUInt32(byte[] body, int pos) {
+        return ((long) (body[pos] & 0xff) << 24) | ((body[pos + 1] & 0xff) << 16)
+                | ((body[pos + 2] & 0xff) << 8) | (body[pos + 3] & 0xff);
+    }
+
+    private static long readLong(byte[] body, int pos) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (body[pos + i] & 0xff);
+        }
+        return result;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        final OutputStream mOut;
+        long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+            mCount += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+            mCount += len;
+        }
+    }
+
+}
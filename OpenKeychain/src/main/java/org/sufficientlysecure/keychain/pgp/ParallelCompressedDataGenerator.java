@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import android.os.Build;
+import android.os.Build.VERSION_CODES;
+
+import org.bouncycastle.bcpg.BCPGOutputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.PacketTags;
+
+
+/** A replacement for PGPCompressedDataGenerator which compresses on several threads.
+ *
+ * The compressed data packet is written exactly like PGPCompressedDataGenerator
+ * does, only its content is produced by a ParallelDeflaterOutputStream. This
+ * supports only the ZIP and ZLIB algorithms, see isSupported.
+ *
+ */
+public class ParallelCompressedDataGenerator {
+
+    private final int mAlgorithm;
+    private BCPGOutputStream mPkOut;
+    private ParallelDeflaterOutputStream mDeflaterOut;
+
+    public ParallelCompressedDataGenerator(int algorithm) {
+        if (!isSupported(algorithm)) {
+            throw new IllegalArgumentException("unsupported compression algorithm " + algorithm);
+        }
+        mAlgorithm = algorithm;
+    }
+
+    /** Returns true if compressing with this algorithm on several threads is possible and useful. */
+    public static boolean isSupported(int algorithm) {
+        boolean isDeflate = algorithm == CompressionAlgorithmTags.ZIP
+                || algorithm == CompressionAlgorithmTags.ZLIB;
+        // sync flush is required to concatenate deflate blocks
+        return isDeflate && Build.VERSION.SDK_INT >= VERSION_CODES.KITKAT
+                && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    public OutputStream open(OutputStream out) throws IOException {
+        if (mPkOut != null) {
+            throw new IllegalStateException("generator already in open state");
+        }
+
+        mPkOut = new BCPGOutputStream(out, PacketTags.COMPRESSED_DATA);
+        mPkOut.write(mAlgorithm);
+        mDeflaterOut = new ParallelDeflaterOutputStream(mPkOut, mAlgorithm == CompressionAlgorithmTags.ZLIB,
+                Deflater.DEFAULT_COMPRESSION);
+
+        // like the streams of bouncycastle's generators, closing this closes the generator
+        final ParallelDeflaterOutputStream deflaterOut = mDeflaterOut;
+        return new FilterOutputStream(deflaterOut) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                deflaterOut.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                ParallelCompressedDataGenerator.this.close();
+            }
+        };
+    }
+
+    /** Finishes the compressed data packet, without closing the underlying stream. */
+    public void close() throws IOException {
+        if (mPkOut == null) {
+            return;
+        }
+
+        mDeflaterOut.finish();
+        mPkOut.finish();
+        mPkOut.flush();
+
+        mDeflaterOut = null;
+        mPkOut = null;
+    }
+
+    /** Releases the compression work of an unfinished packet, without writing anything. */
+    public void abort() {
+        if (mDeflaterOut != null) {
+            mDeflaterOut.abort();
+        }
+        mDeflaterOut = null;
+        mPkOut = null;
+    }
+
+}
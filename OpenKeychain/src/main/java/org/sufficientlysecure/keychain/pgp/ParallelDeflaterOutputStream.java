@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+import android.annotation.TargetApi;
+import android.os.Build.VERSION_CODES;
+
+
+/** An OutputStream which compresses into a single DEFLATE or ZLIB stream, using several threads.
+ *
+ * This works like pigz: the data is split into blocks of BLOCK_SIZE, which are
+ * compressed independently on a thread pool. Each block is primed with the last
+ * 32k of the previous block as dictionary, so the compression ratio is close to
+ * that of a single Deflater. All but the last block end with a sync flush, which
+ * aligns them to a byte boundary without ending the stream, so the compressed
+ * blocks can simply be written one after another.
+ *
+ * All streams share one thread pool with a thread per processor, whose threads
+ * time out when idle. Each stream keeps at most two blocks per thread pending,
+ * and cancels them in abort if it is not finished regularly.
+ *
+ * Compressing with a sync flush requires Deflater.SYNC_FLUSH, which is only
+ * available on Android 4.4 and up.
+ *
+ */
+class ParallelDeflaterOutputStream extends OutputStream {
+
+    static final int BLOCK_SIZE = 1 << 17;
+    private static final int DICTIONARY_SIZE = 1 << 15;
+
+    static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+    private static ThreadPoolExecutor sExecutor;
+
+    private final OutputStream mOut;
+    private final int mLevel;
+    private final Adler32 mAdler;
+
+    private final int mMaxPendingBlocks;
+    private final ArrayDeque<Future<byte[]>> mPendingBlocks = new ArrayDeque<>();
+
+    private byte[] mBlock = new byte[BLOCK_SIZE];
+    private int mBlockLength = 0;
+    private byte[] mPreviousBlock = null;
+    private boolean mFinished = false;
+
+    /**
+     * @param zlib true to write a ZLIB stream, false for a raw DEFLATE stream as used by ZIP
+     * @param level compression level, as in Deflater
+     */
+    ParallelDeflaterOutputStream(OutputStream out, boolean zlib, int level) throws IOException {
+        mOut = out;
+        mLevel = level;
+        mMaxPendingBlocks = 2 * NUM_THREADS;
+
+        if (zlib) {
+            // CMF: deflate with 32k window, FLG: default level, no dictionary, valid check bits
+            mOut.write(0x78);
+            mOut.write(0x9c);
+            mAdler = new Adler32();
+        } else {
+            mAdler = null;
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(NUM_THREADS, NUM_THREADS, 30L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mFinished) {
+            throw new IOException("write after finish");
+        }
+        if (mAdler != null) {
+            mAdler.update(b, off, len);
+        }
+
+        while (len > 0) {
+            int count = Math.min(len, BLOCK_SIZE - mBlockLength);
+            System.arraycopy(b, off, mBlock, mBlockLength, count);
+            mBlockLength += count;
+            off += count;
+            len -= count;
+
+            if (mBlockLength == BLOCK_SIZE) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /** Writes the remaining data and the end of the stream, without closing the underlying stream. */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+
+        // there is always a last block, even if empty, since it marks the end of the stream
+        submitBlock(true);
+        writeCompletedBlocks(0);
+
+        if (mAdler != null) {
+            long checksum = mAdler.getValue();
+            mOut.write((int) (checksum >>> 24));
+            mOut.write((int) (checksum >>> 16));
+            mOut.write((int) (checksum >>> 8));
+            mOut.write((int) checksum);
+        }
+    }
+
+    /** Cancels compression of all blocks which were not written yet, and writes nothing more. */
+    public void abort() {
+        mFinished = true;
+        for (Future<byte[]> pendingBlock : mPendingBlocks) {
+            pendingBlock.cancel(true);
+        }
+        mPendingBlocks.clear();
+        mBlock = null;
+        mPreviousBlock = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // blocks are only written once complete, so there is nothing to flush but the underlying stream
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        mOut.close();
+    }
+
+    private void submitBlock(final boolean last) throws IOException {
+        final byte[] block = mBlock;
+        final int length = mBlockLength;
+        final byte[] dictionary = mPreviousBlock;
+        final int level = mLevel;
+
+        mPendingBlocks.add(getExecutor().submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return compressBlock(block, length, dictionary, level, last);
+            }
+        }));
+
+        // blocks are never reused, so the previous one is safe to use as dictionary
+        mPreviousBlock = block;
+        mBlock = last ? null : new byte[BLOCK_SIZE];
+        mBlockLength = 0;
+
+        writeCompletedBlocks(mMaxPendingBlocks);
+    }
+
+    /** Writes compressed blocks in order, waiting until at most maxPending are left. */
+    private void writeCompletedBlocks(int maxPending) throws IOException {
+        while (!mPendingBlocks.isEmpty()
+                && (mPendingBlocks.size() > maxPending || mPendingBlocks.peek().isDone())) {
+            try {
+                mOut.write(mPendingBlocks.poll().get());
+            } catch (InterruptedException e) {
+                abort();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted during compression");
+            } catch (ExecutionException e) {
+                abort();
+                throw new IOException("error during compression", e.getCause());
+            }
+        }
+    }
+
+    // only used if ParallelCompressedDataGenerator.isSupported
+    @TargetApi(VERSION_CODES.KITKAT)
+    private static byte[] compressBlock(byte[] block, int length, byte[] dictionary, int level,
+            boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            deflater.setInput(block, 0, length);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[1 << 14];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(buffer);
+                    out.write(buffer, 0, count);
+                }
+            } else {
+                // a full output buffer means there may be more output, see Deflater.deflate
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+}
@@ -25,6 +25,8 @@ import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import org.sufficientlysecure.keychain.util.SharedMemoryCache;
+
 public class PgpDecryptVerifyInputParcel implements Parcelable {
 
     private Uri mInputUri;
@@ -53,7 +55,7 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
         // we do all of those here, so the PgpSignEncryptInput class doesn't have to be parcelable
         mInputUri = source.readParcelable(getClass().getClassLoader());
         mOutputUri = source.readParcelable(getClass().getClassLoader());
-        mInputBytes = source.createByteArray();
+        mInputBytes = SharedMemoryCache.readBytesFromParcel(source);
 
         mAllowSymmetricDecryption = source.readInt() != 0;
         mAllowedKeyIds  = (HashSet<Long>) source.readSerializable();
@@ -71,7 +73,7 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeParcelable(mInputUri, 0);
         dest.writeParcelable(mOutputUri, 0);
-        dest.writeByteArray(mInputBytes);
+        SharedMemoryCache.writeBytesToParcel(mInputBytes, dest);
 
         dest.writeInt(mAllowSymmetricDecryption ? 1 : 0);
         dest.writeSerializable(mAllowedKeyIds);
@@ -26,11 +26,17 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.security.SignatureException;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.webkit.MimeTypeMap;
@@ -60,15 +66,14 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Constants.key;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.BaseOperation;
+import org.sufficientlysecure.keychain.util.BufferPool;
+import org.sufficientlysecure.keychain.util.PresizedByteArrayOutputStream;
 import org.sufficientlysecure.keychain.util.CharsetVerifier;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
-import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
-import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
@@ -77,6 +82,7 @@ import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInputParcel> {
@@ -85,11 +91,23 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         super(context, providerHelper, progressable);
     }
 
+    /** Unlocked secret keys by subkey id, shared between the operations of a batch. */
+    private ConcurrentHashMap<Long, CanonicalizedSecretKey> mUnlockedKeys;
+
+    /**
+     * Shares unlocked keys with other operations. Keys unlocked by this operation are put into
+     * the map, and keys found in it are used without another passphrase lookup and unlock.
+     */
+    public void setUnlockedKeys(ConcurrentHashMap<Long, CanonicalizedSecretKey> unlockedKeys) {
+        mUnlockedKeys = unlockedKeys;
+    }
+
     /** Decrypts and/or verifies data based on parameters of PgpDecryptVerifyInputParcel. */
     @NonNull
     public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput) {
         InputData inputData;
         OutputStream outputStream;
+        FileChannel inputChannel = null;
 
         long startTime = System.currentTimeMillis();
 
@@ -98,19 +116,29 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             inputData = new InputData(new ByteArrayInputStream(inputBytes), inputBytes.length);
         } else {
             try {
-                InputStream inputStream = mContext.getContentResolver().openInputStream(input.getInputUri());
-                long inputSize = FileHelper.getFileSize(mContext, input.getInputUri(), 0);
-                inputData = new InputData(inputStream, inputSize);
-            } catch (FileNotFoundException e) {
+                if (input.getDetachedSignature() != null) {
+                    // signed data from a local file is read directly from its channel
+                    inputChannel = openFileChannel(input.getInputUri());
+                }
+                if (inputChannel != null) {
+                    inputData = new InputData(Channels.newInputStream(inputChannel), inputChannel.size());
+                } else {
+                    InputStream inputStream = mContext.getContentResolver().openInputStream(input.getInputUri());
+                    long inputSize = FileHelper.getFileSize(mContext, input.getInputUri(), 0);
+                    inputData = new InputData(inputStream, inputSize);
+                }
+            } catch (IOException e) {
                 Log.e(Constants.TAG, "Input URI could not be opened: " + input.getInputUri(), e);
                 OperationLog log = new OperationLog();
                 log.add(LogType.MSG_DC_ERROR_INPUT, 1);
+                closeQuietly(inputChannel);
                 return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
             }
         }
 
         if (input.getOutputUri() == null) {
-            outputStream = new ByteArrayOutputStream();
+            // plaintext is usually no larger than the ciphertext, except for compressed data
+            outputStream = new PresizedByteArrayOutputStream(inputData.getSize());
         } else {
             try {
                 outputStream = mContext.getContentResolver().openOutputStream(input.getOutputUri());
@@ -118,14 +146,20 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                 Log.e(Constants.TAG, "Output URI could not be opened: " + input.getOutputUri(), e);
                 OperationLog log = new OperationLog();
                 log.add(LogType.MSG_DC_ERROR_IO, 1);
+                closeQuietly(inputChannel);
                 return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
             }
         }
 
-        DecryptVerifyResult result = executeInternal(input, cryptoInput, inputData, outputStream);
-        if (outputStream instanceof ByteArrayOutputStream) {
-            byte[] outputData = ((ByteArrayOutputStream) outputStream).toByteArray();
-            result.setOutputBytes(outputData);
+        DecryptVerifyResult result;
+        try {
+            result = executeInternal(input, cryptoInput, inputData, outputStream, inputChannel);
+        } finally {
+            closeQuietly(inputChannel);
+        }
+        if (outputStream instanceof PresizedByteArrayOutputStream) {
+            PresizedByteArrayOutputStream byteOut = (PresizedByteArrayOutputStream) outputStream;
+            result.setOutputBytes(byteOut.getBuffer(), byteOut.size());
         }
 
         result.mOperationTime = System.currentTimeMillis() - startTime;
@@ -137,17 +171,59 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
     @NonNull
     public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
             InputData inputData, OutputStream outputStream) {
-        return executeInternal(input, cryptoInput, inputData, outputStream);
+        return executeInternal(input, cryptoInput, inputData, outputStream, null);
+    }
+
+    /** Opens the uri as a FileChannel, if it refers to a regular file.
+     *
+     * Returns null for anything else, like pipes or sockets from other apps, in which
+     * case the input must be read as a stream.
+     */
+    private FileChannel openFileChannel(Uri uri) {
+        ParcelFileDescriptor fd;
+        try {
+            fd = mContext.getContentResolver().openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException | SecurityException e) {
+            Log.d(Constants.TAG, "no file descriptor for " + uri + ", reading as stream");
+            return null;
+        }
+        if (fd == null) {
+            return null;
+        }
+
+        // the stat size is -1 if this is not a regular file
+        if (fd.getStatSize() <= 0) {
+            try {
+                fd.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            return null;
+        }
+
+        // closing the channel closes the stream, which closes the file descriptor
+        return new ParcelFileDescriptor.AutoCloseInputStream(fd).getChannel();
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "error closing input file", e);
+        }
     }
 
     @NonNull
     private DecryptVerifyResult executeInternal(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
-            InputData inputData, OutputStream outputStream) {
+            InputData inputData, OutputStream outputStream, FileChannel inputChannel) {
         try {
             if (input.getDetachedSignature() != null) {
                 Log.d(Constants.TAG, "Detached signature present, verifying with this signature only");
 
-                return verifyDetachedSignature(input, inputData, outputStream, 0);
+                return verifyDetachedSignature(input, inputData, inputChannel, outputStream, 0);
             } else {
                 // automatically works with PGP ascii armor and PGP binary
                 InputStream in = PGPUtil.getDecoderStream(inputData.getInputStream());
@@ -436,36 +512,40 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         long alreadyWritten = 0;
         long wholeSize = 0; // TODO inputData.getSize() - inputData.getStreamPosition();
         int length;
-        byte[] buffer = new byte[8192];
+        byte[] buffer = BufferPool.getInstance().acquire();
         byte[] firstBytes = new byte[48];
         CharsetVerifier charsetVerifier = new CharsetVerifier(buffer, mimeType, charset);
 
-        while ((length = dataIn.read(buffer)) > 0) {
-            // Log.d(Constants.TAG, "read bytes: " + length);
-            if (out != null) {
-                out.write(buffer, 0, length);
-            }
+        try {
+            while ((length = dataIn.read(buffer)) > 0) {
+                // Log.d(Constants.TAG, "read bytes: " + length);
+                if (out != null) {
+                    out.write(buffer, 0, length);
+                }
 
-            // update signature buffer if signature is also present
-            signatureChecker.updateSignatureData(buffer, 0, length);
+                // update signature buffer if signature is also present
+                signatureChecker.updateSignatureData(buffer, 0, length);
 
-            charsetVerifier.readBytesFromBuffer(0, length);
+                charsetVerifier.readBytesFromBuffer(0, length);
 
-            // note down first couple of bytes for "magic bytes" file type detection
-            if (alreadyWritten == 0) {
-                System.arraycopy(buffer, 0, firstBytes, 0, length > firstBytes.length ? firstBytes.length : length);
-            }
+                // note down first couple of bytes for "magic bytes" file type detection
+                if (alreadyWritten == 0) {
+                    System.arraycopy(buffer, 0, firstBytes, 0, length > firstBytes.length ? firstBytes.length : length);
+                }
 
-            alreadyWritten += length;
-            // noinspection ConstantConditions, TODO progress
-            if (wholeSize > 0) {
-                long progress = 100 * alreadyWritten / wholeSize;
-                // stop at 100% for wrong file sizes...
-                if (progress > 100) {
-                    progress = 100;
+                alreadyWritten += length;
+                // noinspection ConstantConditions, TODO progress
+                if (wholeSize > 0) {
+                    long progress = 100 * alreadyWritten / wholeSize;
+                    // stop at 100% for wrong file sizes...
+                    if (progress > 100) {
+                        progress = 100;
+                    }
+                    progressScaler.setProgress((int) progress, 100);
                 }
-                progressScaler.setProgress((int) progress, 100);
             }
+        } finally {
+            BufferPool.getInstance().release(buffer);
         }
 
         if (signatureChecker.isInitialized()) {
@@ -552,6 +632,11 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         Passphrase passphrase = null;
 
+        SessionKeyCache sessionKeyCache = Preferences.getPreferences(mContext).getSessionKeyCache()
+                ? SessionKeyCache.getInstance(mContext) : null;
+        boolean sessionKeyFromCache = false;
+        boolean keyAlreadyUnlocked = false;
+
         Iterator<?> it = enc.getEncryptedDataObjects();
 
         // go through all objects and find one we can decrypt
@@ -569,13 +654,17 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                 log.add(LogType.MSG_DC_ASYM, indent,
                         KeyFormattingUtils.convertKeyIdToHex(subKeyId));
 
-                CachedPublicKeyRing cachedPublicKeyRing;
+                // most recipients are usually not us, so look this up in the in-memory index
+                // of our secret subkeys before going to the database for anything
+                ProviderHelper.SecretSubkey secretSubkey = mProviderHelper.getSecretSubkey(subKeyId);
+                if (secretSubkey == null) {
+                    // continue with the next packet in the while loop
+                    log.add(LogType.MSG_DC_ASKIP_NO_KEY, indent + 1);
+                    continue;
+                }
+
                 try {
-                    // get actual keyring object based on master key id
-                    cachedPublicKeyRing = mProviderHelper.getCachedPublicKeyRing(
-                            KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId)
-                    );
-                    long masterKeyId = cachedPublicKeyRing.getMasterKeyId();
+                    long masterKeyId = secretSubkey.mMasterKeyId;
 
                     // allow only specific keys for decryption?
                     if (input.getAllowedKeyIds() != null) {
@@ -592,23 +681,58 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                         }
                     }
 
-                    SecretKeyType secretKeyType = cachedPublicKeyRing.getSecretKeyType(subKeyId);
+                    SecretKeyType secretKeyType = secretSubkey.mSecretKeyType;
                     if (!secretKeyType.isUsable()) {
                         decryptionKey = null;
                         log.add(LogType.MSG_DC_ASKIP_UNAVAILABLE, indent + 1);
                         continue;
                     }
 
-                    // get actual subkey which has been used for this encryption packet
-                    CanonicalizedSecretKeyRing canonicalizedSecretKeyRing = mProviderHelper
-                            .getCanonicalizedSecretKeyRing(masterKeyId);
-                    CanonicalizedSecretKey candidateDecryptionKey = canonicalizedSecretKeyRing.getSecretKey(subKeyId);
+                    // get actual subkey which has been used for this encryption packet,
+                    // possibly already unlocked by another operation of the same batch
+                    CanonicalizedSecretKey candidateDecryptionKey =
+                            mUnlockedKeys != null ? mUnlockedKeys.get(subKeyId) : null;
+                    boolean candidateUnlocked = candidateDecryptionKey != null;
+                    if (!candidateUnlocked) {
+                        CanonicalizedSecretKeyRing canonicalizedSecretKeyRing = mProviderHelper
+                                .getCanonicalizedSecretKeyRing(masterKeyId);
+                        candidateDecryptionKey = canonicalizedSecretKeyRing.getSecretKey(subKeyId);
+                    }
 
                     if (!candidateDecryptionKey.canEncrypt()) {
                         log.add(LogType.MSG_DC_ASKIP_BAD_FLAGS, indent + 1);
                         continue;
                     }
 
+                    // check for insecure encryption key
+                    if ( ! PgpSecurityConstants.isSecureKey(candidateDecryptionKey)) {
+                        log.add(LogType.MSG_DC_INSECURE_KEY, indent + 1);
+                        result.insecureEncryptionKey = true;
+                    }
+
+                    // if we have seen this message before, we don't need the secret key at all
+                    if (sessionKeyCache != null) {
+                        byte[] sessionData = sessionKeyCache.get(encData);
+                        if (sessionData != null) {
+                            log.add(LogType.MSG_DC_SESSION_KEY_CACHED, indent + 1);
+                            cryptoInput.addCryptoData(encData.getSessionKey()[0], sessionData);
+                            sessionKeyFromCache = true;
+                            asymmetricPacketFound = true;
+                            encryptedDataAsymmetric = encData;
+                            decryptionKey = candidateDecryptionKey;
+                            break;
+                        }
+                    }
+
+                    if (candidateUnlocked) {
+                        log.add(LogType.MSG_DC_KEY_UNLOCKED_BATCH, indent + 1);
+                        keyAlreadyUnlocked = true;
+                        asymmetricPacketFound = true;
+                        encryptedDataAsymmetric = encData;
+                        decryptionKey = candidateDecryptionKey;
+                        break;
+                    }
+
                     if (secretKeyType == SecretKeyType.DIVERT_TO_CARD) {
                         passphrase = null;
                     } else if (secretKeyType == SecretKeyType.PASSPHRASE_EMPTY) {
@@ -619,7 +743,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                         // if no passphrase was explicitly set try to get it from the cache service
                         try {
                             // returns "" if key has no passphrase
-                            passphrase = getCachedPassphrase(subKeyId);
+                            passphrase = getCachedPassphrase(masterKeyId, subKeyId);
                             log.add(LogType.MSG_DC_PASS_CACHED, indent + 1);
                         } catch (PassphraseCacheInterface.NoSecretKeyException e) {
                             log.add(LogType.MSG_DC_ERROR_NO_KEY, indent + 1);
@@ -635,18 +759,12 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                         }
                     }
 
-                    // check for insecure encryption key
-                    if ( ! PgpSecurityConstants.isSecureKey(candidateDecryptionKey)) {
-                        log.add(LogType.MSG_DC_INSECURE_KEY, indent + 1);
-                        result.insecureEncryptionKey = true;
-                    }
-
                     // we're good, write down the data for later
                     asymmetricPacketFound = true;
                     encryptedDataAsymmetric = encData;
                     decryptionKey = candidateDecryptionKey;
 
-                } catch (PgpKeyNotFoundException | ProviderHelper.NotFoundException e) {
+                } catch (ProviderHelper.NotFoundException e) {
                     // continue with the next packet in the while loop
                     log.add(LogType.MSG_DC_ASKIP_NO_KEY, indent + 1);
                     continue;
@@ -746,22 +864,37 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             currentProgress += 2;
             updateProgress(R.string.progress_extracting_key, currentProgress, 100);
 
-            try {
-                log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
-                if (!decryptionKey.unlock(passphrase)) {
-                    log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
-                    return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
+            CachingDataDecryptorFactory decryptorFactory;
+            if (sessionKeyFromCache) {
+                // the session key is in cryptoInput already, no need to unlock anything
+                currentProgress += 2;
+                updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
+
+                decryptorFactory = new CachingDataDecryptorFactory(
+                        Constants.BOUNCY_CASTLE_PROVIDER_NAME, cryptoInput.getCryptoData());
+            } else {
+                if (!keyAlreadyUnlocked) {
+                    try {
+                        log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
+                        if (!decryptionKey.unlock(passphrase)) {
+                            log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
+                            return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
+                        }
+                    } catch (PgpGeneralException e) {
+                        log.add(LogType.MSG_DC_ERROR_EXTRACT_KEY, indent + 1);
+                        return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
+                    }
+                    // keys diverted to a security token (no passphrase) need the token for every use
+                    if (mUnlockedKeys != null && passphrase != null) {
+                        mUnlockedKeys.putIfAbsent(decryptionKey.getKeyId(), decryptionKey);
+                    }
                 }
-            } catch (PgpGeneralException e) {
-                log.add(LogType.MSG_DC_ERROR_EXTRACT_KEY, indent + 1);
-                return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
-            }
 
-            currentProgress += 2;
-            updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
+                currentProgress += 2;
+                updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
 
-            CachingDataDecryptorFactory decryptorFactory
-                    = decryptionKey.getCachingDecryptorFactory(cryptoInput);
+                decryptorFactory = decryptionKey.getCachingDecryptorFactory(cryptoInput);
+            }
 
             // special case: if the decryptor does not have a session key cached for this encrypted
             // data, and can't actually decrypt on its own, return a pending intent
@@ -788,6 +921,14 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
             cryptoInput.addCryptoData(decryptorFactory.getCachedSessionKeys());
 
+            if (sessionKeyCache != null && !sessionKeyFromCache) {
+                byte[] sessionData = decryptorFactory.getCachedSessionKeys().get(
+                        ByteBuffer.wrap(encryptedDataAsymmetric.getSessionKey()[0]));
+                if (sessionData != null) {
+                    sessionKeyCache.put(encryptedDataAsymmetric, sessionData);
+                }
+            }
+
         } else {
             // there wasn't even any useful data
             if (!anyPacketFound) {
@@ -821,30 +962,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         OperationLog log = new OperationLog();
 
-        byte[] clearText;
-        { // read cleartext
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-            updateProgress(R.string.progress_reading_data, 0, 100);
-
-            ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-            int lookAhead = readInputLine(lineOut, aIn);
-            byte[] lineSep = getLineSeparator();
-
-            byte[] line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
-
-            while (lookAhead != -1 && aIn.isClearText()) {
-                lookAhead = readInputLine(lineOut, lookAhead, aIn);
-                line = lineOut.toByteArray();
-                out.write(line, 0, getLengthWithoutSeparator(line));
-                out.write(lineSep);
-            }
-
-            out.close();
-            clearText = out.toByteArray();
-        }
+        updateProgress(R.string.progress_reading_data, 0, 100);
+        byte[] clearText = readCleartext(aIn);
 
         if (outputStream != null) {
             outputStream.write(clearText);
@@ -891,7 +1010,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
     @NonNull
     private DecryptVerifyResult verifyDetachedSignature(
-            PgpDecryptVerifyInputParcel input, InputData inputData, OutputStream out, int indent)
+            PgpDecryptVerifyInputParcel input, InputData inputData, FileChannel inputChannel,
+            OutputStream out, int indent)
             throws IOException, PGPException {
 
         OperationLog log = new OperationLog();
@@ -921,27 +1041,36 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             updateProgress(R.string.progress_reading_data, 60, 100);
 
             ProgressScaler progressScaler = new ProgressScaler(mProgressable, 60, 90, 100);
-            long alreadyWritten = 0;
-            long wholeSize = inputData.getSize() - inputData.getStreamPosition();
-            int length;
-            byte[] buffer = new byte[1 << 16];
-            InputStream in = inputData.getInputStream();
-            while ((length = in.read(buffer)) > 0) {
-                if (out != null) {
-                    out.write(buffer, 0, length);
-                }
+            if (inputChannel != null) {
+                log.add(LogType.MSG_DC_DETACHED_FILE, indent);
+                updateSignatureFromFile(inputChannel, signatureChecker, out, progressScaler);
+            } else {
+                long alreadyWritten = 0;
+                long wholeSize = inputData.getSize() - inputData.getStreamPosition();
+                int length;
+                byte[] buffer = BufferPool.getInstance().acquire();
+                InputStream in = inputData.getInputStream();
+                try {
+                    while ((length = in.read(buffer)) > 0) {
+                        if (out != null) {
+                            out.write(buffer, 0, length);
+                        }
 
-                // update signature buffer if signature is also present
-                signatureChecker.updateSignatureData(buffer, 0, length);
+                        // update signature buffer if signature is also present
+                        signatureChecker.updateSignatureData(buffer, 0, length);
 
-                alreadyWritten += length;
-                if (wholeSize > 0) {
-                    long progress = 100 * alreadyWritten / wholeSize;
-                    // stop at 100% for wrong file sizes...
-                    if (progress > 100) {
-                        progress = 100;
+                        alreadyWritten += length;
+                        if (wholeSize > 0) {
+                            long progress = 100 * alreadyWritten / wholeSize;
+                            // stop at 100% for wrong file sizes...
+                            if (progress > 100) {
+                                progress = 100;
+                            }
+                            progressScaler.setProgress((int) progress, 100);
+                        }
                     }
-                    progressScaler.setProgress((int) progress, 100);
+                } finally {
+                    BufferPool.getInstance().release(buffer);
                 }
             }
 
@@ -965,69 +1094,89 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return result;
     }
 
-    private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
+    /** Feeds the whole file to the signature checker, and to out if it is not null.
+     *
+     * The file is read from its channel straight into a pooled buffer, which the signature
+     * checker can hash without another copy. The size of the file is known upfront for the
+     * progress. If the file is truncated while it is read, the data just ends early and the
+     * signature does not verify.
+     */
+    private static void updateSignatureFromFile(FileChannel channel,
+            PgpSignatureChecker signatureChecker, OutputStream out, ProgressScaler progressScaler)
             throws IOException {
-        bOut.reset();
+        long size = channel.size();
+        long alreadyRead = 0;
 
-        int lookAhead = -1;
-        int ch;
+        byte[] buffer = BufferPool.getInstance().acquire();
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            int length;
+            while ((length = channel.read(byteBuffer)) > 0) {
+                if (out != null) {
+                    out.write(buffer, 0, length);
+                }
+                signatureChecker.updateSignatureData(buffer, 0, length);
+                byteBuffer.clear();
 
-        while ((ch = fIn.read()) >= 0) {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
+                alreadyRead += length;
+                // stop at 100% if the file grew meanwhile
+                progressScaler.setProgress((int) Math.min(100, 100 * alreadyRead / size), 100);
             }
+        } finally {
+            BufferPool.getInstance().release(buffer);
         }
-
-        return lookAhead;
     }
 
-    private static int readInputLine(ByteArrayOutputStream bOut, int lookAhead, InputStream fIn)
-            throws IOException {
-        bOut.reset();
+    /** Reads the cleartext part of a cleartext signed message from the ArmoredInputStream.
+     *
+     * The ArmoredInputStream takes care of dash-escaping, but can only be read one byte at
+     * a time, since it must not read beyond the cleartext. Each line is copied directly into
+     * a block buffer, with its line ending replaced by the system line separator.
+     */
+    private static byte[] readCleartext(ArmoredInputStream aIn) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        byte[] lineSep = getLineSeparator();
+        byte[] block = new byte[1 << 16];
+        int blockLength = 0;
+
+        int ch = aIn.read();
+        while (true) {
+            while (ch >= 0 && ch != '\r' && ch != '\n') {
+                if (blockLength == block.length) {
+                    out.write(block, 0, blockLength);
+                    blockLength = 0;
+                }
+                block[blockLength++] = (byte) ch;
+                ch = aIn.read();
+            }
 
-        int ch = lookAhead;
+            if (blockLength + lineSep.length > block.length) {
+                out.write(block, 0, blockLength);
+                blockLength = 0;
+            }
+            System.arraycopy(lineSep, 0, block, blockLength, lineSep.length);
+            blockLength += lineSep.length;
 
-        do {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
+            if (ch < 0) {
                 break;
             }
-        } while ((ch = fIn.read()) >= 0);
 
-        if (ch < 0) {
-            lookAhead = -1;
-        }
-
-        return lookAhead;
-    }
-
-    private static int readPastEOL(ByteArrayOutputStream bOut, int lastCh, InputStream fIn)
-            throws IOException {
-        int lookAhead = fIn.read();
-
-        if (lastCh == '\r' && lookAhead == '\n') {
-            bOut.write(lookAhead);
-            lookAhead = fIn.read();
-        }
-
-        return lookAhead;
-    }
-
-    private static int getLengthWithoutSeparator(byte[] line) {
-        int end = line.length - 1;
+            // skip past the line ending, which is one of CR, LF or CRLF
+            int lastCh = ch;
+            ch = aIn.read();
+            if (lastCh == '\r' && ch == '\n') {
+                ch = aIn.read();
+            }
 
-        while (end >= 0 && isLineEnding(line[end])) {
-            end--;
+            // the stream leaves cleartext mode when it reads the signature header
+            if (ch < 0 || !aIn.isClearText()) {
+                break;
+            }
         }
 
-        return end + 1;
-    }
-
-    private static boolean isLineEnding(byte b) {
-        return b == '\r' || b == '\n';
+        out.write(block, 0, blockLength);
+        return out.toByteArray();
     }
 
     private static byte[] getLineSeparator() {
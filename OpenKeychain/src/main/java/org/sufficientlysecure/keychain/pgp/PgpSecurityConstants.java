@@ -229,6 +229,8 @@ public class PgpSecurityConstants {
 
     public interface OpenKeychainCompressionAlgorithmTags extends CompressionAlgorithmTags {
         int USE_DEFAULT = -1;
+        /** Decide for each input whether to use the default algorithm or no compression. */
+        int USE_AUTO = -2;
     }
 
     /**
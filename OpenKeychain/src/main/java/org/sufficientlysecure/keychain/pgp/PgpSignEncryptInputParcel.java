@@ -42,9 +42,11 @@ public class PgpSignEncryptInputParcel implements Parcelable {
     protected String mCharset;
     protected boolean mCleartextSignature;
     protected boolean mDetachedSignature = false;
+    protected boolean mDetachedSignatureToOutput = false;
     protected boolean mHiddenRecipients = false;
     protected boolean mIntegrityProtected = true;
     protected boolean mAddBackupHeader = false;
+    protected boolean mEnablePipelining = false;
 
     public PgpSignEncryptInputParcel() {
 
@@ -69,9 +71,11 @@ public class PgpSignEncryptInputParcel implements Parcelable {
         mCharset = source.readString();
         mCleartextSignature = source.readInt() == 1;
         mDetachedSignature = source.readInt() == 1;
+        mDetachedSignatureToOutput = source.readInt() == 1;
         mHiddenRecipients = source.readInt() == 1;
         mIntegrityProtected = source.readInt() == 1;
         mAddBackupHeader = source.readInt() == 1;
+        mEnablePipelining = source.readInt() == 1;
     }
 
     @Override
@@ -100,9 +104,11 @@ public class PgpSignEncryptInputParcel implements Parcelable {
         dest.writeString(mCharset);
         dest.writeInt(mCleartextSignature ? 1 : 0);
         dest.writeInt(mDetachedSignature ? 1 : 0);
+        dest.writeInt(mDetachedSignatureToOutput ? 1 : 0);
         dest.writeInt(mHiddenRecipients ? 1 : 0);
         dest.writeInt(mIntegrityProtected ? 1 : 0);
         dest.writeInt(mAddBackupHeader ? 1 : 0);
+        dest.writeInt(mEnablePipelining ? 1 : 0);
     }
 
     public String getCharset() {
@@ -230,6 +236,16 @@ public class PgpSignEncryptInputParcel implements Parcelable {
         return mDetachedSignature;
     }
 
+    /** Write a detached signature to the output stream, instead of returning it in the result. */
+    public PgpSignEncryptInputParcel setDetachedSignatureToOutput(boolean detachedSignatureToOutput) {
+        mDetachedSignatureToOutput = detachedSignatureToOutput;
+        return this;
+    }
+
+    public boolean isDetachedSignatureToOutput() {
+        return mDetachedSignatureToOutput;
+    }
+
     public PgpSignEncryptInputParcel setHiddenRecipients(boolean hiddenRecipients) {
         this.mHiddenRecipients = hiddenRecipients;
         return this;
@@ -260,6 +276,19 @@ public class PgpSignEncryptInputParcel implements Parcelable {
         return mHiddenRecipients;
     }
 
+    /**
+     * Hash and compress/encrypt on separate threads when signing and encrypting. This
+     * produces the same output, but only pays off for large inputs on multi-core devices.
+     */
+    public PgpSignEncryptInputParcel setEnablePipelining(boolean enablePipelining) {
+        mEnablePipelining = enablePipelining;
+        return this;
+    }
+
+    public boolean isEnablePipelining() {
+        return mEnablePipelining;
+    }
+
     public static final Creator<PgpSignEncryptInputParcel> CREATOR = new Creator<PgpSignEncryptInputParcel>() {
         public PgpSignEncryptInputParcel createFromParcel(final Parcel source) {
             return new PgpSignEncryptInputParcel(source);
@@ -269,6 +298,4 @@ public class PgpSignEncryptInputParcel implements Parcelable {
             return new PgpSignEncryptInputParcel[size];
         }
     };
-
 }
-
@@ -49,25 +49,26 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
 /**
  * This class supports a single, low-level, sign/encrypt operation.
@@ -87,6 +88,17 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
     private static byte[] NEW_LINE;
 
+    /** Room for signatures, key packets and packet headers in estimateOutputSize. */
+    private static final int OUTPUT_OVERHEAD = 2048;
+    private static final int OUTPUT_KEY_PACKET_SIZE = 600;
+
+    /** Amount of data sampled to decide on compression, for USE_AUTO. */
+    static final int AUTO_COMPRESSION_SAMPLE_SIZE = 256 * 1024;
+    /** Samples with more bits of entropy per byte than this are considered incompressible. */
+    private static final double AUTO_COMPRESSION_MAX_ENTROPY = 7.9;
+    /** Samples which compress to more than this fraction of their size are considered incompressible. */
+    private static final double AUTO_COMPRESSION_MAX_RATIO = 0.9;
+
     static {
         try {
             NEW_LINE = "\r\n".getBytes("UTF-8");
@@ -95,6 +107,9 @@ public class PgpSignEncryptOperation extends BaseOperation {
         }
     }
 
+    // a signing key which was unlocked with a passphrase, to be shared with other operations
+    private CanonicalizedSecretKey mUnlockedSigningKey;
+
     public PgpSignEncryptOperation(Context context, ProviderHelper providerHelper, Progressable progressable, AtomicBoolean cancelled) {
         super(context, providerHelper, progressable, cancelled);
     }
@@ -103,6 +118,16 @@ public class PgpSignEncryptOperation extends BaseOperation {
         super(context, providerHelper, progressable);
     }
 
+    /** Signs with this key if it is the requested signing key, instead of unlocking it again. */
+    public void setUnlockedSigningKey(CanonicalizedSecretKey unlockedSigningKey) {
+        mUnlockedSigningKey = unlockedSigningKey;
+    }
+
+    /** Returns the signing key if it was unlocked with a passphrase during execute, or null. */
+    public CanonicalizedSecretKey getUnlockedSigningKey() {
+        return mUnlockedSigningKey;
+    }
+
     @NonNull
     @Override
     // TODO this is horrible, refactor ASAP!!
@@ -115,6 +140,18 @@ public class PgpSignEncryptOperation extends BaseOperation {
      */
     public PgpSignEncryptResult execute(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput,
                                      InputData inputData, OutputStream outputStream) {
+        BufferPool.Lease buffers = BufferPool.getInstance().newLease();
+        try {
+            return executeInternal(input, cryptoInput, inputData, outputStream, buffers);
+        } finally {
+            // all streams using these buffers are closed or abandoned at this point
+            buffers.releaseAll();
+            BufferPool.getInstance().logStatistics();
+        }
+    }
+
+    private PgpSignEncryptResult executeInternal(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput,
+            InputData inputData, OutputStream outputStream, BufferPool.Lease buffers) {
 
         int indent = 0;
         OperationLog log = new OperationLog();
@@ -125,7 +162,30 @@ public class PgpSignEncryptOperation extends BaseOperation {
         boolean enableSignature = input.getSignatureMasterKeyId() != Constants.key.none;
         boolean enableEncryption = ((input.getEncryptionMasterKeyIds() != null && input.getEncryptionMasterKeyIds().length > 0)
                 || input.getSymmetricPassphrase() != null);
-        boolean enableCompression = (input.getCompressionAlgorithm() != CompressionAlgorithmTags.UNCOMPRESSED);
+
+        // Use preferred compression algo
+        int compressionAlgorithm = input.getCompressionAlgorithm();
+        if (compressionAlgorithm == PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_DEFAULT) {
+            compressionAlgorithm = PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
+        } else if (compressionAlgorithm == PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_AUTO) {
+            // decide based on a sample from the start of the data, which is then put back in front
+            byte[] sample = new byte[AUTO_COMPRESSION_SAMPLE_SIZE];
+            int sampleLength;
+            try {
+                InputStream in = inputData.getInputStream();
+                sampleLength = readSample(in, sample);
+                inputData = new InputData(
+                        new SequenceInputStream(new ByteArrayInputStream(sample, 0, sampleLength), in),
+                        inputData.getSize(), inputData.getOriginalFilename());
+            } catch (IOException e) {
+                log.add(LogType.MSG_PSE_ERROR_IO, indent);
+                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+            }
+            compressionAlgorithm = isSampleCompressible(sample, sampleLength, log, indent)
+                    ? PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM
+                    : CompressionAlgorithmTags.UNCOMPRESSED;
+        }
+        boolean enableCompression = (compressionAlgorithm != CompressionAlgorithmTags.UNCOMPRESSED);
 
         Log.d(Constants.TAG, "enableSignature:" + enableSignature
                 + "\nenableEncryption:" + enableEncryption
@@ -180,48 +240,54 @@ public class PgpSignEncryptOperation extends BaseOperation {
                     return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                 }
 
-                switch (mProviderHelper.getCachedPublicKeyRing(signingMasterKeyId).getSecretKeyType(signingSubKeyId)) {
-                    case DIVERT_TO_CARD:
-                    case PASSPHRASE_EMPTY: {
-                        if (!signingKey.unlock(new Passphrase())) {
-                            throw new AssertionError(
-                                    "PASSPHRASE_EMPTY/DIVERT_TO_CARD keyphrase not unlocked with empty passphrase."
-                                            + " This is a programming error!");
+                if (mUnlockedSigningKey != null && mUnlockedSigningKey.getKeyId() == signingSubKeyId) {
+                    // unlocked before, for another input signed with the same key
+                    signingKey = mUnlockedSigningKey;
+                } else {
+                    switch (mProviderHelper.getCachedPublicKeyRing(signingMasterKeyId).getSecretKeyType(signingSubKeyId)) {
+                        case DIVERT_TO_CARD:
+                        case PASSPHRASE_EMPTY: {
+                            if (!signingKey.unlock(new Passphrase())) {
+                                throw new AssertionError(
+                                        "PASSPHRASE_EMPTY/DIVERT_TO_CARD keyphrase not unlocked with empty passphrase."
+                                                + " This is a programming error!");
+                            }
+                            break;
                         }
-                        break;
-                    }
 
-                    case PIN:
-                    case PATTERN:
-                    case PASSPHRASE: {
-                        Passphrase localPassphrase = cryptoInput.getPassphrase();
-                        if (localPassphrase == null) {
-                            try {
-                                localPassphrase = getCachedPassphrase(signingMasterKeyId, signingKey.getKeyId());
-                            } catch (PassphraseCacheInterface.NoSecretKeyException ignored) {
+                        case PIN:
+                        case PATTERN:
+                        case PASSPHRASE: {
+                            Passphrase localPassphrase = cryptoInput.getPassphrase();
+                            if (localPassphrase == null) {
+                                try {
+                                    localPassphrase = getCachedPassphrase(signingMasterKeyId, signingKey.getKeyId());
+                                } catch (PassphraseCacheInterface.NoSecretKeyException ignored) {
+                                }
                             }
+                            if (localPassphrase == null) {
+                                log.add(LogType.MSG_PSE_PENDING_PASSPHRASE, indent + 1);
+                                return new PgpSignEncryptResult(log, RequiredInputParcel.createRequiredSignPassphrase(
+                                        signingMasterKeyId, signingKey.getKeyId(),
+                                        cryptoInput.getSignatureTime()), cryptoInput);
+                            }
+                            if (!signingKey.unlock(localPassphrase)) {
+                                log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
+                                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                            }
+                            mUnlockedSigningKey = signingKey;
+                            break;
                         }
-                        if (localPassphrase == null) {
-                            log.add(LogType.MSG_PSE_PENDING_PASSPHRASE, indent + 1);
-                            return new PgpSignEncryptResult(log, RequiredInputParcel.createRequiredSignPassphrase(
-                                    signingMasterKeyId, signingKey.getKeyId(),
-                                    cryptoInput.getSignatureTime()), cryptoInput);
-                        }
-                        if (!signingKey.unlock(localPassphrase)) {
-                            log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
+
+                        case GNU_DUMMY: {
+                            log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
                             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                         }
-                        break;
-                    }
+                        default: {
+                            throw new AssertionError("Unhandled SecretKeyType! (should not happen)");
+                        }
 
-                    case GNU_DUMMY: {
-                        log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
-                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
-                    }
-                    default: {
-                        throw new AssertionError("Unhandled SecretKeyType! (should not happen)");
                     }
-
                 }
 
             } catch (ProviderHelper.NotFoundException e) {
@@ -315,6 +381,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
         ProgressScaler progressScaler =
                 new ProgressScaler(mProgressable, 8, 95, 100);
         PGPCompressedDataGenerator compressGen = null;
+        ParallelCompressedDataGenerator parallelCompressGen = null;
         OutputStream pOut;
         OutputStream encryptionOut = null;
         BCPGOutputStream bcpgOut;
@@ -337,18 +404,20 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 );
                 indent += 1;
 
-                encryptionOut = cPk.open(out, new byte[1 << 16]);
+                encryptionOut = cPk.open(out, buffers.acquire());
 
                 if (enableCompression) {
                     log.add(LogType.MSG_PSE_COMPRESSING, indent);
 
-                    // Use preferred compression algo
-                    int algo = input.getCompressionAlgorithm();
-                    if (algo == PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_DEFAULT) {
-                        algo = PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
+                    int algo = compressionAlgorithm;
+                    if (ParallelCompressedDataGenerator.isSupported(algo)) {
+                        log.add(LogType.MSG_PSE_COMPRESSING_PARALLEL, indent + 1);
+                        parallelCompressGen = new ParallelCompressedDataGenerator(algo);
+                        bcpgOut = new BCPGOutputStream(parallelCompressGen.open(encryptionOut));
+                    } else {
+                        compressGen = new PGPCompressedDataGenerator(algo);
+                        bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
                     }
-                    compressGen = new PGPCompressedDataGenerator(algo);
-                    bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
                 } else {
                     bcpgOut = new BCPGOutputStream(encryptionOut);
                 }
@@ -365,24 +434,41 @@ public class PgpSignEncryptOperation extends BaseOperation {
                     literalDataFormatTag = PGPLiteralData.BINARY;
                 }
                 pOut = literalGen.open(bcpgOut, literalDataFormatTag,
-                        inputData.getOriginalFilename(), new Date(), new byte[1 << 16]);
-
-                long alreadyWritten = 0;
-                int length;
-                byte[] buffer = new byte[1 << 16];
-                InputStream in = new BufferedInputStream(inputData.getInputStream());
-                while ((length = in.read(buffer)) > 0) {
-                    pOut.write(buffer, 0, length);
-
-                    // update signature buffer if signature is requested
-                    if (enableSignature) {
-                        signatureGenerator.update(buffer, 0, length);
-                    }
+                        inputData.getOriginalFilename(), new Date(), buffers.acquire());
+
+                if (enableSignature && input.isEnablePipelining()) {
+                    // hashing and compression/encryption on separate threads
+                    log.add(LogType.MSG_PSE_PIPELINED, indent);
+
+                    final ProgressScaler pipelineProgress = progressScaler;
+                    final long size = inputData.getSize();
+                    new PipelinedSignEncryptCopy().copy(inputData.getInputStream(), pOut, signatureGenerator,
+                            new PipelinedSignEncryptCopy.CopyProgressListener() {
+                                @Override
+                                public void onBytesRead(long alreadyRead) {
+                                    if (size > 0) {
+                                        pipelineProgress.setProgress((int) (100 * alreadyRead / size), 100);
+                                    }
+                                }
+                            });
+                } else {
+                    long alreadyWritten = 0;
+                    int length;
+                    byte[] buffer = buffers.acquire();
+                    InputStream in = inputData.getInputStream();
+                    while ((length = in.read(buffer)) > 0) {
+                        pOut.write(buffer, 0, length);
+
+                        // update signature buffer if signature is requested
+                        if (enableSignature) {
+                            signatureGenerator.update(buffer, 0, length);
+                        }
 
-                    alreadyWritten += length;
-                    if (inputData.getSize() > 0) {
-                        long progress = 100 * alreadyWritten / inputData.getSize();
-                        progressScaler.setProgress((int) progress, 100);
+                        alreadyWritten += length;
+                        if (inputData.getSize() > 0) {
+                            long progress = 100 * alreadyWritten / inputData.getSize();
+                            progressScaler.setProgress((int) progress, 100);
+                        }
                     }
                 }
 
@@ -398,28 +484,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 // write -----BEGIN PGP SIGNED MESSAGE-----
                 armorOut.beginClearText(input.getSignatureHashAlgorithm());
 
-                InputStream in = new BufferedInputStream(inputData.getInputStream());
-                final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-
-                // update signature buffer with first line
-                processLine(reader.readLine(), armorOut, signatureGenerator);
-
-                // TODO: progress: fake annealing?
-                while (true) {
-                    String line = reader.readLine();
-
-                    // end cleartext signature with newline, see http://tools.ietf.org/html/rfc4880#section-7
-                    if (line == null) {
-                        armorOut.write(NEW_LINE);
-                        break;
-                    }
-
-                    armorOut.write(NEW_LINE);
-
-                    // update signature buffer with input line
-                    signatureGenerator.update(NEW_LINE);
-                    processLine(line, armorOut, signatureGenerator);
-                }
+                signCleartext(inputData.getInputStream(), armorOut, signatureGenerator, buffers.acquire());
 
                 armorOut.endClearText();
 
@@ -430,11 +495,17 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 updateProgress(R.string.progress_signing, 8, 100);
                 log.add(LogType.MSG_PSE_SIGNING_DETACHED, indent);
 
-                InputStream in = new BufferedInputStream(inputData.getInputStream());
+                InputStream in = inputData.getInputStream();
 
                 // handle output stream separately for detached signatures
-                detachedByteOut = new ByteArrayOutputStream();
-                OutputStream detachedOut = detachedByteOut;
+                OutputStream detachedOut;
+                if (input.isDetachedSignatureToOutput()) {
+                    // the signature is the only output, stream it out directly
+                    detachedOut = outputStream;
+                } else {
+                    detachedByteOut = new ByteArrayOutputStream();
+                    detachedOut = detachedByteOut;
+                }
                 if (input.isEnableAsciiArmorOutput()) {
                     detachedArmorOut = new ArmoredOutputStream(new BufferedOutputStream(detachedOut, 1 << 16));
                     if (input.getVersionHeader() != null) {
@@ -447,7 +518,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
+                byte[] buffer = buffers.acquire();
                 while ((length = in.read(buffer)) > 0) {
                     // no output stream is written, no changed to original data!
 
@@ -467,17 +538,18 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 updateProgress(R.string.progress_signing, 8, 100);
                 log.add(LogType.MSG_PSE_SIGNING, indent);
 
-                InputStream in = new BufferedInputStream(inputData.getInputStream());
+                InputStream in = inputData.getInputStream();
 
                 if (enableCompression) {
-                    // Use preferred compression algo
-                    int algo = input.getCompressionAlgorithm();
-                    if (algo == PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_DEFAULT) {
-                        algo = PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
+                    int algo = compressionAlgorithm;
+                    if (ParallelCompressedDataGenerator.isSupported(algo)) {
+                        log.add(LogType.MSG_PSE_COMPRESSING_PARALLEL, indent + 1);
+                        parallelCompressGen = new ParallelCompressedDataGenerator(algo);
+                        bcpgOut = new BCPGOutputStream(parallelCompressGen.open(out));
+                    } else {
+                        compressGen = new PGPCompressedDataGenerator(algo);
+                        bcpgOut = new BCPGOutputStream(compressGen.open(out));
                     }
-
-                    compressGen = new PGPCompressedDataGenerator(algo);
-                    bcpgOut = new BCPGOutputStream(compressGen.open(out));
                 } else {
                     bcpgOut = new BCPGOutputStream(out);
                 }
@@ -487,11 +559,11 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
                 pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY,
                         inputData.getOriginalFilename(), new Date(),
-                        new byte[1 << 16]);
+                        buffers.acquire());
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
+                byte[] buffer = buffers.acquire();
                 while ((length = in.read(buffer)) > 0) {
                     pOut.write(buffer, 0, length);
 
@@ -532,11 +604,13 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
             // closing outputs
             // NOTE: closing needs to be done in the correct order!
+            if (compressGen != null) {
+                compressGen.close();
+            }
+            if (parallelCompressGen != null) {
+                parallelCompressGen.close();
+            }
             if (encryptionOut != null) {
-                if (compressGen != null) {
-                    compressGen.close();
-                }
-
                 encryptionOut.close();
             }
             // Note: Closing ArmoredOutputStream does not close the underlying stream
@@ -567,6 +641,18 @@ public class PgpSignEncryptOperation extends BaseOperation {
         } catch (IOException e) {
             log.add(LogType.MSG_PSE_ERROR_IO, indent);
             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        } finally {
+            // already closed unless we return early, release their deflaters in that case
+            if (compressGen != null) {
+                try {
+                    compressGen.close();
+                } catch (IOException e) {
+                    // silently catch
+                }
+            }
+            if (parallelCompressGen != null) {
+                parallelCompressGen.abort();
+            }
         }
 
         updateProgress(R.string.progress_done, 100, 100);
@@ -582,6 +668,8 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 // silently catch
             }
             result.setDetachedSignature(detachedByteOut.toByteArray());
+        }
+        if (enableSignature && !enableEncryption && input.isDetachedSignature()) {
             try {
                 String digestName = PGPUtil.getDigestName(input.getSignatureHashAlgorithm());
                 // construct micalg parameter according to https://tools.ietf.org/html/rfc3156#section-5
@@ -594,32 +682,209 @@ public class PgpSignEncryptOperation extends BaseOperation {
     }
 
     /**
-     * Remove whitespaces on line endings
+     * Estimates the size of the output for input of the given size. This errs on the
+     * large side, assuming incompressible data, so a buffer of this size should not
+     * need to grow.
      */
-    private static void processLine(final String pLine, final ArmoredOutputStream pArmoredOutput,
-                                    final PGPSignatureGenerator pSignatureGenerator)
-            throws IOException, SignatureException {
+    public static long estimateOutputSize(PgpSignEncryptInputParcel input, long inputSize) {
+        if (input.isDetachedSignature()) {
+            // the signature is not part of the output
+            return OUTPUT_OVERHEAD;
+        }
 
-        if (pLine == null) {
-            return;
+        long[] encryptionKeyIds = input.getEncryptionMasterKeyIds();
+        boolean enableEncryption = (encryptionKeyIds != null && encryptionKeyIds.length > 0)
+                || input.getSymmetricPassphrase() != null;
+
+        long size;
+        if (input.isCleartextSignature() && input.isEnableAsciiArmorOutput() && !enableEncryption) {
+            // line endings may become CRLF, lines starting with a dash are escaped
+            size = inputSize + inputSize / 8;
+        } else {
+            // one partial length header per block of literal, compressed and encrypted data
+            size = inputSize + inputSize / (1 << 12);
+        }
+        size += OUTPUT_OVERHEAD;
+        if (encryptionKeyIds != null) {
+            size += encryptionKeyIds.length * OUTPUT_KEY_PACKET_SIZE;
+        }
+
+        if (input.isEnableAsciiArmorOutput()) {
+            // base64, with a line break every 64 characters
+            size = size * 4 / 3;
+            size += size / 64 + OUTPUT_OVERHEAD;
+        }
+        return size;
+    }
+
+    /** Reads from the stream until the sample buffer is full or the stream ends. */
+    private static int readSample(InputStream in, byte[] sample) throws IOException {
+        int length = 0;
+        int count;
+        while (length < sample.length && (count = in.read(sample, length, sample.length - length)) > 0) {
+            length += count;
+        }
+        return length;
+    }
+
+    /**
+     * Decides if data starting with this sample is worth compressing.
+     *
+     * Data with a byte entropy close to eight bits, like already compressed or
+     * encrypted files, is rejected right away. Otherwise, the sample is
+     * compressed with the fastest deflate level, and the data is considered
+     * compressible if that saves at least a bit of space.
+     */
+    static boolean isSampleCompressible(byte[] sample, int length, OperationLog log, int indent) {
+        if (length == 0) {
+            log.add(LogType.MSG_PSE_COMPRESSION_AUTO_OFF, indent, "0");
+            return false;
         }
 
-        final char[] chars = pLine.toCharArray();
-        int len = chars.length;
+        double entropy = getByteEntropy(sample, length);
+        if (entropy > AUTO_COMPRESSION_MAX_ENTROPY) {
+            log.add(LogType.MSG_PSE_COMPRESSION_AUTO_ENTROPY, indent, String.format("%.2f", entropy));
+            return false;
+        }
 
-        while (len > 0) {
-            if (!Character.isWhitespace(chars[len - 1])) {
-                break;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        long compressedLength = 0;
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[1 << 14];
+            while (!deflater.finished()) {
+                compressedLength += deflater.deflate(buffer);
             }
-            len--;
+        } finally {
+            deflater.end();
         }
 
-        final byte[] data = pLine.substring(0, len).getBytes("UTF-8");
+        double ratio = (double) compressedLength / length;
+        String saved = Integer.toString((int) Math.max(0, Math.round((1 - ratio) * 100)));
+        if (ratio > AUTO_COMPRESSION_MAX_RATIO) {
+            log.add(LogType.MSG_PSE_COMPRESSION_AUTO_OFF, indent, saved);
+            return false;
+        }
+        log.add(LogType.MSG_PSE_COMPRESSION_AUTO_ON, indent, saved);
+        return true;
+    }
 
-        if (pArmoredOutput != null) {
-            pArmoredOutput.write(data);
+    /** Returns the Shannon entropy of the byte values in the buffer, in bits per byte. */
+    private static double getByteEntropy(byte[] buffer, int length) {
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[buffer[i] & 0xff] += 1;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
         }
-        pSignatureGenerator.update(data);
+        return entropy / Math.log(2);
+    }
+
+    /** Writes a cleartext signature body, updating the signature generator as it goes.
+     *
+     * This works directly on the raw bytes, in blocks of 64k. Lines may end in CR, LF or
+     * CRLF, and are separated by CRLF in both output and signature. Trailing whitespace
+     * is stripped from each line, see http://tools.ietf.org/html/rfc4880#section-7.1
+     * Dash-escaping is done by the ArmoredOutputStream.
+     *
+     * Whitespace at the end of a block may or may not be trailing, so it is held back in
+     * pendingWhitespace until the rest of the line is known. This is public for BenchmarkOperation.
+     */
+    public static void signCleartext(InputStream in, ArmoredOutputStream armorOut,
+            PGPSignatureGenerator signatureGenerator, byte[] buffer) throws IOException, SignatureException {
+
+        ByteArrayOutputStream pendingWhitespace = new ByteArrayOutputStream();
+        boolean pendingLineSeparator = false;
+        boolean skipLineFeed = false;
+
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            int pos = 0;
+
+            // the LF of a CRLF which was split between blocks
+            if (skipLineFeed && length > 0 && buffer[0] == '\n') {
+                pos = 1;
+            }
+            skipLineFeed = false;
+
+            int lineStart = pos;
+            for (; pos < length; pos++) {
+                byte b = buffer[pos];
+
+                if (pendingLineSeparator) {
+                    armorOut.write(NEW_LINE);
+                    signatureGenerator.update(NEW_LINE);
+                    pendingLineSeparator = false;
+                }
+
+                if (b != '\r' && b != '\n') {
+                    continue;
+                }
+
+                writeCleartextLine(buffer, lineStart, getLengthWithoutWhitespace(buffer, lineStart, pos),
+                        pendingWhitespace, armorOut, signatureGenerator);
+                pendingWhitespace.reset();
+                pendingLineSeparator = true;
+
+                if (b == '\r') {
+                    if (pos + 1 < length) {
+                        if (buffer[pos + 1] == '\n') {
+                            pos += 1;
+                        }
+                    } else {
+                        skipLineFeed = true;
+                    }
+                }
+                lineStart = pos + 1;
+            }
+
+            // this line continues in the next block, so whitespace at its end is held back
+            int end = getLengthWithoutWhitespace(buffer, lineStart, length);
+            if (end > lineStart) {
+                writeCleartextLine(buffer, lineStart, end, pendingWhitespace, armorOut, signatureGenerator);
+                pendingWhitespace.reset();
+            }
+            pendingWhitespace.write(buffer, end, length - end);
+        }
+
+        // end cleartext signature with newline, see http://tools.ietf.org/html/rfc4880#section-7
+        armorOut.write(NEW_LINE);
+
+    }
+
+    private static void writeCleartextLine(byte[] buffer, int start, int end,
+            ByteArrayOutputStream pendingWhitespace, ArmoredOutputStream armorOut,
+            PGPSignatureGenerator signatureGenerator) throws IOException, SignatureException {
+        if (end <= start) {
+            return;
+        }
+        // whitespace held back from the previous block turned out not to be trailing
+        if (pendingWhitespace.size() > 0) {
+            pendingWhitespace.writeTo(armorOut);
+            byte[] whitespace = pendingWhitespace.toByteArray();
+            signatureGenerator.update(whitespace);
+        }
+        armorOut.write(buffer, start, end - start);
+        signatureGenerator.update(buffer, start, end - start);
+    }
+
+    /** Returns the end of the given range, without trailing whitespace. */
+    private static int getLengthWithoutWhitespace(byte[] buffer, int start, int end) {
+        while (end > start && isWhitespace(buffer[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+
+    /** Whitespace as in Character.isWhitespace, limited to single byte characters. */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == 0x0b || b == '\f' || (b >= 0x1c && b <= 0x1f);
     }
 
 }
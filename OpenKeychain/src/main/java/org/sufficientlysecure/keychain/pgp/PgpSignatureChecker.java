@@ -1,11 +1,6 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.security.SignatureException;
 
 import org.openintents.openpgp.OpenPgpSignatureResult;
@@ -33,6 +28,8 @@ class PgpSignatureChecker {
 
     private CanonicalizedPublicKey signingKey;
 
+    private static final int CLEARTEXT_BLOCK_SIZE = 1 << 16;
+
     private int signatureIndex;
     PGPOnePassSignature onePassSignature;
     PGPSignature signature;
@@ -169,23 +166,65 @@ class PgpSignatureChecker {
         }
     }
 
-    public void updateSignatureWithCleartext(byte[] clearText) throws IOException, SignatureException {
+    /** Updates the signature with cleartext as read by PgpDecryptVerifyOperation.
+     *
+     * Line endings are canonicalized to CRLF and trailing whitespace is stripped
+     * from each line, as defined in http://tools.ietf.org/html/rfc4880#section-7.1
+     * The canonical text is fed into the signature in blocks of CLEARTEXT_BLOCK_SIZE.
+     */
+    public void updateSignatureWithCleartext(byte[] clearText) throws SignatureException {
 
-        InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
+        byte[] block = new byte[CLEARTEXT_BLOCK_SIZE];
+        int blockLength = 0;
 
-        ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
+        int length = clearText.length;
+        int pos = 0;
+        boolean firstLine = true;
 
-        int lookAhead = readInputLine(outputBuffer, sigIn);
+        do {
+            int lineStart = pos;
+            while (pos < length && !isLineEnding(clearText[pos])) {
+                pos++;
+            }
+            int lineEnd = getLengthWithoutWhiteSpace(clearText, lineStart, pos);
+
+            // skip a single line ending, which is one of CR, LF or CRLF
+            if (pos < length) {
+                if (clearText[pos] == '\r' && pos + 1 < length && clearText[pos + 1] == '\n') {
+                    pos += 2;
+                } else {
+                    pos += 1;
+                }
+            }
 
-        processLine(signature, outputBuffer.toByteArray());
+            // lines are separated, not terminated, by CRLF
+            if (!firstLine) {
+                if (blockLength + 2 > block.length) {
+                    signature.update(block, 0, blockLength);
+                    blockLength = 0;
+                }
+                block[blockLength++] = '\r';
+                block[blockLength++] = '\n';
+            }
+            firstLine = false;
 
-        while (lookAhead != -1) {
-            lookAhead = readInputLine(outputBuffer, lookAhead, sigIn);
+            int lineLength = lineEnd - lineStart;
+            if (blockLength + lineLength > block.length) {
+                signature.update(block, 0, blockLength);
+                blockLength = 0;
+            }
+            if (lineLength > block.length) {
+                // no point copying lines which don't fit into a block anyways
+                signature.update(clearText, lineStart, lineLength);
+            } else {
+                System.arraycopy(clearText, lineStart, block, blockLength, lineLength);
+                blockLength += lineLength;
+            }
 
-            signature.update((byte) '\r');
-            signature.update((byte) '\n');
+        } while (pos < length);
 
-            processLine(signature, outputBuffer.toByteArray());
+        if (blockLength > 0) {
+            signature.update(block, 0, blockLength);
         }
 
     }
@@ -264,77 +303,16 @@ class PgpSignatureChecker {
         return signatureResultBuilder.build();
     }
 
-    /**
-     * Mostly taken from ClearSignedFileProcessor in Bouncy Castle
-     */
-
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0) {
-            sig.update(line, 0, length);
-        }
-    }
-
-    private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int lookAhead = -1;
-        int ch;
-
-        while ((ch = fIn.read()) >= 0) {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
-        }
-
-        return lookAhead;
-    }
-
-    private static int readInputLine(ByteArrayOutputStream bOut, int lookAhead, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int ch = lookAhead;
-
-        do {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
-        } while ((ch = fIn.read()) >= 0);
-
-        if (ch < 0) {
-            lookAhead = -1;
-        }
-
-        return lookAhead;
-    }
-
-    private static int readPastEOL(ByteArrayOutputStream bOut, int lastCh, InputStream fIn)
-            throws IOException {
-        int lookAhead = fIn.read();
-
-        if (lastCh == '\r' && lookAhead == '\n') {
-            bOut.write(lookAhead);
-            lookAhead = fIn.read();
-        }
-
-        return lookAhead;
-    }
-
-    private static int getLengthWithoutWhiteSpace(byte[] line) {
-        int end = line.length - 1;
-
-        while (end >= 0 && isWhiteSpace(line[end])) {
+    /** Returns the end of the line in the given range, without trailing whitespace. */
+    private static int getLengthWithoutWhiteSpace(byte[] data, int start, int end) {
+        while (end > start && isWhiteSpace(data[end - 1])) {
             end--;
         }
+        return end;
+    }
 
-        return end + 1;
+    private static boolean isLineEnding(byte b) {
+        return b == '\r' || b == '\n';
     }
 
     private static boolean isWhiteSpace(byte b) {
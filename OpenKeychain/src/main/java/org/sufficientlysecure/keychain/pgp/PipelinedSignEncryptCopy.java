@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/** Copies data into a literal data stream and a signature generator on separate threads.
+ *
+ * This is the pipelined counterpart of the copy loop in PgpSignEncryptOperation.
+ * The calling thread reads the input into a ring of recycled buffers, each of
+ * which is handed to both a hashing thread, which updates the signature, and a
+ * writing thread, which does the compression and encryption by writing into the
+ * literal data stream. A buffer goes back into the ring once both are done with
+ * it. Both stages see the same buffers in the same order as the sequential loop,
+ * so the output is identical.
+ *
+ */
+class PipelinedSignEncryptCopy {
+
+    static final int BUFFER_SIZE = 1 << 16;
+    static final int NUM_BUFFERS = 8;
+
+    /** Receives the number of bytes read so far, called from the reading thread. */
+    interface CopyProgressListener {
+        void onBytesRead(long alreadyRead);
+    }
+
+    private static class Chunk {
+        final byte[] mData;
+        int mLength;
+        final AtomicInteger mRefs = new AtomicInteger();
+
+        Chunk(int size) {
+            mData = new byte[size];
+        }
+    }
+
+    private static final Chunk END_OF_DATA = new Chunk(0);
+
+    private final BlockingQueue<Chunk> mFreeChunks = new ArrayBlockingQueue<>(NUM_BUFFERS);
+    private final BlockingQueue<Chunk> mHashQueue = new ArrayBlockingQueue<>(NUM_BUFFERS + 1);
+    private final BlockingQueue<Chunk> mWriteQueue = new ArrayBlockingQueue<>(NUM_BUFFERS + 1);
+
+    private final AtomicReference<Exception> mFailure = new AtomicReference<>();
+
+    PipelinedSignEncryptCopy() {
+        for (int i = 0; i < NUM_BUFFERS; i++) {
+            mFreeChunks.add(new Chunk(BUFFER_SIZE));
+        }
+    }
+
+    /** Copies all data from in to out, updating the signature generator with the same data. */
+    long copy(InputStream in, final OutputStream out, final PGPSignatureGenerator signatureGenerator,
+            CopyProgressListener listener) throws IOException {
+
+        Thread hashThread = new Thread(new ChunkConsumer(mHashQueue) {
+            @Override
+            void consume(Chunk chunk) {
+                signatureGenerator.update(chunk.mData, 0, chunk.mLength);
+            }
+        }, "pipeline-hash");
+        Thread writeThread = new Thread(new ChunkConsumer(mWriteQueue) {
+            @Override
+            void consume(Chunk chunk) throws IOException {
+                out.write(chunk.mData, 0, chunk.mLength);
+            }
+        }, "pipeline-write");
+
+        hashThread.start();
+        writeThread.start();
+
+        long alreadyRead = 0;
+        boolean interrupted = false;
+        try {
+            while (mFailure.get() == null) {
+                Chunk chunk = mFreeChunks.take();
+                int length = in.read(chunk.mData);
+                if (length <= 0) {
+                    mFreeChunks.add(chunk);
+                    break;
+                }
+                chunk.mLength = length;
+                chunk.mRefs.set(2);
+                mHashQueue.put(chunk);
+                mWriteQueue.put(chunk);
+
+                alreadyRead += length;
+                if (listener != null) {
+                    listener.onBytesRead(alreadyRead);
+                }
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+            mFailure.compareAndSet(null, e);
+        } catch (IOException e) {
+            mFailure.compareAndSet(null, e);
+        } finally {
+            // the queues have room for one more element than there are chunks, so this never blocks
+            mHashQueue.add(END_OF_DATA);
+            mWriteQueue.add(END_OF_DATA);
+        }
+
+        if (interrupted) {
+            hashThread.interrupt();
+            writeThread.interrupt();
+        }
+        // the workers use the streams and signature generator of the caller, wait for them in any case
+        while (hashThread.isAlive() || writeThread.isAlive()) {
+            try {
+                hashThread.join();
+                writeThread.join();
+            } catch (InterruptedException e) {
+                if (!interrupted) {
+                    interrupted = true;
+                    mFailure.compareAndSet(null, e);
+                    hashThread.interrupt();
+                    writeThread.interrupt();
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        Exception failure = mFailure.get();
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof InterruptedException) {
+            throw new InterruptedIOException("interrupted during pipelined copy");
+        }
+        if (failure != null) {
+            throw new IOException("error in pipelined copy", failure);
+        }
+
+        return alreadyRead;
+
+    }
+
+    private abstract class ChunkConsumer implements Runnable {
+        private final BlockingQueue<Chunk> mQueue;
+
+        ChunkConsumer(BlockingQueue<Chunk> queue) {
+            mQueue = queue;
+        }
+
+        abstract void consume(Chunk chunk) throws IOException;
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Chunk chunk = mQueue.take();
+                    if (chunk == END_OF_DATA) {
+                        return;
+                    }
+                    // after a failure, chunks are only drained so the reader doesn't block
+                    if (mFailure.get() == null) {
+                        try {
+                            consume(chunk);
+                        } catch (Exception e) {
+                            Log.e(Constants.TAG, "error in pipelined copy", e);
+                            mFailure.compareAndSet(null, e);
+                        }
+                    }
+                    if (chunk.mRefs.decrementAndGet() == 0) {
+                        mFreeChunks.add(chunk);
+                    }
+                }
+            } catch (InterruptedException e) {
+                mFailure.compareAndSet(null, e);
+            }
+        }
+    }
+
+}
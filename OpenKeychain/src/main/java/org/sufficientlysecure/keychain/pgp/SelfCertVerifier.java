@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.openpgp.PGPKeyRing;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPUserAttributeSubpacketVector;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+
+
+/** Verifies the self-certificates of a key ring ahead of canonicalization.
+ *
+ * Signature verification is by far the most expensive part of
+ * UncachedKeyRing.canonicalize, and the checks are independent of each other.
+ * This class collects all self-certificates that canonicalize may verify, and
+ * hands them to a shared thread pool before the actual (sequential) decision
+ * loop starts. The decision loop then only picks up the results in its usual
+ * order, so the produced log and the chosen certificates are exactly the same
+ * as with inline verification.
+ *
+ * Certificates which were not submitted upfront, or key rings with too few
+ * certificates to make this worthwhile, are simply verified inline.
+ *
+ */
+class SelfCertVerifier {
+
+    /** Below this number of certificates, the overhead of the pool isn't worth it. */
+    static final int MIN_PARALLEL_CERTS = 8;
+
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService sExecutor;
+
+    private final IdentityHashMap<PGPSignature, Future<Boolean>> mResults = new IdentityHashMap<>();
+
+    private SelfCertVerifier() {
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(NUM_THREADS, NUM_THREADS, 30L,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "SelfCertVerifier");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sExecutor = executor;
+        }
+        return sExecutor;
+    }
+
+    /** Creates a verifier for the given ring, submitting all its self-certificates for
+     * verification if there are enough of them. The cheap checks of canonicalize (creation
+     * time, local flag, etc.) are not done here, verifying a certificate that is later
+     * dropped for other reasons is just wasted work, it doesn't change the outcome.
+     */
+    static SelfCertVerifier forKeyRing(PGPKeyRing ring) {
+        SelfCertVerifier verifier = new SelfCertVerifier();
+        if (NUM_THREADS < 2) {
+            return verifier;
+        }
+
+        final PGPPublicKey masterKey = ring.getPublicKey();
+        final long masterKeyId = masterKey.getKeyID();
+
+        IdentityHashMap<PGPSignature, Callable<Boolean>> tasks = new IdentityHashMap<>();
+
+        for (final PGPSignature zert : new IterableIterator<PGPSignature>(masterKey.getKeySignatures())) {
+            int type = zert.getSignatureType();
+            if (type == PGPSignature.KEY_REVOCATION || type == PGPSignature.DIRECT_KEY) {
+                tasks.put(zert, new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws PgpGeneralException {
+                        return verifyInline(zert, masterKey);
+                    }
+                });
+            }
+        }
+
+        for (final byte[] rawUserId : new IterableIterator<byte[]>(masterKey.getRawUserIDs())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = masterKey.getSignaturesForID(rawUserId);
+            if (signaturesIt == null) {
+                continue;
+            }
+            for (final PGPSignature zert : new IterableIterator<>(signaturesIt)) {
+                if (zert.getKeyID() != masterKeyId || !isCertificationType(zert.getSignatureType())
+                        || tasks.containsKey(zert)) {
+                    continue;
+                }
+                tasks.put(zert, new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws PgpGeneralException {
+                        return verifyInline(zert, masterKey, rawUserId);
+                    }
+                });
+            }
+        }
+
+        for (final PGPUserAttributeSubpacketVector userAttribute :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(masterKey.getUserAttributes())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = masterKey.getSignaturesForUserAttribute(userAttribute);
+            if (signaturesIt == null) {
+                continue;
+            }
+            for (final PGPSignature zert : new IterableIterator<>(signaturesIt)) {
+                if (zert.getKeyID() != masterKeyId || !isCertificationType(zert.getSignatureType())
+                        || tasks.containsKey(zert)) {
+                    continue;
+                }
+                tasks.put(zert, new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws PgpGeneralException {
+                        return verifyInline(zert, masterKey, userAttribute);
+                    }
+                });
+            }
+        }
+
+        for (final PGPPublicKey key : new IterableIterator<PGPPublicKey>(ring.getPublicKeys())) {
+            if (key.isMasterKey()) {
+                continue;
+            }
+            for (final PGPSignature zert : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                int type = zert.getSignatureType();
+                if (zert.getKeyID() != masterKeyId
+                        || (type != PGPSignature.SUBKEY_BINDING && type != PGPSignature.SUBKEY_REVOCATION)
+                        || tasks.containsKey(zert)) {
+                    continue;
+                }
+                tasks.put(zert, new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws PgpGeneralException {
+                        return verifyInline(zert, masterKey, key);
+                    }
+                });
+            }
+        }
+
+        if (tasks.size() < MIN_PARALLEL_CERTS) {
+            return verifier;
+        }
+
+        ExecutorService executor = getExecutor();
+        for (Map.Entry<PGPSignature, Callable<Boolean>> task : tasks.entrySet()) {
+            verifier.mResults.put(task.getKey(), executor.submit(task.getValue()));
+        }
+
+        return verifier;
+    }
+
+    private static boolean isCertificationType(int type) {
+        return type == PGPSignature.DEFAULT_CERTIFICATION
+                || type == PGPSignature.NO_CERTIFICATION
+                || type == PGPSignature.CASUAL_CERTIFICATION
+                || type == PGPSignature.POSITIVE_CERTIFICATION
+                || type == PGPSignature.CERTIFICATION_REVOCATION;
+    }
+
+    /** Verifies a direct key signature or key revocation on the master key. */
+    boolean verify(PGPSignature zert, PGPPublicKey masterKey) throws PgpGeneralException {
+        Boolean result = getResult(zert);
+        return result != null ? result : verifyInline(zert, masterKey);
+    }
+
+    /** Verifies a certificate on a user id of the master key. */
+    boolean verify(PGPSignature zert, PGPPublicKey masterKey, byte[] rawUserId)
+            throws PgpGeneralException {
+        Boolean result = getResult(zert);
+        return result != null ? result : verifyInline(zert, masterKey, rawUserId);
+    }
+
+    /** Verifies a certificate on a user attribute of the master key. */
+    boolean verify(PGPSignature zert, PGPPublicKey masterKey, PGPUserAttributeSubpacketVector attribute)
+            throws PgpGeneralException {
+        Boolean result = getResult(zert);
+        return result != null ? result : verifyInline(zert, masterKey, attribute);
+    }
+
+    /** Verifies a subkey binding or revocation certificate. */
+    boolean verify(PGPSignature zert, PGPPublicKey masterKey, PGPPublicKey subKey)
+            throws PgpGeneralException {
+        Boolean result = getResult(zert);
+        return result != null ? result : verifyInline(zert, masterKey, subKey);
+    }
+
+    /** Returns the precomputed result for this certificate, or null if there is none. */
+    private Boolean getResult(PGPSignature zert) throws PgpGeneralException {
+        Future<Boolean> future = mResults.remove(zert);
+        if (future == null) {
+            return null;
+        }
+        // the task may already be running on this signature, so we can neither cancel it nor
+        // verify the same signature inline. verification is quick, just wait it out
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PgpGeneralException) {
+                throw (PgpGeneralException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new PgpGeneralException("Error!", cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static boolean verifyInline(PGPSignature zert, PGPPublicKey masterKey)
+            throws PgpGeneralException {
+        WrappedSignature cert = new WrappedSignature(zert);
+        cert.init(masterKey);
+        return cert.verifySignature(masterKey);
+    }
+
+    private static boolean verifyInline(PGPSignature zert, PGPPublicKey masterKey, byte[] rawUserId)
+            throws PgpGeneralException {
+        WrappedSignature cert = new WrappedSignature(zert);
+        cert.init(masterKey);
+        return cert.verifySignature(masterKey, rawUserId);
+    }
+
+    private static boolean verifyInline(PGPSignature zert, PGPPublicKey masterKey,
+            PGPUserAttributeSubpacketVector attribute) throws PgpGeneralException {
+        WrappedSignature cert = new WrappedSignature(zert);
+        cert.init(masterKey);
+        return cert.verifySignature(masterKey, attribute);
+    }
+
+    private static boolean verifyInline(PGPSignature zert, PGPPublicKey masterKey, PGPPublicKey subKey)
+            throws PgpGeneralException {
+        WrappedSignature cert = new WrappedSignature(zert);
+        cert.init(masterKey);
+        return cert.verifySignature(masterKey, subKey);
+    }
+
+}
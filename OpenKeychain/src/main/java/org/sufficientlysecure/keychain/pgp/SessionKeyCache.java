@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.Build.VERSION_CODES;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.bouncycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/** A cache for the session keys of asymmetrically encrypted messages.
+ *
+ * When a message is opened repeatedly, e.g. by a mail client each time the user
+ * looks at it, this allows skipping the private key operation and with it the
+ * passphrase or security token interaction. The cache is opt-in, see
+ * Preferences.getSessionKeyCache().
+ *
+ * Entries are stored by a hash of the public key encrypted session key packet
+ * they belong to, and expire after TTL_MILLIS. Each entry is encrypted with AES-GCM,
+ * bound to its name and expiry as associated data.
+ *
+ * On Android 6.0 and up, the entries are stored in files, and encrypted with a key
+ * kept in the Android Keystore, so they are shared by all our processes and survive
+ * a restart without the key ever being written to storage. On older versions there
+ * is no such place for the key, so each process keeps its entries in memory, each
+ * encrypted with a key derived from both a random secret and the packet itself.
+ * Either way, the whole cache including its key is wiped when the screen is locked.
+ * The screen lock receiver is registered in every process, see KeychainApplication.
+ *
+ */
+public class SessionKeyCache {
+
+    public static final long TTL_MILLIS = 24 * 60 * 60 * 1000L;
+    static final int MAX_ENTRIES = 256;
+
+    // earlier versions stored the cache in this file, it is wiped on first use
+    private static final String LEGACY_PREFS_NAME = "session_key_cache";
+
+    private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+    private static final String KEYSTORE_ALIAS = "session_key_cache";
+    private static final String CACHE_DIR = "session_keys";
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+    // an entry holds little more than a session key, anything larger is corrupt
+    private static final int MAX_FIELD_LENGTH = 1024;
+
+    private static final byte[] DOMAIN_LOOKUP = { 'l' };
+    private static final byte[] DOMAIN_ENCRYPT = { 'e' };
+
+    private static SessionKeyCache sInstance;
+
+    private final SecureRandom mRandom = new SecureRandom();
+    // directory of stored entries, or null if they are kept in memory
+    private final File mDir;
+    // entries kept in memory in order of insertion, which is also the order of expiry
+    private final LinkedHashMap<String, CacheEntry> mEntries = new LinkedHashMap<>();
+    private byte[] mSecret;
+
+    private SessionKeyCache(Context context) {
+        context.getSharedPreferences(LEGACY_PREFS_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+        mDir = Build.VERSION.SDK_INT >= VERSION_CODES.M ? getCacheDir(context) : null;
+    }
+
+    public static synchronized SessionKeyCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SessionKeyCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    @TargetApi(VERSION_CODES.M)
+    private static File getCacheDir(Context context) {
+        // the entries are useless elsewhere, keep them out of backups
+        return new File(context.getNoBackupFilesDir(), CACHE_DIR);
+    }
+
+    private static class CacheEntry {
+        final long mExpiry;
+        final byte[] mIv;
+        final byte[] mCiphertext;
+
+        CacheEntry(long expiry, byte[] iv, byte[] ciphertext) {
+            mExpiry = expiry;
+            mIv = iv;
+            mCiphertext = ciphertext;
+        }
+    }
+
+    /** Returns the cached session data for this encrypted data packet, or null if there is none. */
+    public synchronized byte[] get(PGPPublicKeyEncryptedData encData) {
+        String entryName = Hex.toHexString(digest(DOMAIN_LOOKUP, null, encData));
+        CacheEntry entry = mDir != null ? readEntry(entryName) : mEntries.get(entryName);
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.mExpiry < System.currentTimeMillis()) {
+            removeEntry(entryName);
+            return null;
+        }
+
+        try {
+            Key key = getKey(encData, false);
+            if (key == null) {
+                removeEntry(entryName);
+                return null;
+            }
+            Cipher cipher = getCipher(Cipher.DECRYPT_MODE, key, entry.mIv);
+            cipher.updateAAD(associatedData(entryName, entry.mExpiry));
+            return cipher.doFinal(entry.mCiphertext);
+        } catch (GeneralSecurityException | IOException e) {
+            Log.e(Constants.TAG, "could not decrypt cached session key, dropping it", e);
+            removeEntry(entryName);
+            return null;
+        }
+    }
+
+    /** Stores the session data for this encrypted data packet, expiring after TTL_MILLIS. */
+    public synchronized void put(PGPPublicKeyEncryptedData encData, byte[] sessionData) {
+        long now = System.currentTimeMillis();
+        removeExpiredEntries(now);
+
+        String entryName = Hex.toHexString(digest(DOMAIN_LOOKUP, null, encData));
+        long expiry = now + TTL_MILLIS;
+        try {
+            Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, getKey(encData, true), null);
+            cipher.updateAAD(associatedData(entryName, expiry));
+            byte[] ciphertext = cipher.doFinal(sessionData);
+            CacheEntry entry = new CacheEntry(expiry, cipher.getIV(), ciphertext);
+
+            if (mDir != null) {
+                writeEntry(entryName, entry);
+            } else {
+                // re-insert, to keep insertion order in line with expiry
+                mEntries.remove(entryName);
+                mEntries.put(entryName, entry);
+            }
+        } catch (GeneralSecurityException | IOException e) {
+            Log.e(Constants.TAG, "could not store session key in cache", e);
+        }
+    }
+
+    /** Removes all entries as well as the key. */
+    public synchronized void clear() {
+        mEntries.clear();
+        if (mSecret != null) {
+            Arrays.fill(mSecret, (byte) 0);
+            mSecret = null;
+        }
+        if (mDir != null) {
+            // without the key, entries other processes are writing right now are useless as well
+            try {
+                KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+                keyStore.load(null);
+                keyStore.deleteEntry(KEYSTORE_ALIAS);
+            } catch (GeneralSecurityException | IOException e) {
+                Log.e(Constants.TAG, "could not delete session key cache key", e);
+            }
+            File[] files = mDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.delete()) {
+                        Log.e(Constants.TAG, "could not delete cached session key " + file.getName());
+                    }
+                }
+            }
+        }
+        Log.d(Constants.TAG, "SessionKeyCache: all cached session keys removed");
+    }
+
+    /** Returns the key entries are encrypted with, or null if there is none and create is false. */
+    private Key getKey(PGPPublicKeyEncryptedData encData, boolean create)
+            throws GeneralSecurityException, IOException {
+        if (mDir != null) {
+            return getKeystoreKey(create);
+        }
+        if (mSecret == null) {
+            if (!create) {
+                return null;
+            }
+            mSecret = new byte[32];
+            mRandom.nextBytes(mSecret);
+        }
+        return new SecretKeySpec(digest(DOMAIN_ENCRYPT, mSecret, encData), "AES");
+    }
+
+    @TargetApi(VERSION_CODES.M)
+    private static Key getKeystoreKey(boolean create) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+        keyStore.load(null);
+        if (keyStore.containsAlias(KEYSTORE_ALIAS)) {
+            return keyStore.getKey(KEYSTORE_ALIAS, null);
+        }
+        if (!create) {
+            return null;
+        }
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_PROVIDER);
+        generator.init(new KeyGenParameterSpec.Builder(KEYSTORE_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        return generator.generateKey();
+    }
+
+    /** Returns an initialized cipher. For encryption, iv must be null and is chosen by the cipher. */
+    private Cipher getCipher(int mode, Key key, byte[] iv) throws GeneralSecurityException {
+        if (mDir != null) {
+            return getKeystoreCipher(mode, key, iv);
+        }
+        if (iv == null) {
+            iv = new byte[IV_LENGTH];
+            mRandom.nextBytes(iv);
+        }
+        Cipher cipher = Cipher.getInstance(CIPHER, Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        cipher.init(mode, key, new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    @TargetApi(VERSION_CODES.M)
+    private static Cipher getKeystoreCipher(int mode, Key key, byte[] iv) throws GeneralSecurityException {
+        // no explicit provider, the keystore key selects its own
+        Cipher cipher = Cipher.getInstance(CIPHER);
+        if (iv == null) {
+            cipher.init(mode, key);
+        } else {
+            cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH, iv));
+        }
+        return cipher;
+    }
+
+    private static byte[] associatedData(String entryName, long expiry) {
+        return ByteBuffer.allocate(entryName.length() + 8)
+                .put(entryName.getBytes()).putLong(expiry).array();
+    }
+
+    private CacheEntry readEntry(String entryName) {
+        File file = new File(mDir, entryName);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            long expiry = in.readLong();
+            byte[] iv = readField(in);
+            byte[] ciphertext = readField(in);
+            return new CacheEntry(expiry, iv, ciphertext);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "could not read cached session key, dropping it", e);
+            removeEntry(entryName);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nvm
+                }
+            }
+        }
+    }
+
+    private static byte[] readField(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FIELD_LENGTH) {
+            throw new IOException("invalid field length in cached session key: " + length);
+        }
+        byte[] field = new byte[length];
+        in.readFully(field);
+        return field;
+    }
+
+    /** Writes an entry to a temporary file first, so other processes never read it partially. */
+    private void writeEntry(String entryName, CacheEntry entry) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("could not create session key cache directory");
+        }
+        File tempFile = File.createTempFile(entryName, ".tmp", mDir);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+        try {
+            out.writeLong(entry.mExpiry);
+            out.writeInt(entry.mIv.length);
+            out.write(entry.mIv);
+            out.writeInt(entry.mCiphertext.length);
+            out.write(entry.mCiphertext);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(new File(mDir, entryName))) {
+            tempFile.delete();
+            throw new IOException("could not store cached session key");
+        }
+    }
+
+    private void removeEntry(String entryName) {
+        if (mDir != null) {
+            new File(mDir, entryName).delete();
+        } else {
+            mEntries.remove(entryName);
+        }
+    }
+
+    /** Removes expired entries, and the earliest expiring ones if there are too many. */
+    private void removeExpiredEntries(long now) {
+        if (mDir != null) {
+            removeExpiredFiles(now);
+            return;
+        }
+        Iterator<CacheEntry> it = mEntries.values().iterator();
+        // only ever one entry is added at a time, so making room for one is enough
+        int excess = mEntries.size() - MAX_ENTRIES + 1;
+        while (it.hasNext()) {
+            CacheEntry entry = it.next();
+            if (entry.mExpiry >= now && excess <= 0) {
+                break;
+            }
+            it.remove();
+            excess -= 1;
+        }
+    }
+
+    private void removeExpiredFiles(long now) {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // entries are never modified, so their modification time is their time of insertion
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long left = lhs.lastModified(), right = rhs.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        int excess = files.length - MAX_ENTRIES + 1;
+        for (File file : files) {
+            if (file.lastModified() + TTL_MILLIS >= now && excess <= 0) {
+                break;
+            }
+            file.delete();
+            excess -= 1;
+        }
+    }
+
+    /** Hashes the recipient key id and encrypted session key of a packet, bound to a domain and,
+     * unless null, a secret.
+     */
+    private static byte[] digest(byte[] domain, byte[] secret, PGPPublicKeyEncryptedData encData) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(domain);
+            if (secret != null) {
+                digest.update(secret);
+            }
+            digest.update(ByteBuffer.allocate(8).putLong(encData.getKeyID()).array());
+            for (byte[] part : encData.getSessionKey()) {
+                digest.update(ByteBuffer.allocate(4).putInt(part.length).array());
+                digest.update(part);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 must be available!");
+        }
+    }
+
+}
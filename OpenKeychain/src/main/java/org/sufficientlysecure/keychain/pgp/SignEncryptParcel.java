@@ -21,6 +21,8 @@ package org.sufficientlysecure.keychain.pgp;
 import android.net.Uri;
 import android.os.Parcel;
 
+import org.sufficientlysecure.keychain.util.SharedMemoryCache;
+
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -53,7 +55,7 @@ public class SignEncryptParcel extends PgpSignEncryptInputParcel {
 
         mInputUris = src.createTypedArrayList(Uri.CREATOR);
         mOutputUris = src.createTypedArrayList(Uri.CREATOR);
-        mBytes = src.createByteArray();
+        mBytes = SharedMemoryCache.readBytesFromParcel(src);
 
     }
 
@@ -95,7 +97,7 @@ public class SignEncryptParcel extends PgpSignEncryptInputParcel {
 
         dest.writeTypedList(mInputUris);
         dest.writeTypedList(mOutputUris);
-        dest.writeByteArray(mBytes);
+        SharedMemoryCache.writeBytesToParcel(mBytes, dest);
     }
 
     public static final Creator<SignEncryptParcel> CREATOR = new Creator<SignEncryptParcel>() {
@@ -24,23 +24,35 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeSet;
 
 import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.LongSparseArray;
 
 import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.BCPGInputStream;
+import org.bouncycastle.bcpg.ContainedPacket;
+import org.bouncycastle.bcpg.Packet;
 import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
 import org.bouncycastle.bcpg.SignatureSubpacketTags;
+import org.bouncycastle.bcpg.UserAttributePacket;
 import org.bouncycastle.bcpg.UserAttributeSubpacketTags;
+import org.bouncycastle.bcpg.UserIDPacket;
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.openpgp.PGPKeyRing;
 import org.bouncycastle.openpgp.PGPObjectFactory;
@@ -94,6 +106,9 @@ public class UncachedKeyRing {
 
     private static final int CANONICALIZE_MAX_USER_IDS = 100;
 
+    /** Default number of third-party certificates kept per user id or attribute on import. */
+    public static final int DEFAULT_MAX_THIRD_PARTY_CERTS = 100;
+
     UncachedKeyRing(PGPKeyRing ring) {
         mRing = ring;
         mIsSecret = ring instanceof PGPSecretKeyRing;
@@ -325,12 +340,31 @@ public class UncachedKeyRing {
      *
      * This operation writes an OperationLog which can be used as part of an OperationResultParcel.
      *
+     * No third-party certificates are dropped here, so exports and uploads keep all of them.
+     *
      * @param forExport if this is true, non-exportable signatures will be removed
      * @return A canonicalized key, or null on fatal error (log will include a message in this case)
      *
      */
-    @SuppressWarnings("ConstantConditions")
     public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport) {
+        return canonicalize(log, indent, forExport, Integer.MAX_VALUE, null);
+    }
+
+    /** "Canonicalizes" a public key, see canonicalize(OperationLog, int, boolean).
+     *
+     * Additionally, the number of third-party certificates kept per user id and user
+     * attribute is limited, to defend against keys flooded with certificates. If there
+     * are more, certificates by the given held keys which verify are preferred, then the
+     * newest ones. All others are dropped.
+     *
+     * @param maxThirdPartyCerts maximum number of third-party certificates per user id
+     * @param heldKeys keys we hold, whose certificates are preferred. may be null
+     * @return A canonicalized key, or null on fatal error (log will include a message in this case)
+     *
+     */
+    @SuppressWarnings("ConstantConditions")
+    public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport,
+            int maxThirdPartyCerts, LongSparseArray<CanonicalizedPublicKey> heldKeys) {
 
         log.add(isSecret() ? LogType.MSG_KC_SECRET : LogType.MSG_KC_PUBLIC,
                 indent, KeyFormattingUtils.convertKeyIdToHex(getMasterKeyId()));
@@ -353,6 +387,10 @@ public class UncachedKeyRing {
         PGPPublicKey masterKey = mRing.getPublicKey();
         final long masterKeyId = masterKey.getKeyID();
 
+        // verify all self-certificates upfront, possibly in parallel. the checks below pick
+        // up the results in their usual order, so the outcome is the same either way.
+        SelfCertVerifier verifier = SelfCertVerifier.forKeyRing(mRing);
+
         if (Arrays.binarySearch(KNOWN_ALGORITHMS, masterKey.getAlgorithm()) < 0) {
             log.add(LogType.MSG_KC_ERROR_MASTER_ALGO, indent,
                     Integer.toString(masterKey.getAlgorithm()));
@@ -400,8 +438,7 @@ public class UncachedKeyRing {
                 }
 
                 try {
-                    cert.init(masterKey);
-                    if (!cert.verifySignature(masterKey)) {
+                    if (!verifier.verify(zert, masterKey)) {
                         log.add(LogType.MSG_KC_MASTER_BAD, indent);
                         modified = PGPPublicKey.removeCertification(modified, zert);
                         badCerts += 1;
@@ -481,6 +518,10 @@ public class UncachedKeyRing {
                 }
             }
 
+            // third-party certificates exceeding the budget, these are removed in one go below
+            Set<PGPSignature> floodedCerts =
+                    Collections.newSetFromMap(new IdentityHashMap<PGPSignature, Boolean>());
+
             ArrayList<String> processedUserIds = new ArrayList<>();
             for (byte[] rawUserId : new IterableIterator<byte[]>(masterKey.getRawUserIDs())) {
                 String userId = Utf8Util.fromUTF8ByteArrayReplaceBadEncoding(rawUserId);
@@ -505,6 +546,7 @@ public class UncachedKeyRing {
 
                 PGPSignature selfCert = null;
                 revocation = null;
+                ArrayList<PGPSignature> thirdPartyCerts = new ArrayList<>();
 
                 // look through signatures for this specific user id
                 @SuppressWarnings("unchecked")
@@ -551,14 +593,15 @@ public class UncachedKeyRing {
                                         indent, KeyFormattingUtils.convertKeyIdToHex(certId));
                                 modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
                                 badCerts += 1;
+                            } else {
+                                thirdPartyCerts.add(zert);
                             }
                             continue;
                         }
 
                         // Otherwise, first make sure it checks out
                         try {
-                            cert.init(masterKey);
-                            if (!cert.verifySignature(masterKey, rawUserId)) {
+                            if (!verifier.verify(zert, masterKey, rawUserId)) {
                                 log.add(LogType.MSG_KC_UID_BAD,
                                         indent, userId);
                                 modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
@@ -633,6 +676,13 @@ public class UncachedKeyRing {
                     }
                 }
 
+                // If there are too many third-party certificates, only keep the most relevant ones
+                if (thirdPartyCerts.size() > maxThirdPartyCerts) {
+                    int dropped = selectFloodedCerts(masterKey, rawUserId, thirdPartyCerts,
+                            maxThirdPartyCerts, heldKeys, floodedCerts);
+                    log.add(LogType.MSG_KC_UID_FLOOD, indent, dropped, userId);
+                }
+
                 // If no valid certificate (if only a revocation) remains, drop it
                 if (selfCert == null && revocation == null) {
                     log.add(LogType.MSG_KC_UID_REMOVE,
@@ -670,6 +720,7 @@ public class UncachedKeyRing {
 
                     PGPSignature selfCert = null;
                     revocation = null;
+                    ArrayList<PGPSignature> thirdPartyCerts = new ArrayList<>();
 
                     // look through signatures for this specific user id
                     @SuppressWarnings("unchecked")
@@ -716,14 +767,15 @@ public class UncachedKeyRing {
                                             indent, KeyFormattingUtils.convertKeyIdToHex(certId));
                                     modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
                                     badCerts += 1;
+                                } else {
+                                    thirdPartyCerts.add(zert);
                                 }
                                 continue;
                             }
 
                             // Otherwise, first make sure it checks out
                             try {
-                                cert.init(masterKey);
-                                if (!cert.verifySignature(masterKey, userAttribute)) {
+                                if (!verifier.verify(zert, masterKey, userAttribute)) {
                                     log.add(LogType.MSG_KC_UAT_BAD,
                                             indent);
                                     modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
@@ -798,6 +850,13 @@ public class UncachedKeyRing {
                         }
                     }
 
+                    // If there are too many third-party certificates, only keep the most relevant ones
+                    if (thirdPartyCerts.size() > maxThirdPartyCerts) {
+                        int dropped = selectFloodedCerts(masterKey, userAttribute, thirdPartyCerts,
+                                maxThirdPartyCerts, heldKeys, floodedCerts);
+                        log.add(LogType.MSG_KC_UAT_FLOOD, indent, dropped);
+                    }
+
                     // If no valid certificate (if only a revocation) remains, drop it
                     if (selfCert == null && revocation == null) {
                         log.add(LogType.MSG_KC_UAT_REMOVE,
@@ -811,6 +870,11 @@ public class UncachedKeyRing {
             }
 
 
+            // Remove third-party certificates which exceeded the budget, all at once
+            if (!floodedCerts.isEmpty()) {
+                modified = removeCertifications(modified, floodedCerts);
+            }
+
             // Replace modified key in the keyring
             ring = replacePublicKey(ring, modified);
             indent -= 1;
@@ -912,8 +976,7 @@ public class UncachedKeyRing {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
+                        if (!verifier.verify(zert, masterKey, key)) {
                             log.add(LogType.MSG_KC_SUB_BAD, indent);
                             badCerts += 1;
                             continue;
@@ -990,8 +1053,7 @@ public class UncachedKeyRing {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
+                        if (!verifier.verify(zert, masterKey, key)) {
                             log.add(LogType.MSG_KC_SUB_REVOKE_BAD, indent);
                             badCerts += 1;
                             continue;
@@ -1071,6 +1133,121 @@ public class UncachedKeyRing {
                           : new CanonicalizedPublicKeyRing((PGPPublicKeyRing) ring, 0);
     }
 
+    /** Picks the third-party certificates on a user id or attribute which exceed the budget.
+     *
+     * Certificates by one of the held keys which verify come first, then the newest ones. Ties
+     * are broken by the original order, so the result is deterministic. The certificates which
+     * are not kept are added to the dropped set.
+     *
+     * @return the number of dropped certificates
+     */
+    private static int selectFloodedCerts(PGPPublicKey masterKey, Object target,
+            ArrayList<PGPSignature> certs, int maxCerts,
+            LongSparseArray<CanonicalizedPublicKey> heldKeys, Set<PGPSignature> dropped) {
+
+        final Set<PGPSignature> preferred =
+                Collections.newSetFromMap(new IdentityHashMap<PGPSignature, Boolean>());
+        if (heldKeys != null) {
+            for (PGPSignature zert : certs) {
+                CanonicalizedPublicKey heldKey = heldKeys.get(zert.getKeyID());
+                if (heldKey == null) {
+                    continue;
+                }
+                try {
+                    WrappedSignature cert = new WrappedSignature(zert);
+                    cert.init(heldKey);
+                    boolean ok = target instanceof byte[]
+                            ? cert.verifySignature(masterKey, (byte[]) target)
+                            : cert.verifySignature(masterKey, (PGPUserAttributeSubpacketVector) target);
+                    if (ok) {
+                        preferred.add(zert);
+                    }
+                } catch (PgpGeneralException e) {
+                    // not verifiable, so not preferred either
+                }
+            }
+        }
+
+        ArrayList<PGPSignature> sorted = new ArrayList<>(certs);
+        // Collections.sort is stable, so equal certs stay in their original order
+        Collections.sort(sorted, new Comparator<PGPSignature>() {
+            @Override
+            public int compare(PGPSignature left, PGPSignature right) {
+                boolean leftPreferred = preferred.contains(left);
+                if (leftPreferred != preferred.contains(right)) {
+                    return leftPreferred ? -1 : 1;
+                }
+                return right.getCreationTime().compareTo(left.getCreationTime());
+            }
+        });
+
+        for (int i = maxCerts; i < sorted.size(); i++) {
+            dropped.add(sorted.get(i));
+        }
+        return sorted.size() - maxCerts;
+    }
+
+    /** Removes a set of certificates from the user ids and attributes of a key.
+     *
+     * Removing certificates one by one copies all certificate lists of the key every
+     * time, which is quadratic for flooded keys. Instead, this strips all user ids and
+     * attributes once, then adds back the remaining certificates in their original order.
+     */
+    private static PGPPublicKey removeCertifications(PGPPublicKey key, Set<PGPSignature> certs) {
+
+        ArrayList<byte[]> rawUserIds = new ArrayList<>();
+        ArrayList<ArrayList<PGPSignature>> userIdCerts = new ArrayList<>();
+        for (byte[] rawUserId : new IterableIterator<byte[]>(key.getRawUserIDs())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = key.getSignaturesForID(rawUserId);
+            rawUserIds.add(rawUserId);
+            userIdCerts.add(filterCertifications(signaturesIt, certs));
+        }
+
+        ArrayList<PGPUserAttributeSubpacketVector> attributes = new ArrayList<>();
+        ArrayList<ArrayList<PGPSignature>> attributeCerts = new ArrayList<>();
+        for (PGPUserAttributeSubpacketVector attribute :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(key.getUserAttributes())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = key.getSignaturesForUserAttribute(attribute);
+            attributes.add(attribute);
+            attributeCerts.add(filterCertifications(signaturesIt, certs));
+        }
+
+        for (byte[] rawUserId : rawUserIds) {
+            key = PGPPublicKey.removeCertification(key, rawUserId);
+        }
+        for (PGPUserAttributeSubpacketVector attribute : attributes) {
+            key = PGPPublicKey.removeCertification(key, attribute);
+        }
+
+        for (int i = 0; i < rawUserIds.size(); i++) {
+            for (PGPSignature cert : userIdCerts.get(i)) {
+                key = PGPPublicKey.addCertification(key, rawUserIds.get(i), cert);
+            }
+        }
+        for (int i = 0; i < attributes.size(); i++) {
+            for (PGPSignature cert : attributeCerts.get(i)) {
+                key = PGPPublicKey.addCertification(key, attributes.get(i), cert);
+            }
+        }
+
+        return key;
+    }
+
+    private static ArrayList<PGPSignature> filterCertifications(
+            Iterator<PGPSignature> signaturesIt, Set<PGPSignature> certs) {
+        ArrayList<PGPSignature> result = new ArrayList<>();
+        if (signaturesIt != null) {
+            for (PGPSignature cert : new IterableIterator<>(signaturesIt)) {
+                if (!certs.contains(cert)) {
+                    result.add(cert);
+                }
+            }
+        }
+        return result;
+    }
+
     /** This operation merges information from a different keyring, returning a combined
      * UncachedKeyRing.
      *
@@ -1097,33 +1274,13 @@ public class UncachedKeyRing {
             return null;
         }
 
-        // remember which certs we already added. this is cheaper than semantic deduplication
-        Set<byte[]> certs = new TreeSet<>(new Comparator<byte[]>() {
-            public int compare(byte[] left, byte[] right) {
-                // check for length equality
-                if (left.length != right.length) {
-                    return left.length - right.length;
-                }
-                // compare byte-by-byte
-                for (int i = 0; i < left.length; i++) {
-                    if (left[i] != right[i]) {
-                        return (left[i] & 0xff) - (right[i] & 0xff);
-                    }
-                }
-                // ok they're the same
-                return 0;
-        }});
-
         try {
             PGPKeyRing result = mRing;
             PGPKeyRing candidate = other.mRing;
 
-            // Pre-load all existing certificates
-            for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(result.getPublicKeys())) {
-                for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getSignatures())) {
-                    certs.add(cert.getEncoded());
-                }
-            }
+            // remember which certs we already added. this is cheaper than semantic deduplication
+            MessageDigest digest = getCertDigestInstance();
+            HashSet<ByteBuffer> certs = getCertDigests(result, digest);
 
             // keep track of the number of new certs we add
             int newCerts = 0;
@@ -1133,6 +1290,9 @@ public class UncachedKeyRing {
                 final PGPPublicKey resultKey = result.getPublicKey(key.getKeyID());
                 if (resultKey == null) {
                     log.add(LogType.MSG_MG_NEW_SUBKEY, indent);
+                    for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                        certs.add(getCertDigest(digest, cert));
+                    }
                     // special case: if both rings are secret, copy over the secret key
                     if (isSecret() && other.isSecret()) {
                         PGPSecretKey sKey = ((PGPSecretKeyRing) candidate).getSecretKey(key.getKeyID());
@@ -1147,6 +1307,9 @@ public class UncachedKeyRing {
                 // Modifiable version of the old key, which we merge stuff into (keep old for comparison)
                 PGPPublicKey modified = resultKey;
 
+                // Collect new certifications, which are added all at once for the master key
+                NewCertifications newCertifications = new NewCertifications();
+
                 // Iterate certifications
                 for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getKeySignatures())) {
                     // Don't merge foreign stuff into secret keys
@@ -1154,14 +1317,17 @@ public class UncachedKeyRing {
                         continue;
                     }
 
-                    byte[] encoded = cert.getEncoded();
                     // Known cert, skip it
-                    if (certs.contains(encoded)) {
+                    if (!certs.add(getCertDigest(digest, cert))) {
                         continue;
                     }
-                    certs.add(encoded);
-                    modified = PGPPublicKey.addCertification(modified, cert);
                     newCerts += 1;
+                    if (key.isMasterKey()) {
+                        newCertifications.mKeyCerts.add(cert);
+                    } else {
+                        // subkeys only carry a handful of binding and revocation certs
+                        modified = PGPPublicKey.addCertification(modified, cert);
+                    }
                 }
 
                 // If this is a subkey, merge it in and stop here
@@ -1172,6 +1338,11 @@ public class UncachedKeyRing {
                     continue;
                 }
 
+                HashSet<ByteBuffer> knownUserIds = new HashSet<>();
+                for (byte[] rawUserId : new IterableIterator<byte[]>(resultKey.getRawUserIDs())) {
+                    knownUserIds.add(ByteBuffer.wrap(rawUserId));
+                }
+
                 // Copy over all user id certificates
                 for (byte[] rawUserId : new IterableIterator<byte[]>(key.getRawUserIDs())) {
                     @SuppressWarnings("unchecked")
@@ -1180,22 +1351,32 @@ public class UncachedKeyRing {
                     if (signaturesIt == null) {
                         continue;
                     }
+                    ByteBuffer userId = ByteBuffer.wrap(rawUserId);
                     for (PGPSignature cert : new IterableIterator<>(signaturesIt)) {
                         // Don't merge foreign stuff into secret keys
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(getCertDigest(digest, cert))) {
                             continue;
                         }
                         newCerts += 1;
-                        certs.add(encoded);
-                        modified = PGPPublicKey.addCertification(modified, rawUserId, cert);
+                        if (knownUserIds.add(userId)) {
+                            // the user id is new, adding its first cert adds the user id itself
+                            modified = PGPPublicKey.addCertification(modified, rawUserId, cert);
+                        } else {
+                            newCertifications.getUserIdCerts(userId).add(cert);
+                        }
                     }
                 }
 
+                ArrayList<PGPUserAttributeSubpacketVector> knownAttributes = new ArrayList<>();
+                for (PGPUserAttributeSubpacketVector vector :
+                        new IterableIterator<PGPUserAttributeSubpacketVector>(resultKey.getUserAttributes())) {
+                    knownAttributes.add(vector);
+                }
+
                 // Copy over all user attribute certificates
                 for (PGPUserAttributeSubpacketVector vector :
                         new IterableIterator<PGPUserAttributeSubpacketVector>(key.getUserAttributes())) {
@@ -1210,17 +1391,26 @@ public class UncachedKeyRing {
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(getCertDigest(digest, cert))) {
                             continue;
                         }
                         newCerts += 1;
-                        certs.add(encoded);
-                        modified = PGPPublicKey.addCertification(modified, vector, cert);
+                        if (!knownAttributes.contains(vector)) {
+                            // the attribute is new, adding its first cert adds the attribute itself
+                            knownAttributes.add(vector);
+                            modified = PGPPublicKey.addCertification(modified, vector, cert);
+                        } else {
+                            newCertifications.getAttributeCerts(vector).add(cert);
+                        }
                     }
                 }
 
+                // add the collected certifications in a single pass
+                if (!newCertifications.isEmpty()) {
+                    modified = addCertifications(modified, newCertifications);
+                }
+
                 // If anything change, save the updated (sub)key
                 if (modified != resultKey) {
                     result = replacePublicKey(result, modified);
@@ -1244,6 +1434,117 @@ public class UncachedKeyRing {
 
     }
 
+    /** Returns the digests of all certificates in a keyring. */
+    private static HashSet<ByteBuffer> getCertDigests(PGPKeyRing ring, MessageDigest digest)
+            throws IOException {
+        HashSet<ByteBuffer> certDigests = new HashSet<>();
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(ring.getPublicKeys())) {
+            for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                certDigests.add(getCertDigest(digest, cert));
+            }
+        }
+        return certDigests;
+    }
+
+    /** Certifications to be added to a master key, grouped by what they certify. */
+    private static class NewCertifications {
+        final ArrayList<PGPSignature> mKeyCerts = new ArrayList<>();
+        final HashMap<ByteBuffer, ArrayList<PGPSignature>> mUserIdCerts = new HashMap<>();
+        final HashMap<PGPUserAttributeSubpacketVector, ArrayList<PGPSignature>> mAttributeCerts =
+                new HashMap<>();
+
+        ArrayList<PGPSignature> getUserIdCerts(ByteBuffer userId) {
+            ArrayList<PGPSignature> result = mUserIdCerts.get(userId);
+            if (result == null) {
+                result = new ArrayList<>();
+                mUserIdCerts.put(userId, result);
+            }
+            return result;
+        }
+
+        ArrayList<PGPSignature> getAttributeCerts(PGPUserAttributeSubpacketVector vector) {
+            ArrayList<PGPSignature> result = mAttributeCerts.get(vector);
+            if (result == null) {
+                result = new ArrayList<>();
+                mAttributeCerts.put(vector, result);
+            }
+            return result;
+        }
+
+        boolean isEmpty() {
+            return mKeyCerts.isEmpty() && mUserIdCerts.isEmpty() && mAttributeCerts.isEmpty();
+        }
+    }
+
+    /** Adds certifications to a master key, which must already contain all user ids and
+     * attributes they refer to.
+     *
+     * PGPPublicKey.addCertification copies the key for every single certificate, which is
+     * quadratic in the number of certificates. Instead, the packets of the key are written
+     * out once, with the new certificates appended to the packet group they belong to, and
+     * the key is parsed again from the result.
+     */
+    private static PGPPublicKey addCertifications(PGPPublicKey key, NewCertifications newCerts)
+            throws IOException {
+
+        ArrayList<PGPUserAttributeSubpacketVector> attributes = new ArrayList<>();
+        for (PGPUserAttributeSubpacketVector vector :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(key.getUserAttributes())) {
+            attributes.add(vector);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BCPGInputStream in = new BCPGInputStream(new ByteArrayInputStream(key.getEncoded()));
+
+        // certificates for the packet group which is currently being written
+        List<PGPSignature> pending = newCerts.mKeyCerts;
+        int attributeIndex = 0;
+        while (in.nextPacketTag() >= 0) {
+            Packet packet = in.readPacket();
+            if (packet instanceof UserIDPacket || packet instanceof UserAttributePacket) {
+                // a new group starts, so the previous one is complete
+                for (PGPSignature cert : pending) {
+                    cert.encode(out);
+                }
+                if (packet instanceof UserIDPacket) {
+                    pending = newCerts.mUserIdCerts.remove(
+                            ByteBuffer.wrap(((UserIDPacket) packet).getRawID()));
+                } else {
+                    pending = newCerts.mAttributeCerts.remove(attributes.get(attributeIndex++));
+                }
+                if (pending == null) {
+                    pending = Collections.emptyList();
+                }
+            }
+            out.write(((ContainedPacket) packet).getEncoded());
+        }
+        for (PGPSignature cert : pending) {
+            cert.encode(out);
+        }
+
+        if (!newCerts.mUserIdCerts.isEmpty() || !newCerts.mAttributeCerts.isEmpty()) {
+            throw new IOException("certifications for unknown user ids or attributes!");
+        }
+
+        return new PGPPublicKeyRing(out.toByteArray(), new JcaKeyFingerprintCalculator()).getPublicKey();
+    }
+
+    private static MessageDigest getCertDigestInstance() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is not available!");
+        }
+    }
+
+    /** Returns a SHA-256 digest over the packet encoding of a certificate. The full digest
+     * is kept (rather than a shorter hash), since a collision would silently drop a cert.
+     */
+    private static ByteBuffer getCertDigest(MessageDigest digest, PGPSignature cert)
+            throws IOException {
+        return ByteBuffer.wrap(digest.digest(cert.getEncoded()));
+    }
+
     public UncachedKeyRing extractPublicKeyRing() throws IOException {
         if(!isSecret()) {
             throw new RuntimeException("Tried to extract public keyring from non-secret keyring. " +
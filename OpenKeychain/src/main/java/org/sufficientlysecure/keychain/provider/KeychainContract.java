@@ -23,11 +23,14 @@ import android.provider.BaseColumns;
 
 import org.sufficientlysecure.keychain.Constants;
 
+import java.util.Collection;
+
 public class KeychainContract {
 
     interface KeyRingsColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String KEY_RING_DATA = "key_ring_data"; // PGPPublicKeyRing / PGPSecretKeyRing blob
+        String KEY_RING_DIGEST = "key_ring_digest"; // sha256 of key_ring_data, public keyrings only
     }
 
     interface KeysColumns {
@@ -111,6 +114,7 @@ public class KeychainContract {
 
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
+    public static final String PATH_BY_EMAILS = "emails";
     public static final String PATH_BY_SUBKEY = "subkey";
     public static final String PATH_BY_USER_ID = "user_id";
 
@@ -178,6 +182,15 @@ public class KeychainContract {
                     .appendPath(PATH_BY_EMAIL).appendPath(email).build();
         }
 
+        /** Uri to find keys for several emails at once, each given as a query parameter. */
+        public static Uri buildUnifiedKeyRingsFindByEmailsUri(Collection<String> emails) {
+            Uri.Builder builder = CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_EMAILS);
+            for (String email : emails) {
+                builder.appendQueryParameter(PATH_BY_EMAIL, email);
+            }
+            return builder.build();
+        }
+
         public static Uri buildUnifiedKeyRingsFindByUserIdUri(String query) {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
                     .appendPath(PATH_BY_USER_ID).appendPath(query).build();
@@ -241,6 +254,10 @@ public class KeychainContract {
         public static final String CONTENT_ITEM_TYPE
                 = "vnd.android.cursor.item/vnd.org.sufficientlysecure.keychain.provider.keychain.keys";
 
+        public static Uri buildAllKeysUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_KEYS).build();
+        }
+
         public static Uri buildKeysUri(long masterKeyId) {
             return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).appendPath(PATH_KEYS).build();
         }
@@ -54,7 +54,7 @@ import java.io.IOException;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 16;
+    private static final int DATABASE_VERSION = 18;
     static Boolean apgHack = false;
     private Context mContext;
 
@@ -73,7 +73,8 @@ public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String CREATE_KEYRINGS_PUBLIC =
             "CREATE TABLE IF NOT EXISTS keyrings_public ("
                 + KeyRingsColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY,"
-                + KeyRingsColumns.KEY_RING_DATA + " BLOB"
+                + KeyRingsColumns.KEY_RING_DATA + " BLOB,"
+                + KeyRingsColumns.KEY_RING_DIGEST + " BLOB"
             + ")";
 
     private static final String CREATE_KEYRINGS_SECRET =
@@ -229,6 +230,8 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + UserPacketsColumns.USER_ID + ", " + UserPacketsColumns.MASTER_KEY_ID + ");");
         db.execSQL("CREATE INDEX verified_certs ON certs ("
                 + CertsColumns.VERIFIED + ", " + CertsColumns.MASTER_KEY_ID + ");");
+        db.execSQL("CREATE INDEX uids_by_name ON user_packets (name COLLATE NOCASE)");
+        db.execSQL("CREATE INDEX uids_by_email ON user_packets (email COLLATE NOCASE)");
 
     }
 
@@ -312,9 +315,16 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 db.execSQL("ALTER TABLE user_packets ADD COLUMN email TEXT");
                 db.execSQL("ALTER TABLE user_packets ADD COLUMN comment TEXT");
             case 15:
-                db.execSQL("CREATE INDEX uids_by_name ON user_packets (name COLLATE NOCASE)");
-                db.execSQL("CREATE INDEX uids_by_email ON user_packets (email COLLATE NOCASE)");
-                if (oldVersion == 14) {
+                db.execSQL("CREATE INDEX IF NOT EXISTS uids_by_name ON user_packets (name COLLATE NOCASE)");
+                db.execSQL("CREATE INDEX IF NOT EXISTS uids_by_email ON user_packets (email COLLATE NOCASE)");
+            case 16:
+                // digests are filled in as keyrings are saved, a missing one is never a match
+                db.execSQL("ALTER TABLE keyrings_public ADD COLUMN key_ring_digest BLOB");
+            case 17:
+                // databases created since version 15 were missing these, see onCreate
+                db.execSQL("CREATE INDEX IF NOT EXISTS uids_by_name ON user_packets (name COLLATE NOCASE)");
+                db.execSQL("CREATE INDEX IF NOT EXISTS uids_by_email ON user_packets (email COLLATE NOCASE)");
+                if (oldVersion == 14 || oldVersion == 16 || oldVersion == 17) {
                     // no consolidate necessary
                     return;
                 }
@@ -489,6 +499,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         getWritableDatabase().execSQL("delete from " + Tables.API_ACCOUNTS);
         getWritableDatabase().execSQL("delete from " + Tables.API_ALLOWED_KEYS);
         getWritableDatabase().execSQL("delete from " + Tables.API_APPS);
+        ProviderHelper.invalidateSecretKeyCaches();
     }
 
 }
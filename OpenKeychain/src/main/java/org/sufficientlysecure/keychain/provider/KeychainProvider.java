@@ -20,7 +20,10 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -46,6 +49,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColu
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
@@ -57,6 +61,7 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RINGS_PUBLIC = 102;
     private static final int KEY_RINGS_SECRET = 103;
     private static final int KEY_RINGS_USER_IDS = 104;
+    private static final int KEY_RINGS_KEYS = 105;
 
     private static final int KEY_RING_UNIFIED = 200;
     private static final int KEY_RING_KEYS = 201;
@@ -77,6 +82,7 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RINGS_FIND_BY_EMAIL = 400;
     private static final int KEY_RINGS_FIND_BY_SUBKEY = 401;
     private static final int KEY_RINGS_FIND_BY_USER_ID = 402;
+    private static final int KEY_RINGS_FIND_BY_EMAILS = 403;
 
     private static final int UPDATED_KEYS = 500;
     private static final int UPDATED_KEYS_SPECIFIC = 501;
@@ -100,6 +106,7 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/public
          * key_rings/secret
          * key_rings/user_ids
+         * key_rings/keys
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
@@ -114,12 +121,16 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
                         + "/" + KeychainContract.PATH_USER_IDS,
                 KEY_RINGS_USER_IDS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
+                        + "/" + KeychainContract.PATH_KEYS,
+                KEY_RINGS_KEYS);
 
         /**
          * find by criteria other than master key id
          *
          * key_rings/find/email/_
          * key_rings/find/subkey/_
+         * key_rings/find/emails?email=_&email=_
          *
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -131,6 +142,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                         + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_USER_ID + "/*",
                 KEY_RINGS_FIND_BY_USER_ID);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                        + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_EMAILS,
+                KEY_RINGS_FIND_BY_EMAILS);
 
         /**
          * list key_ring specifics
@@ -218,6 +232,8 @@ public class KeychainProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mUriMatcher = buildUriMatcher();
+        // the database may have been replaced since keys were last cached in this process
+        ProviderHelper.invalidateSecretKeyCaches();
         return true;
     }
 
@@ -237,6 +253,7 @@ public class KeychainProvider extends ContentProvider {
             case KEY_RING_PUBLIC:
                 return KeyRings.CONTENT_ITEM_TYPE;
 
+            case KEY_RINGS_KEYS:
             case KEY_RING_KEYS:
                 return Keys.CONTENT_TYPE;
 
@@ -491,6 +508,50 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_RINGS_FIND_BY_EMAILS: {
+                // one row per key and matching email, using the email index instead of the unified join
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(KeyRings._ID, Tables.USER_PACKETS + ".oid AS _id");
+                projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
+                projectionMap.put(KeyRings.EMAIL, Tables.USER_PACKETS + "." + UserPackets.EMAIL);
+                projectionMap.put(KeyRings.IS_REVOKED, Tables.KEYS + "." + Keys.IS_REVOKED);
+                projectionMap.put(KeyRings.IS_EXPIRED,
+                        "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
+                                + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.USER_PACKETS
+                        + " INNER JOIN " + Tables.KEYS + " ON ("
+                            + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " = "
+                                + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID
+                            + " AND " + Tables.KEYS + "." + Keys.RANK + " = 0"
+                        + ")");
+
+                List<String> emails = uri.getQueryParameters(KeychainContract.PATH_BY_EMAIL);
+                if (emails.isEmpty()) {
+                    Log.e(Constants.TAG, "Malformed find by emails query!");
+                    qb.appendWhere("0");
+                } else {
+                    qb.appendWhere(Tables.USER_PACKETS + "." + UserPackets.EMAIL + " COLLATE NOCASE IN (");
+                    for (int i = 0; i < emails.size(); i++) {
+                        if (i != 0) {
+                            qb.appendWhere(", ");
+                        }
+                        qb.appendWhereEscapeString(emails.get(i));
+                    }
+                    qb.appendWhere(")");
+                }
+                // a key may carry the same email in several user ids
+                groupBy = Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                        + ", " + Tables.USER_PACKETS + "." + UserPackets.EMAIL + " COLLATE NOCASE";
+
+                // uri to watch is all /key_rings/
+                uri = KeyRings.CONTENT_URI;
+
+                break;
+            }
+
+            case KEY_RINGS_KEYS:
             case KEY_RING_KEYS: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(Keys._ID, Tables.KEYS + ".oid AS _id");
@@ -512,8 +573,10 @@ public class KeychainProvider extends ContentProvider {
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEYS);
-                qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
-                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                if (match == KEY_RING_KEYS) {
+                    qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
+                    qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                }
 
                 break;
             }
@@ -573,6 +636,7 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRingData._ID, Tables.KEY_RINGS_PUBLIC + ".oid AS _id");
                 projectionMap.put(KeyRingData.MASTER_KEY_ID, KeyRingData.MASTER_KEY_ID);
                 projectionMap.put(KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA);
+                projectionMap.put(KeyRingData.KEY_RING_DIGEST, KeyRingData.KEY_RING_DIGEST);
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEY_RINGS_PUBLIC);
@@ -768,6 +832,26 @@ public class KeychainProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Applies all operations in a single transaction, so a keyring is either saved completely
+     * or not changed at all.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -20,10 +20,12 @@ package org.sufficientlysecure.keychain.provider;
 
 
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
@@ -58,6 +60,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
@@ -70,11 +73,14 @@ import org.sufficientlysecure.keychain.util.Utf8Util;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -211,7 +217,146 @@ public class ProviderHelper {
         return getGenericData(KeyRings.buildUnifiedKeyRingUri(masterKeyId), proj, types);
     }
 
+    /**
+     * Process-wide cache of the master keys of all keyrings we have a secret key for. These are
+     * needed to verify third-party certificates for every saved keyring, so we only load them once
+     * and keep them until a secret keyring is saved or deleted. The cached array is never modified
+     * after it is created, so it can be shared between import threads.
+     */
+    private static final Object sTrustedKeysLock = new Object();
+    private static LongSparseArray<CanonicalizedPublicKey> sTrustedKeysCache;
+
+    /**
+     * Keyrings may also be changed by another of our processes, which does not invalidate the
+     * caches here. Since any change of a keyring is notified through the content provider,
+     * such a notification marks the caches for a check against the secret subkey index on
+     * next use. Reloading that index takes a single query, and only if our secret keys did
+     * change, the trusted keys are decoded again.
+     */
+    private static ContentObserver sKeyRingsObserver;
+    private static boolean sKeyRingsChanged;
+
     private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
+        synchronized (sTrustedKeysLock) {
+            checkSecretKeyCaches();
+            if (sTrustedKeysCache == null) {
+                sTrustedKeysCache = loadTrustedMasterKeys();
+            }
+            return sTrustedKeysCache;
+        }
+    }
+
+    /** Must be called whenever a secret keyring is saved or deleted. */
+    public static void invalidateSecretKeyCaches() {
+        synchronized (sTrustedKeysLock) {
+            sTrustedKeysCache = null;
+            sSecretSubkeysCache = null;
+        }
+    }
+
+    /** Loads the secret subkey index if needed, and drops the trusted keys if our secret keys changed. */
+    private void checkSecretKeyCaches() {
+        if (sKeyRingsObserver == null) {
+            sKeyRingsObserver = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    synchronized (sTrustedKeysLock) {
+                        sKeyRingsChanged = true;
+                    }
+                }
+            };
+            mContext.getApplicationContext().getContentResolver().registerContentObserver(
+                    KeyRings.CONTENT_URI, true, sKeyRingsObserver);
+        }
+
+        if (sSecretSubkeysCache != null && !sKeyRingsChanged) {
+            return;
+        }
+        sKeyRingsChanged = false;
+
+        LongSparseArray<SecretSubkey> secretSubkeys = loadSecretSubkeys();
+        if (sSecretSubkeysCache == null || !isSameSecretSubkeys(sSecretSubkeysCache, secretSubkeys)) {
+            sTrustedKeysCache = null;
+        }
+        sSecretSubkeysCache = secretSubkeys;
+    }
+
+    /** A subkey of a keyring we have a secret key for, as stored in the secret subkey index. */
+    public static class SecretSubkey {
+        public final long mMasterKeyId;
+        public final SecretKeyType mSecretKeyType;
+        final boolean mIsRevoked;
+        final Long mExpiry;
+
+        SecretSubkey(long masterKeyId, SecretKeyType secretKeyType, boolean isRevoked, Long expiry) {
+            mMasterKeyId = masterKeyId;
+            mSecretKeyType = secretKeyType;
+            mIsRevoked = isRevoked;
+            mExpiry = expiry;
+        }
+
+        boolean isSameAs(SecretSubkey other) {
+            return mMasterKeyId == other.mMasterKeyId && mSecretKeyType == other.mSecretKeyType
+                    && mIsRevoked == other.mIsRevoked
+                    && (mExpiry == null ? other.mExpiry == null : mExpiry.equals(other.mExpiry));
+        }
+    }
+
+    private static boolean isSameSecretSubkeys(
+            LongSparseArray<SecretSubkey> a, LongSparseArray<SecretSubkey> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.keyAt(i) != b.keyAt(i) || !a.valueAt(i).isSameAs(b.valueAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Process-wide index of all subkeys of keyrings we have a secret key for, by subkey id. This
+     * is used to match the recipients of encrypted messages, most of which are usually not us,
+     * without a database query for each of them. Shares lifetime and lock with the cache above.
+     */
+    private static LongSparseArray<SecretSubkey> sSecretSubkeysCache;
+
+    /**
+     * Returns the master key id and secret key type for a subkey of one of our secret keyrings,
+     * or null if the subkey does not belong to any keyring we have a secret key for.
+     */
+    public SecretSubkey getSecretSubkey(long subKeyId) {
+        synchronized (sTrustedKeysLock) {
+            checkSecretKeyCaches();
+            return sSecretSubkeysCache.get(subKeyId);
+        }
+    }
+
+    private LongSparseArray<SecretSubkey> loadSecretSubkeys() {
+        LongSparseArray<SecretSubkey> result = new LongSparseArray<>();
+
+        // all keys of keyrings with a secret part, the secret table only holds our own few
+        Cursor cursor = mContentResolver.query(Keys.buildAllKeysUri(), new String[]{
+                Keys.MASTER_KEY_ID, Keys.KEY_ID, Keys.HAS_SECRET, Keys.IS_REVOKED, Keys.EXPIRY
+        }, Keys.MASTER_KEY_ID + " IN (SELECT " + KeyRingData.MASTER_KEY_ID
+                + " FROM " + Tables.KEY_RINGS_SECRET + ")", null, null);
+        try {
+            if (cursor != null && cursor.moveToFirst()) do {
+                Long expiry = cursor.isNull(4) ? null : cursor.getLong(4);
+                result.put(cursor.getLong(1), new SecretSubkey(cursor.getLong(0),
+                        SecretKeyType.fromNum(cursor.getInt(2)), cursor.getInt(3) != 0, expiry));
+            } while (cursor.moveToNext());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return result;
+    }
+
+    private LongSparseArray<CanonicalizedPublicKey> loadTrustedMasterKeys() {
         Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(), new String[]{
                 KeyRings.MASTER_KEY_ID,
                 // we pick from cache only information that is not easily available from keyrings
@@ -335,9 +480,20 @@ public class ProviderHelper {
      * to inserting. All public data is effectively re-inserted, secret keyrings are left deleted
      * and need to be saved externally to be preserved past the operation.
      */
-    @SuppressWarnings("unchecked")
     private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing,
                                                Progressable progress, boolean selfCertsAreTrusted) {
+        return saveCanonicalizedPublicKeyRing(keyRing, progress, selfCertsAreTrusted, null);
+    }
+
+    /**
+     * Saves an UncachedKeyRing of the public variant into the db, along with additional operations
+     * which are applied in the same transaction. These may restore the secret keyring, which is
+     * then never left deleted.
+     */
+    @SuppressWarnings("unchecked")
+    private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing,
+            Progressable progress, boolean selfCertsAreTrusted,
+            List<ContentProviderOperation> additionalOperations) {
 
         // start with ok result
         int result = SaveKeyringResult.SAVED_PUBLIC;
@@ -359,7 +515,9 @@ public class ProviderHelper {
                 ContentValues values = new ContentValues();
                 values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
                 try {
-                    values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
+                    byte[] encoded = keyRing.getEncoded();
+                    values.put(KeyRingData.KEY_RING_DATA, encoded);
+                    values.put(KeyRingData.KEY_RING_DIGEST, getKeyRingDigest(encoded));
                 } catch (IOException e) {
                     log(LogType.MSG_IP_ENCODE_FAIL);
                     return SaveKeyringResult.RESULT_ERROR;
@@ -714,21 +872,28 @@ public class ProviderHelper {
         }
         lastUpdatedCursor.close();
 
+        if (additionalOperations != null) {
+            operations.addAll(additionalOperations);
+        }
+
+        // delete old version of this keyRing, which also deletes all keys and userIds on cascade.
+        // this is part of the batch, which the provider applies in a single transaction
+        operations.add(0, ContentProviderOperation.newDelete(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId)).build());
+
         try {
-            // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-            int deleted = mContentResolver.delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
-            if (deleted > 0) {
+            log(LogType.MSG_IP_APPLY_BATCH);
+            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
+            ContentProviderResult[] results =
+                    mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+
+            if (results.length > 0 && results[0].count != null && results[0].count > 0) {
                 log(LogType.MSG_IP_DELETE_OLD_OK);
                 result |= SaveKeyringResult.UPDATED;
             } else {
                 log(LogType.MSG_IP_DELETE_OLD_FAIL);
             }
 
-            log(LogType.MSG_IP_APPLY_BATCH);
-            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
-            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
-
             log(LogType.MSG_IP_SUCCESS);
             progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
             return result;
@@ -805,7 +970,9 @@ public class ProviderHelper {
                 values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
                 // insert new version of this keyRing
                 Uri uri = KeyRingData.buildSecretKeyRingUri(masterKeyId);
-                if (mContentResolver.insert(uri, values) == null) {
+                Uri insertedUri = mContentResolver.insert(uri, values);
+                invalidateSecretKeyCaches();
+                if (insertedUri == null) {
                     log(LogType.MSG_IS_DB_EXCEPTION);
                     return SaveKeyringResult.RESULT_ERROR;
                 }
@@ -872,6 +1039,9 @@ public class ProviderHelper {
                 // with has_secret = 1
             }
 
+            // the secret subkey index must see the updated secret key types
+            invalidateSecretKeyCaches();
+
             log(LogType.MSG_IS_SUCCESS);
             return result;
 
@@ -881,6 +1051,33 @@ public class ProviderHelper {
 
     }
 
+    /** Returns the digest of a public keyring as stored, or null if there is none yet. */
+    private byte[] getPublicKeyRingDigest(long masterKeyId) {
+        try {
+            return (byte[]) getGenericData(KeyRingData.buildPublicKeyRingUri(masterKeyId),
+                    KeyRingData.KEY_RING_DIGEST, FIELD_TYPE_BLOB, null);
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    static byte[] getKeyRingDigest(byte[] encodedKeyRing) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(encodedKeyRing);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is not available!");
+        }
+    }
+
+    /** Canonicalizes a public keyring for saving. Third-party certificates are limited to the
+     * configured budget per user id, preferring those made by our own keys.
+     */
+    private CanonicalizedPublicKeyRing canonicalizePublicKeyRing(UncachedKeyRing publicRing) {
+        int maxThirdPartyCerts = Preferences.getPreferences(mContext).getMaxThirdPartyCertifications();
+        return (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent, false,
+                maxThirdPartyCerts, getTrustedMasterKeys());
+    }
+
     public SaveKeyringResult savePublicKeyRing(UncachedKeyRing keyRing) {
         return savePublicKeyRing(keyRing, new ProgressScaler(), null);
     }
@@ -905,6 +1102,15 @@ public class ProviderHelper {
 
             CanonicalizedPublicKeyRing canPublicRing;
 
+            // If we already store exactly this keyring, there is nothing to merge. An expected
+            // fingerprint must be checked on the canonicalized keyring though, see below.
+            byte[] oldDigest = getPublicKeyRingDigest(masterKeyId);
+            if (oldDigest != null && expectedFingerprint == null
+                    && MessageDigest.isEqual(oldDigest, getKeyRingDigest(publicRing.getEncoded()))) {
+                log(LogType.MSG_IP_SUCCESS_IDENTICAL);
+                return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
+            }
+
             // If there is an old keyring, merge it
             try {
                 UncachedKeyRing oldPublicRing = getCanonicalizedPublicKeyRing(masterKeyId).getUncachedKeyRing();
@@ -919,14 +1125,21 @@ public class ProviderHelper {
                 }
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                canPublicRing = canonicalizePublicKeyRing(publicRing);
                 if (canPublicRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
 
+                // If we have an expected fingerprint, make sure it matches before anything else
+                if (!checkExpectedFingerprint(canPublicRing, expectedFingerprint)) {
+                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                }
+
                 // Early breakout if nothing changed
-                if (Arrays.hashCode(publicRing.getEncoded())
-                        == Arrays.hashCode(oldPublicRing.getEncoded())) {
+                if (oldDigest == null) {
+                    oldDigest = getKeyRingDigest(oldPublicRing.getEncoded());
+                }
+                if (MessageDigest.isEqual(oldDigest, getKeyRingDigest(canPublicRing.getEncoded()))) {
                     log(LogType.MSG_IP_SUCCESS_IDENTICAL);
                     return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
                 }
@@ -934,11 +1147,15 @@ public class ProviderHelper {
                 // Not an issue, just means we are dealing with a new keyring.
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                canPublicRing = canonicalizePublicKeyRing(publicRing);
                 if (canPublicRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
 
+                if (!checkExpectedFingerprint(canPublicRing, expectedFingerprint)) {
+                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                }
+
             }
 
             // If there is a secret key, merge new data (if any) and save the key for later
@@ -965,16 +1182,6 @@ public class ProviderHelper {
             }
 
 
-            // If we have an expected fingerprint, make sure it matches
-            if (expectedFingerprint != null) {
-                if (!canPublicRing.containsBoundSubkey(expectedFingerprint)) {
-                    log(LogType.MSG_IP_FINGERPRINT_ERROR);
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
-                } else {
-                    log(LogType.MSG_IP_FINGERPRINT_OK);
-                }
-            }
-
             int result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, canSecretRing != null);
 
             // Save the saved keyring (if any)
@@ -997,6 +1204,19 @@ public class ProviderHelper {
 
     }
 
+    /** Returns false if there is an expected fingerprint, and it is not bound to the keyring. Logs either way. */
+    private boolean checkExpectedFingerprint(CanonicalizedPublicKeyRing canPublicRing, String expectedFingerprint) {
+        if (expectedFingerprint == null) {
+            return true;
+        }
+        if (!canPublicRing.containsBoundSubkey(expectedFingerprint)) {
+            log(LogType.MSG_IP_FINGERPRINT_ERROR);
+            return false;
+        }
+        log(LogType.MSG_IP_FINGERPRINT_OK);
+        return true;
+    }
+
     public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing, Progressable progress) {
 
         try {
@@ -1081,8 +1301,7 @@ public class ProviderHelper {
                 publicRing = secretRing.extractPublicKeyRing();
             }
 
-            CanonicalizedPublicKeyRing canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog,
-                    mIndent);
+            CanonicalizedPublicKeyRing canPublicRing = canonicalizePublicKeyRing(publicRing);
             if (canPublicRing == null) {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
@@ -1311,6 +1530,7 @@ public class ProviderHelper {
 
             log.add(LogType.MSG_CON_DB_CLEAR, indent);
             mContentResolver.delete(KeyRings.buildUnifiedKeyRingsUri(), null, null);
+            invalidateSecretKeyCaches();
 
             ParcelableFileCache<ParcelableKeyRing> cacheSecret, cachePublic;
 
@@ -1413,6 +1633,257 @@ public class ProviderHelper {
 
     }
 
+    /**
+     * Incremental alternative to a full consolidate, for use after new secret keys were imported.
+     * <p/>
+     * The has_secret flags of the new keys are already written when their secret keyrings are
+     * saved. What is left are the VERIFIED_SECRET certifications the new keys issued on other keys,
+     * which were not verified when those keys were saved. Instead of wiping and reimporting the
+     * whole database, we scan the stored public keyrings for signatures issued by one of the new
+     * keys, and reinsert only those keyrings. Each keyring is reinserted on its own, so an
+     * interruption leaves the database consistent, just with some certifications not yet updated.
+     */
+    @NonNull
+    public ConsolidateResult consolidateDatabaseIncremental(
+            long[] newSecretMasterKeyIds, Progressable progress) {
+
+        OperationLog log = new OperationLog();
+        int indent = 0;
+
+        log.add(LogType.MSG_CON_INC, indent);
+        indent += 1;
+
+        synchronized (ProviderHelper.class) {
+            if (mConsolidateCritical) {
+                log.add(LogType.MSG_CON_ERROR_CONCURRENT, indent);
+                return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
+            }
+            mConsolidateCritical = true;
+        }
+
+        try {
+
+            HashSet<Long> newSecretKeys = new HashSet<>();
+            for (long masterKeyId : newSecretMasterKeyIds) {
+                newSecretKeys.add(masterKeyId);
+            }
+
+            // 1. find all keyrings which carry a signature from one of the new secret keys. only
+            // keyrings which changed since they were last scanned need to be decoded for this
+            ArrayList<Long> affectedMasterKeyIds = new ArrayList<>();
+
+            Cursor cursor = mContentResolver.query(KeyRingData.buildPublicKeyRingUri(),
+                    new String[]{ KeyRingData.MASTER_KEY_ID, KeyRingData.KEY_RING_DIGEST },
+                    null, null, null);
+            if (cursor == null) {
+                log.add(LogType.MSG_CON_INC_ERROR_DB, indent);
+                return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
+            }
+
+            try {
+                log.add(LogType.MSG_CON_INC_SCAN, indent, cursor.getCount());
+
+                int numRings = cursor.getCount(), position = 0;
+                while (cursor.moveToNext()) {
+                    progress.setProgress(R.string.progress_con_reimport, position++ * 50 / numRings, 100);
+
+                    long masterKeyId = cursor.getLong(0);
+                    // the new keys themselves were saved with their secret parts in place
+                    if (newSecretKeys.contains(masterKeyId)) {
+                        continue;
+                    }
+
+                    try {
+                        long[] certifierIds = getCertifierIds(masterKeyId, cursor.getBlob(1));
+                        if (containsAny(certifierIds, newSecretKeys)) {
+                            affectedMasterKeyIds.add(masterKeyId);
+                        }
+                    } catch (IOException | PgpGeneralException e) {
+                        Log.e(Constants.TAG, "error decoding stored keyring", e);
+                        log.add(LogType.MSG_CON_INC_WARN_BAD_KEY, indent + 1,
+                                KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (affectedMasterKeyIds.isEmpty()) {
+                log.add(LogType.MSG_CON_INC_SKIP, indent);
+                progress.setProgress(100, 100);
+                return new ConsolidateResult(ConsolidateResult.RESULT_OK, log);
+            }
+
+            // 2. reinsert affected keyrings, which re-verifies certifications from our own keys
+            int updated = 0, position = 0;
+            for (long masterKeyId : affectedMasterKeyIds) {
+                progress.setProgress(R.string.progress_con_reimport,
+                        50 + position++ * 50 / affectedMasterKeyIds.size(), 100);
+
+                log.add(LogType.MSG_CON_INC_REINSERT, indent,
+                        KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+                if (reinsertKeyRing(masterKeyId)) {
+                    updated += 1;
+                } else {
+                    log.add(LogType.MSG_CON_INC_WARN_REINSERT, indent + 1,
+                            KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+                }
+            }
+
+            progress.setProgress(100, 100);
+            log.add(LogType.MSG_CON_INC_SUCCESS, indent, updated);
+
+            return new ConsolidateResult(ConsolidateResult.RESULT_OK, log);
+
+        } finally {
+            mConsolidateCritical = false;
+        }
+
+    }
+
+    /**
+     * Process-wide cache of the ids of all keys which issued a certificate on a stored public
+     * keyring, by master key id. Each entry carries the digest of the keyring data it was read
+     * from, and is only used while the stored keyring still has that digest. This way, an
+     * incremental consolidate only decodes keyrings which changed since the last one.
+     */
+    private static final LongSparseArray<CertifierIds> sCertifierIdsCache = new LongSparseArray<>();
+
+    private static class CertifierIds {
+        final byte[] mDigest;
+        final long[] mKeyIds;
+
+        CertifierIds(byte[] digest, long[] keyIds) {
+            mDigest = digest;
+            mKeyIds = keyIds;
+        }
+    }
+
+    /**
+     * Returns the ids of all keys which issued a certificate on a stored public keyring, decoding
+     * the keyring only if its digest does not match the cached entry.
+     */
+    private long[] getCertifierIds(long masterKeyId, byte[] digest)
+            throws IOException, PgpGeneralException {
+        synchronized (sCertifierIdsCache) {
+            CertifierIds cached = sCertifierIdsCache.get(masterKeyId);
+            if (cached != null && digest != null && Arrays.equals(cached.mDigest, digest)) {
+                return cached.mKeyIds;
+            }
+        }
+
+        byte[] data;
+        try {
+            data = (byte[]) getGenericData(KeyRingData.buildPublicKeyRingUri(masterKeyId),
+                    KeyRingData.KEY_RING_DATA, FIELD_TYPE_BLOB);
+        } catch (NotFoundException e) {
+            // deleted in the meantime
+            return new long[0];
+        }
+
+        UncachedKeyRing ring = UncachedKeyRing.decodeFromData(data);
+        HashSet<Long> keyIds = new HashSet<>();
+        Iterator<WrappedSignature> it = ring.getPublicKey().getSignatures();
+        while (it.hasNext()) {
+            keyIds.add(it.next().getKeyId());
+        }
+        long[] result = new long[keyIds.size()];
+        int i = 0;
+        for (long keyId : keyIds) {
+            result[i++] = keyId;
+        }
+
+        synchronized (sCertifierIdsCache) {
+            // tagged with the digest of the data we actually decoded
+            sCertifierIdsCache.put(masterKeyId, new CertifierIds(getKeyRingDigest(data), result));
+        }
+        return result;
+    }
+
+    private static boolean containsAny(long[] keyIds, HashSet<Long> set) {
+        for (long keyId : keyIds) {
+            if (set.contains(keyId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reinserts a keyring as it is stored in the database, along with its secret keyring if
+     * there is one. The stored keyrings are already canonicalized, so no merge or
+     * canonicalization is necessary here. Since reinserting the public keyring deletes the
+     * secret one, both are written in a single transaction.
+     */
+    boolean reinsertKeyRing(long masterKeyId) {
+        // the log of these is not interesting, we only keep the log of the consolidate
+        OperationLog oldLog = mLog;
+        mLog = null;
+
+        try {
+            CanonicalizedPublicKeyRing canPublicRing = getCanonicalizedPublicKeyRing(masterKeyId);
+
+            CanonicalizedSecretKeyRing canSecretRing;
+            try {
+                canSecretRing = getCanonicalizedSecretKeyRing(masterKeyId);
+            } catch (NotFoundException e) {
+                canSecretRing = null;
+            }
+
+            List<ContentProviderOperation> secretOperations = null;
+            if (canSecretRing != null) {
+                secretOperations = buildSecretKeyRingOperations(canSecretRing);
+            }
+
+            int result = saveCanonicalizedPublicKeyRing(canPublicRing, new ProgressScaler(),
+                    canSecretRing != null, secretOperations);
+            if (canSecretRing != null) {
+                invalidateSecretKeyCaches();
+            }
+            return (result & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR;
+
+        } catch (NotFoundException e) {
+            // may have been deleted in the meantime
+            return false;
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Failed to encode key!", e);
+            return false;
+        } finally {
+            mLog = oldLog;
+        }
+    }
+
+    /**
+     * Builds the operations to restore a secret keyring after its public keyring was reinserted,
+     * like saveCanonicalizedSecretKeyRing does. The batch fails if the secret keyring could not
+     * be inserted, so the transaction is rolled back instead of leaving it deleted.
+     */
+    private List<ContentProviderOperation> buildSecretKeyRingOperations(
+            CanonicalizedSecretKeyRing keyRing) throws IOException {
+        long masterKeyId = keyRing.getMasterKeyId();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+
+        ContentValues values = new ContentValues();
+        values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
+        values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
+        Uri secretUri = KeyRingData.buildSecretKeyRingUri(masterKeyId);
+        operations.add(ContentProviderOperation.newInsert(secretUri).withValues(values).build());
+        // the provider ignores constraint violations on insert, so check explicitly
+        operations.add(ContentProviderOperation.newAssertQuery(secretUri).withExpectedCount(1).build());
+
+        Uri keysUri = Keys.buildKeysUri(masterKeyId);
+        operations.add(ContentProviderOperation.newUpdate(keysUri)
+                .withValue(Keys.HAS_SECRET, SecretKeyType.GNU_DUMMY.getNum()).build());
+        for (CanonicalizedSecretKey sub : keyRing.secretKeyIterator()) {
+            operations.add(ContentProviderOperation.newUpdate(keysUri)
+                    .withValue(Keys.HAS_SECRET, sub.getSecretKeyTypeSuperExpensive().getNum())
+                    .withSelection(Keys.KEY_ID + " = ?", new String[]{ Long.toString(sub.getKeyId()) })
+                    .build());
+        }
+
+        return operations;
+    }
+
     /**
      * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
      */
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.util.SparseArray;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/** Remembers which calling UIDs were verified as registered API apps, for the lifetime of the process.
+ *
+ * Verifying a caller takes a query for the registered apps, a lookup of the package
+ * signatures and a comparison with the stored certificate. Clients like mail apps
+ * call the API for every message, so the result is remembered per UID, along with the
+ * package it was verified for. Only positive results are kept, callers that are not
+ * allowed always take the full check and registration path.
+ *
+ * All entries are dropped when the registered API apps change, or when any package
+ * is replaced or removed, since either can change the outcome of the check. Checks
+ * which were started before such a change do not enter their result, see getGeneration.
+ *
+ */
+public class ApiPermissionCache {
+
+    private static ApiPermissionCache sInstance;
+
+    private final SparseArray<String> mVerifiedPackages = new SparseArray<>();
+    private int mGeneration;
+
+    public static synchronized ApiPermissionCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ApiPermissionCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    ApiPermissionCache(Context context) {
+        context.getContentResolver().registerContentObserver(ApiApps.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate();
+            }
+        }, packageFilter);
+    }
+
+    /** Returns the package name verified for this UID, or null if there is none. */
+    public synchronized String getVerifiedPackage(int uid) {
+        return mVerifiedPackages.get(uid);
+    }
+
+    /** Returns the current generation, which must be obtained before a check is started. */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /** Remembers a verified package, unless the cache was invalidated since generation was obtained. */
+    public synchronized void putVerifiedPackage(int uid, String packageName, int generation) {
+        if (generation != mGeneration) {
+            Log.d(Constants.TAG, "permissions changed during check, not caching " + packageName);
+            return;
+        }
+        mVerifiedPackages.put(uid, packageName);
+    }
+
+    public synchronized void invalidate() {
+        mGeneration += 1;
+        mVerifiedPackages.clear();
+    }
+
+}
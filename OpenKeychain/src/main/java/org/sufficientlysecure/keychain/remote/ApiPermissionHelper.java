@@ -50,12 +50,14 @@ public class ApiPermissionHelper {
 
     private final Context mContext;
     private final ApiDataAccessObject mApiDao;
+    private final ApiPermissionCache mPermissionCache;
     private PackageManager mPackageManager;
 
     public ApiPermissionHelper(Context context, ApiDataAccessObject apiDao) {
         mContext = context;
         mPackageManager = context.getPackageManager();
         mApiDao = apiDao;
+        mPermissionCache = ApiPermissionCache.getInstance(context);
     }
 
     public static class WrongPackageCertificateException extends Exception {
@@ -213,11 +215,20 @@ public class ApiPermissionHelper {
     private boolean isUidAllowed(int uid)
             throws WrongPackageCertificateException {
 
+        String verifiedPkg = mPermissionCache.getVerifiedPackage(uid);
+        if (verifiedPkg != null) {
+            Log.d(Constants.TAG, "Uid was verified before, packageName: " + verifiedPkg);
+            return true;
+        }
+
+        // obtain before checking, so a change of permissions meanwhile is noticed
+        int generation = mPermissionCache.getGeneration();
         String[] callingPackages = mPackageManager.getPackagesForUid(uid);
 
         // is calling package allowed to use this service?
         for (String currentPkg : callingPackages) {
             if (isPackageAllowed(currentPkg)) {
+                mPermissionCache.putVerifiedPackage(uid, currentPkg, generation);
                 return true;
             }
         }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.SystemClock;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/** Finds the keys for a number of email addresses, using a single query for all of them.
+ *
+ * Revoked and expired keys are not considered. Results are kept for CACHE_TTL_MILLIS,
+ * since clients tend to ask for the same recipients repeatedly while a message is
+ * composed. The cache is cleared whenever any key ring changes.
+ *
+ */
+public class EmailKeyIdResolver {
+
+    static final long CACHE_TTL_MILLIS = 60 * 1000;
+    private static final int MAX_CACHED_EMAILS = 500;
+
+    private static final String[] PROJECTION = new String[]{
+            KeyRings._ID,
+            KeyRings.MASTER_KEY_ID,
+            KeyRings.EMAIL,
+            KeyRings.IS_EXPIRED,
+            KeyRings.IS_REVOKED,
+    };
+    private static final int INDEX_MASTER_KEY_ID = 1;
+    private static final int INDEX_EMAIL = 2;
+
+    // do not pre-select revoked or expired keys
+    private static final String WHERE = Tables.KEYS + "." + KeyRings.IS_REVOKED
+            + " = 0 AND " + KeyRings.IS_EXPIRED + " = 0";
+
+    private final ContentResolver mContentResolver;
+    private final ContentObserver mObserver;
+
+    // master key ids by lower case email, along with the time they were queried
+    private final HashMap<String, ArrayList<Long>> mCache = new HashMap<>();
+    private final HashMap<String, Long> mCacheTimes = new HashMap<>();
+
+    public EmailKeyIdResolver(Context context) {
+        mContentResolver = context.getContentResolver();
+        mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                clearCache();
+            }
+        };
+        mContentResolver.registerContentObserver(KeyRings.CONTENT_URI, true, mObserver);
+    }
+
+    /** Stops listening for key changes, the resolver must not be used afterwards. */
+    public void close() {
+        mContentResolver.unregisterContentObserver(mObserver);
+        clearCache();
+    }
+
+    /** The keys found for an email. */
+    public static class EmailKeyIds {
+        public final String mEmail;
+        public final List<Long> mMasterKeyIds;
+
+        EmailKeyIds(String email, List<Long> masterKeyIds) {
+            mEmail = email;
+            mMasterKeyIds = masterKeyIds;
+        }
+
+        public boolean isMissing() {
+            return mMasterKeyIds.isEmpty();
+        }
+
+        public boolean isDuplicate() {
+            return mMasterKeyIds.size() > 1;
+        }
+    }
+
+    /** Returns the keys for each of the emails, in the same order. */
+    public synchronized List<EmailKeyIds> resolve(List<String> emails) {
+        long now = SystemClock.elapsedRealtime();
+        if (mCache.size() > MAX_CACHED_EMAILS) {
+            clearCache();
+        }
+
+        ArrayList<String> uncachedEmails = new ArrayList<>();
+        for (String email : emails) {
+            String key = email.toLowerCase(Locale.ENGLISH);
+            Long cacheTime = mCacheTimes.get(key);
+            if ((cacheTime == null || now - cacheTime > CACHE_TTL_MILLIS) && !uncachedEmails.contains(key)) {
+                uncachedEmails.add(key);
+            }
+        }
+
+        if (!uncachedEmails.isEmpty()) {
+            queryEmails(uncachedEmails, now);
+        }
+
+        ArrayList<EmailKeyIds> result = new ArrayList<>(emails.size());
+        for (String email : emails) {
+            ArrayList<Long> masterKeyIds = mCache.get(email.toLowerCase(Locale.ENGLISH));
+            result.add(new EmailKeyIds(email, new ArrayList<>(masterKeyIds)));
+        }
+        return result;
+    }
+
+    private void queryEmails(ArrayList<String> emails, long now) {
+        for (String email : emails) {
+            mCache.put(email, new ArrayList<Long>());
+            mCacheTimes.put(email, now);
+        }
+
+        Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsFindByEmailsUri(emails),
+                PROJECTION, WHERE, null, null);
+        if (cursor == null) {
+            Log.e(Constants.TAG, "error querying keys by email");
+            // don't keep the empty results
+            for (String email : emails) {
+                mCacheTimes.remove(email);
+            }
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String email = cursor.getString(INDEX_EMAIL).toLowerCase(Locale.ENGLISH);
+                ArrayList<Long> masterKeyIds = mCache.get(email);
+                if (masterKeyIds == null) {
+                    // matched in a way not covered by our lower casing, but still the same email
+                    Log.d(Constants.TAG, "unexpected email in result: " + email);
+                    continue;
+                }
+                masterKeyIds.add(cursor.getLong(INDEX_MASTER_KEY_ID));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private synchronized void clearCache() {
+        mCache.clear();
+        mCacheTimes.clear();
+    }
+
+}
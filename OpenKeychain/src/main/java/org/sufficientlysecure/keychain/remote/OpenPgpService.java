@@ -33,8 +33,6 @@ import java.util.List;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
@@ -65,9 +63,8 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.ApiDataAccessObject;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
-import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.remote.EmailKeyIdResolver.EmailKeyIds;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.util.InputData;
@@ -79,20 +76,10 @@ public class OpenPgpService extends Service {
     public static final List<Integer> SUPPORTED_VERSIONS =
             Collections.unmodifiableList(Arrays.asList(3, 4, 5, 6, 7, 8, 9, 10, 11));
 
-    static final String[] KEY_SEARCH_PROJECTION = new String[]{
-            KeyRings._ID,
-            KeyRings.MASTER_KEY_ID,
-            KeyRings.IS_EXPIRED,
-            KeyRings.IS_REVOKED,
-    };
-
-    // do not pre-select revoked or expired keys
-    static final String KEY_SEARCH_WHERE = Tables.KEYS + "." + KeychainContract.KeyRings.IS_REVOKED
-            + " = 0 AND " + KeychainContract.KeyRings.IS_EXPIRED + " = 0";
-
     private ApiPermissionHelper mApiPermissionHelper;
     private ProviderHelper mProviderHelper;
     private ApiDataAccessObject mApiDao;
+    private EmailKeyIdResolver mEmailKeyIdResolver;
 
     @Override
     public void onCreate() {
@@ -100,6 +87,13 @@ public class OpenPgpService extends Service {
         mApiPermissionHelper = new ApiPermissionHelper(this, new ApiDataAccessObject(this));
         mProviderHelper = new ProviderHelper(this);
         mApiDao = new ApiDataAccessObject(this);
+        mEmailKeyIdResolver = new EmailKeyIdResolver(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mEmailKeyIdResolver.close();
     }
 
     private static class KeyIdResult {
@@ -125,36 +119,27 @@ public class OpenPgpService extends Service {
         ArrayList<String> missingEmails = new ArrayList<>();
         ArrayList<String> duplicateEmails = new ArrayList<>();
         if (!noUserIdsCheck) {
+            ArrayList<String> emails = new ArrayList<>(encryptionUserIds.length);
             for (String rawUserId : encryptionUserIds) {
                 UserId userId = KeyRing.splitUserId(rawUserId);
-                String email = userId.email != null ? userId.email : rawUserId;
-                // try to find the key for this specific email
-                Uri uri = KeyRings.buildUnifiedKeyRingsFindByEmailUri(email);
-                Cursor cursor = getContentResolver().query(uri, KEY_SEARCH_PROJECTION, KEY_SEARCH_WHERE, null, null);
-                try {
-                    // result should be one entry containing the key id
-                    if (cursor != null && cursor.moveToFirst()) {
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                    } else {
-                        missingUserIdsCheck = true;
-                        missingEmails.add(email);
-                        Log.d(Constants.TAG, "user id missing");
-                    }
-                    // another entry for this email -> two keys with the same email inside user id
-                    if (cursor != null && cursor.moveToNext()) {
-                        duplicateUserIdsCheck = true;
-                        duplicateEmails.add(email);
-
-                        // also pre-select
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                        Log.d(Constants.TAG, "more than one user id with the same email");
-                    }
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
+                emails.add(userId.email != null ? userId.email : rawUserId);
+            }
+
+            // find the keys for all emails at once
+            for (EmailKeyIds emailKeyIds : mEmailKeyIdResolver.resolve(emails)) {
+                if (emailKeyIds.isMissing()) {
+                    missingUserIdsCheck = true;
+                    missingEmails.add(emailKeyIds.mEmail);
+                    Log.d(Constants.TAG, "user id missing");
+                    continue;
+                }
+                keyIds.addAll(emailKeyIds.mMasterKeyIds);
+
+                // more than one key with the same email inside user id, all of them are pre-selected
+                if (emailKeyIds.isDuplicate()) {
+                    duplicateUserIdsCheck = true;
+                    duplicateEmails.add(emailKeyIds.mEmail);
+                    Log.d(Constants.TAG, "more than one user id with the same email");
                 }
             }
         }
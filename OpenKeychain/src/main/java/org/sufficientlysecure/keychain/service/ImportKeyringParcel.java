@@ -23,17 +23,26 @@ import android.os.Parcelable;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 
 public class ImportKeyringParcel implements Parcelable {
     // if null, keys are expected to be read from a cache file in ImportExportOperations
     public ArrayList<ParcelableKeyRing> mKeyList;
     public String mKeyserver; // must be set if keys are to be imported from a keyserver
+    // if set, the selected keys are read from a ScannedKeyRingCache file instead
+    public String mKeyRingFile;
+    public BitSet mKeyRingSelection;
 
     public ImportKeyringParcel (ArrayList<ParcelableKeyRing> keyList, String keyserver) {
         mKeyList = keyList;
         mKeyserver = keyserver;
     }
 
+    public ImportKeyringParcel (String keyRingFile, BitSet selection) {
+        mKeyRingFile = keyRingFile;
+        mKeyRingSelection = selection;
+    }
+
     protected ImportKeyringParcel(Parcel in) {
         if (in.readByte() == 0x01) {
             mKeyList = new ArrayList<>();
@@ -42,6 +51,17 @@ public class ImportKeyringParcel implements Parcelable {
             mKeyList = null;
         }
         mKeyserver = in.readString();
+        mKeyRingFile = in.readString();
+        if (mKeyRingFile != null) {
+            // the selection is parceled as words of 64 bits, one bit per keyring
+            long[] words = in.createLongArray();
+            mKeyRingSelection = new BitSet(words.length * 64);
+            for (int i = 0; i < words.length * 64; i++) {
+                if ((words[i / 64] & (1L << (i % 64))) != 0) {
+                    mKeyRingSelection.set(i);
+                }
+            }
+        }
     }
 
     @Override
@@ -58,6 +78,14 @@ public class ImportKeyringParcel implements Parcelable {
             dest.writeList(mKeyList);
         }
         dest.writeString(mKeyserver);
+        dest.writeString(mKeyRingFile);
+        if (mKeyRingFile != null) {
+            long[] words = new long[(mKeyRingSelection.length() + 63) / 64];
+            for (int i = mKeyRingSelection.nextSetBit(0); i >= 0; i = mKeyRingSelection.nextSetBit(i + 1)) {
+                words[i / 64] |= 1L << (i % 64);
+            }
+            dest.writeLongArray(words);
+        }
     }
 
     public static final Parcelable.Creator<ImportKeyringParcel> CREATOR = new Parcelable.Creator<ImportKeyringParcel>() {
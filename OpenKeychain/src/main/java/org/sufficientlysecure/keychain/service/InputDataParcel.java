@@ -17,6 +17,8 @@
 
 package org.sufficientlysecure.keychain.service;
 
+import java.util.ArrayList;
+
 import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -27,6 +29,8 @@ import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 public class InputDataParcel implements Parcelable {
 
     private Uri mInputUri;
+    // if set, this is a batch of inputs which are all processed in one operation
+    private ArrayList<Uri> mBatchInputUris;
 
     private PgpDecryptVerifyInputParcel mDecryptInput;
     private boolean mMimeDecode = true; // TODO default to false
@@ -36,9 +40,16 @@ public class InputDataParcel implements Parcelable {
         mDecryptInput = decryptInput;
     }
 
+    /** Creates a batch of inputs, which share the same decryption parameters. */
+    public InputDataParcel(ArrayList<Uri> batchInputUris, PgpDecryptVerifyInputParcel decryptInput) {
+        mBatchInputUris = batchInputUris;
+        mDecryptInput = decryptInput;
+    }
+
     InputDataParcel(Parcel source) {
         // we do all of those here, so the PgpSignEncryptInput class doesn't have to be parcelable
         mInputUri = source.readParcelable(getClass().getClassLoader());
+        mBatchInputUris = source.createTypedArrayList(Uri.CREATOR);
         mDecryptInput = source.readParcelable(getClass().getClassLoader());
         mMimeDecode = source.readInt() != 0;
     }
@@ -47,6 +58,14 @@ public class InputDataParcel implements Parcelable {
         return mInputUri;
     }
 
+    public ArrayList<Uri> getBatchInputUris() {
+        return mBatchInputUris;
+    }
+
+    public boolean isBatch() {
+        return mBatchInputUris != null;
+    }
+
     public PgpDecryptVerifyInputParcel getDecryptInput() {
         return mDecryptInput;
     }
@@ -63,6 +82,7 @@ public class InputDataParcel implements Parcelable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeParcelable(mInputUri, 0);
+        dest.writeTypedList(mBatchInputUris);
         dest.writeParcelable(mDecryptInput, 0);
         dest.writeInt(mMimeDecode ? 1 : 0);
     }
@@ -135,7 +135,7 @@ public class KeychainService extends Service implements Progressable {
                 } else if (inputParcel instanceof KeybaseVerificationParcel) {
                     op = new KeybaseVerificationOperation(outerThis, new ProviderHelper(outerThis), outerThis);
                 } else if (inputParcel instanceof InputDataParcel) {
-                    op = new InputDataOperation(outerThis, new ProviderHelper(outerThis), outerThis);
+                    op = new InputDataOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
                 } else if (inputParcel instanceof BenchmarkInputParcel) {
                     op = new BenchmarkOperation(outerThis, new ProviderHelper(outerThis), outerThis);
                 } else {
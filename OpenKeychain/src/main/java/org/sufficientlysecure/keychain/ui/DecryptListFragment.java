@@ -74,6 +74,7 @@ import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.InputDataOperation;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.InputDataResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
@@ -101,7 +102,8 @@ import org.sufficientlysecure.keychain.util.Preferences;
  *
  * This class has a complex control flow to manage its input URIs. Each URI
  * which is in mInputUris is also in exactly one of mPendingInputUris,
- * mCancelledInputUris, mCurrentInputUri, or a key in mInputDataResults.
+ * mCancelledInputUris, mCurrentInputUri, mCurrentBatchUris, or a key in
+ * mInputDataResults.
  *
  * Processing of URIs happens using a looping approach:
  * - There is always exactly one method running which works on mCurrentInputUri
@@ -111,6 +113,9 @@ import org.sufficientlysecure.keychain.util.Preferences;
  *   control handed back to cryptoOperation()
  * - Control flow can move through asynchronous calls, and resume in callbacks
  *   like onActivityResult() or onPermissionRequestResult().
+ * - If several URIs are pending, cryptoOperation() instead pops a batch of them
+ *   into mCurrentBatchUris, which are processed in a single operation. Once it
+ *   is finished, URIs without a result are put back into mPendingInputUris.
  *
  */
 public class DecryptListFragment
@@ -132,6 +137,7 @@ public class DecryptListFragment
     private ArrayList<Uri> mCancelledInputUris;
 
     private Uri mCurrentInputUri;
+    private ArrayList<Uri> mCurrentBatchUris;
     private boolean mCanDelete;
 
     private DecryptFilesAdapter mAdapter;
@@ -229,6 +235,7 @@ public class DecryptListFragment
 
         mInputUris = inputUris;
         mCurrentInputUri = null;
+        mCurrentBatchUris = null;
         mInputDataResults = results != null ? results : new HashMap<Uri,InputDataResult>(inputUris.size());
         mCancelledInputUris = cancelledUris != null ? cancelledUris : new ArrayList<Uri>();
 
@@ -322,12 +329,23 @@ public class DecryptListFragment
 
     @Override
     public boolean onCryptoSetProgress(String msg, int progress, int max) {
+        if (mCurrentBatchUris != null) {
+            for (Uri uri : mCurrentBatchUris) {
+                mAdapter.setProgress(uri, progress, max, msg);
+            }
+            return true;
+        }
         mAdapter.setProgress(mCurrentInputUri, progress, max, msg);
         return true;
     }
 
     @Override
     public void onQueuedOperationError(InputDataResult result) {
+        if (result.isBatch()) {
+            onBatchOperationFinished(result);
+            return;
+        }
+
         final Uri uri = mCurrentInputUri;
         mCurrentInputUri = null;
 
@@ -343,6 +361,11 @@ public class DecryptListFragment
 
     @Override
     public void onQueuedOperationSuccess(InputDataResult result) {
+        if (result.isBatch()) {
+            onBatchOperationFinished(result);
+            return;
+        }
+
         Uri uri = mCurrentInputUri;
         mCurrentInputUri = null;
 
@@ -379,8 +402,16 @@ public class DecryptListFragment
     public void onCryptoOperationCancelled() {
         super.onCryptoOperationCancelled();
 
-        final Uri uri = mCurrentInputUri;
-        mCurrentInputUri = null;
+        final Uri uri;
+        if (mCurrentBatchUris != null) {
+            // only the first input of a batch can require interaction, so that's the one cancelled
+            uri = mCurrentBatchUris.remove(0);
+            mPendingInputUris.addAll(0, mCurrentBatchUris);
+            mCurrentBatchUris = null;
+        } else {
+            uri = mCurrentInputUri;
+            mCurrentInputUri = null;
+        }
 
         mCancelledInputUris.add(uri);
         mAdapter.setCancelled(uri, true);
@@ -389,6 +420,36 @@ public class DecryptListFragment
 
     }
 
+    private void onBatchOperationFinished(InputDataResult batchResult) {
+        ArrayList<Uri> unprocessedUris = mCurrentBatchUris;
+        mCurrentBatchUris = null;
+
+        for (int i = 0; i < batchResult.mBatchInputUris.size(); i++) {
+            Uri uri = batchResult.mBatchInputUris.get(i);
+            InputDataResult result = batchResult.mBatchResults.get(i);
+            unprocessedUris.remove(uri);
+
+            if (result.success()) {
+                mInputDataResults.put(uri, result);
+                processResult(uri);
+            } else {
+                mAdapter.addResult(uri, result);
+            }
+        }
+
+        if (batchResult.cancelled()) {
+            for (Uri uri : unprocessedUris) {
+                mCancelledInputUris.add(uri);
+                mAdapter.setCancelled(uri, true);
+            }
+        } else {
+            // inputs which required interaction are retried, starting a new batch if possible
+            mPendingInputUris.addAll(0, unprocessedUris);
+        }
+
+        cryptoOperation();
+    }
+
     HashMap<Uri,Drawable> mIconCache = new HashMap<>();
 
     private void processResult(final Uri uri) {
@@ -467,7 +528,7 @@ public class DecryptListFragment
     public void retryUri(Uri uri) {
 
         // never interrupt running operations!
-        if (mCurrentInputUri != null) {
+        if (mCurrentInputUri != null || mCurrentBatchUris != null) {
             return;
         }
 
@@ -616,13 +677,33 @@ public class DecryptListFragment
             return null;
         }
 
-        if (mCurrentInputUri == null) {
+        PgpDecryptVerifyInputParcel decryptInput = new PgpDecryptVerifyInputParcel()
+                .setAllowSymmetricDecryption(true);
+
+        if (mCurrentInputUri == null && mCurrentBatchUris == null) {
             if (mPendingInputUris.isEmpty()) {
                 // nothing left to do
                 return null;
             }
 
-            mCurrentInputUri = mPendingInputUris.remove(0);
+            // process several inputs at once, as long as we can read them without asking
+            int batchSize = 0;
+            while (batchSize < mPendingInputUris.size() && batchSize < InputDataOperation.BATCH_SIZE
+                    && hasReadPermission(activity, mPendingInputUris.get(batchSize))) {
+                batchSize += 1;
+            }
+            if (batchSize > 1) {
+                List<Uri> batchUris = mPendingInputUris.subList(0, batchSize);
+                mCurrentBatchUris = new ArrayList<>(batchUris);
+                batchUris.clear();
+            } else {
+                mCurrentInputUri = mPendingInputUris.remove(0);
+            }
+        }
+
+        if (mCurrentBatchUris != null) {
+            Log.d(Constants.TAG, "mCurrentBatchUris=" + mCurrentBatchUris);
+            return new InputDataParcel(mCurrentBatchUris, decryptInput);
         }
 
         Log.d(Constants.TAG, "mCurrentInputUri=" + mCurrentInputUri);
@@ -631,8 +712,6 @@ public class DecryptListFragment
             return null;
         }
 
-        PgpDecryptVerifyInputParcel decryptInput = new PgpDecryptVerifyInputParcel()
-                .setAllowSymmetricDecryption(true);
         return new InputDataParcel(mCurrentInputUri, decryptInput);
 
     }
@@ -647,17 +726,7 @@ public class DecryptListFragment
      * see https://commonsware.com/blog/2015/10/07/runtime-permissions-files-action-send.html
      */
     private boolean checkAndRequestReadPermission(Activity activity, final Uri uri) {
-        if ( ! ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
-            return true;
-        }
-
-        // Additional check due to https://commonsware.com/blog/2015/11/09/you-cannot-hold-nonexistent-permissions.html
-        if (Build.VERSION.SDK_INT < VERSION_CODES.M) {
-            return true;
-        }
-
-        if (ContextCompat.checkSelfPermission(activity, Manifest.permission.READ_EXTERNAL_STORAGE)
-                == PackageManager.PERMISSION_GRANTED) {
+        if (hasReadPermission(activity, uri)) {
             return true;
         }
 
@@ -669,6 +738,21 @@ public class DecryptListFragment
 
     }
 
+    /** Returns true if the uri can be read without requesting a permission first. */
+    private static boolean hasReadPermission(Activity activity, Uri uri) {
+        if ( ! ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            return true;
+        }
+
+        // Additional check due to https://commonsware.com/blog/2015/11/09/you-cannot-hold-nonexistent-permissions.html
+        if (Build.VERSION.SDK_INT < VERSION_CODES.M) {
+            return true;
+        }
+
+        return ContextCompat.checkSelfPermission(activity, Manifest.permission.READ_EXTERNAL_STORAGE)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode,
             @NonNull String[] permissions,
@@ -96,6 +96,8 @@ public class EncryptFilesFragment
     private boolean mDeleteAfterEncrypt;
     private boolean mEncryptFilenames;
     private boolean mHiddenRecipients = false;
+    // set when signing without encryption keys, which creates one detached signature per file
+    private boolean mDetachedSignature;
     private ArrayList<Uri> mPendingInputUris;
 
     private AfterEncryptAction mAfterEncryptAction;
@@ -319,10 +321,17 @@ public class EncryptFilesFragment
             throw new IllegalStateException();
         }
         FilesAdapter.ViewModel model = mFilesAdapter.getModelItem(0);
-        String targetName =
-                (mEncryptFilenames ? "1" : FileHelper.getFilename(getActivity(), model.inputUri))
-                        + (mUseArmor ? Constants.FILE_EXTENSION_ASC : Constants.FILE_EXTENSION_PGP_MAIN);
-        FileHelper.saveDocument(this, targetName, REQUEST_CODE_OUTPUT);
+        FileHelper.saveDocument(this, getOutputFilename(model.inputUri, 1), REQUEST_CODE_OUTPUT);
+    }
+
+    private String getOutputFilename(Uri inputUri, int filenameCounter) {
+        if (mDetachedSignature) {
+            // a detached signature is only useful next to the file it was made for
+            return FileHelper.getFilename(getActivity(), inputUri)
+                    + (mUseArmor ? Constants.FILE_EXTENSION_ASC : Constants.FILE_EXTENSION_SIG);
+        }
+        return (mEncryptFilenames ? String.valueOf(filenameCounter) : FileHelper.getFilename(getActivity(), inputUri))
+                + (mUseArmor ? Constants.FILE_EXTENSION_ASC : Constants.FILE_EXTENSION_PGP_MAIN);
     }
 
     @Override
@@ -541,9 +550,7 @@ public class EncryptFilesFragment
                 mOutputUris = new ArrayList<>();
                 int filenameCounter = 1;
                 for (FilesAdapter.ViewModel model : mFilesAdapter.mDataset) {
-                    String targetName = (mEncryptFilenames
-                            ? String.valueOf(filenameCounter) : FileHelper.getFilename(getActivity(), model.inputUri))
-                                    + (mUseArmor ? Constants.FILE_EXTENSION_ASC : Constants.FILE_EXTENSION_PGP_MAIN);
+                    String targetName = getOutputFilename(model.inputUri, filenameCounter);
                     mOutputUris.add(TemporaryFileProvider.createFile(getActivity(), targetName));
                     filenameCounter++;
                 }
@@ -625,14 +632,17 @@ public class EncryptFilesFragment
         data.addInputUris(mFilesAdapter.getAsArrayList());
 
         if (mUseCompression) {
+            // files are often already compressed, so decide per file
             data.setCompressionAlgorithm(
-                    PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_DEFAULT);
+                    PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_AUTO);
         } else {
             data.setCompressionAlgorithm(
                     PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.UNCOMPRESSED);
         }
         data.setHiddenRecipients(mHiddenRecipients);
         data.setEnableAsciiArmorOutput(mAfterEncryptAction == AfterEncryptAction.COPY || mUseArmor);
+        // files may be large, use all cores if we can
+        data.setEnablePipelining(Runtime.getRuntime().availableProcessors() > 1);
         data.setSymmetricEncryptionAlgorithm(
                 PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.USE_DEFAULT);
         data.setSignatureHashAlgorithm(
@@ -647,18 +657,22 @@ public class EncryptFilesFragment
 
             boolean gotEncryptionKeys = (encryptionKeyIds != null && encryptionKeyIds.length > 0);
 
-            if (!gotEncryptionKeys && signingKeyId != 0) {
-                Notify.create(getActivity(), R.string.error_detached_signature, Notify.Style.ERROR).show(this);
-                return null;
-            }
-            if (!gotEncryptionKeys) {
+            if (!gotEncryptionKeys && signingKeyId == 0) {
                 Notify.create(getActivity(), R.string.select_encryption_key, Notify.Style.ERROR).show(this);
                 return null;
             }
 
-            data.setEncryptionMasterKeyIds(encryptionKeyIds);
+            // sign-only creates a detached signature for each file, written to its output
+            mDetachedSignature = !gotEncryptionKeys;
+            if (mDetachedSignature) {
+                data.setDetachedSignature(true);
+                data.setDetachedSignatureToOutput(true);
+            } else {
+                data.setEncryptionMasterKeyIds(encryptionKeyIds);
+            }
             data.setSignatureMasterKeyId(signingKeyId);
         } else {
+            mDetachedSignature = false;
             Passphrase passphrase = modeFragment.getSymmetricPassphrase();
             if (passphrase == null) {
                 Notify.create(getActivity(), R.string.passphrases_do_not_match, Notify.Style.ERROR)
@@ -686,7 +700,8 @@ public class EncryptFilesFragment
             sendIntent = new Intent(Intent.ACTION_SEND_MULTIPLE);
             sendIntent.putExtra(Intent.EXTRA_STREAM, mOutputUris);
         }
-        sendIntent.setType(Constants.MIME_TYPE_ENCRYPTED_ALTERNATE);
+        sendIntent.setType(mDetachedSignature
+                ? Constants.MIME_TYPE_SIGNATURE : Constants.MIME_TYPE_ENCRYPTED_ALTERNATE);
 
         EncryptActivity modeInterface = (EncryptActivity) getActivity();
         EncryptModeFragment modeFragment = modeInterface.getModeFragment();
@@ -41,11 +41,8 @@ import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.util.Log;
-import org.sufficientlysecure.keychain.util.ParcelableFileCache;
-import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
 import org.sufficientlysecure.keychain.util.Preferences;
 
-import java.io.IOException;
 import java.util.ArrayList;
 
 public class ImportKeysActivity extends BaseActivity
@@ -81,6 +78,7 @@ public class ImportKeysActivity extends BaseActivity
     // for CryptoOperationHelper.Callback
     private String mKeyserver;
     private ArrayList<ParcelableKeyRing> mKeyList;
+    private ImportKeyringParcel mFileImportParcel;
 
     private CryptoOperationHelper<ImportKeyringParcel, ImportKeyResult> mOperationHelper;
 
@@ -336,7 +334,7 @@ public class ImportKeysActivity extends BaseActivity
         FragmentManager fragMan = getSupportFragmentManager();
         ImportKeysListFragment keyListFragment = (ImportKeysListFragment) fragMan.findFragmentByTag(TAG_FRAG_LIST);
 
-        if (keyListFragment.getSelectedEntries().size() == 0) {
+        if (keyListFragment.getSelectedCount() == 0) {
             Notify.create(this, R.string.error_nothing_import_selected, Notify.Style.ERROR)
                     .show((ViewGroup) findViewById(R.id.import_snackbar));
             return;
@@ -350,28 +348,22 @@ public class ImportKeysActivity extends BaseActivity
         if (ls instanceof ImportKeysListFragment.BytesLoaderState) {
             Log.d(Constants.TAG, "importKeys started");
 
-            // get DATA from selected key entries
-            IteratorWithSize<ParcelableKeyRing> selectedEntries = keyListFragment.getSelectedData();
-
-            // instead of giving the entries by Intent extra, cache them into a
-            // file to prevent Java Binder problems on heavy imports
-            // read FileImportCache for more info.
-            try {
-                // We parcel this iteratively into a file - anything we can
-                // display here, we should be able to import.
-                ParcelableFileCache<ParcelableKeyRing> cache =
-                        new ParcelableFileCache<>(this, "key_import.pcl");
-                cache.writeCache(selectedEntries);
-
-                mKeyList = null;
-                mKeyserver = null;
-                mOperationHelper.cryptoOperation();
-
-            } catch (IOException e) {
-                Log.e(Constants.TAG, "Problem writing cache file", e);
-                Notify.create(this, "Problem writing cache file!", Notify.Style.ERROR)
+            // the selected entries are passed by their position in the scanned key file,
+            // which ImportOperation reads from directly. this prevents Java Binder
+            // problems on heavy imports, without copying the data into another file.
+            ImportKeyringParcel importParcel = keyListFragment.getSelectedImportParcel();
+            if (importParcel == null) {
+                Log.e(Constants.TAG, "Problem reading scanned key file");
+                Notify.create(this, "Problem reading cache file!", Notify.Style.ERROR)
                         .show((ViewGroup) findViewById(R.id.import_snackbar));
+                return;
             }
+
+            mFileImportParcel = importParcel;
+            mKeyList = null;
+            mKeyserver = null;
+            mOperationHelper.cryptoOperation();
+
         } else if (ls instanceof ImportKeysListFragment.CloudLoaderState) {
             ImportKeysListFragment.CloudLoaderState sls =
                     (ImportKeysListFragment.CloudLoaderState) ls;
@@ -387,6 +379,7 @@ public class ImportKeysActivity extends BaseActivity
                 }
             }
 
+            mFileImportParcel = null;
             mKeyList = keys;
             mKeyserver = sls.mCloudPrefs.keyserver;
             mOperationHelper.cryptoOperation();
@@ -434,6 +427,9 @@ public class ImportKeysActivity extends BaseActivity
 
     @Override
     public ImportKeyringParcel createOperationInput() {
+        if (mFileImportParcel != null) {
+            return mFileImportParcel;
+        }
         return new ImportKeyringParcel(mKeyList, mKeyserver);
     }
 
@@ -19,7 +19,6 @@ package org.sufficientlysecure.keychain.ui;
 
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 import android.Manifest;
@@ -35,7 +34,6 @@ import android.support.v4.app.ListFragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.content.Loader;
-import android.support.v4.util.LongSparseArray;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
@@ -45,21 +43,21 @@ import android.widget.Toast;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
-import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.keyimport.ScannedKeyRingList;
 import org.sufficientlysecure.keychain.operations.results.GetKeyResult;
+import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.adapter.AsyncTaskResultWrapper;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysAdapter;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListCloudLoader;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListLoader;
 import org.sufficientlysecure.keychain.util.Log;
-import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
 
 public class ImportKeysListFragment extends ListFragment implements
-        LoaderManager.LoaderCallbacks<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
+        LoaderManager.LoaderCallbacks<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> {
 
     private static final String ARG_DATA_URI = "uri";
     private static final String ARG_BYTES = "bytes";
@@ -78,7 +76,6 @@ public class ImportKeysListFragment extends ListFragment implements
     private static final int LOADER_ID_BYTES = 0;
     private static final int LOADER_ID_CLOUD = 1;
 
-    private LongSparseArray<ParcelableKeyRing> mCachedKeyData;
     private boolean mNonInteractive;
 
     private boolean mShowingOrbotDialog;
@@ -92,37 +89,26 @@ public class ImportKeysListFragment extends ListFragment implements
     }
 
     /**
-     * Returns an Iterator (with size) of the selected data items.
-     * This iterator is sort of a tradeoff, it's slightly more complex than an
-     * ArrayList would have been, but we save some memory by just returning
-     * relevant elements on demand.
+     * Returns an ImportKeyringParcel which refers to the selected keyrings by their
+     * position in the scanned key file, so they can be imported without copying them
+     * around first. Returns null if the key data isn't available (anymore).
      */
-    public IteratorWithSize<ParcelableKeyRing> getSelectedData() {
-        final ArrayList<ImportKeysListEntry> entries = getSelectedEntries();
-        final Iterator<ImportKeysListEntry> it = entries.iterator();
-        return new IteratorWithSize<ParcelableKeyRing>() {
-
-            @Override
-            public int getSize() {
-                return entries.size();
-            }
-
-            @Override
-            public boolean hasNext() {
-                return it.hasNext();
-            }
-
-            @Override
-            public ParcelableKeyRing next() {
-                // throws NoSuchElementException if it doesn't exist, but that's not our problem
-                return mCachedKeyData.get(it.next().hashCode());
-            }
+    public ImportKeyringParcel getSelectedImportParcel() {
+        List<ImportKeysListEntry> data = getData();
+        if (!(data instanceof ScannedKeyRingList)) {
+            return null;
+        }
+        ScannedKeyRingList list = (ScannedKeyRingList) data;
+        return list.getCache().createImportParcel(list.getSelection());
+    }
 
-            @Override
-            public void remove() {
-                it.remove();
-            }
-        };
+    public int getSelectedCount() {
+        if (mAdapter != null) {
+            return mAdapter.getSelectedCount();
+        } else {
+            Log.e(Constants.TAG, "Adapter not initialized, returning zero");
+            return 0;
+        }
     }
 
     public ArrayList<ImportKeysListEntry> getSelectedEntries() {
@@ -370,7 +356,7 @@ public class ImportKeysListFragment extends ListFragment implements
     }
 
     @Override
-    public Loader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>>
+    public Loader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>>
     onCreateLoader(int id, Bundle args) {
         switch (id) {
             case LOADER_ID_BYTES: {
@@ -388,8 +374,8 @@ public class ImportKeysListFragment extends ListFragment implements
     }
 
     @Override
-    public void onLoadFinished(Loader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> loader,
-                               AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> data) {
+    public void onLoadFinished(Loader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> loader,
+                               AsyncTaskResultWrapper<List<ImportKeysListEntry>> data) {
         // Swap the new cursor in. (The framework will take care of closing the
         // old cursor once we return.)
 
@@ -408,16 +394,12 @@ public class ImportKeysListFragment extends ListFragment implements
             setListShownNoAnimation(true);
         }
 
-        // free old cached key data
-        mCachedKeyData = null;
-
         GetKeyResult getKeyResult = (GetKeyResult) data.getOperationResult();
         switch (loader.getId()) {
             case LOADER_ID_BYTES:
 
                 if (getKeyResult.success()) {
                     // No error
-                    mCachedKeyData = ((ImportKeysListLoader) loader).getParcelableRings();
                 } else {
                     getKeyResult.createNotify(getActivity()).show();
                 }
@@ -484,7 +466,7 @@ public class ImportKeysListFragment extends ListFragment implements
     }
 
     @Override
-    public void onLoaderReset(Loader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> loader) {
+    public void onLoaderReset(Loader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> loader) {
         switch (loader.getId()) {
             case LOADER_ID_BYTES:
                 // Clear the data in the adapter.
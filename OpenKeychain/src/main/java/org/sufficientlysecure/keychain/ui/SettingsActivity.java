@@ -50,6 +50,7 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.KeychainApplication;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.compatibility.AppCompatPreferenceActivity;
+import org.sufficientlysecure.keychain.pgp.SessionKeyCache;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.ui.base.BaseActivity;
 import org.sufficientlysecure.keychain.ui.util.Notify;
@@ -214,6 +215,9 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
 
             initializePassphraseCacheSubs(
                     (CheckBoxPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_SUBS));
+
+            initializeSessionKeyCache(
+                    (CheckBoxPreference) findPreference(Constants.Pref.SESSION_KEY_CACHE));
         }
     }
 
@@ -602,4 +606,19 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             }
         });
     }
+
+    private static void initializeSessionKeyCache(final CheckBoxPreference mSessionKeyCache) {
+        mSessionKeyCache.setChecked(sPreferences.getSessionKeyCache());
+        mSessionKeyCache.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                mSessionKeyCache.setChecked((Boolean) newValue);
+                sPreferences.setSessionKeyCache((Boolean) newValue);
+                if (!(Boolean) newValue) {
+                    // don't leave anything behind when the user opts out
+                    SessionKeyCache.getInstance(preference.getContext()).clear();
+                }
+                return false;
+            }
+        });
+    }
 }
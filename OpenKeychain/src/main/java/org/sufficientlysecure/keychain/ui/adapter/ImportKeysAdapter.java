@@ -17,11 +17,9 @@
 
 package org.sufficientlysecure.keychain.ui.adapter;
 
-import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Color;
-import android.os.Build;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -33,6 +31,8 @@ import android.widget.TextView;
 
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.ScannedKeyRingList;
+import org.sufficientlysecure.keychain.keyimport.ScannedKeyRingList.OnEntriesLoadedListener;
 import org.sufficientlysecure.keychain.operations.ImportOperation;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.ui.util.FormattingUtils;
@@ -70,22 +70,39 @@ public class ImportKeysAdapter extends ArrayAdapter<ImportKeysListEntry> {
         mInflater = (LayoutInflater) activity.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
     }
 
-    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    /** Sets the displayed entries. The list is not copied, since a ScannedKeyRingList
+     * only creates its entries when they are displayed.
+     */
     public void setData(List<ImportKeysListEntry> data) {
-
-        clear();
-        if (data != null) {
-            this.mData = data;
-
-            // add data to extended ArrayAdapter
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                addAll(data);
-            } else {
-                for (ImportKeysListEntry entry : data) {
-                    add(entry);
+        if (mData instanceof ScannedKeyRingList) {
+            ((ScannedKeyRingList) mData).setOnEntriesLoadedListener(null);
+        }
+        mData = data;
+        if (data instanceof ScannedKeyRingList) {
+            // entries are loaded in the background, and replace their placeholders when done
+            ((ScannedKeyRingList) data).setOnEntriesLoadedListener(new OnEntriesLoadedListener() {
+                @Override
+                public void onEntriesLoaded() {
+                    notifyDataSetChanged();
                 }
-            }
+            });
         }
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public void clear() {
+        setData(null);
+    }
+
+    @Override
+    public int getCount() {
+        return mData != null ? mData.size() : 0;
+    }
+
+    @Override
+    public ImportKeysListEntry getItem(int position) {
+        return mData.get(position);
     }
 
     public List<ImportKeysListEntry> getData() {
@@ -93,7 +110,9 @@ public class ImportKeysAdapter extends ArrayAdapter<ImportKeysListEntry> {
     }
 
     /** This method returns a list of all selected entries, with public keys sorted
-     * before secret keys, see ImportOperation for specifics.
+     * before secret keys, see ImportOperation for specifics. For scanned keyrings, this
+     * reads all selected entries, which must not be done on the main thread. Use
+     * ImportKeysListFragment.getSelectedImportParcel to import them instead.
      * @see ImportOperation
      */
     public ArrayList<ImportKeysListEntry> getSelectedEntries() {
@@ -102,6 +121,13 @@ public class ImportKeysAdapter extends ArrayAdapter<ImportKeysListEntry> {
         if (mData == null) {
             return result;
         }
+        if (mData instanceof ScannedKeyRingList) {
+            ScannedKeyRingList list = (ScannedKeyRingList) mData;
+            for (int position : list.getSelectedPositions()) {
+                result.add(list.load(position));
+            }
+            return result;
+        }
         for (ImportKeysListEntry entry : mData) {
             if (entry.isSelected()) {
                 // add this entry to either the secret or the public list
@@ -113,6 +139,23 @@ public class ImportKeysAdapter extends ArrayAdapter<ImportKeysListEntry> {
         return result;
     }
 
+    /** Returns the number of selected entries, without creating entries which aren't displayed. */
+    public int getSelectedCount() {
+        if (mData == null) {
+            return 0;
+        }
+        if (mData instanceof ScannedKeyRingList) {
+            return ((ScannedKeyRingList) mData).getSelection().cardinality();
+        }
+        int count = 0;
+        for (ImportKeysListEntry entry : mData) {
+            if (entry.isSelected()) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
     @Override
     public boolean hasStableIds() {
         return true;
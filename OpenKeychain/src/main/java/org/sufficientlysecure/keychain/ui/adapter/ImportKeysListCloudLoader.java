@@ -35,9 +35,10 @@ import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class ImportKeysListCloudLoader
-        extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
+        extends AsyncTaskLoader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> {
     Context mContext;
 
 
@@ -45,8 +46,8 @@ public class ImportKeysListCloudLoader
     String mServerQuery;
     private ParcelableProxy mParcelableProxy;
 
-    private ArrayList<ImportKeysListEntry> mEntryList = new ArrayList<>();
-    private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
+    private List<ImportKeysListEntry> mEntryList = new ArrayList<>();
+    private AsyncTaskResultWrapper<List<ImportKeysListEntry>> mEntryListWrapper;
 
     /**
      * Searches a keyserver as specified in cloudPrefs, using an explicit proxy if passed
@@ -67,7 +68,7 @@ public class ImportKeysListCloudLoader
     }
 
     @Override
-    public AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> loadInBackground() {
+    public AsyncTaskResultWrapper<List<ImportKeysListEntry>> loadInBackground() {
         mEntryListWrapper = new AsyncTaskResultWrapper<>(mEntryList, null);
 
         if (mServerQuery == null) {
@@ -104,7 +105,7 @@ public class ImportKeysListCloudLoader
     }
 
     @Override
-    public void deliverResult(AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> data) {
+    public void deliverResult(AsyncTaskResultWrapper<List<ImportKeysListEntry>> data) {
         super.deliverResult(data);
     }
 
@@ -23,22 +23,28 @@ import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.List;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.v4.content.AsyncTaskLoader;
-import android.support.v4.util.LongSparseArray;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
-import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.keyimport.ScannedKeyRingCache;
+import org.sufficientlysecure.keychain.keyimport.ScannedKeyRingList;
 import org.sufficientlysecure.keychain.operations.results.GetKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.KeyRingScanner;
+import org.sufficientlysecure.keychain.pgp.KeyRingScanner.ScannedKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
-import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.ui.ImportKeysListFragment.BytesLoaderState;
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
@@ -46,14 +52,18 @@ import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PositionAwareInputStream;
 
 public class ImportKeysListLoader
-        extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
+        extends AsyncTaskLoader<AsyncTaskResultWrapper<List<ImportKeysListEntry>>> {
+
+    /** Number of entries after which the list is shown for the first time. */
+    static final int FIRST_PREVIEW_ENTRIES = 25;
 
     final Context mContext;
     final BytesLoaderState mLoaderState;
+    final Handler mHandler = new Handler(Looper.getMainLooper());
 
-    ArrayList<ImportKeysListEntry> mData = new ArrayList<>();
-    LongSparseArray<ParcelableKeyRing> mParcelableRings = new LongSparseArray<>();
-    AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
+    List<ImportKeysListEntry> mData = new ArrayList<>();
+    ScannedKeyRingCache mKeyRingCache;
+    AsyncTaskResultWrapper<List<ImportKeysListEntry>> mEntryListWrapper;
 
     public ImportKeysListLoader(Context context, BytesLoaderState inputData) {
         super(context);
@@ -62,7 +72,7 @@ public class ImportKeysListLoader
     }
 
     @Override
-    public AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> loadInBackground() {
+    public AsyncTaskResultWrapper<List<ImportKeysListEntry>> loadInBackground() {
         // This has already been loaded! nvm any further, just return
         if (mEntryListWrapper != null) {
             return mEntryListWrapper;
@@ -97,6 +107,12 @@ public class ImportKeysListLoader
 
         // Ensure the loader is stopped
         onStopLoading();
+
+        // an import started from the list may still read from the file, see ScannedKeyRingCache
+        if (mKeyRingCache != null) {
+            mKeyRingCache.release();
+            mKeyRingCache = null;
+        }
     }
 
     @Override
@@ -110,15 +126,20 @@ public class ImportKeysListLoader
     }
 
     @Override
-    public void deliverResult(AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> data) {
+    public void deliverResult(AsyncTaskResultWrapper<List<ImportKeysListEntry>> data) {
         super.deliverResult(data);
     }
 
-    public LongSparseArray<ParcelableKeyRing> getParcelableRings() {
-        return mParcelableRings;
-    }
-
-    /** Reads all PGPKeyRing objects from the bytes of an InputData object. */
+    /** Scans all keyrings in the bytes of an InputData object.
+     *
+     * The keyrings are not parsed here, only their summary is checked by a KeyRingScanner,
+     * while the raw data is written into a ScannedKeyRingCache. Only if the scanner could not
+     * make sense of a master key, the ring is fully parsed as a fallback. No entries are kept,
+     * the resulting ScannedKeyRingList creates them from the cache as they are displayed.
+     *
+     * Entries are delivered to the list while scanning is still in progress, first after
+     * FIRST_PREVIEW_ENTRIES keyrings, then each time the number of entries has doubled.
+     */
     private void generateListOfKeyrings(InputData inputData) {
         PositionAwareInputStream progressIn = new PositionAwareInputStream(
                 inputData.getInputStream());
@@ -128,14 +149,43 @@ public class ImportKeysListLoader
         // armor blocks
         BufferedInputStream bufferedInput = new BufferedInputStream(progressIn);
         try {
-            // parse all keyrings
-            IteratorWithIOThrow<UncachedKeyRing> it = UncachedKeyRing.fromStream(bufferedInput);
-            while (it.hasNext()) {
-                UncachedKeyRing ring = it.next();
-                ImportKeysListEntry item = new ImportKeysListEntry(getContext(), ring);
-                mData.add(item);
-                mParcelableRings.put(item.hashCode(), new ParcelableKeyRing(ring.getEncoded()));
+            mKeyRingCache = new ScannedKeyRingCache(getContext());
+            ScannedKeyRingList list = new ScannedKeyRingList(getContext(), mKeyRingCache);
+
+            OutputStream ringOut = mKeyRingCache.openOutputStream();
+            try {
+                KeyRingScanner scanner = new KeyRingScanner(bufferedInput, ringOut);
+                int nextPreview = FIRST_PREVIEW_ENTRIES;
+                ScannedKeyRing ring;
+                while ((ring = scanner.next()) != null) {
+                    if (isAbandoned() || isReset()) {
+                        return;
+                    }
+
+                    if (!ring.isComplete()) {
+                        // fall back to full parsing, which needs to read back the data written so far
+                        try {
+                            ringOut.flush();
+                            UncachedKeyRing.decodeFromData(mKeyRingCache.getEncoded(ring));
+                        } catch (PgpGeneralException | IOException | RuntimeException e) {
+                            Log.e(Constants.TAG, "Skipping keyring that could not be parsed", e);
+                            continue;
+                        }
+                    }
+                    int size = mKeyRingCache.add(ring.mOffset, ring.mLength, ring.mIsSecret) + 1;
+
+                    if (size == nextPreview) {
+                        // entries shown in the list may be imported, so their data must be readable
+                        ringOut.flush();
+                        deliverPreview(list.withSize(size));
+                        nextPreview *= 2;
+                    }
+                }
+            } finally {
+                ringOut.close();
             }
+            mData = list.withSize(mKeyRingCache.size());
+            mEntryListWrapper = new AsyncTaskResultWrapper<>(mData, mEntryListWrapper.getOperationResult());
         } catch (IOException e) {
             Log.e(Constants.TAG, "IOException on parsing key file! Return NoValidKeysException!", e);
             OperationResult.OperationLog log = new OperationResult.OperationLog();
@@ -145,6 +195,21 @@ public class ImportKeysListLoader
         }
     }
 
+    /** Delivers a snapshot of the entries scanned so far, while loading continues. */
+    private void deliverPreview(List<ImportKeysListEntry> entries) {
+        final AsyncTaskResultWrapper<List<ImportKeysListEntry>> preview =
+                new AsyncTaskResultWrapper<>(entries,
+                        new GetKeyResult(GetKeyResult.RESULT_OK, null));
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isStarted() && !isAbandoned() && !isReset()) {
+                    deliverResult(preview);
+                }
+            }
+        });
+    }
+
     @NonNull
     private static InputData getInputData(Context context, BytesLoaderState loaderState) throws FileNotFoundException {
         InputData inputData;
@@ -45,6 +45,7 @@ import org.sufficientlysecure.keychain.ui.PassphraseDialogActivity;
 import org.sufficientlysecure.keychain.ui.RetryUploadDialogActivity;
 import org.sufficientlysecure.keychain.ui.dialog.ProgressDialogFragment;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.SharedMemoryCache;
 
 /**
  * Designed to be integrated into activities or fragments used for CryptoOperations.
@@ -320,7 +321,13 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
                     ProgressDialog.STYLE_HORIZONTAL, mCancellable);
         }
 
-        activity.startService(intent);
+        // large payloads are passed in shared memory, see SharedMemoryCache
+        SharedMemoryCache.beginHandoff();
+        try {
+            activity.startService(intent);
+        } finally {
+            SharedMemoryCache.endHandoff();
+        }
     }
 
     public void cryptoOperation() {
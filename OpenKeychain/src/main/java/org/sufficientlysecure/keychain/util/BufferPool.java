@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.sufficientlysecure.keychain.Constants;
+
+
+/** A bounded pool of the I/O buffers used by the pgp operations.
+ *
+ * Each sign/encrypt or decrypt/verify operation needs a couple of buffers of
+ * BUFFER_SIZE. Borrowing them from here instead of allocating them anew avoids
+ * a lot of garbage when many small messages are processed, e.g. through the API.
+ * At most MAX_POOLED_BUFFERS are kept; buffers returned beyond that are left to
+ * the garbage collector. Returned buffers are zeroed, so no plaintext lingers
+ * in the pool.
+ *
+ * In debug builds, each borrowed buffer is tracked by a weak reference. If a
+ * buffer is garbage collected without having been returned, this is logged
+ * along with the stack trace of where it was borrowed.
+ *
+ */
+public class BufferPool {
+
+    public static final int BUFFER_SIZE = 1 << 16;
+    static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final BufferPool sInstance = new BufferPool(MAX_POOLED_BUFFERS, Constants.DEBUG);
+
+    private final int mMaxPooled;
+    private final ArrayDeque<byte[]> mPool = new ArrayDeque<>();
+
+    private final boolean mTrackLeaks;
+    private final ArrayList<BufferReference> mBorrowed = new ArrayList<>();
+    private final ReferenceQueue<byte[]> mCollected = new ReferenceQueue<>();
+
+    private long mAcquireCount;
+    private long mAllocateCount;
+    private long mDiscardCount;
+    private long mLeakCount;
+    private int mOutstanding;
+
+    BufferPool(int maxPooled, boolean trackLeaks) {
+        mMaxPooled = maxPooled;
+        mTrackLeaks = trackLeaks;
+    }
+
+    public static BufferPool getInstance() {
+        return sInstance;
+    }
+
+    /** Returns a buffer of BUFFER_SIZE, which must be given back with release once it is unused. */
+    public synchronized byte[] acquire() {
+        byte[] buffer = mPool.poll();
+        if (buffer == null) {
+            buffer = new byte[BUFFER_SIZE];
+            mAllocateCount += 1;
+        }
+        mAcquireCount += 1;
+        mOutstanding += 1;
+
+        if (mTrackLeaks) {
+            checkLeaks();
+            mBorrowed.add(new BufferReference(buffer, mCollected));
+        }
+        return buffer;
+    }
+
+    /** Returns a buffer to the pool. The buffer must not be used anymore afterwards. */
+    public synchronized void release(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            throw new IllegalArgumentException("buffer was not acquired from this pool");
+        }
+        if (mTrackLeaks && !untrack(buffer)) {
+            Log.e(Constants.TAG, "buffer released which is not borrowed, ignoring", new Throwable());
+            return;
+        }
+        mOutstanding -= 1;
+
+        Arrays.fill(buffer, (byte) 0);
+        if (mPool.size() >= mMaxPooled) {
+            mDiscardCount += 1;
+            return;
+        }
+        mPool.push(buffer);
+    }
+
+    /** Starts a new Lease, which keeps track of buffers to release all at once. */
+    public Lease newLease() {
+        return new Lease();
+    }
+
+    public synchronized int getPooledCount() {
+        return mPool.size();
+    }
+
+    public synchronized int getOutstandingCount() {
+        return mOutstanding;
+    }
+
+    public synchronized long getAcquireCount() {
+        return mAcquireCount;
+    }
+
+    public synchronized long getAllocateCount() {
+        return mAllocateCount;
+    }
+
+    public synchronized long getLeakCount() {
+        return mLeakCount;
+    }
+
+    public synchronized void logStatistics() {
+        if (!Constants.DEBUG) {
+            return;
+        }
+        Log.d(Constants.TAG, "BufferPool: " + mPool.size() + "/" + mMaxPooled + " pooled, "
+                + mOutstanding + " borrowed, " + mAcquireCount + " acquired, "
+                + mAllocateCount + " allocated, " + mDiscardCount + " discarded, "
+                + mLeakCount + " leaked");
+    }
+
+    private boolean untrack(byte[] buffer) {
+        for (int i = 0; i < mBorrowed.size(); i++) {
+            if (mBorrowed.get(i).get() == buffer) {
+                mBorrowed.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkLeaks() {
+        BufferReference reference;
+        while ((reference = (BufferReference) mCollected.poll()) != null) {
+            // released buffers are untracked before they can be collected
+            if (mBorrowed.remove(reference)) {
+                mLeakCount += 1;
+                mOutstanding -= 1;
+                Log.e(Constants.TAG, "buffer was never released to pool, borrowed at:", reference.mOrigin);
+            }
+        }
+    }
+
+    private static class BufferReference extends WeakReference<byte[]> {
+        final Throwable mOrigin = new Throwable();
+
+        BufferReference(byte[] buffer, ReferenceQueue<byte[]> queue) {
+            super(buffer, queue);
+        }
+    }
+
+    /** A set of borrowed buffers, for use by a single thread. */
+    public class Lease {
+        private final ArrayList<byte[]> mBuffers = new ArrayList<>();
+
+        private Lease() {
+        }
+
+        public byte[] acquire() {
+            byte[] buffer = BufferPool.this.acquire();
+            mBuffers.add(buffer);
+            return buffer;
+        }
+
+        /** Releases all buffers acquired through this lease. */
+        public void releaseAll() {
+            for (byte[] buffer : mBuffers) {
+                release(buffer);
+            }
+            mBuffers.clear();
+        }
+    }
+
+}
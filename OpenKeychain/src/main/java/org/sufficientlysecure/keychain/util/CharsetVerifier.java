@@ -22,6 +22,8 @@ import android.support.annotation.Nullable;
  */
 public class CharsetVerifier {
 
+    private static final int DECODE_CHUNK_SIZE = 4096;
+
     private final ByteBuffer bufWrap;
     private final CharBuffer dummyOutput;
 
@@ -50,7 +52,8 @@ public class CharsetVerifier {
         }
 
         bufWrap = ByteBuffer.wrap(buf);
-        dummyOutput = CharBuffer.allocate(buf.length);
+        // decoded output is thrown away, so it's decoded in chunks into a small buffer
+        dummyOutput = CharBuffer.allocate(Math.min(buf.length, DECODE_CHUNK_SIZE));
 
         // the charset defaults to us-ascii, but we want to default to utf-8
         if (charset == null || "us-ascii".equals(charset)) {
@@ -77,8 +80,11 @@ public class CharsetVerifier {
         bufWrap.rewind();
         bufWrap.position(pos);
         bufWrap.limit(len);
-        dummyOutput.rewind();
-        CoderResult result = charsetDecoder.decode(bufWrap, dummyOutput, false);
+        CoderResult result;
+        do {
+            dummyOutput.rewind();
+            result = charsetDecoder.decode(bufWrap, dummyOutput, false);
+        } while (result.isOverflow());
         if (result.isError()) {
             isFaulty = true;
         }
@@ -24,14 +24,18 @@ import android.os.Parcelable;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.KeychainApplication;
 
-import java.io.DataInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.Iterator;
 
 /**
@@ -40,9 +44,24 @@ import java.util.Iterator;
  * <p/>
  * To overcome this problem, we cache large Parcelables into a file in our private cache directory
  * instead of sending them through IPC.
+ * <p/>
+ * The file format is versioned. After a header of magic, version and number of entries, each
+ * entry is stored as a length-prefixed marshalled Parcel. The file is terminated by an index
+ * of record offsets, which allows random access via {@link #readEntry(int)}. Files are written
+ * through a buffered channel, and read back from a memory mapping of the whole file. Files in
+ * the legacy format (no header, no index) can still be read sequentially.
  */
 public class ParcelableFileCache<E extends Parcelable> {
 
+    private static final int MAGIC = 0x4f4b5043; // "OKPC"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 12;
+    // index count (int), index offset (long), magic (int)
+    private static final int TRAILER_SIZE = 16;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
     private Context mContext;
 
     private final String mFilename;
@@ -58,20 +77,22 @@ public class ParcelableFileCache<E extends Parcelable> {
 
     public void writeCache(int numEntries, Iterator<E> it) throws IOException {
 
-        File cacheDir = mContext.getCacheDir();
-        if (cacheDir == null) {
-            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
-            throw new IOException("cache dir is null!");
-        }
-
-        File tempFile = new File(mContext.getCacheDir(), mFilename);
-
+        File tempFile = getCacheFile();
 
-        DataOutputStream oos = new DataOutputStream(new FileOutputStream(tempFile));
+        FileChannel channel = new FileOutputStream(tempFile).getChannel();
+        DataOutputStream oos = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE));
 
         try {
+            oos.writeInt(MAGIC);
+            oos.writeInt(VERSION);
             oos.writeInt(numEntries);
 
+            // we keep the offsets around for the index, which is written at the end
+            long[] offsets = new long[Math.max(numEntries, 16)];
+            int count = 0;
+            long offset = HEADER_SIZE;
+
             while (it.hasNext()) {
                 Parcel p = Parcel.obtain(); // creating empty parcel object
                 p.writeParcelable(it.next(), 0); // saving bundle as parcel
@@ -79,7 +100,22 @@ public class ParcelableFileCache<E extends Parcelable> {
                 oos.writeInt(buf.length);
                 oos.write(buf);
                 p.recycle();
+
+                if (count == offsets.length) {
+                    long[] newOffsets = new long[offsets.length * 2];
+                    System.arraycopy(offsets, 0, newOffsets, 0, count);
+                    offsets = newOffsets;
+                }
+                offsets[count++] = offset;
+                offset += 4 + buf.length;
             }
+
+            for (int i = 0; i < count; i++) {
+                oos.writeLong(offsets[i]);
+            }
+            oos.writeInt(count);
+            oos.writeLong(offset);
+            oos.writeInt(MAGIC);
         } finally {
             oos.close();
         }
@@ -104,23 +140,23 @@ public class ParcelableFileCache<E extends Parcelable> {
      */
     public IteratorWithSize<E> readCache(final boolean deleteAfterRead) throws IOException {
 
-        File cacheDir = mContext.getCacheDir();
-        if (cacheDir == null) {
-            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
-            throw new IOException("cache dir is null!");
+        final File tempFile = getCacheFile();
+        final MappedByteBuffer buffer = mapCacheFile(tempFile);
+
+        final int numEntries;
+        final int recordsEnd;
+        if (buffer.getInt(0) == MAGIC) {
+            checkVersion(buffer);
+            numEntries = buffer.getInt(8);
+            recordsEnd = (int) readIndexOffset(buffer);
+            buffer.position(HEADER_SIZE);
+        } else {
+            // legacy format: number of entries, then records until the end of file
+            numEntries = buffer.getInt(0);
+            recordsEnd = buffer.limit();
+            buffer.position(4);
         }
 
-        final File tempFile = new File(cacheDir, mFilename);
-        final DataInputStream ois;
-        try {
-            ois = new DataInputStream(new FileInputStream(tempFile));
-        } catch (FileNotFoundException e) {
-            Log.e(Constants.TAG, "parcel import file not existing", e);
-            throw new IOException(e);
-        }
-
-        final int numEntries = ois.readInt();
-
         return new IteratorWithSize<E>() {
 
             E mRing = null;
@@ -136,24 +172,23 @@ public class ParcelableFileCache<E extends Parcelable> {
                     return;
                 }
 
+                if (buffer.position() >= recordsEnd) {
+                    close();
+                    return;
+                }
+
                 try {
 
-                    int length = ois.readInt();
+                    int length = buffer.getInt();
                     while (buf.length < length) {
                         buf = new byte[buf.length * 2];
                     }
-                    ois.readFully(buf, 0, length);
-
-                    Parcel parcel = Parcel.obtain(); // creating empty parcel object
-                    parcel.unmarshall(buf, 0, length);
-                    parcel.setDataPosition(0);
-                    mRing = parcel.readParcelable(KeychainApplication.class.getClassLoader());
-                    parcel.recycle();
-                } catch (EOFException e) {
-                    // aight
+                    buffer.get(buf, 0, length);
+
+                    mRing = unmarshall(buf, length);
+                } catch (BufferUnderflowException e) {
+                    Log.e(Constants.TAG, "Encountered truncated record during cache read!", e);
                     close();
-                } catch (IOException e) {
-                    Log.e(Constants.TAG, "Encountered IOException during cache read!", e);
                 }
 
             }
@@ -186,16 +221,10 @@ public class ParcelableFileCache<E extends Parcelable> {
             }
 
             private void close() {
-                if (!closed) {
-                    try {
-                        ois.close();
-                        if (deleteAfterRead) {
-                            //noinspection ResultOfMethodCallIgnored
-                            tempFile.delete();
-                        }
-                    } catch (IOException e) {
-                        // nvm
-                    }
+                if (!closed && deleteAfterRead) {
+                    // the mapping stays valid after the file is unlinked
+                    //noinspection ResultOfMethodCallIgnored
+                    tempFile.delete();
                 }
                 closed = true;
             }
@@ -204,16 +233,95 @@ public class ParcelableFileCache<E extends Parcelable> {
         };
     }
 
-    public boolean delete() throws IOException {
+    /**
+     * Reads a single entry from the cache file, using the record index. The cache file is
+     * not deleted by this method.
+     * @param position the position of the entry, in the order it was written
+     * @throws IOException if the file cannot be read, has no index, or position is out of bounds
+     */
+    public E readEntry(int position) throws IOException {
+
+        MappedByteBuffer buffer = mapCacheFile(getCacheFile());
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("cache file in legacy format has no index!");
+        }
+        checkVersion(buffer);
+
+        int count = buffer.getInt(buffer.limit() - TRAILER_SIZE);
+        if (position < 0 || position >= count) {
+            throw new IOException("entry " + position + " out of bounds, cache has " + count + " entries");
+        }
+
+        long indexOffset = readIndexOffset(buffer);
+        int recordOffset = (int) buffer.getLong((int) indexOffset + position * 8);
+
+        int length = buffer.getInt(recordOffset);
+        byte[] buf = new byte[length];
+        buffer.position(recordOffset + 4);
+        buffer.get(buf);
+
+        return unmarshall(buf, length);
+    }
 
+    private E unmarshall(byte[] buf, int length) {
+        Parcel parcel = Parcel.obtain(); // creating empty parcel object
+        try {
+            parcel.unmarshall(buf, 0, length);
+            parcel.setDataPosition(0);
+            return parcel.readParcelable(KeychainApplication.class.getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void checkVersion(MappedByteBuffer buffer) throws IOException {
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("unsupported cache file version " + version);
+        }
+    }
+
+    private static long readIndexOffset(MappedByteBuffer buffer) throws IOException {
+        int limit = buffer.limit();
+        if (limit < HEADER_SIZE + TRAILER_SIZE || buffer.getInt(limit - 4) != MAGIC) {
+            throw new IOException("cache file is truncated, no index found!");
+        }
+        return buffer.getLong(limit - 12);
+    }
+
+    private static MappedByteBuffer mapCacheFile(File tempFile) throws IOException {
+        FileInputStream fis;
+        try {
+            fis = new FileInputStream(tempFile);
+        } catch (FileNotFoundException e) {
+            Log.e(Constants.TAG, "parcel import file not existing", e);
+            throw new IOException(e);
+        }
+
+        try {
+            FileChannel channel = fis.getChannel();
+            if (channel.size() < 4) {
+                throw new IOException("cache file is empty!");
+            }
+            // the mapping stays valid after the channel is closed
+            return channel.map(MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            fis.close();
+        }
+    }
+
+    private File getCacheFile() throws IOException {
         File cacheDir = mContext.getCacheDir();
         if (cacheDir == null) {
             // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
             throw new IOException("cache dir is null!");
         }
 
-        final File tempFile = new File(cacheDir, mFilename);
-        return tempFile.delete();
+        return new File(cacheDir, mFilename);
+    }
+
+    public boolean delete() throws IOException {
+        return getCacheFile().delete();
     }
 
     /** As the name implies, this is an extended iterator interface, which
@@ -33,6 +33,7 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Constants.Pref;
 import org.sufficientlysecure.keychain.KeychainApplication;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.service.KeyserverSyncAdapterService;
 
 import java.io.Serializable;
@@ -112,6 +113,16 @@ public class Preferences {
         editor.commit();
     }
 
+    public boolean getSessionKeyCache() {
+        return mSharedPreferences.getBoolean(Pref.SESSION_KEY_CACHE, false);
+    }
+
+    public void setSessionKeyCache(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Pref.SESSION_KEY_CACHE, value);
+        editor.commit();
+    }
+
     public boolean getCachedConsolidate() {
         return mSharedPreferences.getBoolean(Pref.CACHED_CONSOLIDATE, false);
     }
@@ -449,6 +460,23 @@ public class Preferences {
         return mSharedPreferences.getBoolean(Pref.ENABLE_WIFI_SYNC_ONLY, true);
     }
 
+    // key import prefs
+
+    /** Maximum number of third-party certifications kept per user id on import. */
+    public int getMaxThirdPartyCertifications() {
+        // stored as a string by the ListPreference in the settings
+        String maxCerts = mSharedPreferences.getString(Pref.MAX_THIRD_PARTY_CERTIFICATIONS, null);
+        if (maxCerts == null) {
+            return UncachedKeyRing.DEFAULT_MAX_THIRD_PARTY_CERTS;
+        }
+        try {
+            return Integer.parseInt(maxCerts);
+        } catch (NumberFormatException e) {
+            Log.e(Constants.TAG, "invalid maximum number of certifications: " + maxCerts);
+            return UncachedKeyRing.DEFAULT_MAX_THIRD_PARTY_CERTS;
+        }
+    }
+
     // experimental prefs
 
     public boolean getExperimentalEnableWordConfirm() {
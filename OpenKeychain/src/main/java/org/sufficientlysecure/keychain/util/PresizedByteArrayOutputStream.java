@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.ByteArrayOutputStream;
+
+
+/** A ByteArrayOutputStream for output of a known approximate size, which gives access to its buffer.
+ *
+ * The buffer is allocated with the expected size on the first write, so it does
+ * not need to grow through a series of copies as long as the estimate holds, and
+ * nothing is allocated for output which is never written. Instead of copying the
+ * data once more with toByteArray, the backing array can be taken with getBuffer,
+ * together with the number of valid bytes in it from size. See
+ * SharedMemoryCache.writeBytesToParcel for passing on such a buffer.
+ *
+ */
+public class PresizedByteArrayOutputStream extends ByteArrayOutputStream {
+
+    private static final int MIN_SIZE = 32;
+    // some VMs reserve header words in arrays, stay a bit below the maximum
+    private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    private final int mExpectedSize;
+
+    public PresizedByteArrayOutputStream(long expectedSize) {
+        super(0);
+        mExpectedSize = (int) Math.max(MIN_SIZE, Math.min(MAX_SIZE, expectedSize));
+    }
+
+    private void allocate(int length) {
+        if (buf.length == 0 && length > 0) {
+            buf = new byte[Math.max(mExpectedSize, length)];
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        allocate(1);
+        super.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        allocate(len);
+        super.write(b, off, len);
+    }
+
+    /** Returns the backing array, of which the first size() bytes are valid. Does not copy. */
+    public synchronized byte[] getBuffer() {
+        return buf;
+    }
+
+    /** Returns the written bytes. If the estimate was exact, this is the backing array itself. */
+    @Override
+    public synchronized byte[] toByteArray() {
+        if (count == buf.length) {
+            return buf;
+        }
+        return super.toByteArray();
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import android.os.BadParcelableException;
+import android.os.MemoryFile;
+import android.os.Parcel;
+import android.os.SystemClock;
+
+import org.sufficientlysecure.keychain.Constants;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transports large byte arrays through a Parcel by placing them in an anonymous
+ * shared memory region instead of the Parcel itself.
+ * <p/>
+ * Byte arrays above 1 MB make the Binder fail the same way large Parcelables do
+ * (see {@link ParcelableCache}). Payloads up to {@link #INLINE_THRESHOLD} are
+ * written into the Parcel as usual; larger ones are copied into a {@link MemoryFile}
+ * (ashmem), and only a UUID ticket for that region is written to the Parcel. The
+ * region lives outside the Java heap and is released once the payload is read back.
+ * <p/>
+ * A ticket can be read only once, and is only valid while the process lives. This is
+ * fine for handing an operation to the KeychainService, but not for Parcels which are
+ * kept around, like saved instance state. Shared memory is therefore only used while
+ * a handoff is written, between {@link #beginHandoff} and {@link #endHandoff}, all other
+ * Parcels get the bytes inline. Regions which are not read within {@link #HANDOFF_TTL},
+ * e.g. because the service could not be started, are released on the next handoff.
+ * <p/>
+ * Results of operations may be kept in saved instance state or passed on in Intents,
+ * where even inline bytes of their output may exceed the Binder limit. Those are written
+ * with {@link #writeHandoffBytesToParcel}, which leaves them out of all other Parcels.
+ * <p/>
+ * We cannot pass the region's file descriptor itself, since Intents given to
+ * startService must not contain file descriptors. As with {@link ParcelableCache},
+ * this means both ends of the Parcel must live in the same process, which holds
+ * for all communication with the KeychainService.
+ */
+public class SharedMemoryCache {
+
+    /** Payloads up to this size are written inline into the Parcel. */
+    public static final int INLINE_THRESHOLD = 64 * 1024;
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_INLINE = 1;
+    private static final int TYPE_SHARED = 2;
+
+    /** Time after which regions which were not read back are released, in milliseconds. */
+    public static final long HANDOFF_TTL = 60 * 1000;
+
+    private static final ConcurrentHashMap<UUID, Region> sRegionCache = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<Boolean> sInHandoff = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
+    private static class Region {
+        final MemoryFile mFile;
+        final long mCreated;
+
+        Region(MemoryFile file) {
+            mFile = file;
+            mCreated = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /** Marks the Parcels written by this thread as a one-shot handoff, until endHandoff is called. */
+    public static void beginHandoff() {
+        sInHandoff.set(true);
+        releaseExpiredRegions();
+    }
+
+    public static void endHandoff() {
+        sInHandoff.set(false);
+    }
+
+    private static void releaseExpiredRegions() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Entry<UUID, Region>> it = sRegionCache.entrySet().iterator();
+        while (it.hasNext()) {
+            Region region = it.next().getValue();
+            if (now - region.mCreated > HANDOFF_TTL) {
+                Log.e(Constants.TAG, "releasing shared memory region which was never read");
+                it.remove();
+                region.mFile.close();
+            }
+        }
+    }
+
+    public static void writeBytesToParcel(byte[] bytes, Parcel dest) {
+        writeBytesToParcel(bytes, bytes != null ? bytes.length : 0, dest);
+    }
+
+    /** Writes the first length bytes of the array, to be read back as an array of that length. */
+    public static void writeBytesToParcel(byte[] bytes, int length, Parcel dest) {
+        if (bytes == null) {
+            dest.writeInt(TYPE_NULL);
+            return;
+        }
+
+        if (length > INLINE_THRESHOLD && sInHandoff.get()) {
+            try {
+                MemoryFile region = new MemoryFile("shared_bytes", length);
+                region.writeBytes(bytes, 0, 0, length);
+
+                UUID ticket = UUID.randomUUID();
+                sRegionCache.put(ticket, new Region(region));
+
+                dest.writeInt(TYPE_SHARED);
+                dest.writeLong(ticket.getMostSignificantBits());
+                dest.writeLong(ticket.getLeastSignificantBits());
+                dest.writeInt(length);
+                return;
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "could not allocate shared memory, writing bytes inline", e);
+            }
+        }
+
+        dest.writeInt(TYPE_INLINE);
+        dest.writeByteArray(bytes, 0, length);
+    }
+
+    /** Writes the first length bytes of the array only while a handoff is written, and null
+     * otherwise. The bytes are then only available from Parcels of the handoff itself.
+     */
+    public static void writeHandoffBytesToParcel(byte[] bytes, int length, Parcel dest) {
+        writeBytesToParcel(sInHandoff.get() ? bytes : null, length, dest);
+    }
+
+    /** Reads bytes written by either write method. Throws a BadParcelableException if they
+     * were written to shared memory which is no longer available.
+     */
+    public static byte[] readBytesFromParcel(Parcel source) {
+        int type = source.readInt();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+
+            case TYPE_INLINE:
+                return source.createByteArray();
+
+            case TYPE_SHARED: {
+                UUID ticket = new UUID(source.readLong(), source.readLong());
+                int length = source.readInt();
+
+                // this removes the region from the cache, it can only be read once
+                Region cached = sRegionCache.remove(ticket);
+                if (cached == null) {
+                    // only if the process died before the handoff was delivered, or it expired
+                    Log.e(Constants.TAG, "shared memory region not found, was it read before or expired?");
+                    throw new BadParcelableException("shared memory region not found");
+                }
+                MemoryFile region = cached.mFile;
+
+                try {
+                    byte[] bytes = new byte[length];
+                    region.readBytes(bytes, 0, 0, length);
+                    return bytes;
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "error reading from shared memory region", e);
+                    throw new BadParcelableException(e);
+                } finally {
+                    region.close();
+                }
+            }
+
+            default:
+                throw new IllegalStateException("unknown shared bytes type in parcel: " + type);
+        }
+    }
+
+}
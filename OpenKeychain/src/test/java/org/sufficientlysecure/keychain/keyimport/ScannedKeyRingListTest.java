@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import android.os.Parcel;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.KeyRingScanner;
+import org.sufficientlysecure.keychain.pgp.KeyRingScanner.ScannedKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ScannedKeyRingListTest {
+
+    // enough keyrings to span more pages than are kept in memory
+    static final int NUM_RINGS = 2 * ScannedKeyRingList.PAGE_SIZE * (ScannedKeyRingList.MAX_PAGES + 1);
+
+    static UncachedKeyRing staticRing, staticPubRing;
+
+    ScannedKeyRingCache mCache;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.add("twi");
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        staticRing = result.getRing();
+        Assert.assertNotNull("initial test key creation must succeed", staticRing);
+        staticPubRing = staticRing.extractPublicKeyRing();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // alternating secret and public keyrings
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        for (int i = 0; i < NUM_RINGS / 2; i++) {
+            staticRing.encode(in);
+            staticPubRing.encode(in);
+        }
+
+        mCache = new ScannedKeyRingCache(RuntimeEnvironment.application);
+        OutputStream out = mCache.openOutputStream();
+        KeyRingScanner scanner = new KeyRingScanner(new ByteArrayInputStream(in.toByteArray()), out);
+        ScannedKeyRing ring;
+        while ((ring = scanner.next()) != null) {
+            mCache.add(ring.mOffset, ring.mLength, ring.mIsSecret);
+        }
+        out.close();
+    }
+
+    @Test
+    public void testEntries() throws Exception {
+        ScannedKeyRingList list = new ScannedKeyRingList(RuntimeEnvironment.application, mCache);
+
+        Assert.assertEquals("list must contain all scanned keyrings", NUM_RINGS, list.size());
+        for (int i = 0; i < NUM_RINGS; i++) {
+            ImportKeysListEntry entry = list.load(i);
+            Assert.assertEquals("entry must be identified by its position", i, entry.hashCode());
+            Assert.assertEquals("entry must have the scanned key id",
+                    staticRing.getMasterKeyId(), entry.getKeyId());
+            Assert.assertEquals("secret and public keyrings must alternate",
+                    i % 2 == 0, entry.isSecretKey());
+        }
+
+        Assert.assertEquals("snapshot must have a fixed size", 10, list.withSize(10).size());
+    }
+
+    @Test
+    public void testSelectionSurvivesEviction() throws Exception {
+        ScannedKeyRingList list = new ScannedKeyRingList(RuntimeEnvironment.application, mCache);
+
+        list.load(0).setSelected(false);
+        list.load(1).setSelected(false);
+        // touch all pages, so the first one is evicted and created again
+        for (int i = 0; i < NUM_RINGS; i += ScannedKeyRingList.PAGE_SIZE) {
+            list.load(i);
+        }
+        Assert.assertFalse("deselection must survive eviction of the page", list.load(0).isSelected());
+        Assert.assertTrue("other entries must stay selected", list.load(2).isSelected());
+        Assert.assertFalse("displayed entries must show the selection",
+                list.withSize(NUM_RINGS).get(1).isSelected());
+
+        ArrayList<Integer> selected = list.getSelectedPositions();
+        Assert.assertEquals("deselected entries must not be included", NUM_RINGS - 2, selected.size());
+        Assert.assertEquals("public keyrings must come first", Integer.valueOf(3), selected.get(0));
+        Assert.assertEquals("secret keyrings must come last",
+                Integer.valueOf(2), selected.get(NUM_RINGS / 2 - 1));
+    }
+
+    @Test
+    public void testImportParcel() throws Exception {
+        BitSet selection = new BitSet();
+        selection.set(0);
+        selection.set(3);
+        selection.set(NUM_RINGS - 1);
+
+        ImportKeyringParcel parcel = mCache.createImportParcel(selection);
+        Assert.assertNotNull("parcel must be created", parcel);
+
+        Parcel p = Parcel.obtain();
+        try {
+            parcel.writeToParcel(p, 0);
+            p.setDataPosition(0);
+            parcel = ImportKeyringParcel.CREATOR.createFromParcel(p);
+        } finally {
+            p.recycle();
+        }
+        Assert.assertEquals("selection must survive parceling", selection, parcel.mKeyRingSelection);
+
+        IteratorWithSize<ParcelableKeyRing> it =
+                ScannedKeyRingCache.readKeyRings(parcel.mKeyRingFile, parcel.mKeyRingSelection);
+        Assert.assertEquals("all selected keyrings must be read", 3, it.getSize());
+        Assert.assertArrayEquals("public keyrings must come first",
+                staticPubRing.getEncoded(), it.next().mBytes);
+        Assert.assertArrayEquals("public keyrings must come first",
+                staticPubRing.getEncoded(), it.next().mBytes);
+        Assert.assertArrayEquals("secret keyrings must come last",
+                staticRing.getEncoded(), it.next().mBytes);
+        Assert.assertFalse(it.hasNext());
+
+        ScannedKeyRingCache.releaseFile(parcel.mKeyRingFile);
+    }
+
+    @Test
+    public void testFileOwnership() throws Exception {
+        BitSet positions = new BitSet();
+        positions.set(1);
+        ImportKeyringParcel parcel = mCache.createImportParcel(positions);
+        Assert.assertNotNull("parcel must be created", parcel);
+        File file = new File(parcel.mKeyRingFile);
+
+        mCache.release();
+        Assert.assertTrue("file must be kept while the import holds a reference", file.exists());
+        Assert.assertNull("no parcel must be created after the cache was released",
+                mCache.createImportParcel(positions));
+
+        ScannedKeyRingCache.releaseFile(parcel.mKeyRingFile);
+        Assert.assertFalse("file must be deleted after the last reference is released", file.exists());
+    }
+
+}
@@ -36,6 +36,7 @@ import org.robolectric.shadows.ShadowLog;
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.BenchmarkResult;
 import org.sufficientlysecure.keychain.operations.results.CertifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
@@ -75,7 +76,10 @@ public class BenchmarkOperationTest {
         BenchmarkOperation op = new BenchmarkOperation(RuntimeEnvironment.application,
                 new ProviderHelper(RuntimeEnvironment.application), null);
 
-        op.execute(new BenchmarkInputParcel(), null);
+        BenchmarkResult result = op.execute(new BenchmarkInputParcel(), null);
+        Assert.assertTrue("benchmark must succeed", result.success());
+        Assert.assertTrue("benchmark must compare cleartext signing",
+                result.getLog().containsType(LogType.MSG_BENCH_CLEARTEXT_TIME_AVG));
     }
 
 }
@@ -21,9 +21,13 @@ package org.sufficientlysecure.keychain.pgp;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 
 import android.app.Application;
 import android.content.ContentResolver;
@@ -36,6 +40,8 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.openintents.openpgp.OpenPgpMetadata;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.RuntimeEnvironment;
@@ -45,10 +51,15 @@ import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
 import org.sufficientlysecure.keychain.operations.InputDataOperation;
 import org.sufficientlysecure.keychain.operations.results.InputDataResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.InputDataParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequiredInputType;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.TestingUtils;
 
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
@@ -64,6 +75,8 @@ public class InputDataOperationTest {
 
     static PrintStream oldShadowStream;
 
+    static Passphrase mSymmetricPassphrase = TestingUtils.genPassphrase(true);
+
     @BeforeClass
     public static void setUpOnce() throws Exception {
 
@@ -292,4 +305,168 @@ public class InputDataOperationTest {
         return op.execute(input, new CryptoInputParcel());
     }
 
+    @Test
+    public void testStreamedMimeDecoding() throws Exception {
+
+        String mimeMail =
+            "Content-Type: multipart/mixed; boundary=\"=-26BafqxfXmhVNMbYdoIi\"\n" +
+            "\n" +
+            "--=-26BafqxfXmhVNMbYdoIi\n" +
+            "Content-Type: text/plain; charset=utf-8\n" +
+            "Content-Disposition: attachment; filename=data.txt\n" +
+            "\n" +
+            "message part 1\n" +
+            "--=-26BafqxfXmhVNMbYdoIi\n" +
+            "Content-Type: text/testvalue; charset=iso-8859-1\n" +
+            "\n" +
+            "message part 2\n" +
+            "--=-26BafqxfXmhVNMbYdoIi--";
+
+        FakeStorage storage = new FakeStorage(encryptSymmetric(mimeMail.getBytes()));
+        InputDataResult result = storage.runDecryptOperation(new CryptoInputParcel(mSymmetricPassphrase));
+
+        Assert.assertTrue("operation must succeed", result.success());
+        Assert.assertTrue("data must be parsed while decrypting",
+                result.getLog().containsType(LogType.MSG_DATA_STREAMING));
+        Assert.assertFalse("mime data must not be decrypted twice",
+                result.getLog().containsType(LogType.MSG_DATA_STREAMING_FALLBACK));
+        Assert.assertNotNull(result.mDecryptVerifyResult);
+
+        ArrayList<Uri> outUris = result.getOutputUris();
+        Assert.assertEquals("must have two output URIs", 2, outUris.size());
+        Assert.assertEquals("first part must have expected content",
+                "message part 1", storage.getContent(outUris.get(0)));
+        Assert.assertEquals("second part must have expected content",
+                "message part 2", storage.getContent(outUris.get(1)));
+        Assert.assertEquals("text/plain", result.mMetadata.get(0).getMimeType());
+        Assert.assertEquals("text/testvalue", result.mMetadata.get(1).getMimeType());
+    }
+
+    @Test
+    public void testStreamedNonMimeFallback() throws Exception {
+
+        // looks like a mime header, but has no content, so the raw data must be decrypted again
+        String plaintext = "Foo: bar\n\n";
+
+        FakeStorage storage = new FakeStorage(encryptSymmetric(plaintext.getBytes()));
+        InputDataResult result = storage.runDecryptOperation(new CryptoInputParcel(mSymmetricPassphrase));
+
+        Assert.assertTrue("operation must succeed", result.success());
+        Assert.assertTrue("raw data must be decrypted again",
+                result.getLog().containsType(LogType.MSG_DATA_STREAMING_FALLBACK));
+
+        ArrayList<Uri> outUris = result.getOutputUris();
+        Assert.assertEquals("must have one output URI", 1, outUris.size());
+        Assert.assertEquals("raw data must be passed on as is",
+                plaintext, storage.getContent(outUris.get(0)));
+    }
+
+    @Test
+    public void testStreamedNonMimeRecorded() throws Exception {
+
+        String plaintext = "just some text, without any headers";
+
+        FakeStorage storage = new FakeStorage(encryptSymmetric(plaintext.getBytes()));
+        InputDataResult result = storage.runDecryptOperation(new CryptoInputParcel(mSymmetricPassphrase));
+
+        Assert.assertTrue("operation must succeed", result.success());
+
+        ArrayList<Uri> outUris = result.getOutputUris();
+        Assert.assertEquals("must have one output URI", 1, outUris.size());
+        Assert.assertEquals("raw data must be passed on as is",
+                plaintext, storage.getContent(outUris.get(0)));
+    }
+
+    @Test
+    public void testStreamedPassphrasePending() throws Exception {
+
+        FakeStorage storage = new FakeStorage(encryptSymmetric("Content-Type: text/plain\n\ntext".getBytes()));
+        InputDataResult result = storage.runDecryptOperation(new CryptoInputParcel());
+
+        Assert.assertTrue("operation must be pending", result.isPending());
+        Assert.assertEquals("operation must ask for the passphrase",
+                RequiredInputType.PASSPHRASE_SYMMETRIC, result.getRequiredInputParcel().mType);
+        Assert.assertNull("no output must be returned for pending operation", result.getOutputUris());
+        Assert.assertTrue("recorded data must be deleted for pending operation", storage.mFiles.isEmpty());
+    }
+
+    private static byte[] encryptSymmetric(byte[] plaintext) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        PgpSignEncryptInputParcel b = new PgpSignEncryptInputParcel();
+        b.setSymmetricPassphrase(mSymmetricPassphrase);
+        b.setSymmetricEncryptionAlgorithm(
+                PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+        PgpSignEncryptResult result = op.execute(b, new CryptoInputParcel(new Date()),
+                new InputData(in, plaintext.length), out);
+        Assert.assertTrue("encryption must succeed", result.success());
+
+        return out.toByteArray();
+    }
+
+    /** A content resolver which serves one input, and keeps all files created by the operation in memory. */
+    private static class FakeStorage {
+        final Uri mInputUri = Uri.parse("content://fake/1");
+        final HashMap<Uri, ByteArrayOutputStream> mFiles = new HashMap<>();
+        final ContentResolver mResolver = mock(ContentResolver.class);
+        int mNextFile = 0;
+
+        FakeStorage(final byte[] input) throws Exception {
+            // the input may be read more than once
+            when(mResolver.openInputStream(mInputUri)).thenAnswer(new Answer<InputStream>() {
+                @Override
+                public InputStream answer(InvocationOnMock invocation) {
+                    return new ByteArrayInputStream(input);
+                }
+            });
+            when(mResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
+                    .thenAnswer(new Answer<Uri>() {
+                        @Override
+                        public Uri answer(InvocationOnMock invocation) {
+                            return Uri.parse("content://fake/out/" + (mNextFile++));
+                        }
+                    });
+            Answer<OutputStream> openFile = new Answer<OutputStream>() {
+                @Override
+                public OutputStream answer(InvocationOnMock invocation) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    mFiles.put((Uri) invocation.getArguments()[0], out);
+                    return out;
+                }
+            };
+            when(mResolver.openOutputStream(any(Uri.class))).thenAnswer(openFile);
+            when(mResolver.openOutputStream(any(Uri.class), eq("w"))).thenAnswer(openFile);
+            when(mResolver.delete(any(Uri.class), any(String.class), any(String[].class)))
+                    .thenAnswer(new Answer<Integer>() {
+                        @Override
+                        public Integer answer(InvocationOnMock invocation) {
+                            return mFiles.remove((Uri) invocation.getArguments()[0]) != null ? 1 : 0;
+                        }
+                    });
+        }
+
+        InputDataResult runDecryptOperation(CryptoInputParcel cryptoInput) {
+            Application spyApplication = spy(RuntimeEnvironment.application);
+            when(spyApplication.getContentResolver()).thenReturn(mResolver);
+
+            InputDataOperation op = new InputDataOperation(spyApplication,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            PgpDecryptVerifyInputParcel decryptInput = new PgpDecryptVerifyInputParcel();
+            decryptInput.setAllowSymmetricDecryption(true);
+            return op.execute(new InputDataParcel(mInputUri, decryptInput), cryptoInput);
+        }
+
+        String getContent(Uri uri) {
+            ByteArrayOutputStream out = mFiles.get(uri);
+            Assert.assertNotNull("output must have been written", out);
+            return new String(out.toByteArray()).trim();
+        }
+    }
+
 }
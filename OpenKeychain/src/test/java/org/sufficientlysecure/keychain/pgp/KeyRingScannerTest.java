@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.KeyRingScanner.ScannedKeyRing;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.Security;
+import java.util.Arrays;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeyRingScannerTest {
+
+    static UncachedKeyRing staticRing, staticPubRing;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+
+        parcel.mAddUserIds.add("twi");
+        parcel.mAddUserIds.add("pink");
+        parcel.mChangePrimaryUserId = "pink";
+
+        // passphrase is tested in PgpKeyOperationTest, just use empty here
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+        PgpKeyOperation op = new PgpKeyOperation(null);
+
+        PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+        staticRing = result.getRing();
+        Assert.assertNotNull("initial test key creation must succeed", staticRing);
+        staticPubRing = staticRing.extractPublicKeyRing();
+    }
+
+    @Test
+    public void testScanBinary() throws Exception {
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        staticRing.encode(in);
+        staticPubRing.encode(in);
+
+        assertScansBothRings(in.toByteArray());
+    }
+
+    @Test
+    public void testScanArmoredMulti() throws Exception {
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        staticRing.encodeArmored(in, "OpenKeychain");
+        staticPubRing.encodeArmored(in, "OpenKeychain");
+
+        assertScansBothRings(in.toByteArray());
+    }
+
+    private void assertScansBothRings(byte[] input) throws Exception {
+        ByteArrayOutputStream ringOut = new ByteArrayOutputStream();
+        KeyRingScanner scanner = new KeyRingScanner(new ByteArrayInputStream(input), ringOut);
+
+        ScannedKeyRing first = scanner.next();
+        ScannedKeyRing second = scanner.next();
+        Assert.assertNull("there should be two rings in the stream", scanner.next());
+        Assert.assertNotNull("there should be two rings in the stream", first);
+        Assert.assertNotNull("there should be two rings in the stream", second);
+
+        byte[] raw = ringOut.toByteArray();
+        assertScannedRing(staticRing, first, raw);
+        assertScannedRing(staticPubRing, second, raw);
+        Assert.assertEquals("rings should be written back to back",
+                first.mOffset + first.mLength, second.mOffset);
+    }
+
+    private void assertScannedRing(UncachedKeyRing expected, ScannedKeyRing scanned, byte[] raw)
+            throws Exception {
+        UncachedPublicKey key = expected.getPublicKey();
+
+        Assert.assertTrue("scanned ring should be complete", scanned.isComplete());
+        Assert.assertEquals("secret flag must match", expected.isSecret(), scanned.mIsSecret);
+        Assert.assertEquals("master key id must match", key.getKeyId(), scanned.mMasterKeyId);
+        Assert.assertArrayEquals("fingerprint must match", key.getFingerprint(), scanned.mFingerprint);
+        Assert.assertEquals("algorithm must match", key.getAlgorithm(), scanned.mAlgorithm);
+        Assert.assertEquals("curve oid must match", key.getCurveOid(), scanned.mCurveOid);
+        Assert.assertEquals("bit strength must match", key.getBitStrength(), scanned.mBitStrength);
+        Assert.assertEquals("primary user id must match",
+                key.getPrimaryUserIdWithFallback(), scanned.mPrimaryUserId);
+        Assert.assertEquals("user ids must match", key.getUnorderedUserIds(), scanned.mUserIds);
+
+        byte[] encoded = Arrays.copyOfRange(raw,
+                (int) scanned.mOffset, (int) scanned.mOffset + scanned.mLength);
+        Assert.assertArrayEquals("raw ring data must match", expected.getEncoded(), encoded);
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ParallelDeflaterOutputStreamTest {
+
+    @Test
+    public void testDeflate() throws Exception {
+        byte[] data = generateData(ParallelDeflaterOutputStream.BLOCK_SIZE * 5 + 123);
+        Assert.assertArrayEquals("raw deflate stream must inflate to original data",
+                data, inflate(deflate(data, false), false));
+    }
+
+    @Test
+    public void testZlib() throws Exception {
+        byte[] data = generateData(ParallelDeflaterOutputStream.BLOCK_SIZE * 3);
+        Assert.assertArrayEquals("zlib stream must inflate to original data, with valid checksum",
+                data, inflate(deflate(data, true), true));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        byte[] data = new byte[0];
+        Assert.assertArrayEquals("empty input must give a valid stream",
+                data, inflate(deflate(data, false), false));
+        Assert.assertArrayEquals("empty input must give a valid stream",
+                data, inflate(deflate(data, true), true));
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelDeflaterOutputStream deflaterOut =
+                new ParallelDeflaterOutputStream(out, false, Deflater.DEFAULT_COMPRESSION);
+        byte[] data = generateData(ParallelDeflaterOutputStream.BLOCK_SIZE * 2);
+        deflaterOut.write(data, 0, data.length);
+        int writtenBeforeAbort = out.size();
+
+        deflaterOut.abort();
+        Assert.assertEquals("aborted stream must not write anything more", writtenBeforeAbort, out.size());
+        try {
+            deflaterOut.write(data, 0, 1);
+            Assert.fail("aborted stream must not accept more data");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // the shared pool must still work for other streams
+        Assert.assertArrayEquals("stream after abort must inflate to original data",
+                data, inflate(deflate(data, false), false));
+    }
+
+    /** Compressible data with some randomness, so that dictionaries across blocks matter. */
+    private static byte[] generateData(int length) {
+        Random random = new Random(42);
+        byte[] words = "the quick brown fox jumps over the lazy dog ".getBytes();
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = random.nextInt(16) == 0 ? (byte) random.nextInt() : words[i % words.length];
+        }
+        return data;
+    }
+
+    private static byte[] deflate(byte[] data, boolean zlib) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelDeflaterOutputStream deflaterOut =
+                new ParallelDeflaterOutputStream(out, zlib, Deflater.DEFAULT_COMPRESSION);
+        // odd write sizes, to not line up with blocks
+        for (int i = 0; i < data.length; i += 10007) {
+            deflaterOut.write(data, i, Math.min(10007, data.length - i));
+        }
+        deflaterOut.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] compressed, boolean zlib) throws Exception {
+        Inflater inflater = new Inflater(!zlib);
+        InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed), inflater);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 14];
+        int length;
+        while ((length = in.read(buffer)) > 0) {
+            out.write(buffer, 0, length);
+        }
+        Assert.assertTrue("stream must be complete", inflater.finished());
+        return out.toByteArray();
+    }
+
+}
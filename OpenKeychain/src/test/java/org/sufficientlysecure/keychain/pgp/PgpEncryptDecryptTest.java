@@ -20,12 +20,25 @@ package org.sufficientlysecure.keychain.pgp;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Random;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 
 import org.apache.tools.ant.util.StringUtils;
 import org.junit.Assert;
@@ -33,6 +46,9 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.AdditionalAnswers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.openintents.openpgp.OpenPgpDecryptionResult;
 import org.openintents.openpgp.OpenPgpMetadata;
 import org.openintents.openpgp.OpenPgpSignatureResult;
@@ -48,10 +64,12 @@ import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openpgp.PGPKeyFlags;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.SignEncryptOperation;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
@@ -62,13 +80,21 @@ import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequiredInputType;
 import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
 import org.sufficientlysecure.keychain.support.KeyringTestingHelper.RawPacket;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 import org.sufficientlysecure.keychain.util.TestingUtils;
 
 import static org.hamcrest.core.AnyOf.anyOf;
 import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
 
 
 @RunWith(RobolectricGradleTestRunner.class)
@@ -403,6 +429,164 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAsymmetricSignCleartextLarge() {
+
+        // mixed line endings, trailing whitespace and dash-escaped lines, spanning several blocks
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            builder.append("line ").append(i).append(" \t \r\n");
+            builder.append("- dashed line\r");
+            builder.append("-----BEGIN not a header\n");
+            builder.append("\t\n");
+        }
+        String plaintext = builder.toString();
+        byte[] ciphertext;
+
+        { // sign data as cleartext
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+
+            input.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            input.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            input.setCleartextSignature(true);
+            input.setEnableAsciiArmorOutput(true);
+            input.setDetachedSignature(false);
+
+            PgpSignEncryptResult result = op.execute(input, new CryptoInputParcel(mKeyPhrase1), data, out);
+            Assert.assertTrue("signing must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // verification should succeed
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("verification must succeed", result.success());
+            Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+            Assert.assertTrue("verification text should contain dash-escaped lines unescaped",
+                    new String(out.toByteArray()).contains(StringUtils.LINE_SEP + "-----BEGIN not a header"));
+
+        }
+
+    }
+
+    @Test
+    public void testSignCleartextCrLineEndings() {
+
+        String plaintext = "line one\rline two \r\r- dashed line\rlast line\r";
+        assertCleartextSignedLines(plaintext.getBytes());
+
+    }
+
+    @Test
+    public void testSignCleartextCrLfAtBlockBoundary() {
+
+        // the CR is the last byte of the first block, the LF the first of the next one
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < BufferPool.BUFFER_SIZE - 1) {
+            builder.append('x');
+        }
+        builder.setLength(BufferPool.BUFFER_SIZE - 1);
+        builder.append("\r\nsecond line\r\n\r\nfourth line");
+
+        String verified = assertCleartextSignedLines(builder.toString().getBytes());
+        Assert.assertEquals("a CRLF split between blocks must be a single line ending",
+                4, verified.split("\n", -1).length);
+
+    }
+
+    @Test
+    public void testSignCleartextWhitespaceAtBlockBoundary() {
+
+        StringBuilder builder = new StringBuilder();
+
+        // trailing whitespace which starts in the first block, and ends in the second
+        while (builder.length() < BufferPool.BUFFER_SIZE - 2) {
+            builder.append('x');
+        }
+        builder.setLength(BufferPool.BUFFER_SIZE - 2);
+        builder.append(" \t \t\n");
+
+        // whitespace at the end of the second block, which is followed by more text in the third
+        while (builder.length() < 2 * BufferPool.BUFFER_SIZE - 3) {
+            builder.append('y');
+        }
+        builder.setLength(2 * BufferPool.BUFFER_SIZE - 3);
+        builder.append(" \t z\n");
+
+        String verified = assertCleartextSignedLines(builder.toString().getBytes());
+        Assert.assertTrue("whitespace followed by text in the next block must be kept",
+                verified.contains("y \t z"));
+        Assert.assertFalse("trailing whitespace split between blocks must be stripped",
+                verified.contains("x "));
+
+    }
+
+    /**
+     * Signs the data as cleartext, and verifies it. The verified text must have the same
+     * lines as the data, without trailing whitespace. Returns it with LF line endings.
+     */
+    private String assertCleartextSignedLines(byte[] plaintext) {
+        byte[] ciphertext;
+
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+            input.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            input.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            input.setCleartextSignature(true);
+            input.setEnableAsciiArmorOutput(true);
+
+            PgpSignEncryptResult result = op.execute(input, new CryptoInputParcel(mKeyPhrase1),
+                    new InputData(new ByteArrayInputStream(plaintext), plaintext.length), out);
+            Assert.assertTrue("signing must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+        DecryptVerifyResult result = op.execute(new PgpDecryptVerifyInputParcel(), new CryptoInputParcel(),
+                new InputData(new ByteArrayInputStream(ciphertext), ciphertext.length), out);
+
+        Assert.assertTrue("verification must succeed", result.success());
+        Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+
+        String verified = normalizeLines(new String(out.toByteArray()));
+        Assert.assertEquals("verified text must have the lines of the plaintext, without trailing whitespace",
+                normalizeLines(new String(plaintext)), verified);
+        return verified;
+    }
+
+    /** Converts all line endings to LF, and strips trailing whitespace from each line and the text. */
+    private static String normalizeLines(String text) {
+        String[] lines = text.split("\r\n|\r|\n", -1);
+        StringBuilder builder = new StringBuilder();
+        for (String line : lines) {
+            builder.append(line.replaceAll("[ \t]+$", "")).append('\n');
+        }
+        return builder.toString().replaceAll("\n+$", "");
+    }
+
     @Test
     public void testAsymmetricSignDetached() {
 
@@ -458,6 +642,123 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testEstimateOutputSize() {
+
+        // random data doesn't compress, which is what the estimate assumes
+        byte[] binary = new byte[100000];
+        new Random().nextBytes(binary);
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 100000) {
+            // lines starting with a dash are escaped, line endings become CRLF
+            text.append("- dash escaped\nplain line ").append(text.length()).append("\n");
+        }
+        byte[] textBytes = text.toString().getBytes();
+
+        { // symmetric, binary
+            PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+            input.setSymmetricPassphrase(mSymmetricPassphrase);
+            assertOutputSizeEstimated(input, new CryptoInputParcel(new Date()), binary);
+        }
+
+        { // asymmetric to two keys, signed and armored
+            PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+            input.setEncryptionMasterKeyIds(new long[] {
+                    mStaticRing1.getMasterKeyId(), mStaticRing2.getMasterKeyId() });
+            input.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            input.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            input.setEnableAsciiArmorOutput(true);
+            assertOutputSizeEstimated(input, new CryptoInputParcel(new Date(), mKeyPhrase1), binary);
+        }
+
+        { // cleartext signature
+            PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+            input.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            input.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            input.setCleartextSignature(true);
+            input.setEnableAsciiArmorOutput(true);
+            assertOutputSizeEstimated(input, new CryptoInputParcel(new Date(), mKeyPhrase1), textBytes);
+        }
+
+        { // detached signature
+            PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+            input.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            input.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            input.setDetachedSignature(true);
+            input.setDetachedSignatureToOutput(true);
+            assertOutputSizeEstimated(input, new CryptoInputParcel(new Date(), mKeyPhrase1), binary);
+        }
+
+    }
+
+    private void assertOutputSizeEstimated(PgpSignEncryptInputParcel input, CryptoInputParcel cryptoInput,
+            byte[] plaintext) {
+        long estimate = PgpSignEncryptOperation.estimateOutputSize(input, plaintext.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+        PgpSignEncryptResult result = op.execute(input, cryptoInput,
+                new InputData(new ByteArrayInputStream(plaintext), plaintext.length), out);
+        Assert.assertTrue("operation must succeed", result.success());
+
+        int size = out.size();
+        Assert.assertTrue("estimate " + estimate + " must not be below output size " + size, estimate >= size);
+        Assert.assertTrue("estimate " + estimate + " must be close to output size " + size,
+                estimate <= size * 3 / 2 + 4096);
+    }
+
+    @Test
+    public void testAsymmetricSignDetachedToOutput() {
+
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+        byte[] detachedSignature;
+
+        { // sign data, writing the signature to the output stream
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+
+            input.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            input.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            input.setDetachedSignature(true);
+            input.setDetachedSignatureToOutput(true);
+            input.setEnableAsciiArmorOutput(true);
+
+            PgpSignEncryptResult result = op.execute(input, new CryptoInputParcel(mKeyPhrase1), data, out);
+            Assert.assertTrue("signing must succeed", result.success());
+            Assert.assertNull("signature must not be returned in result", result.getDetachedSignature());
+            Assert.assertNotNull("signing key should be available for sharing", op.getUnlockedSigningKey());
+
+            detachedSignature = out.toByteArray();
+            Assert.assertTrue("output must be an armored signature",
+                    new String(detachedSignature).startsWith("-----BEGIN PGP SIGNATURE-----"));
+        }
+
+        { // verification should succeed
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            input.setDetachedSignature(detachedSignature);
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("verification must succeed", result.success());
+            Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+        }
+
+    }
+
     @Test
     public void testAsymmetricEncryptDecrypt() {
 
@@ -555,6 +856,84 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAsymmetricDecryptSessionKeyCache() {
+
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+        byte[] ciphertext;
+
+        Preferences.getPreferences(RuntimeEnvironment.application).setSessionKeyCache(true);
+
+        { // encrypt data with key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+
+            input.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+            PgpSignEncryptResult result = op.execute(input, new CryptoInputParcel(new Date()),
+                    data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // decryption with provided passphrase should put the session key into the cache
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(mKeyPhrase1), data, out);
+
+            Assert.assertTrue("decryption with provided passphrase must succeed", result.success());
+            Assert.assertFalse("session key must not come from cache on first decryption",
+                    result.getLog().containsType(LogType.MSG_DC_SESSION_KEY_CACHED));
+        }
+
+        { // decryption without any passphrase should now succeed from the cache
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption with cached session key must succeed", result.success());
+            Assert.assertTrue("session key must come from cache",
+                    result.getLog().containsType(LogType.MSG_DC_SESSION_KEY_CACHED));
+            Assert.assertArrayEquals("decrypted ciphertext with cached session key should equal plaintext",
+                    out.toByteArray(), plaintext.getBytes());
+        }
+
+        SessionKeyCache.getInstance(RuntimeEnvironment.application).clear();
+
+        { // after the cache is wiped, a passphrase is required again
+
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(),
+                    data, new ByteArrayOutputStream());
+
+            Assert.assertFalse("decryption after wiping the cache must not succeed", result.success());
+            Assert.assertTrue("decryption after wiping the cache should be pending", result.isPending());
+        }
+
+        Preferences.getPreferences(RuntimeEnvironment.application).setSessionKeyCache(false);
+
+    }
+
     @Test
     public void testMultiSubkeyEncryptSkipStripOrBadFlag() throws Exception {
 
@@ -914,6 +1293,120 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAsymmetricSignEncryptPipelined() {
+
+        // large enough to cycle through the pipeline's buffers several times
+        byte[] plaintext = new byte[PipelinedSignEncryptCopy.BUFFER_SIZE * PipelinedSignEncryptCopy.NUM_BUFFERS * 3 + 17];
+        new Random().nextBytes(plaintext);
+        byte[] ciphertext;
+
+        { // sign and encrypt data in pipelined mode
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInputParcel b = new PgpSignEncryptInputParcel();
+
+            b.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+            b.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            b.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            b.setCompressionAlgorithm(PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_DEFAULT);
+            b.setEnablePipelining(true);
+
+            PgpSignEncryptResult result = op.execute(b,
+                    new CryptoInputParcel(new Date(), mKeyPhrase1), data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // decryption and verification should succeed
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                    plaintext, out.toByteArray());
+            Assert.assertEquals("signature should be verified and certified",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+        }
+
+    }
+
+    @Test
+    public void testAutoCompression() {
+
+        byte[] randomData = new byte[PgpSignEncryptOperation.AUTO_COMPRESSION_SAMPLE_SIZE * 2];
+        new Random().nextBytes(randomData);
+        byte[] textData = new byte[PgpSignEncryptOperation.AUTO_COMPRESSION_SAMPLE_SIZE * 2];
+        for (int i = 0; i < textData.length; i++) {
+            textData[i] = (byte) "dies ist ein plaintext. ".charAt(i % 24);
+        }
+
+        for (byte[] plaintext : new byte[][] { randomData, textData }) {
+            byte[] ciphertext;
+
+            { // encrypt with automatic compression
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+                PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                        new ProviderHelper(RuntimeEnvironment.application), null);
+
+                InputData data = new InputData(in, in.available());
+                PgpSignEncryptInputParcel b = new PgpSignEncryptInputParcel();
+
+                b.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+                b.setCompressionAlgorithm(PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_AUTO);
+
+                PgpSignEncryptResult result = op.execute(b, new CryptoInputParcel(new Date()), data, out);
+                Assert.assertTrue("encryption must succeed", result.success());
+
+                if (plaintext == randomData) {
+                    Assert.assertTrue("random data must not be compressed",
+                            result.getLog().containsType(LogType.MSG_PSE_COMPRESSION_AUTO_ENTROPY));
+                    Assert.assertFalse("random data must not be compressed",
+                            result.getLog().containsType(LogType.MSG_PSE_COMPRESSING));
+                } else {
+                    Assert.assertTrue("text data must be compressed",
+                            result.getLog().containsType(LogType.MSG_PSE_COMPRESSION_AUTO_ON));
+                    Assert.assertTrue("text data must be compressed",
+                            result.getLog().containsType(LogType.MSG_PSE_COMPRESSING));
+                }
+
+                ciphertext = out.toByteArray();
+            }
+
+            { // decryption must return the full data, including the sampled part
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+                InputData data = new InputData(in, in.available());
+
+                PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                        mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+                PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+                DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+                Assert.assertTrue("decryption must succeed", result.success());
+                Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                        plaintext, out.toByteArray());
+            }
+        }
+
+    }
+
     @Test
     public void testForeignEncoding() throws Exception {
         String plaintext = "ウィキペディア";
@@ -1043,6 +1536,272 @@ public class PgpEncryptDecryptTest {
         }
     }
 
+    @Test
+    public void testVerifyDetachedLocalFile() throws Exception {
+
+        // spans several buffers, the last one partially
+        byte[] data = new byte[3 * BufferPool.BUFFER_SIZE + 1234];
+        new Random().nextBytes(data);
+        byte[] detachedSignature = signDetached(data);
+
+        File file = File.createTempFile("detached", ".bin");
+        try {
+            FileOutputStream fileOut = new FileOutputStream(file);
+            fileOut.write(data);
+            fileOut.close();
+            Uri fileUri = Uri.fromFile(file);
+
+            DecryptVerifyResult result = verifyDetachedFile(fileUri, detachedSignature);
+            Assert.assertTrue("verification must succeed", result.success());
+            Assert.assertTrue("file must be read from its channel",
+                    result.getLog().containsType(LogType.MSG_DC_DETACHED_FILE));
+            Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+
+            // change one byte in the last buffer
+            data[data.length - 1] ^= 1;
+            fileOut = new FileOutputStream(file);
+            fileOut.write(data);
+            fileOut.close();
+
+            result = verifyDetachedFile(fileUri, detachedSignature);
+            Assert.assertTrue("file must be read from its channel",
+                    result.getLog().containsType(LogType.MSG_DC_DETACHED_FILE));
+            Assert.assertEquals("data changed in the last buffer must be detected",
+                    OpenPgpSignatureResult.RESULT_INVALID_SIGNATURE, result.getSignatureResult().getResult());
+        } finally {
+            file.delete();
+        }
+
+    }
+
+    @Test
+    public void testVerifyDetachedStreamFallback() throws Exception {
+
+        byte[] data = new byte[200 * 1024];
+        new Random().nextBytes(data);
+        byte[] detachedSignature = signDetached(data);
+
+        // content from other apps may not have a file descriptor, like pipes
+        Uri contentUri = Uri.parse("content://fake/signed");
+        DecryptVerifyResult result = verifyDetachedStream(contentUri, data, detachedSignature);
+        Assert.assertTrue("verification must succeed", result.success());
+        Assert.assertFalse("content must be read as a stream",
+                result.getLog().containsType(LogType.MSG_DC_DETACHED_FILE));
+        Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+
+    }
+
+    private byte[] signDetached(byte[] data) {
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+        input.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+        input.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+        input.setDetachedSignature(true);
+
+        PgpSignEncryptResult result = op.execute(input, new CryptoInputParcel(new Date(), mKeyPhrase1),
+                new InputData(new ByteArrayInputStream(data), data.length), new ByteArrayOutputStream());
+        Assert.assertTrue("signing must succeed", result.success());
+        return result.getDetachedSignature();
+    }
+
+    /** Verifies a local file, which is opened through a file descriptor. */
+    private DecryptVerifyResult verifyDetachedFile(final Uri fileUri, byte[] detachedSignature)
+            throws Exception {
+        ContentResolver resolver = mock(ContentResolver.class,
+                AdditionalAnswers.delegatesTo(RuntimeEnvironment.application.getContentResolver()));
+        doAnswer(new Answer<ParcelFileDescriptor>() {
+            @Override
+            public ParcelFileDescriptor answer(InvocationOnMock invocation) throws Exception {
+                return ParcelFileDescriptor.open(new File(fileUri.getPath()), ParcelFileDescriptor.MODE_READ_ONLY);
+            }
+        }).when(resolver).openFileDescriptor(fileUri, "r");
+
+        PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(applicationWithResolver(resolver),
+                new ProviderHelper(RuntimeEnvironment.application), null);
+        return op.execute(detachedInput(fileUri, detachedSignature), new CryptoInputParcel());
+    }
+
+    /** Verifies content which has no file descriptor, and can only be read as a stream. */
+    private DecryptVerifyResult verifyDetachedStream(Uri contentUri, final byte[] data, byte[] detachedSignature)
+            throws Exception {
+        ContentResolver resolver = mock(ContentResolver.class,
+                AdditionalAnswers.delegatesTo(RuntimeEnvironment.application.getContentResolver()));
+        doThrow(new FileNotFoundException("no file descriptor")).when(resolver).openFileDescriptor(contentUri, "r");
+        doAnswer(new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) {
+                return new ByteArrayInputStream(data);
+            }
+        }).when(resolver).openInputStream(contentUri);
+
+        PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(applicationWithResolver(resolver),
+                new ProviderHelper(RuntimeEnvironment.application), null);
+        return op.execute(detachedInput(contentUri, detachedSignature), new CryptoInputParcel());
+    }
+
+    private static PgpDecryptVerifyInputParcel detachedInput(Uri inputUri, byte[] detachedSignature) {
+        PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+        input.setInputUri(inputUri);
+        input.setDetachedSignature(detachedSignature);
+        return input;
+    }
+
+    private static Application applicationWithResolver(ContentResolver resolver) {
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(resolver);
+        return spyApplication;
+    }
+
+    @Test
+    public void testSignDetachedParallel() throws Exception {
+
+        String[] plaintexts = new String[3];
+        for (int i = 0; i < plaintexts.length; i++) {
+            plaintexts[i] = "dies ist plaintext nummer " + i + TestingUtils.genPassphrase(true);
+        }
+        DetachedSignatureStorage storage = new DetachedSignatureStorage(plaintexts);
+
+        SignEncryptResult result = storage.sign();
+        Assert.assertTrue("signing must succeed", result.success());
+        Assert.assertTrue("inputs must be signed in parallel",
+                result.getLog().containsType(LogType.MSG_SE_DETACHED_PARALLEL));
+        Assert.assertEquals("there must be one result per input",
+                plaintexts.length, result.getResults().size());
+        Assert.assertTrue("no outputs must be deleted", storage.mDeleted.isEmpty());
+
+        for (int i = 0; i < plaintexts.length; i++) {
+            byte[] detachedSignature = storage.mOutputs.get(storage.mOutputUris.get(i)).toByteArray();
+
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintexts[i].getBytes());
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            input.setDetachedSignature(detachedSignature);
+            DecryptVerifyResult verifyResult = op.execute(input, new CryptoInputParcel(), data,
+                    new ByteArrayOutputStream());
+
+            Assert.assertTrue("verification of each output must succeed", verifyResult.success());
+            Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, verifyResult.getSignatureResult().getResult());
+        }
+
+    }
+
+    @Test
+    public void testSignDetachedParallelFailure() throws Exception {
+
+        String[] plaintexts = new String[] { "eins", "zwei", "drei" };
+        DetachedSignatureStorage storage = new DetachedSignatureStorage(plaintexts);
+        // the last output can't be written
+        storage.mFailingOutput = storage.mOutputUris.get(2);
+
+        SignEncryptResult result = storage.sign();
+        Assert.assertFalse("signing must fail", result.success());
+
+        Assert.assertTrue("partial output must be deleted",
+                storage.mDeleted.contains(storage.mOutputUris.get(2)));
+        Assert.assertFalse("complete outputs must be kept",
+                storage.mDeleted.contains(storage.mOutputUris.get(0)));
+        Assert.assertFalse("complete outputs must be kept",
+                storage.mDeleted.contains(storage.mOutputUris.get(1)));
+        for (ByteArrayOutputStream out : storage.mOutputs.values()) {
+            Assert.assertTrue("all outputs must be closed", storage.mClosed.contains(out));
+        }
+
+    }
+
+    /** Serves inputs from memory, and keeps the signatures written to the outputs. */
+    private static class DetachedSignatureStorage {
+        final ArrayList<Uri> mInputUris = new ArrayList<>();
+        final ArrayList<Uri> mOutputUris = new ArrayList<>();
+        final HashMap<Uri, ByteArrayOutputStream> mOutputs = new HashMap<>();
+        final HashSet<ByteArrayOutputStream> mClosed = new HashSet<>();
+        final HashSet<Uri> mDeleted = new HashSet<>();
+        volatile Uri mFailingOutput;
+
+        final Application mSpyApplication;
+
+        DetachedSignatureStorage(final String[] plaintexts) throws Exception {
+            // everything else is passed on, the database in particular
+            ContentResolver resolver = mock(ContentResolver.class,
+                    AdditionalAnswers.delegatesTo(RuntimeEnvironment.application.getContentResolver()));
+
+            for (int i = 0; i < plaintexts.length; i++) {
+                final byte[] plaintext = plaintexts[i].getBytes();
+                Uri inputUri = Uri.parse("content://fake/in/" + i);
+                mInputUris.add(inputUri);
+                mOutputUris.add(Uri.parse("content://fake/out/" + i + ".sig"));
+                doAnswer(new Answer<InputStream>() {
+                    @Override
+                    public InputStream answer(InvocationOnMock invocation) {
+                        return new ByteArrayInputStream(plaintext);
+                    }
+                }).when(resolver).openInputStream(inputUri);
+            }
+
+            doAnswer(new Answer<OutputStream>() {
+                @Override
+                public OutputStream answer(InvocationOnMock invocation) {
+                    final Uri uri = (Uri) invocation.getArguments()[0];
+                    final ByteArrayOutputStream out = new ByteArrayOutputStream() {
+                        @Override
+                        public synchronized void write(byte[] b, int off, int len) {
+                            if (uri.equals(mFailingOutput)) {
+                                throw new RuntimeException("fake write error");
+                            }
+                            super.write(b, off, len);
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            synchronized (mClosed) {
+                                mClosed.add(this);
+                            }
+                            super.close();
+                        }
+                    };
+                    synchronized (mOutputs) {
+                        mOutputs.put(uri, out);
+                    }
+                    return out;
+                }
+            }).when(resolver).openOutputStream(any(Uri.class));
+
+            doAnswer(new Answer<Integer>() {
+                @Override
+                public Integer answer(InvocationOnMock invocation) {
+                    synchronized (mDeleted) {
+                        mDeleted.add((Uri) invocation.getArguments()[0]);
+                    }
+                    return 1;
+                }
+            }).when(resolver).delete(any(Uri.class), any(String.class), any(String[].class));
+
+            mSpyApplication = spy(RuntimeEnvironment.application);
+            when(mSpyApplication.getContentResolver()).thenReturn(resolver);
+            when(mSpyApplication.getApplicationContext()).thenReturn(mSpyApplication);
+        }
+
+        SignEncryptResult sign() {
+            SignEncryptParcel input = new SignEncryptParcel();
+            input.addInputUris(mInputUris);
+            input.addOutputUris(mOutputUris);
+            input.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            input.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            input.setDetachedSignature(true);
+            input.setDetachedSignatureToOutput(true);
+
+            SignEncryptOperation op = new SignEncryptOperation(mSpyApplication,
+                    new ProviderHelper(RuntimeEnvironment.application), null, null);
+            return op.execute(input, new CryptoInputParcel(new Date(), mKeyPhrase1));
+        }
+    }
+
     private PgpDecryptVerifyOperation operationWithFakePassphraseCache(
             final Passphrase passphrase, final Long checkMasterKeyId, final Long checkSubKeyId) {
 
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class PipelinedSignEncryptCopyTest {
+
+    static PGPKeyPair mKeyPair;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        keyGen.initialize(1024);
+        mKeyPair = new JcaPGPKeyPair(PublicKeyAlgorithmTags.RSA_GENERAL, keyGen.generateKeyPair(), new Date());
+    }
+
+    private static PGPSignatureGenerator createSignatureGenerator() throws Exception {
+        PGPSignatureGenerator generator = new PGPSignatureGenerator(new JcaPGPContentSignerBuilder(
+                PublicKeyAlgorithmTags.RSA_GENERAL, HashAlgorithmTags.SHA256)
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+        generator.init(PGPSignature.BINARY_DOCUMENT, mKeyPair.getPrivateKey());
+        return generator;
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        byte[] data = new byte[PipelinedSignEncryptCopy.BUFFER_SIZE * PipelinedSignEncryptCopy.NUM_BUFFERS * 3 + 17];
+        new Random().nextBytes(data);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long copied = new PipelinedSignEncryptCopy().copy(
+                new ByteArrayInputStream(data), out, createSignatureGenerator(), null);
+
+        Assert.assertEquals("all data must be copied", data.length, copied);
+        Assert.assertArrayEquals("output must equal input", data, out.toByteArray());
+    }
+
+    @Test
+    public void testInterruptWaitsForWorkers() throws Exception {
+        final PGPSignatureGenerator generator = createSignatureGenerator();
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch neverReleased = new CountDownLatch(1);
+        final boolean[] writerDone = new boolean[1];
+
+        final OutputStream blockingOut = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writing.countDown();
+                try {
+                    neverReleased.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted in write");
+                } finally {
+                    // takes a while to wind down, the copy must not return before
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                    synchronized (writerDone) {
+                        writerDone[0] = true;
+                    }
+                }
+            }
+        };
+
+        final Exception[] copyException = new Exception[1];
+        final boolean[] writerDoneOnReturn = new boolean[1];
+        final boolean[] interruptedOnReturn = new boolean[1];
+
+        Thread copyThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new PipelinedSignEncryptCopy().copy(
+                            new ByteArrayInputStream(new byte[100]), blockingOut, generator, null);
+                } catch (Exception e) {
+                    copyException[0] = e;
+                }
+                synchronized (writerDone) {
+                    writerDoneOnReturn[0] = writerDone[0];
+                }
+                interruptedOnReturn[0] = Thread.currentThread().isInterrupted();
+            }
+        });
+        copyThread.start();
+
+        Assert.assertTrue("writer must be started", writing.await(5, TimeUnit.SECONDS));
+        // give the reader time to run out of input, and wait for the workers
+        Thread.sleep(100);
+        copyThread.interrupt();
+        copyThread.join(5000);
+
+        Assert.assertFalse("copy must return after interrupt", copyThread.isAlive());
+        Assert.assertTrue("interrupted copy must fail", copyException[0] instanceof InterruptedIOException);
+        Assert.assertTrue("copy must not return while workers still run", writerDoneOnReturn[0]);
+        Assert.assertTrue("interrupt flag must be restored", interruptedOnReturn[0]);
+    }
+
+}
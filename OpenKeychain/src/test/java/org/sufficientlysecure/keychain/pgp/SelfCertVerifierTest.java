@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPUserAttributeSubpacketVector;
+import org.bouncycastle.util.Arrays;
+import org.bouncycastle.util.Strings;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper.RawPacket;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class SelfCertVerifierTest {
+
+    static UncachedKeyRing staticRing;
+    static UncachedKeyRing staticSmallRing;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        { // enough certificates to be verified upfront
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L));
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+
+            parcel.mAddUserIds.add("twi");
+            for (int i = 0; i < SelfCertVerifier.MIN_PARALLEL_CERTS; i++) {
+                parcel.mAddUserIds.add("pink " + i);
+            }
+            parcel.mAddUserAttribute.add(WrappedUserAttribute.fromSubpacket(100,
+                    "sunshine, sunshine, ladybugs awake~".getBytes()));
+
+            staticRing = createRing(parcel);
+        }
+
+        { // too few certificates, verified inline
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddUserIds.add("twi");
+            parcel.mAddUserIds.add("pink");
+
+            staticSmallRing = createRing(parcel);
+        }
+    }
+
+    private static UncachedKeyRing createRing(SaveKeyringParcel parcel) throws Exception {
+        // passphrase is tested in PgpKeyOperationTest, just use empty here
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+        PgpKeyOperation op = new PgpKeyOperation(null);
+
+        PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        Assert.assertNotNull("initial test key creation must succeed", result.getRing());
+
+        return result.getRing().canonicalize(new OperationLog(), 0).getUncachedKeyRing();
+    }
+
+    @Test
+    public void testVerifySelfCerts() throws Exception {
+        Assert.assertEquals("all self-certificates must verify",
+                SelfCertVerifier.MIN_PARALLEL_CERTS + 4, verifyAll(staticRing, null));
+    }
+
+    @Test
+    public void testVerifySelfCertsInline() throws Exception {
+        Assert.assertEquals("all self-certificates must verify below the parallel threshold",
+                2, verifyAll(staticSmallRing, null));
+    }
+
+    @Test
+    public void testBrokenCertificate() throws Exception {
+        PGPPublicKey masterKey = staticRing.mRing.getPublicKey();
+        byte[] rawUserId = Strings.toUTF8ByteArray("twi");
+        @SuppressWarnings("unchecked")
+        PGPSignature sig = (PGPSignature) masterKey.getSignaturesForID(rawUserId).next();
+
+        byte[] raw = sig.getEncoded();
+        // destroy the signature
+        raw[raw.length - 5] += 1;
+
+        // inject as a second certificate on the first user id
+        UncachedKeyRing modified = KeyringTestingHelper.injectPacket(staticRing, raw, 3);
+
+        Assert.assertEquals("all but the broken self-certificate must verify",
+                SelfCertVerifier.MIN_PARALLEL_CERTS + 4, verifyAll(modified, raw));
+
+        OperationLog log = new OperationLog();
+        CanonicalizedKeyRing canonicalized = modified.canonicalize(log, 0);
+        Assert.assertNotNull("canonicalization must succeed", canonicalized);
+        Assert.assertTrue("log must contain uid_bad event", log.containsType(LogType.MSG_KC_UID_BAD));
+        Assert.assertFalse("canonicalized keyring with broken extra sig must be same as original one",
+                KeyringTestingHelper.diffKeyrings(staticRing.getEncoded(), canonicalized.getEncoded(),
+                        new ArrayList<RawPacket>(), new ArrayList<RawPacket>()));
+    }
+
+    /** Checks all self-certificates of the ring in the same order as canonicalize does,
+     * asserting that only the one encoded as broken fails. Returns the number of verified
+     * certificates.
+     */
+    private static int verifyAll(UncachedKeyRing ring, byte[] broken) throws Exception {
+        SelfCertVerifier verifier = SelfCertVerifier.forKeyRing(ring.mRing);
+        PGPPublicKey masterKey = ring.mRing.getPublicKey();
+        int verified = 0;
+
+        for (byte[] rawUserId : new IterableIterator<byte[]>(masterKey.getRawUserIDs())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> it = masterKey.getSignaturesForID(rawUserId);
+            for (PGPSignature zert : new IterableIterator<>(it)) {
+                verified += checkResult(zert, broken, verifier.verify(zert, masterKey, rawUserId));
+            }
+        }
+
+        for (PGPUserAttributeSubpacketVector attribute :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(masterKey.getUserAttributes())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> it = masterKey.getSignaturesForUserAttribute(attribute);
+            for (PGPSignature zert : new IterableIterator<>(it)) {
+                verified += checkResult(zert, broken, verifier.verify(zert, masterKey, attribute));
+            }
+        }
+
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(ring.mRing.getPublicKeys())) {
+            if (key.isMasterKey()) {
+                continue;
+            }
+            for (PGPSignature zert : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                if (zert.getSignatureType() == PGPSignature.SUBKEY_BINDING) {
+                    verified += checkResult(zert, broken, verifier.verify(zert, masterKey, key));
+                }
+            }
+        }
+
+        return verified;
+    }
+
+    private static int checkResult(PGPSignature zert, byte[] broken, boolean result) throws Exception {
+        if (broken != null && Arrays.areEqual(broken, zert.getEncoded())) {
+            Assert.assertFalse("broken self-certificate must not verify", result);
+            return 0;
+        }
+        Assert.assertTrue("self-certificate must verify", result);
+        return 1;
+    }
+
+}
@@ -37,6 +37,7 @@ import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openpgp.PGPPrivateKey;
 import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.bouncycastle.openpgp.PGPSecretKey;
 import org.bouncycastle.openpgp.PGPSecretKeyRing;
 import org.bouncycastle.openpgp.PGPSignature;
@@ -374,6 +375,65 @@ public class UncachedKeyringCanonicalizeTest {
 
     }
 
+    @Test public void testThirdPartyCertBudget() throws Exception {
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.add("trix");
+        PgpKeyOperation op = new PgpKeyOperation(null);
+
+        UncachedKeyRing foreign = op.createSecretKeyRing(parcel).getRing();
+        Assert.assertNotNull("initial test key creation must succeed", foreign);
+        PGPSecretKey foreignSecretKey =
+                new PGPSecretKeyRing(foreign.getEncoded(), new JcaKeyFingerprintCalculator())
+                .getSecretKey();
+
+        // add three third-party certificates to "twi", one hour apart
+        PGPPublicKeyRing publicRing = (PGPPublicKeyRing) ring.extractPublicKeyRing().mRing;
+        PGPPublicKey masterKey = publicRing.getPublicKey();
+        PGPSignature[] certs = new PGPSignature[3];
+        for (int i = 0; i < certs.length; i++) {
+            Calendar cal = Calendar.getInstance();
+            cal.add(Calendar.HOUR, i - certs.length);
+            PGPSignatureSubpacketGenerator subpackets = new PGPSignatureSubpacketGenerator();
+            subpackets.setSignatureCreationTime(false, cal.getTime());
+            certs[i] = forgeSignature(foreignSecretKey, PGPSignature.DEFAULT_CERTIFICATION,
+                    subpackets, "twi", publicRing.getPublicKey());
+            masterKey = PGPPublicKey.addCertification(masterKey, "twi", certs[i]);
+        }
+        UncachedKeyRing flooded =
+                new UncachedKeyRing(PGPPublicKeyRing.insertPublicKey(publicRing, masterKey));
+
+        { // within the budget, everything is kept
+            OperationLog log = new OperationLog();
+            CanonicalizedKeyRing canonicalized = flooded.canonicalize(log, 0, false, 3, null);
+            Assert.assertFalse("no certificates must be dropped within budget",
+                    log.containsType(LogType.MSG_KC_UID_FLOOD));
+            Assert.assertArrayEquals("keyring must be unchanged within budget",
+                    flooded.getEncoded(), canonicalized.getEncoded());
+        }
+
+        { // over budget, the oldest one is dropped
+            OperationLog log = new OperationLog();
+            CanonicalizedKeyRing canonicalized = flooded.canonicalize(log, 0, false, 2, null);
+            Assert.assertTrue("dropped certificates must be logged",
+                    log.containsType(LogType.MSG_KC_UID_FLOOD));
+
+            Assert.assertTrue("canonicalized keyring must differ", KeyringTestingHelper.diffKeyrings(
+                    flooded.getEncoded(), canonicalized.getEncoded(), onlyA, onlyB));
+            Assert.assertEquals("one packet should be stripped", 1, onlyA.size());
+            Assert.assertEquals("no new packets after canonicalization", 0, onlyB.size());
+            Assert.assertArrayEquals("stripped packet must be the oldest certificate",
+                    certs[0].getEncoded(), onlyA.get(0).buf);
+
+            Iterator<String> userIds = canonicalized.getUncachedKeyRing().mRing.getPublicKey().getUserIDs();
+            Assert.assertEquals("order of user ids must be kept", "twi", userIds.next());
+            Assert.assertEquals("order of user ids must be kept", "pink", userIds.next());
+        }
+
+    }
+
     @Test public void testSignatureFuture() throws Exception {
 
         // generate future timestamp (we allow up to one day future timestamps)
@@ -360,6 +360,44 @@ public class UncachedKeyringMergeTest {
         }
     }
 
+    @Test
+    public void testAddedManyUserIdSignatures() throws Exception {
+
+        final UncachedKeyRing pubRing = ringA.extractPublicKeyRing();
+
+        CanonicalizedSecretKey secretKey = new CanonicalizedSecretKeyRing(
+                ringB.getEncoded(), false, 0).getSecretKey();
+        secretKey.unlock(new Passphrase());
+
+        // certify all user ids twice, with different creation times
+        UncachedKeyRing modified = pubRing;
+        for (int i = 0; i < 2; i++) {
+            CanonicalizedPublicKeyRing publicRing = new CanonicalizedPublicKeyRing(
+                    modified.getEncoded(), 0);
+            CertifyAction action = new CertifyAction(pubRing.getMasterKeyId(),
+                    publicRing.getPublicKey().getUnorderedUserIds(), null);
+            PgpCertifyResult result = new PgpCertifyOperation().certify(secretKey, publicRing,
+                    new OperationLog(), 0, action, null, new Date(new Date().getTime() + i * 1000));
+            Assert.assertTrue("certification must succeed", result.success());
+            modified = modified.merge(result.getCertifiedRing(), log, 0);
+        }
+
+        UncachedKeyRing merged = pubRing.merge(modified, log, 0);
+        Assert.assertNotNull("merge must succeed", merged);
+        Assert.assertFalse(
+                "merging keyring with extra signatures into its base should yield that same keyring",
+                KeyringTestingHelper.diffKeyrings(merged.getEncoded(), modified.getEncoded(), onlyA, onlyB)
+        );
+        for (String userId : new String[] { "twi", "pink" }) {
+            int oldCount = KeyringTestingHelper.itToList(pubRing.getPublicKey()
+                    .getSignaturesForRawId(Strings.toUTF8ByteArray(userId))).size();
+            int newCount = KeyringTestingHelper.itToList(merged.getPublicKey()
+                    .getSignaturesForRawId(Strings.toUTF8ByteArray(userId))).size();
+            Assert.assertEquals("both new certificates must be merged for user id " + userId,
+                    oldCount + 2, newCount);
+        }
+    }
+
     @Test
     public void testAddedUserAttributeSignature() throws Exception {
 
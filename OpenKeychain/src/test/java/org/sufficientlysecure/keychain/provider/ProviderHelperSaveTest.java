@@ -37,8 +37,11 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
@@ -82,6 +85,51 @@ public class ProviderHelperSaveTest {
 
     }
 
+    @Test public void testImportIdentical() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+
+        SaveKeyringResult result;
+
+        result = mProviderHelper.savePublicKeyRing(pub);
+        Assert.assertTrue("first import should succeed", result.success());
+        Assert.assertFalse("first import should not be an update", result.updated());
+
+        result = new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(pub);
+        Assert.assertTrue("second import should succeed", result.success());
+        Assert.assertTrue("second import should be an update", result.updated());
+        Assert.assertTrue("second import should be recognized as identical",
+                result.getLog().containsType(LogType.MSG_IP_SUCCESS_IDENTICAL));
+
+    }
+
+    @Test public void testImportIdenticalExpectedFingerprint() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        String fingerprint = KeyFormattingUtils.convertFingerprintToHex(pub.getFingerprint());
+
+        SaveKeyringResult result;
+
+        result = mProviderHelper.savePublicKeyRing(pub);
+        Assert.assertTrue("first import should succeed", result.success());
+
+        // the stored keyring is identical, but it is not the one that was asked for
+        result = new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(
+                pub, new ProgressScaler(), "0000000000000000000000000000000000000000");
+        Assert.assertFalse("import with wrong fingerprint must fail, even if identical", result.success());
+        Assert.assertTrue("import with wrong fingerprint must log the mismatch",
+                result.getLog().containsType(LogType.MSG_IP_FINGERPRINT_ERROR));
+
+        result = new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(
+                pub, new ProgressScaler(), fingerprint);
+        Assert.assertTrue("import with expected fingerprint should succeed", result.success());
+        Assert.assertTrue("fingerprint must be checked",
+                result.getLog().containsType(LogType.MSG_IP_FINGERPRINT_OK));
+        Assert.assertTrue("import should still be recognized as identical",
+                result.getLog().containsType(LogType.MSG_IP_SUCCESS_IDENTICAL));
+
+    }
+
     @Test public void testImportSymantec() throws Exception {
 
         // symantec pgp desktop exports secret keys without self certificates. we don't support
@@ -194,6 +242,41 @@ public class ProviderHelperSaveTest {
 
     }
 
+    @Test public void testSecretSubkeyIndex() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        UncachedKeyRing sec = readRingFromResource("/test-keys/divert_to_card_sec.asc");
+
+        SaveKeyringResult result;
+
+        result = mProviderHelper.savePublicKeyRing(pub);
+        Assert.assertTrue("import of public keyring should succeed", result.success());
+        Assert.assertNull("subkeys of public keyrings should not be in the index",
+                mProviderHelper.getSecretSubkey(pub.getMasterKeyId()));
+
+        // the index was loaded above, saving a secret keyring must invalidate it
+        result = mProviderHelper.saveSecretKeyRing(sec, new ProgressScaler());
+        Assert.assertTrue("import of secret keyring should succeed", result.success());
+
+        CanonicalizedSecretKeyRing secRing =
+                mProviderHelper.getCanonicalizedSecretKeyRing(sec.getMasterKeyId());
+        for (CanonicalizedSecretKey key : secRing.secretKeyIterator()) {
+            ProviderHelper.SecretSubkey secretSubkey = mProviderHelper.getSecretSubkey(key.getKeyId());
+            Assert.assertNotNull("all subkeys of secret keyrings should be in the index", secretSubkey);
+            Assert.assertEquals("index should map subkeys to their master key id",
+                    sec.getMasterKeyId(), secretSubkey.mMasterKeyId);
+            Assert.assertEquals("index should contain the secret key type",
+                    SecretKeyType.DIVERT_TO_CARD, secretSubkey.mSecretKeyType);
+        }
+
+        // changes made elsewhere, e.g. by another process, are only seen through notifications
+        RuntimeEnvironment.application.getContentResolver().delete(
+                KeyRingData.buildSecretKeyRingUri(sec.getMasterKeyId()), null, null);
+        Assert.assertNull("index should be reloaded after a notified change",
+                mProviderHelper.getSecretSubkey(sec.getMasterKeyId()));
+
+    }
+
     @Test public void testImportBadEncodedUserId() throws Exception {
 
         UncachedKeyRing key = readRingFromResource("/test-keys/bad_user_id_encoding.asc");
@@ -249,6 +332,24 @@ public class ProviderHelperSaveTest {
 
     }
 
+    @Test public void testReinsertKeepsSecretKeyRing() throws Exception {
+
+        UncachedKeyRing key = readRingFromResource("/test-keys/stripped_flags.asc");
+        long masterKeyId = key.getMasterKeyId();
+
+        SaveKeyringResult result = mProviderHelper.saveSecretKeyRing(key, new ProgressScaler());
+        Assert.assertTrue("import of keyring should succeed", result.success());
+        long signId = mProviderHelper.getCachedPublicKeyRing(masterKeyId).getSecretSignId();
+
+        Assert.assertTrue("reinsert should succeed", mProviderHelper.reinsertKeyRing(masterKeyId));
+
+        CanonicalizedSecretKeyRing ring = mProviderHelper.getCanonicalizedSecretKeyRing(masterKeyId);
+        Assert.assertNotNull("secret keyring should still exist after reinsert", ring);
+        Assert.assertEquals("secret key types should be restored after reinsert",
+                signId, mProviderHelper.getCachedPublicKeyRing(masterKeyId).getSecretSignId());
+
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(ProviderHelperSaveTest.class.getResourceAsStream(name)).next();
     }
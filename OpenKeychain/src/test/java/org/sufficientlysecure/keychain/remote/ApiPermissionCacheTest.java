@@ -0,0 +1,50 @@
+package org.sufficientlysecure.keychain.remote;
+
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.provider.ApiDataAccessObject;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ApiPermissionCacheTest {
+
+    @Before
+    public void setUp() throws Exception {
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+    }
+
+    @Test
+    public void testInvalidationOnApiAppChange() throws Exception {
+        ApiPermissionCache cache = new ApiPermissionCache(RuntimeEnvironment.application);
+
+        cache.putVerifiedPackage(1234, "com.example.app", cache.getGeneration());
+        Assert.assertEquals("verified package must be cached",
+                "com.example.app", cache.getVerifiedPackage(1234));
+
+        new ApiDataAccessObject(RuntimeEnvironment.application).insertApiApp(
+                new AppSettings("com.example.other", new byte[] { 1, 2, 3 }));
+
+        Assert.assertNull("cache must be cleared when api apps change", cache.getVerifiedPackage(1234));
+    }
+
+    @Test
+    public void testStaleCheckNotCached() throws Exception {
+        ApiPermissionCache cache = new ApiPermissionCache(RuntimeEnvironment.application);
+
+        int generation = cache.getGeneration();
+        cache.invalidate();
+        cache.putVerifiedPackage(1234, "com.example.app", generation);
+
+        Assert.assertNull("result of check started before invalidation must not be cached",
+                cache.getVerifiedPackage(1234));
+    }
+
+}
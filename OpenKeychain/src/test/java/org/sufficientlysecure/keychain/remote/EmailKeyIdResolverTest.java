@@ -0,0 +1,104 @@
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.remote.EmailKeyIdResolver.EmailKeyIds;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class EmailKeyIdResolverTest {
+
+    static UncachedKeyRing mAliceRing, mAliceWorkRing, mCarolRing;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        mAliceRing = createRing("Alice <alice@example.com>");
+        mAliceWorkRing = createRing("Alice Work <Alice@Example.com>", "Bob <bob@example.com>");
+        mCarolRing = createRing("Carol <carol@example.com>");
+    }
+
+    private static UncachedKeyRing createRing(String... userIds) {
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        parcel.mAddUserIds.addAll(Arrays.asList(userIds));
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("test key creation must succeed", result.success());
+        return result.getRing();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        providerHelper.savePublicKeyRing(mAliceRing.extractPublicKeyRing());
+        providerHelper.savePublicKeyRing(mAliceWorkRing.extractPublicKeyRing());
+    }
+
+    @Test
+    public void testResolve() throws Exception {
+        EmailKeyIdResolver resolver = new EmailKeyIdResolver(RuntimeEnvironment.application);
+
+        List<EmailKeyIds> result = resolver.resolve(
+                Arrays.asList("ALICE@example.com", "bob@example.com", "carol@example.com"));
+        Assert.assertEquals("there must be a result for every email", 3, result.size());
+
+        Assert.assertEquals("result must keep the given email", "ALICE@example.com", result.get(0).mEmail);
+        Assert.assertTrue("email of two keys must be duplicate", result.get(0).isDuplicate());
+        Assert.assertTrue("both keys must be found, regardless of case",
+                result.get(0).mMasterKeyIds.containsAll(Arrays.asList(
+                        mAliceRing.getMasterKeyId(), mAliceWorkRing.getMasterKeyId())));
+
+        Assert.assertFalse("email of a single key must not be duplicate", result.get(1).isDuplicate());
+        Assert.assertEquals("non-primary user id must be found",
+                Arrays.asList(mAliceWorkRing.getMasterKeyId()), result.get(1).mMasterKeyIds);
+
+        Assert.assertTrue("unknown email must be missing", result.get(2).isMissing());
+
+        resolver.close();
+    }
+
+    @Test
+    public void testCacheInvalidation() throws Exception {
+        EmailKeyIdResolver resolver = new EmailKeyIdResolver(RuntimeEnvironment.application);
+
+        Assert.assertTrue("unknown email must be missing",
+                resolver.resolve(Arrays.asList("carol@example.com")).get(0).isMissing());
+
+        new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(mCarolRing.extractPublicKeyRing());
+
+        Assert.assertEquals("newly imported key must be found",
+                Arrays.asList(mCarolRing.getMasterKeyId()),
+                resolver.resolve(Arrays.asList("carol@example.com")).get(0).mMasterKeyIds);
+
+        resolver.close();
+    }
+
+}
@@ -0,0 +1,55 @@
+package org.sufficientlysecure.keychain.util;
+
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class BufferPoolTest {
+
+    @Test
+    public void testReuseAndZeroing() throws Exception {
+        BufferPool pool = new BufferPool(2, true);
+
+        byte[] buffer = pool.acquire();
+        assertEquals("buffer must have pool size", BufferPool.BUFFER_SIZE, buffer.length);
+        buffer[123] = 42;
+        pool.release(buffer);
+
+        byte[] reused = pool.acquire();
+        assertSame("released buffer should be reused", buffer, reused);
+        assertEquals("reused buffer should be zeroed", 0, reused[123]);
+        assertEquals("buffer should only be allocated once", 1, pool.getAllocateCount());
+        assertEquals("one buffer should be borrowed", 1, pool.getOutstandingCount());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        BufferPool pool = new BufferPool(2, true);
+
+        BufferPool.Lease lease = pool.newLease();
+        byte[] first = lease.acquire();
+        byte[] second = lease.acquire();
+        lease.acquire();
+        assertNotSame("borrowed buffers must be distinct", first, second);
+        assertEquals("three buffers should be borrowed", 3, pool.getOutstandingCount());
+
+        lease.releaseAll();
+        assertEquals("no buffers should be borrowed", 0, pool.getOutstandingCount());
+        assertEquals("pool should keep only two buffers", 2, pool.getPooledCount());
+
+        // releasing again must not add the buffers a second time
+        pool.release(first);
+        assertEquals("pool should keep only two buffers", 2, pool.getPooledCount());
+        assertEquals("no buffers should be borrowed", 0, pool.getOutstandingCount());
+    }
+
+}
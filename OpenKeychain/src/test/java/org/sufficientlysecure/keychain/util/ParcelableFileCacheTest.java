@@ -79,4 +79,37 @@ public class ParcelableFileCacheTest {
 
     }
 
+    @Test
+    public void testRandomAccess() throws Exception {
+
+        ParcelableFileCache<Bundle> cache = new ParcelableFileCache<Bundle>(RuntimeEnvironment.application, "test.pcl");
+
+        ArrayList<Bundle> list = new ArrayList<Bundle>();
+
+        for (int i = 0; i < 50; i++) {
+            Bundle b = new Bundle();
+            b.putInt("key1", i);
+            list.add(b);
+        }
+
+        cache.writeCache(list.size(), list.iterator());
+
+        Assert.assertEquals("random access should return correct entry",
+                23, cache.readEntry(23).getInt("key1"));
+        Assert.assertEquals("random access should return first entry",
+                0, cache.readEntry(0).getInt("key1"));
+        Assert.assertEquals("random access should return last entry",
+                49, cache.readEntry(49).getInt("key1"));
+
+        // random access must not consume the file
+        IteratorWithSize<Bundle> it = cache.readCache();
+        int count = 0;
+        while (it.hasNext()) {
+            Assert.assertEquals("entries should be read back in order", count, it.next().getInt("key1"));
+            count += 1;
+        }
+        Assert.assertEquals("all entries should be read back", list.size(), count);
+
+    }
+
 }
@@ -0,0 +1,96 @@
+package org.sufficientlysecure.keychain.util;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class PresizedByteArrayOutputStreamTest {
+
+    @Test
+    public void testAllocatedOnFirstWrite() throws Exception {
+        PresizedByteArrayOutputStream out = new PresizedByteArrayOutputStream(1000);
+        assertEquals("nothing must be allocated before the first write", 0, out.getBuffer().length);
+
+        out.write(new byte[0]);
+        assertEquals("nothing must be allocated for an empty write", 0, out.getBuffer().length);
+
+        out.write(1);
+        assertEquals("buffer must have the expected size", 1000, out.getBuffer().length);
+        assertEquals(1, out.size());
+    }
+
+    @Test
+    public void testGrowsPastEstimate() throws Exception {
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        PresizedByteArrayOutputStream out = new PresizedByteArrayOutputStream(40);
+        out.write(data, 0, 30);
+        byte[] first = out.getBuffer();
+        assertEquals("buffer must have the expected size", 40, first.length);
+
+        out.write(data, 30, 70);
+        assertNotSame("buffer must grow past the estimate", first, out.getBuffer());
+        assertEquals(100, out.size());
+        assertArrayEquals("all data must be kept", data, out.toByteArray());
+    }
+
+    @Test
+    public void testFirstWriteLargerThanEstimate() throws Exception {
+        PresizedByteArrayOutputStream out = new PresizedByteArrayOutputStream(40);
+        out.write(new byte[100]);
+        assertEquals("buffer must fit the first write", 100, out.getBuffer().length);
+    }
+
+    @Test
+    public void testToByteArray() throws Exception {
+        PresizedByteArrayOutputStream out = new PresizedByteArrayOutputStream(64);
+        out.write(new byte[64]);
+        assertSame("backing array must be returned if the estimate was exact",
+                out.getBuffer(), out.toByteArray());
+
+        out = new PresizedByteArrayOutputStream(64);
+        out.write(new byte[10]);
+        assertEquals("copy must be trimmed", 10, out.toByteArray().length);
+    }
+
+    @Test
+    public void testResultTrimming() throws Exception {
+        PresizedByteArrayOutputStream out = new PresizedByteArrayOutputStream(64);
+        out.write(new byte[] { 1, 2, 3 });
+
+        DecryptVerifyResult decryptResult = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, new OperationLog());
+        decryptResult.setOutputBytes(out.getBuffer(), out.size());
+        assertArrayEquals("output bytes must be trimmed to the written length",
+                new byte[] { 1, 2, 3 }, decryptResult.getOutputBytes());
+
+        SignEncryptResult signResult = new SignEncryptResult(SignEncryptResult.RESULT_OK, new OperationLog(),
+                new ArrayList<PgpSignEncryptResult>(), out.getBuffer(), out.size());
+        assertArrayEquals("result bytes must be trimmed to the written length",
+                new byte[] { 1, 2, 3 }, signResult.getResultBytes());
+
+        byte[] exact = Arrays.copyOf(out.getBuffer(), 3);
+        decryptResult.setOutputBytes(exact, exact.length);
+        assertSame("exactly sized output must not be copied", exact, decryptResult.getOutputBytes());
+    }
+
+}
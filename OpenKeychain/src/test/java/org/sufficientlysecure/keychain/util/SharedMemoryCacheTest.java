@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 Vincent Breitmoser <v.breitmoser@mugenguild.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.util.Random;
+
+import android.os.Parcel;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class SharedMemoryCacheTest {
+
+    @Test
+    public void testLargeBytesInlineOutsideHandoff() throws Exception {
+        byte[] bytes = new byte[SharedMemoryCache.INLINE_THRESHOLD * 2];
+        new Random().nextBytes(bytes);
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            SharedMemoryCache.writeBytesToParcel(bytes, parcel);
+
+            // a saved state Parcel may be read any number of times, and after a restart
+            for (int i = 0; i < 2; i++) {
+                parcel.setDataPosition(0);
+                Assert.assertArrayEquals("bytes outside of a handoff must be read back every time",
+                        bytes, SharedMemoryCache.readBytesFromParcel(parcel));
+            }
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void testTrimmedLength() throws Exception {
+        byte[] bytes = new byte[] { 1, 2, 3, 4, 5 };
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            SharedMemoryCache.writeBytesToParcel(bytes, 3, parcel);
+            parcel.setDataPosition(0);
+            Assert.assertArrayEquals("only the given length must be written",
+                    new byte[] { 1, 2, 3 }, SharedMemoryCache.readBytesFromParcel(parcel));
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void testResultBytesOnlyInHandoff() throws Exception {
+        DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, new OperationLog());
+        result.setOutputBytes(new byte[] { 1, 2, 3 });
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            result.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            Assert.assertNull("output bytes must be left out of parcels outside of a handoff",
+                    DecryptVerifyResult.CREATOR.createFromParcel(parcel).getOutputBytes());
+        } finally {
+            parcel.recycle();
+        }
+
+        parcel = Parcel.obtain();
+        SharedMemoryCache.beginHandoff();
+        try {
+            result.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            Assert.assertArrayEquals("output bytes must be passed on in a handoff",
+                    new byte[] { 1, 2, 3 }, DecryptVerifyResult.CREATOR.createFromParcel(parcel).getOutputBytes());
+        } finally {
+            SharedMemoryCache.endHandoff();
+            parcel.recycle();
+        }
+    }
+
+}